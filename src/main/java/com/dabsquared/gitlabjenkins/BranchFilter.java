@@ -0,0 +1,96 @@
+package com.dabsquared.gitlabjenkins;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.google.common.base.Objects;
+
+/**
+ * Compiled form of the branch filter configured on a {@link GitLabPushTrigger}.
+ *
+ * The include/exclude specs are split and compiled, like the target branch regex, once, so
+ * checking a branch does not re-parse the job configuration.
+ */
+public final class BranchFilter {
+
+    private static final Logger LOGGER = Logger.getLogger(BranchFilter.class.getName());
+
+    static final BranchFilter ALLOW_ALL = new BranchFilter("", "", "", "");
+
+    private final String branchFilterName;
+    private final List<BranchSpecMatcher> includeBranches;
+    private final List<BranchSpecMatcher> excludeBranches;
+    private final Pattern targetBranchPattern;
+    /** false if the target branch regex does not compile, no branch is allowed then */
+    private final boolean targetBranchRegexValid;
+
+    public BranchFilter(String branchFilterName, String includeBranchesSpec, String excludeBranchesSpec, String targetBranchRegex) {
+        this.branchFilterName = branchFilterName;
+        this.includeBranches = Collections.unmodifiableList(
+                BranchSpecMatcher.compile(GitLabPushTrigger.DescriptorImpl.splitBranchSpec(includeBranchesSpec)));
+        this.excludeBranches = Collections.unmodifiableList(
+                BranchSpecMatcher.compile(GitLabPushTrigger.DescriptorImpl.splitBranchSpec(excludeBranchesSpec)));
+        Pattern pattern = null;
+        boolean valid = true;
+        if (StringUtils.isNotEmpty(targetBranchRegex)) {
+            try {
+                pattern = Pattern.compile(targetBranchRegex);
+            } catch (PatternSyntaxException e) {
+                // does not keep the trigger from starting, but builds nothing until it is fixed
+                LOGGER.log(Level.WARNING, "Invalid target branch regex " + targetBranchRegex + ", no branch is allowed", e);
+                valid = false;
+            }
+        }
+        this.targetBranchPattern = pattern;
+        this.targetBranchRegexValid = valid;
+    }
+
+    public static BranchFilter create(GitLabPushTrigger trigger) {
+        return new BranchFilter(trigger.getBranchFilterName(), trigger.getIncludeBranchesSpec(),
+                trigger.getExcludeBranchesSpec(), trigger.getTargetBranchRegex());
+    }
+
+    public boolean isBranchAllowed(String branchName) {
+        if (branchFilterName.isEmpty()) {
+            // no filter is applied, allow all branches
+            return true;
+        }
+
+        if (Objects.equal(branchFilterName, "NameBasedFilter")) {
+            return isAllowedByList(branchName);
+        }
+
+        if (Objects.equal(branchFilterName, "RegexBasedFilter")) {
+            if (!targetBranchRegexValid) {
+                LOGGER.log(Level.WARNING, "Branch {0} rejected, the target branch regex is invalid", branchName);
+                return false;
+            }
+            return targetBranchPattern == null || targetBranchPattern.matcher(branchName).matches();
+        }
+
+        return false;
+    }
+
+    private boolean isAllowedByList(String branchName) {
+        if (excludeBranches.isEmpty() && includeBranches.isEmpty()) {
+            return true;
+        }
+        for (BranchSpecMatcher pattern : excludeBranches) {
+            if (pattern.matches(branchName)) {
+                return false;
+            }
+        }
+        for (BranchSpecMatcher pattern : includeBranches) {
+            if (pattern.matches(branchName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,117 @@
+package com.dabsquared.gitlabjenkins;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.springframework.util.AntPathMatcher;
+
+/**
+ * A branch spec like <code>release/**</code> or <code>feature-*</code>, compiled once instead of
+ * being parsed by {@link AntPathMatcher} for every branch it is matched against.
+ *
+ * Specs without wildcards are compared as strings. The others become a regular expression with
+ * the semantics of the matcher for branch names: <code>?</code> and <code>*</code> match one and
+ * any characters but <code>/</code>, and a <code>**</code> path segment any number of segments.
+ * Specs the expression would not follow exactly, starting or ending with <code>/</code>, with
+ * empty segments, spaces or <code>{</code>, are still matched by {@link AntPathMatcher}.
+ */
+public final class BranchSpecMatcher {
+
+    private static final AntPathMatcher ANT_MATCHER = new AntPathMatcher();
+
+    private final String spec;
+    /** null for a spec without wildcards, or one matched by the AntPathMatcher */
+    private final Pattern pattern;
+    private final boolean ant;
+
+    private BranchSpecMatcher(String spec, Pattern pattern, boolean ant) {
+        this.spec = spec;
+        this.pattern = pattern;
+        this.ant = ant;
+    }
+
+    public static BranchSpecMatcher compile(String spec) {
+        if (spec.startsWith("/") || spec.endsWith("/") || spec.contains("//") || spec.indexOf('{') >= 0
+                || spec.matches(".*\\s.*")) {
+            return new BranchSpecMatcher(spec, null, true);
+        }
+        if (spec.indexOf('*') < 0 && spec.indexOf('?') < 0) {
+            return new BranchSpecMatcher(spec, null, false);
+        }
+        return new BranchSpecMatcher(spec, Pattern.compile(toRegex(spec)), false);
+    }
+
+    public static List<BranchSpecMatcher> compile(List<String> specs) {
+        List<BranchSpecMatcher> matchers = new ArrayList<BranchSpecMatcher>(specs.size());
+        for (String spec : specs) {
+            matchers.add(compile(spec));
+        }
+        return matchers;
+    }
+
+    public String getSpec() {
+        return spec;
+    }
+
+    public boolean matches(String branchName) {
+        if (ant) {
+            return ANT_MATCHER.match(spec, branchName);
+        }
+        if (pattern == null) {
+            return spec.equals(branchName);
+        }
+        return pattern.matcher(branchName).matches();
+    }
+
+    static String toRegex(String spec) {
+        // consecutive ** segments match like one
+        List<String> segments = new ArrayList<String>();
+        for (String segment : spec.split("/")) {
+            if (!(segment.equals("**") && !segments.isEmpty() && segments.get(segments.size() - 1).equals("**"))) {
+                segments.add(segment);
+            }
+        }
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < segments.size(); i++) {
+            String segment = segments.get(i);
+            if (segment.equals("**")) {
+                if (segments.size() == 1) {
+                    regex.append(".*");
+                } else if (i == segments.size() - 1) {
+                    regex.append("(?:/.*)?");
+                } else if (i == 0) {
+                    regex.append("(?:.*/)?");
+                } else {
+                    // takes the separator before the next segment too
+                    regex.append("/(?:.*/)?");
+                }
+                continue;
+            }
+            if (i > 0 && !segments.get(i - 1).equals("**")) {
+                regex.append('/');
+            }
+            StringBuilder literal = new StringBuilder();
+            for (char c : segment.toCharArray()) {
+                if (c == '*' || c == '?') {
+                    if (literal.length() > 0) {
+                        regex.append(Pattern.quote(literal.toString()));
+                        literal.setLength(0);
+                    }
+                    regex.append(c == '*' ? "[^/]*" : "[^/]");
+                } else {
+                    literal.append(c);
+                }
+            }
+            if (literal.length() > 0) {
+                regex.append(Pattern.quote(literal.toString()));
+            }
+        }
+        return regex.toString();
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+}
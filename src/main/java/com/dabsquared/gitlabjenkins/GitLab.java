@@ -1,32 +1,488 @@
 package com.dabsquared.gitlabjenkins;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.gitlab.api.GitlabAPI;
+import org.gitlab.api.models.GitlabBranch;
+import org.gitlab.api.models.GitlabCommitStatus;
+import org.gitlab.api.models.GitlabMergeRequest;
+import org.gitlab.api.models.GitlabNote;
+import org.gitlab.api.models.GitlabProject;
 
+import com.dabsquared.gitlabjenkins.GitLabMetrics.ApiMethod;
+
+/**
+ * Client of a GitLab server: the default one configured globally, or a named {@link GitLabConnection}.
+ * Each server has its own API clients, rate limit and caches, kept when the global configuration is saved
+ * unless the settings of the server changed. Read-only calls go to the replica of
+ * the server if one is configured, the others to the server itself.
+ */
 public class GitLab {
   private static final Logger LOGGER = Logger.getLogger(GitLab.class.getName());
+  /** null for the default server, read from the global configuration */
+  private final GitLabConnection connection;
   private GitlabAPI api;
+  private GitlabAPI readApi;
+  private final GitLabProjectBranchesService branchesService;
+  private final Object rateLimit = new Object();
+  private long nextCallNanos;
+  /** the calls in progress, including the ones waiting for the rate limit */
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger maxInFlight = new AtomicInteger();
+  /** the last {@link #RECENT_ERRORS} failed calls, the newest last */
+  private final LinkedList<FailedCall> recentErrors = new LinkedList<FailedCall>();
+
+  static final int RECENT_ERRORS = 20;
+
+  /** the longest a call waits for the rate limit before failing, as GitLab would answer 429 */
+  static final long MAX_RATE_LIMIT_WAIT_MILLIS = Long.getLong(GitLab.class.getName() + ".maxRateLimitWaitMillis", 10000);
+
+  /** the query of a URL, where the API client puts the private token */
+  private static final Pattern QUERY = Pattern.compile("(://[^\\s?]*)\\?[^\\s]*");
+
+  /** how the connections of the API report the HTTP errors of GitLab */
+  private static final Pattern RESPONSE_CODE = Pattern.compile("HTTP response code: (\\d{3})");
+
+  public GitLab() {
+    this.connection = null;
+    this.branchesService = GitLabProjectBranchesService.instance();
+  }
+
+  public GitLab(GitLabConnection connection) {
+    this.connection = connection;
+    this.branchesService = new GitLabProjectBranchesService(new GitLabProjectBranchesService.TimeUtility());
+  }
+
+  /**
+   * @return the named connection of the client, null for the default server
+   */
+  GitLabConnection getConnection() {
+    return connection;
+  }
+
+  /**
+   * @return the name of the connection, empty for the default server
+   */
+  public String getName() {
+    return connection == null ? "" : connection.getName();
+  }
+
+  public boolean isConfigured() {
+    String url = connection == null ? GitLabPushTrigger.getDesc().getGitlabHostUrl() : connection.getUrl();
+    return url != null && !url.isEmpty();
+  }
+
+  /**
+   * @return the branches and projects cached for this server
+   */
+  public GitLabProjectBranchesService getBranchesService() {
+    return branchesService;
+  }
+
+  /**
+   * @return the client of the server, waiting first if the calls to the server are limited
+   * @throws IOException if the call would wait longer than {@link #MAX_RATE_LIMIT_WAIT_MILLIS}
+   */
+  public GitlabAPI instance() throws IOException {
+    acquire();
+    synchronized (this) {
+      if (api == null) {
+        api = connect(connection == null ? GitLabPushTrigger.getDesc().getGitlabHostUrl() : connection.getUrl());
+      }
+      return api;
+    }
+  }
+
+  /**
+   * @return the client for read-only calls, of the replica of the server if there is one
+   */
+  public GitlabAPI readInstance() throws IOException {
+    String readUrl = connection == null ? GitLabPushTrigger.getDesc().getGitlabReadHostUrl() : connection.getReadUrl();
+    if (readUrl == null || readUrl.isEmpty()) {
+      return instance();
+    }
+    acquire();
+    synchronized (this) {
+      if (readApi == null) {
+        readApi = connect(readUrl);
+      }
+      return readApi;
+    }
+  }
+
+  /**
+   * Drops the API clients, connected again with the new settings of the default server on the next call.
+   */
+  synchronized void disconnect() {
+    api = null;
+    readApi = null;
+  }
+
+  /**
+   * Drops the API clients and the caches of a named connection that is removed or replaced.
+   */
+  void release() {
+    disconnect();
+    if (connection != null) {
+      branchesService.flushBranches();
+      branchesService.flushProjects();
+    }
+  }
+
+  private GitlabAPI connect(String url) {
+    String token = connection == null ? GitLabPushTrigger.getDesc().getGitlabApiToken() : connection.getApiToken();
+    boolean ignoreCertificateErrors = connection == null ? GitLabPushTrigger.getDesc().getIgnoreCertificateErrors()
+        : connection.getIgnoreCertificateErrors();
+    LOGGER.log(Level.FINE, "Connecting to Gitlab server ({0})", url);
+    GitlabAPI client = GitlabAPI.connect(url, token);
+    client.ignoreCertificateErrors(ignoreCertificateErrors);
+    return client;
+  }
+
+  /**
+   * Spaces the calls to the server evenly if they are limited to a number per second. A call that
+   * would wait longer than {@link #MAX_RATE_LIMIT_WAIT_MILLIS} fails right away instead of holding
+   * its thread, with an error {@link #isTransient(IOException)} accepts, so that the outbox sends
+   * statuses and notes again later.
+   */
+  private void acquire() throws IOException {
+    int requestsPerSecond = getRequestsPerSecond();
+    if (requestsPerSecond <= 0) {
+      return;
+    }
+    long waitNanos;
+    synchronized (rateLimit) {
+      long now = System.nanoTime();
+      long callNanos = Math.max(now, nextCallNanos);
+      waitNanos = callNanos - now;
+      if (waitNanos > TimeUnit.MILLISECONDS.toNanos(MAX_RATE_LIMIT_WAIT_MILLIS)) {
+        throw new IOException("Too many calls waiting for the rate limit of " + requestsPerSecond
+            + " requests per second, as if GitLab answered with HTTP response code: 429");
+      }
+      nextCallNanos = callNanos + TimeUnit.SECONDS.toNanos(1) / requestsPerSecond;
+    }
+    if (waitNanos > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  public int getInFlight() {
+    return inFlight.get();
+  }
+
+  /**
+   * @return the largest number of calls in progress at the same time so far
+   */
+  public int getMaxInFlight() {
+    return maxInFlight.get();
+  }
+
+  public int getRequestsPerSecond() {
+    return connection == null ? GitLabPushTrigger.getDesc().getGitlabRequestsPerSecond() : connection.getRequestsPerSecond();
+  }
+
+  /**
+   * @return the last failed calls, the newest first
+   */
+  public List<FailedCall> getRecentErrors() {
+    synchronized (recentErrors) {
+      List<FailedCall> errors = new ArrayList<FailedCall>(recentErrors);
+      Collections.reverse(errors);
+      return errors;
+    }
+  }
+
+  long begin() {
+    int calls = inFlight.incrementAndGet();
+    int max = maxInFlight.get();
+    while (calls > max && !maxInFlight.compareAndSet(max, calls)) {
+      max = maxInFlight.get();
+    }
+    return System.nanoTime();
+  }
+
+  void end(ApiMethod method, boolean success, long started) {
+    inFlight.decrementAndGet();
+    GitLabMetrics.recordApiCall(method, success, started);
+  }
+
+  void failed(ApiMethod method, IOException e) {
+    synchronized (recentErrors) {
+      recentErrors.addLast(new FailedCall(method, withoutQueries(e.toString())));
+      if (recentErrors.size() > RECENT_ERRORS) {
+        recentErrors.removeFirst();
+      }
+    }
+  }
+
+  /*
+   * The calls below go through to instance() and record their outcome and latency in GitLabMetrics.
+   */
+
+  public GitlabProject getProject(Integer projectId) throws IOException {
+    long started = begin();
+    boolean success = false;
+    try {
+      GitlabProject project = readInstance().getProject(projectId);
+      success = true;
+      return project;
+    } catch (IOException e) {
+      failed(ApiMethod.GET_PROJECT, e);
+      throw e;
+    } finally {
+      end(ApiMethod.GET_PROJECT, success, started);
+    }
+  }
+
+  public GitlabBranch getBranch(GitlabProject project, String branchName) throws IOException {
+    long started = begin();
+    boolean success = false;
+    try {
+      GitlabBranch branch = readInstance().getBranch(project, branchName);
+      success = true;
+      return branch;
+    } catch (IOException e) {
+      failed(ApiMethod.GET_BRANCH, e);
+      throw e;
+    } finally {
+      end(ApiMethod.GET_BRANCH, success, started);
+    }
+  }
+
+  public List<GitlabMergeRequest> getOpenMergeRequests(Integer projectId) throws IOException {
+    long started = begin();
+    boolean success = false;
+    try {
+      List<GitlabMergeRequest> mergeRequests = readInstance().getOpenMergeRequests(projectId);
+      success = true;
+      return mergeRequests;
+    } catch (IOException e) {
+      failed(ApiMethod.GET_OPEN_MERGE_REQUESTS, e);
+      throw e;
+    } finally {
+      end(ApiMethod.GET_OPEN_MERGE_REQUESTS, success, started);
+    }
+  }
+
+  public GitlabMergeRequest getMergeRequest(GitlabProject project, Integer mergeRequestId) throws IOException {
+    long started = begin();
+    boolean success = false;
+    try {
+      GitlabMergeRequest mergeRequest = readInstance().getMergeRequest(project, mergeRequestId);
+      success = true;
+      return mergeRequest;
+    } catch (IOException e) {
+      failed(ApiMethod.GET_MERGE_REQUEST, e);
+      throw e;
+    } finally {
+      end(ApiMethod.GET_MERGE_REQUEST, success, started);
+    }
+  }
+
+  public GitlabNote createNote(GitlabMergeRequest mergeRequest, String body) throws IOException {
+    return createNote(mergeRequest, body, true);
+  }
+
+  /**
+   * @param sendAgain whether the note is sent again by the {@link GitLabOutbox} if it cannot be sent now
+   */
+  private GitlabNote createNote(GitlabMergeRequest mergeRequest, String body, boolean sendAgain) throws IOException {
+    long started = begin();
+    boolean success = false;
+    try {
+      GitlabNote note = instance().createNote(mergeRequest, body);
+      success = true;
+      return note;
+    } catch (IOException e) {
+      failed(ApiMethod.CREATE_NOTE, e);
+      if (sendAgain && isTransient(e)) {
+        GitLabOutbox.instance().noteFailed(getName(), mergeRequest.getProjectId(), mergeRequest.getId(), body);
+      }
+      throw e;
+    } finally {
+      end(ApiMethod.CREATE_NOTE, success, started);
+    }
+  }
+
+  /**
+   * Creates a note without fetching the merge request first, its project and id are enough.
+   */
+  public GitlabNote createNote(Integer projectId, Integer mergeRequestId, String body) throws IOException {
+    return createNote(projectId, mergeRequestId, body, true);
+  }
+
+  /**
+   * @param sendAgain whether the note is sent again by the {@link GitLabOutbox} if it cannot be sent
+   *        now, false when the caller has to know the id of the note
+   */
+  public GitlabNote createNote(Integer projectId, Integer mergeRequestId, String body, boolean sendAgain) throws IOException {
+    GitlabMergeRequest mergeRequest = new GitlabMergeRequest();
+    mergeRequest.setProjectId(projectId);
+    mergeRequest.setId(mergeRequestId);
+    return createNote(mergeRequest, body, sendAgain);
+  }
+
+  public GitlabNote updateNote(Integer projectId, Integer mergeRequestId, Integer noteId, String body) throws IOException {
+    long started = begin();
+    boolean success = false;
+    try {
+      String tailUrl = GitlabProject.URL + "/" + projectId + GitlabMergeRequest.URL + "/" + mergeRequestId + GitlabNote.URL + "/" + noteId;
+      GitlabNote note = instance().retrieve().method("PUT").with("body", body).to(tailUrl, GitlabNote.class);
+      success = true;
+      return note;
+    } catch (IOException e) {
+      failed(ApiMethod.UPDATE_NOTE, e);
+      throw e;
+    } finally {
+      end(ApiMethod.UPDATE_NOTE, success, started);
+    }
+  }
 
-  public GitlabAPI instance() {
-    if (api == null) {
-    	String token = GitLabPushTrigger.getDesc().getGitlabApiToken();
-        String url = GitLabPushTrigger.getDesc().getGitlabHostUrl();
-        boolean ignoreCertificateErrors = GitLabPushTrigger.getDesc().getIgnoreCertificateErrors();
-        LOGGER.log(Level.FINE, "Connecting to Gitlab server ({0})", url);
-        api = GitlabAPI.connect(url, token);
-        api.ignoreCertificateErrors(ignoreCertificateErrors);
+  public GitlabCommitStatus createCommitStatus(GitlabProject project, String sha, String status, String ref,
+                                               String name, String targetUrl, String description) throws IOException {
+    return createCommitStatus(project, sha, status, ref, name, targetUrl, description, true);
+  }
+
+  /**
+   * @param sendAgain whether the outbox sends the status again if GitLab cannot be reached, false
+   *                  when the outbox itself sends it
+   */
+  GitlabCommitStatus createCommitStatus(GitlabProject project, String sha, String status, String ref, String name,
+                                        String targetUrl, String description, boolean sendAgain) throws IOException {
+    if (sendAgain) {
+      // the earlier status of the commit is not sent again after this one
+      GitLabOutbox.instance().statusSending(getName(), project.getId(), sha, name);
     }
+    long started = begin();
+    boolean success = false;
+    try {
+      GitlabCommitStatus commitStatus = instance().createCommitStatus(project, sha, status, ref, name, targetUrl, description);
+      success = true;
+      return commitStatus;
+    } catch (IOException e) {
+      failed(ApiMethod.CREATE_COMMIT_STATUS, e);
+      // sent again by the outbox once GitLab answers, unless a later status is sent first
+      if (sendAgain && isTransient(e)) {
+        GitLabOutbox.instance().statusFailed(getName(), project.getId(), sha, status, ref, name, targetUrl, description);
+      }
+      throw e;
+    } finally {
+      end(ApiMethod.CREATE_COMMIT_STATUS, success, started);
+    }
+  }
+
+  public GitlabMergeRequest acceptMergeRequest(GitlabProject project, Integer mergeRequestId, String mergeCommitMessage) throws IOException {
+    long started = begin();
+    boolean success = false;
+    try {
+      GitlabMergeRequest mergeRequest = instance().acceptMergeRequest(project, mergeRequestId, mergeCommitMessage);
+      success = true;
+      return mergeRequest;
+    } catch (IOException e) {
+      failed(ApiMethod.ACCEPT_MERGE_REQUEST, e);
+      throw e;
+    } finally {
+      end(ApiMethod.ACCEPT_MERGE_REQUEST, success, started);
+    }
+  }
 
-    return api;
+  /**
+   * @return the message without the queries of the URLs it contains, which hold the private token
+   */
+  static String withoutQueries(String message) {
+    return message == null ? null : QUERY.matcher(message).replaceAll("$1");
+  }
+
+  /**
+   * @return true if GitLab answered that the resource does not exist (404 or 410)
+   */
+  static boolean isNotFound(IOException e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof FileNotFoundException) {
+        return true;
+      }
+      Matcher matcher = RESPONSE_CODE.matcher(String.valueOf(cause.getMessage()));
+      if (matcher.find()) {
+        int code = Integer.parseInt(matcher.group(1));
+        return code == 404 || code == 410;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * An error without an HTTP response code is taken as transient: the API client reports every
+   * answer of GitLab with its code, so the others are failures to reach it, such as a timeout, a
+   * refused connection or an unknown host, which may succeed later.
+   *
+   * @return true if the call may succeed later, since GitLab could not be reached, answered with a
+   *         server error or asked to slow down, false if it refused the call and would refuse it again
+   */
+  static boolean isTransient(IOException e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof FileNotFoundException) {
+        // 404 and 410
+        return false;
+      }
+      Matcher matcher = RESPONSE_CODE.matcher(String.valueOf(cause.getMessage()));
+      if (matcher.find()) {
+        int code = Integer.parseInt(matcher.group(1));
+        return code >= 500 || code == 408 || code == 429;
+      }
+    }
+    return true;
   }
-  
+
   public static boolean checkConnection (String token, String url, boolean ignoreCertificateErrors) throws IOException {
 	  GitlabAPI testApi = GitlabAPI.connect(url, token);
 	  testApi.ignoreCertificateErrors(ignoreCertificateErrors);
 	  testApi.getProjects();
 	  return true;
   }
-}
\ No newline at end of file
+
+  /**
+   * A failed call to the server.
+   */
+  public static final class FailedCall {
+    private final long time = System.currentTimeMillis();
+    private final ApiMethod method;
+    private final String message;
+
+    FailedCall(ApiMethod method, String message) {
+      this.method = method;
+      this.message = message;
+    }
+
+    public long getTime() {
+      return time;
+    }
+
+    public Date getDate() {
+      return new Date(time);
+    }
+
+    public ApiMethod getMethod() {
+      return method;
+    }
+
+    public String getMessage() {
+      return message;
+    }
+  }
+}
@@ -0,0 +1,145 @@
+package com.dabsquared.gitlabjenkins;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Search index of the branches of a repository, for the autocompletion of the branch filters.
+ *
+ * Built once per load of the branch list by the {@link GitLabProjectBranchesService}, it answers a
+ * query with at most {@link #MAX_SUGGESTIONS} branches, ranked as follows, each group in
+ * alphabetical order:
+ * <ol>
+ * <li>the branch named like the query</li>
+ * <li>the branches whose name starts with the query</li>
+ * <li>the branches with a part of the name, after a <code>/</code>, <code>-</code>, <code>_</code>
+ * or <code>.</code>, that starts with the query</li>
+ * <li>the other branches containing the query</li>
+ * </ol>
+ * The first three are looked up by binary search in sorted arrays; the last one is only scanned
+ * for when the others do not fill the suggestions. The lookup ignores case.
+ */
+public final class GitLabBranchIndex {
+
+    static final int MAX_SUGGESTIONS = Integer.getInteger(GitLabBranchIndex.class.getName() + ".maxSuggestions", 50);
+
+    private static final String SEPARATORS = "/-_.";
+
+    /** the branches, sorted by their folded name */
+    private final String[] names;
+    private final String[] folded;
+
+    /** the parts of the folded names starting after a separator, sorted, and their branch */
+    private final String[] tokens;
+    private final int[] tokenBranches;
+
+    public GitLabBranchIndex(List<String> branchNames) {
+        int count = branchNames.size();
+        final String[] foldedNames = new String[count];
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            foldedNames[i] = fold(branchNames.get(i));
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return foldedNames[a].compareTo(foldedNames[b]);
+            }
+        });
+        names = new String[count];
+        folded = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = branchNames.get(order[i]);
+            folded[i] = foldedNames[order[i]];
+        }
+
+        final List<String> tokenList = new ArrayList<String>();
+        List<Integer> branchList = new ArrayList<Integer>();
+        for (int branch = 0; branch < count; branch++) {
+            String name = folded[branch];
+            for (int i = 0; i < name.length() - 1; i++) {
+                if (SEPARATORS.indexOf(name.charAt(i)) >= 0 && SEPARATORS.indexOf(name.charAt(i + 1)) < 0) {
+                    tokenList.add(name.substring(i + 1));
+                    branchList.add(branch);
+                }
+            }
+        }
+        Integer[] tokenOrder = new Integer[tokenList.size()];
+        for (int i = 0; i < tokenOrder.length; i++) {
+            tokenOrder[i] = i;
+        }
+        Arrays.sort(tokenOrder, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return tokenList.get(a).compareTo(tokenList.get(b));
+            }
+        });
+        tokens = new String[tokenOrder.length];
+        tokenBranches = new int[tokenOrder.length];
+        for (int i = 0; i < tokenOrder.length; i++) {
+            tokens[i] = tokenList.get(tokenOrder[i]);
+            tokenBranches[i] = branchList.get(tokenOrder[i]);
+        }
+    }
+
+    public List<String> search(String query) {
+        return search(query, MAX_SUGGESTIONS);
+    }
+
+    /**
+     * @return at most <code>limit</code> branches matching the query, best first
+     */
+    public List<String> search(String query, int limit) {
+        if (limit <= 0 || names.length == 0) {
+            return Collections.emptyList();
+        }
+        String q = fold(query == null ? "" : query.trim());
+        Set<Integer> found = new LinkedHashSet<Integer>();
+
+        // exact matches and prefixes: the exact match sorts first among the names with the prefix
+        for (int i = lowerBound(folded, q); i < folded.length && found.size() < limit && folded[i].startsWith(q); i++) {
+            found.add(i);
+        }
+        for (int i = lowerBound(tokens, q); i < tokens.length && found.size() < limit && tokens[i].startsWith(q); i++) {
+            found.add(tokenBranches[i]);
+        }
+        for (int i = 0; i < folded.length && found.size() < limit; i++) {
+            if (folded[i].indexOf(q) > 0) {
+                found.add(i);
+            }
+        }
+
+        List<String> result = new ArrayList<String>(found.size());
+        for (Integer branch : found) {
+            result.add(names[branch]);
+        }
+        return result;
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    private static int lowerBound(String[] sorted, String key) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid].compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static String fold(String name) {
+        return name.toLowerCase(Locale.ENGLISH);
+    }
+}
@@ -0,0 +1,185 @@
+package com.dabsquared.gitlabjenkins;
+
+import hudson.Util;
+import hudson.util.FormValidation;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.util.Timer;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.dabsquared.gitlabjenkins.GitLabProjectBranchesService.BranchListEntry;
+
+/**
+ * The check of the include and exclude branch specs of the trigger configuration, which never
+ * waits for GitLab.
+ *
+ * The branches of the repository are loaded in the background; until they are, the check answers
+ * that it is checking, and the configuration page asks again a moment later. Once loaded, the
+ * result of a spec is kept for the version of the branch list it was computed from, so typing in
+ * the field or several people configuring jobs of the same repository neither call GitLab nor
+ * match the branches again. When the branch list expires, the last result is shown while the
+ * branches are loaded again. A repository GitLab has no project for has no branches, so its specs
+ * are not found.
+ *
+ * The branches are peeked at without locking, so a check never waits for a load in progress.
+ */
+public final class GitLabBranchSpecValidation {
+
+    private static final Logger LOGGER = Logger.getLogger(GitLabBranchSpecValidation.class.getName());
+
+    static final int MAX_RESULTS = Integer.getInteger(GitLabBranchSpecValidation.class.getName() + ".maxResults", 1000);
+
+    /** how long a failure to load the branches is shown before trying again */
+    static final long RETRY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    /** the class of the answer while the branches are loaded, which the configuration page checks again */
+    static final String CHECKING_CLASS = "gitlab-branches-checking";
+
+    private static final GitLabBranchSpecValidation INSTANCE = new GitLabBranchSpecValidation(MAX_RESULTS, null);
+
+    private final Executor executor;
+
+    /** by GitLab server, repository and specs, the least recently used first */
+    private final LinkedHashMap<String, Result> results;
+    /** the repositories whose branches are being loaded */
+    private final Set<String> loading = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Map<String, Failure> failures = new ConcurrentHashMap<String, Failure>();
+
+    GitLabBranchSpecValidation(final int maxResults, Executor executor) {
+        this.executor = executor;
+        this.results = new LinkedHashMap<String, Result>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+                return size() > maxResults;
+            }
+        };
+    }
+
+    public static GitLabBranchSpecValidation instance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param showFailure whether a failure to load the branches is shown with its stack trace
+     */
+    public FormValidation check(GitLab gitlab, String repository, List<String> specs, boolean showFailure) {
+        String repositoryKey = gitlab.getName() + "|" + repository;
+        BranchListEntry branches = gitlab.getBranchesService().peekBranchListEntry(repository);
+        if (branches == null) {
+            Failure failure = failures.get(repositoryKey);
+            if (failure != null && System.currentTimeMillis() - failure.time < RETRY_MILLIS) {
+                return FormValidation.warning(showFailure ? failure.exception : null, Messages.GitLabPushTrigger_CannotCheckBranches());
+            }
+            load(gitlab, repositoryKey, repository);
+            return FormValidation.okWithMarkup("<span class=\"" + CHECKING_CLASS + "\">"
+                    + Util.escape(Messages.GitLabPushTrigger_CheckingBranches()) + "</span>");
+        }
+        if (branches.hasExpired()) {
+            load(gitlab, repositoryKey, repository);
+        }
+
+        String key = repositoryKey + "|" + StringUtils.join(specs, ",");
+        synchronized (results) {
+            Result result = results.get(key);
+            if (result != null && result.version == branches.version) {
+                return result.validation;
+            }
+        }
+        FormValidation validation = validate(specs, branches.branchNames);
+        synchronized (results) {
+            results.put(key, new Result(branches.version, validation));
+        }
+        return validation;
+    }
+
+    private void load(final GitLab gitlab, final String repositoryKey, final String repository) {
+        if (!loading.add(repositoryKey)) {
+            return;
+        }
+        Runnable load = new Runnable() {
+            public void run() {
+                try {
+                    gitlab.getBranchesService().getBranches(gitlab, repository);
+                    failures.remove(repositoryKey);
+                } catch (IOException e) {
+                    failed(repositoryKey, e);
+                } catch (RuntimeException e) {
+                    failed(repositoryKey, new IOException(e));
+                } finally {
+                    loading.remove(repositoryKey);
+                }
+            }
+        };
+        (executor != null ? executor : Timer.get()).execute(load);
+    }
+
+    private void failed(String repositoryKey, IOException e) {
+        LOGGER.log(Level.FINE, "Could not load the branches of " + repositoryKey, e);
+        failures.put(repositoryKey, new Failure(e));
+    }
+
+    /**
+     * @return a warning listing the specs matching no branch, or the number of branches matched
+     */
+    static FormValidation validate(List<String> specs, List<String> branchNames) {
+        List<BranchSpecMatcher> matchers = BranchSpecMatcher.compile(specs);
+        boolean[] specMatched = new boolean[matchers.size()];
+        int matchedBranches = 0;
+        for (String branchName : branchNames) {
+            boolean matched = false;
+            for (int i = 0; i < specMatched.length; i++) {
+                // once the branch is counted, only the specs not matched yet are left to look at
+                if ((!specMatched[i] || !matched) && matchers.get(i).matches(branchName)) {
+                    specMatched[i] = true;
+                    matched = true;
+                }
+            }
+            if (matched) {
+                matchedBranches++;
+            }
+        }
+
+        List<String> unknownSpecs = new ArrayList<String>();
+        for (int i = 0; i < specMatched.length; i++) {
+            if (!specMatched[i]) {
+                unknownSpecs.add(specs.get(i));
+            }
+        }
+        if (!unknownSpecs.isEmpty()) {
+            return FormValidation.warning(Messages.GitLabPushTrigger_BranchesNotFound(StringUtils.join(unknownSpecs, ", ")));
+        }
+        return FormValidation.ok(Messages.GitLabPushTrigger_BranchesMatched(matchedBranches));
+    }
+
+    private static final class Result {
+        final long version;
+        final FormValidation validation;
+
+        Result(long version, FormValidation validation) {
+            this.version = version;
+            this.validation = validation;
+        }
+    }
+
+    private static final class Failure {
+        final long time = System.currentTimeMillis();
+        final IOException exception;
+
+        Failure(IOException exception) {
+            this.exception = exception;
+        }
+    }
+}
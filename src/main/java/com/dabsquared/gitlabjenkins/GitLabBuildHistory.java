@@ -0,0 +1,155 @@
+package com.dabsquared.gitlabjenkins;
+
+import hudson.model.Job;
+import hudson.model.ParametersAction;
+import hudson.model.Run;
+import hudson.model.StringParameterValue;
+import hudson.plugins.git.Branch;
+import hudson.plugins.git.util.Build;
+import hudson.plugins.git.util.BuildData;
+import hudson.plugins.git.util.MergeRecord;
+import hudson.util.RunList;
+
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Lookups of builds by commit or branch in the history of a job, as needed to answer the
+ * status requests of GitLab and to avoid building a merge request commit twice.
+ */
+public final class GitLabBuildHistory {
+
+    private static final Logger LOGGER = Logger.getLogger(GitLabBuildHistory.class.getName());
+
+    private GitLabBuildHistory() {
+    }
+
+    /**
+     *
+     * @param project
+     * @param commitSHA1
+     * @return latest build of the commit, a merge build if triggeredByMergeRequest is set
+     */
+    public static Run getBuildBySHA1(Job project, String commitSHA1, boolean triggeredByMergeRequest) {
+        GitLabBuildIndex index = GitLabBuildIndex.of(project);
+        if (index != null && GitLabBuildIndex.isIndexable(commitSHA1)) {
+            return index.getBuildBySHA1(commitSHA1, triggeredByMergeRequest);
+        }
+        return scanBuildBySHA1(project, commitSHA1, triggeredByMergeRequest);
+    }
+
+    /**
+     * Looks at every build of the history, as done while its index is not built yet.
+     */
+    public static Run scanBuildBySHA1(Job project, String commitSHA1, boolean triggeredByMergeRequest) {
+        List<Run> builds = project.getBuilds();
+        for(Run build : builds) {
+            if (isBuildOf(build, commitSHA1, triggeredByMergeRequest)) {
+                return build;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the build is a build of the commit, a merge build if triggeredByMergeRequest is set
+     */
+    static boolean isBuildOf(Run build, String commitSHA1, boolean triggeredByMergeRequest) {
+        BuildData data = build.getAction(BuildData.class);
+        MergeRecord mergeRecord = build.getAction(MergeRecord.class);
+        if (mergeRecord == null) {
+            //Determine if build was triggered by a Merge Request event
+            ParametersAction params = build.getAction(ParametersAction.class);
+
+            if (params == null) return false;
+
+            StringParameterValue sourceBranch = (StringParameterValue) params.getParameter("gitlabSourceBranch");
+            StringParameterValue targetBranch = (StringParameterValue) params.getParameter("gitlabTargetBranch");
+            boolean isMergeRequestBuild = (sourceBranch != null && !sourceBranch.value.equals(targetBranch.value));
+
+            if (!triggeredByMergeRequest) {
+                if (isMergeRequestBuild)
+                    // skip Merge Request builds
+                    return false;
+
+                return data.getLastBuiltRevision().getSha1String().contains(commitSHA1);
+            } else {
+                return hasBeenBuilt(data, ObjectId.fromString(commitSHA1), build);
+            }
+
+        } else {
+            Build b =  data.lastBuild;
+            boolean isMergeBuild = mergeRecord!=null && !mergeRecord.getSha1().equals(b.getMarked().getSha1String());
+            if(b!=null && b.getMarked()!=null && b.getMarked().getSha1String().equals(commitSHA1)){
+                if(triggeredByMergeRequest == isMergeBuild){
+                    LOGGER.log(Level.FINE, build.getNumber()+" Build found matching "+commitSHA1+" "+(isMergeBuild? "merge":"normal")+" build");
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public static boolean hasBeenBuilt(BuildData data, ObjectId sha1, Run build) {
+        try {
+            for (Build b : data.getBuildsByBranchName().values()) {
+                if (b.getBuildNumber() == build.getNumber()
+                        && b.marked.getSha1().equals(sha1))
+                    return true;
+            }
+            return false;
+        } catch (Exception ex) {
+            return false;
+        }
+    }
+
+    /**
+     *
+     * @param project
+     * @param branch
+     * @return latest build of the branch specified that is not part of a merge request
+     */
+    @SuppressWarnings("rawtypes")
+    public static Run getBuildByBranch(Job project, String branch) {
+        GitLabBuildIndex index = GitLabBuildIndex.of(project);
+        if (index != null) {
+            return index.getBuildByBranch(branch);
+        }
+        return scanBuildByBranch(project, branch);
+    }
+
+    /**
+     * Looks at every build of the history, as done while its index is not built yet.
+     */
+    @SuppressWarnings("rawtypes")
+    public static Run scanBuildByBranch(Job project, String branch) {
+        RunList<?> builds = project.getBuilds();
+        for(Run build : builds) {
+            if (isBuildOfBranch(build, branch)) {
+                return build;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the build is a build of the branch that is not part of a merge request
+     */
+    static boolean isBuildOfBranch(Run build, String branch) {
+        BuildData data = build.getAction(BuildData.class);
+        if(data!=null && data.lastBuild!=null) {
+            MergeRecord merge = build.getAction(MergeRecord.class);
+            boolean isMergeBuild = merge != null && !merge.getSha1().equals(data.lastBuild.getMarked().getSha1String());
+            if (data.lastBuild.getRevision() != null && !isMergeBuild) {
+                for (Branch b : data.lastBuild.getRevision().getBranches()) {
+                    if (b.getName().endsWith("/" + branch))
+                        return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,241 @@
+package com.dabsquared.gitlabjenkins;
+
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.plugins.git.Branch;
+import hudson.plugins.git.util.Build;
+import hudson.plugins.git.util.BuildData;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Index of the builds of a job by commit SHA1 and by branch, so that {@link GitLabBuildHistory}
+ * does not have to load and inspect every build of a deep history.
+ *
+ * The index only narrows the search: it maps every SHA1 and branch suffix a build refers to
+ * to the build number, and {@link GitLabBuildHistory} still checks each candidate, newest
+ * first, with the same predicate it uses when scanning. Builds above the high-water mark, and
+ * those still running when they were indexed, are checked directly on every lookup until they
+ * are indexed by the next one.
+ *
+ * Indexes are built in the background, by the {@link GitLabWarmUp} at startup or on the first
+ * lookup of a job; until then lookups scan the history as before.
+ */
+public final class GitLabBuildIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(GitLabBuildIndex.class.getName());
+
+    static final int THREADS = Integer.getInteger(GitLabBuildIndex.class.getName() + ".threads", 2);
+
+    private static final ConcurrentMap<String, GitLabBuildIndex> INDEXES = new ConcurrentHashMap<String, GitLabBuildIndex>();
+
+    private static final ExecutorService BUILDERS = builders();
+
+    private final Job<?, ?> job;
+    private final Map<String, List<Integer>> bySHA1 = new HashMap<String, List<Integer>>();
+    private final Map<String, List<Integer>> byBranch = new HashMap<String, List<Integer>>();
+    private final Set<Integer> running = new TreeSet<Integer>(Collections.reverseOrder());
+    private int highWaterMark;
+    private volatile boolean ready;
+
+    private GitLabBuildIndex(Job<?, ?> job) {
+        this.job = job;
+    }
+
+    private static ExecutorService builders() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamingThreadFactory(new DaemonThreadFactory(), "GitLab build index"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * @return the index of the job, or null if it is not built yet, in which case it is being built
+     *         in the background
+     */
+    public static GitLabBuildIndex of(Job<?, ?> job) {
+        GitLabBuildIndex index = INDEXES.get(job.getFullName());
+        if (index == null || index.job != job) {
+            index = schedule(job);
+        }
+        return index.ready ? index : null;
+    }
+
+    /**
+     * Builds the index of the job in the background, unless it is already built or being built.
+     */
+    static GitLabBuildIndex schedule(Job<?, ?> job) {
+        final GitLabBuildIndex created = new GitLabBuildIndex(job);
+        GitLabBuildIndex index = INDEXES.putIfAbsent(job.getFullName(), created);
+        if (index != null) {
+            if (index.job == job || !INDEXES.replace(job.getFullName(), index, created)) {
+                // already there, or replaced by a concurrent lookup
+                return index;
+            }
+        }
+        BUILDERS.execute(new Runnable() {
+            public void run() {
+                created.build();
+            }
+        });
+        return created;
+    }
+
+    static void forget(String jobName) {
+        INDEXES.remove(jobName);
+    }
+
+    /**
+     * Only full SHA1s can be looked up, the scan also matches abbreviated ones.
+     */
+    static boolean isIndexable(String commitSHA1) {
+        return commitSHA1 != null && commitSHA1.length() == 40;
+    }
+
+    private void build() {
+        long started = System.nanoTime();
+        try {
+            synchronized (this) {
+                update();
+            }
+            ready = true;
+            LOGGER.log(Level.FINE, "Indexed {0} builds of {1} in {2}ms",
+                    new Object[] { highWaterMark, job.getFullName(), (System.nanoTime() - started) / 1000000 });
+        } catch (RuntimeException e) {
+            INDEXES.remove(job.getFullName(), this);
+            LOGGER.log(Level.WARNING, "Could not index the builds of " + job.getFullName(), e);
+        }
+    }
+
+    Run<?, ?> getBuildBySHA1(String commitSHA1, boolean triggeredByMergeRequest) {
+        for (Run<?, ?> build : candidates(bySHA1, commitSHA1)) {
+            if (GitLabBuildHistory.isBuildOf(build, commitSHA1, triggeredByMergeRequest)) {
+                return build;
+            }
+        }
+        return null;
+    }
+
+    Run<?, ?> getBuildByBranch(String branch) {
+        for (Run<?, ?> build : candidates(byBranch, branch)) {
+            if (GitLabBuildHistory.isBuildOfBranch(build, branch)) {
+                return build;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the builds that may match the key, newest first
+     */
+    private List<Run<?, ?>> candidates(Map<String, List<Integer>> index, String key) {
+        Set<Integer> numbers = new TreeSet<Integer>(Collections.reverseOrder());
+        synchronized (this) {
+            update();
+            numbers.addAll(running);
+            List<Integer> indexed = index.get(key);
+            if (indexed != null) {
+                numbers.addAll(indexed);
+            }
+        }
+        List<Run<?, ?>> builds = new ArrayList<Run<?, ?>>(numbers.size());
+        for (Integer number : numbers) {
+            Run<?, ?> build = job.getBuildByNumber(number);
+            if (build != null) {
+                builds.add(build);
+            }
+        }
+        return builds;
+    }
+
+    /**
+     * Indexes the builds finished since the last update.
+     */
+    private void update() {
+        List<Integer> finished = new ArrayList<Integer>();
+        for (Integer number : running) {
+            Run<?, ?> build = job.getBuildByNumber(number);
+            if (build == null || !build.isBuilding()) {
+                finished.add(number);
+                if (build != null) {
+                    add(build);
+                }
+            }
+        }
+        running.removeAll(finished);
+
+        int mark = highWaterMark;
+        for (Run<?, ?> build : job.getBuilds()) {
+            if (build.getNumber() <= mark) {
+                break;
+            }
+            if (build.isBuilding()) {
+                running.add(build.getNumber());
+            } else {
+                add(build);
+            }
+            highWaterMark = Math.max(highWaterMark, build.getNumber());
+        }
+    }
+
+    private void add(Run<?, ?> build) {
+        BuildData data = build.getAction(BuildData.class);
+        if (data == null) {
+            return;
+        }
+        Set<String> shas = new HashSet<String>();
+        if (data.getLastBuiltRevision() != null) {
+            shas.add(data.getLastBuiltRevision().getSha1String());
+        }
+        Build lastBuild = data.lastBuild;
+        if (lastBuild != null && lastBuild.getMarked() != null) {
+            shas.add(lastBuild.getMarked().getSha1String());
+        }
+        for (Build b : data.getBuildsByBranchName().values()) {
+            if (b.getBuildNumber() == build.getNumber() && b.getMarked() != null) {
+                shas.add(b.getMarked().getSha1String());
+            }
+        }
+        for (String sha : shas) {
+            put(bySHA1, sha, build.getNumber());
+        }
+
+        if (lastBuild != null && lastBuild.getRevision() != null) {
+            for (Branch branch : lastBuild.getRevision().getBranches()) {
+                // a lookup of "b" matches "origin/a/b" and "origin/b", index every suffix after a slash
+                String name = branch.getName();
+                for (int slash = name.indexOf('/'); slash >= 0; slash = name.indexOf('/', slash + 1)) {
+                    put(byBranch, name.substring(slash + 1), build.getNumber());
+                }
+            }
+        }
+    }
+
+    private static void put(Map<String, List<Integer>> index, String key, int number) {
+        List<Integer> numbers = index.get(key);
+        if (numbers == null) {
+            numbers = new ArrayList<Integer>(1);
+            index.put(key, numbers);
+        }
+        if (!numbers.contains(number)) {
+            numbers.add(number);
+        }
+    }
+}
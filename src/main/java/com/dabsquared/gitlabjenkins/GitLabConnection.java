@@ -0,0 +1,78 @@
+package com.dabsquared.gitlabjenkins;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * A named GitLab server, configured globally next to the default one, which jobs select in their
+ * trigger. Its read-only calls can go to a replica, and its calls can be limited to a number per
+ * second.
+ */
+public class GitLabConnection {
+
+    private final String name;
+    private final String url;
+    private final String apiToken;
+    private final String readUrl;
+    private final boolean ignoreCertificateErrors;
+    private final int requestsPerSecond;
+
+    @DataBoundConstructor
+    public GitLabConnection(String name, String url, String apiToken, String readUrl, boolean ignoreCertificateErrors,
+            int requestsPerSecond) {
+        this.name = name == null ? "" : name.trim();
+        this.url = url;
+        this.apiToken = apiToken;
+        this.readUrl = readUrl;
+        this.ignoreCertificateErrors = ignoreCertificateErrors;
+        this.requestsPerSecond = Math.max(0, requestsPerSecond);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getApiToken() {
+        return apiToken;
+    }
+
+    /**
+     * @return the URL of the replica serving the read-only calls, empty to send them to {@link #getUrl()}
+     */
+    public String getReadUrl() {
+        return readUrl;
+    }
+
+    public boolean getIgnoreCertificateErrors() {
+        return ignoreCertificateErrors;
+    }
+
+    /**
+     * @return the largest number of calls per second, 0 for no limit
+     */
+    public int getRequestsPerSecond() {
+        return requestsPerSecond;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof GitLabConnection)) {
+            return false;
+        }
+        GitLabConnection other = (GitLabConnection) obj;
+        return name.equals(other.name) && equal(url, other.url) && equal(apiToken, other.apiToken) && equal(readUrl, other.readUrl)
+                && ignoreCertificateErrors == other.ignoreCertificateErrors && requestsPerSecond == other.requestsPerSecond;
+    }
+
+    @Override
+    public int hashCode() {
+        return name.hashCode();
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
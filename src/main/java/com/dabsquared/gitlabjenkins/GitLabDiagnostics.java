@@ -0,0 +1,122 @@
+package com.dabsquared.gitlabjenkins;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import jenkins.model.Jenkins;
+
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import com.dabsquared.gitlabjenkins.GitLabMetrics.Cache;
+
+/**
+ * The state of the plugin at <code>/gitlab-diagnostics/</code>: the webhook events waiting
+ * and being processed, the latency of the last event of each job, the caches and the clients of
+ * each GitLab server.
+ *
+ * Everything shown is read from counters the plugin keeps up to date anyway, rendering the page
+ * neither looks at the jobs nor calls GitLab.
+ */
+@Extension
+public class GitLabDiagnostics extends ManagementLink {
+
+    /** the number of jobs listed with the latency of their last event */
+    static final int SLOWEST_JOBS = 50;
+
+    @Override
+    public String getIconFileName() {
+        return "monitor.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "GitLab Diagnostics";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Webhook events in progress, caches and GitLab clients of the GitLab plugin.";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "gitlab-diagnostics";
+    }
+
+    public List<GitLabWebHookAdmission.Ticket> getEvents() {
+        return GitLabWebHookAdmission.instance().getTickets();
+    }
+
+    /**
+     * @return the jobs whose last event took the longest, from admission to the end of its processing
+     */
+    public List<Map.Entry<String, Long>> getSlowestJobs() {
+        List<Map.Entry<String, Long>> latencies = new ArrayList<Map.Entry<String, Long>>(
+                GitLabWebHookAdmission.instance().getLastLatencies().entrySet());
+        Collections.sort(latencies, new Comparator<Map.Entry<String, Long>>() {
+            public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                return b.getValue().compareTo(a.getValue());
+            }
+        });
+        return latencies.size() > SLOWEST_JOBS ? latencies.subList(0, SLOWEST_JOBS) : latencies;
+    }
+
+    public List<GitLab> getGitlabs() {
+        return GitLabPushTrigger.getDesc().getGitlabs();
+    }
+
+    public int getOpenMergeRequestProjects(GitLab gitlab) {
+        return GitLabOpenMergeRequests.instance().getProjectCount(gitlab);
+    }
+
+    public int getOutboxSize() {
+        return GitLabOutbox.instance().size();
+    }
+
+    /**
+     * @return the share of the lookups of the cache, of all GitLab servers, answered from the cache
+     */
+    public String getHitRate(String cache) {
+        Cache c = Cache.valueOf(cache);
+        long hits = GitLabMetrics.getCacheHits(c);
+        long lookups = hits + GitLabMetrics.getCacheMisses(c);
+        return lookups == 0 ? "-" : String.format("%.1f%% of %d", 100.0 * hits / lookups, lookups);
+    }
+
+    /**
+     * @return the number of connections the JVM keeps alive per server, which the GitLab clients share
+     */
+    public int getMaxConnections() {
+        return Integer.getInteger("http.maxConnections", 5);
+    }
+
+    public String formatBytes(long bytes) {
+        return bytes < 1024 * 1024 ? String.format("%.1f KB", bytes / 1024.0) : String.format("%.1f MB", bytes / (1024.0 * 1024));
+    }
+
+    @RequirePOST
+    public HttpResponse doFlush(@QueryParameter String connection, @QueryParameter String cache) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        GitLab gitlab = GitLabPushTrigger.getDesc().getGitlab(connection);
+        if ("branches".equals(cache)) {
+            gitlab.getBranchesService().flushBranches();
+        } else if ("projects".equals(cache)) {
+            gitlab.getBranchesService().flushProjects();
+        } else if ("mergeRequests".equals(cache)) {
+            GitLabOpenMergeRequests.instance().flush(gitlab);
+        } else {
+            return HttpResponses.error(400, "Unknown cache " + cache);
+        }
+        return HttpResponses.redirectToDot();
+    }
+}
@@ -0,0 +1,183 @@
+package com.dabsquared.gitlabjenkins;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.ParameterDefinition;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.triggers.Trigger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.ParameterizedJobMixIn;
+
+import org.eclipse.jgit.transport.URIish;
+
+/**
+ * Immutable snapshot of everything the webhook hot path needs to know about a job: its
+ * {@link GitLabPushTrigger}, the default source repository of its git SCM, the definitions
+ * of its build parameters and the compiled {@link BranchFilter}. The default values of the
+ * parameters are asked for each build, since some of them, like the last build of a run
+ * parameter, change from one build to the next.
+ *
+ * A context is built when the trigger is started and dropped whenever the job configuration
+ * is saved, renamed or deleted, so lookups never have to walk the job configuration.
+ */
+public final class GitLabJobContext {
+
+    private static final Logger LOGGER = Logger.getLogger(GitLabJobContext.class.getName());
+
+    private static final ConcurrentMap<String, GitLabJobContext> CONTEXTS = new ConcurrentHashMap<String, GitLabJobContext>();
+
+    /** incremented by every invalidation, so a context built from an older configuration is not kept */
+    private static final AtomicLong GENERATION = new AtomicLong();
+
+    private final GitLabPushTrigger trigger;
+    private final String sourceRepoName;
+    private final URIish sourceRepoURL;
+    private final List<ParameterDefinition> parameterDefinitions;
+    private final BranchFilter branchFilter;
+
+    private GitLabJobContext(Job<?, ?> job, GitLabPushTrigger trigger) {
+        this.trigger = trigger;
+
+        String repoName = null;
+        URIish repoURL = null;
+        if (trigger != null) {
+            try {
+                repoName = GitLabPushTrigger.getDesc().getSourceRepoNameDefault(job);
+                repoURL = GitLabPushTrigger.getDesc().getSourceRepoURLDefault(job);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.FINE, "No default source repository for job " + job.getFullName(), e);
+            }
+        }
+        this.sourceRepoName = repoName;
+        this.sourceRepoURL = repoURL;
+
+        ParametersDefinitionProperty definitionProperty = job.getProperty(ParametersDefinitionProperty.class);
+        this.parameterDefinitions = definitionProperty == null ? Collections.<ParameterDefinition> emptyList()
+                : Collections.unmodifiableList(new ArrayList<ParameterDefinition>(definitionProperty.getParameterDefinitions()));
+
+        this.branchFilter = trigger == null ? BranchFilter.ALLOW_ALL : BranchFilter.create(trigger);
+    }
+
+    /**
+     * Returns the context of the given job, building it if it is not known yet.
+     */
+    public static GitLabJobContext of(Job<?, ?> job) {
+        GitLabJobContext context = CONTEXTS.get(job.getFullName());
+        if (context == null) {
+            context = build(job, findTrigger(job));
+        }
+        return context;
+    }
+
+    static GitLabJobContext build(Job<?, ?> job, GitLabPushTrigger trigger) {
+        long generation = GENERATION.get();
+        GitLabJobContext context = new GitLabJobContext(job, trigger);
+        CONTEXTS.put(job.getFullName(), context);
+        if (GENERATION.get() != generation) {
+            // the configuration changed while the context was built; the next lookup builds it again
+            CONTEXTS.remove(job.getFullName(), context);
+        }
+        return context;
+    }
+
+    static void invalidate(String fullName) {
+        GENERATION.incrementAndGet();
+        if (CONTEXTS.remove(fullName) != null) {
+            LOGGER.log(Level.FINEST, "Invalidated GitLab context of {0}", fullName);
+        }
+    }
+
+    private static GitLabPushTrigger findTrigger(Job<?, ?> job) {
+        if (job instanceof ParameterizedJobMixIn.ParameterizedJob) {
+            for (Trigger t : ((ParameterizedJobMixIn.ParameterizedJob) job).getTriggers().values()) {
+                if (t instanceof GitLabPushTrigger) {
+                    return (GitLabPushTrigger) t;
+                }
+            }
+        }
+        return null;
+    }
+
+    public GitLabPushTrigger getTrigger() {
+        return trigger;
+    }
+
+    public String getSourceRepoName() {
+        return sourceRepoName;
+    }
+
+    public URIish getSourceRepoURL() {
+        return sourceRepoURL;
+    }
+
+    /**
+     * @return the default parameter values of the job for a new build, in a fresh, mutable map
+     */
+    public Map<String, ParameterValue> getDefaultParameters() {
+        Map<String, ParameterValue> values = new HashMap<String, ParameterValue>();
+        for (ParameterDefinition definition : parameterDefinitions) {
+            values.put(definition.getName(), definition.getDefaultParameterValue());
+        }
+        return values;
+    }
+
+    public BranchFilter getBranchFilter() {
+        return branchFilter;
+    }
+
+    public boolean isBranchAllowed(String branchName) {
+        return branchFilter.isBranchAllowed(branchName);
+    }
+
+    @Extension
+    public static class ItemListenerImpl extends ItemListener {
+
+        @Override
+        public void onUpdated(Item item) {
+            invalidate(item.getFullName());
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            invalidate(item.getFullName());
+            GitLabWebHookTrace.forget(item.getFullName());
+            GitLabBuildIndex.forget(item.getFullName());
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            invalidate(oldFullName);
+            invalidate(newFullName);
+            GitLabWebHookTrace.forget(oldFullName);
+            GitLabBuildIndex.forget(oldFullName);
+        }
+    }
+
+    @Extension
+    public static class SaveableListenerImpl extends SaveableListener {
+
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof Job) {
+                invalidate(((Job<?, ?>) o).getFullName());
+            }
+        }
+    }
+}
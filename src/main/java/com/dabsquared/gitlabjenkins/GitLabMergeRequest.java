@@ -3,7 +3,6 @@ package com.dabsquared.gitlabjenkins;
 import com.dabsquared.gitlabjenkins.data.ObjectAttributes;
 import org.apache.commons.lang.builder.ToStringBuilder;
 import org.apache.commons.lang.builder.ToStringStyle;
-import org.gitlab.api.GitlabAPI;
 import org.gitlab.api.models.GitlabCommitStatus;
 import org.gitlab.api.models.GitlabProject;
 import org.gitlab.api.models.GitlabUser;
@@ -36,7 +35,7 @@ public class GitLabMergeRequest extends GitLabRequest {
     
     public GitlabProject getSourceProject (GitLab api) throws IOException {
     	if (sourceProject == null) {
-    		sourceProject = api.instance().getProject(objectAttributes.getSourceProjectId());
+    		sourceProject = api.getProject(objectAttributes.getSourceProjectId());
     	}
     	return sourceProject;
     }
@@ -63,7 +62,7 @@ public class GitLabMergeRequest extends GitLabRequest {
         return ToStringBuilder.reflectionToString(this, ToStringStyle.MULTI_LINE_STYLE);
     }
 
-    public GitlabCommitStatus createCommitStatus(GitlabAPI api, String status, String targetUrl) {
+    public GitlabCommitStatus createCommitStatus(GitLab api, String status, String targetUrl) {
         try {
             if (objectAttributes.getLastCommit() != null) {
                 return api.createCommitStatus(sourceProject, objectAttributes.getLastCommit().getId(), status, objectAttributes.getLastCommit().getId(), "Jenkins", targetUrl, null);
@@ -0,0 +1,264 @@
+package com.dabsquared.gitlabjenkins;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+import org.gitlab.api.models.GitlabNote;
+
+/**
+ * One build note per merge request and job, edited with the latest result instead of adding a new
+ * note for every build.
+ *
+ * The id of the note is remembered locally, so neither the merge request nor its notes are fetched.
+ * A note is sent {@link #COALESCE_MILLIS} after the first result, and results arriving meanwhile, or
+ * while it is being sent, replace the text to send: builds completing together cost one call. If
+ * the note is gone, for instance because it was deleted, a new one is created; other failures to
+ * edit it are retried like the failures to create it.
+ *
+ * Notes that cannot be sent are not left to the {@link GitLabOutbox}, which would create them
+ * without telling their id: they are sent again from here every {@link #RETRY_MILLIS}, at most
+ * {@link #MAX_RETRIES} times, with the latest text, unless GitLab refused them.
+ *
+ * The note ids of the last {@link #MAX_ENTRIES} merge requests are saved when Jenkins stops.
+ */
+public final class GitLabMergeRequestNotes {
+
+    private static final Logger LOGGER = Logger.getLogger(GitLabMergeRequestNotes.class.getName());
+
+    static final long COALESCE_MILLIS = Long.getLong(GitLabMergeRequestNotes.class.getName() + ".coalesceMillis", 2000);
+    static final int MAX_ENTRIES = Integer.getInteger(GitLabMergeRequestNotes.class.getName() + ".maxEntries", 10000);
+    static final long RETRY_MILLIS = Long.getLong(GitLabMergeRequestNotes.class.getName() + ".retryMillis",
+            TimeUnit.SECONDS.toMillis(GitLabOutbox.REPLAY_SECONDS));
+    static final int MAX_RETRIES = Integer.getInteger(GitLabMergeRequestNotes.class.getName() + ".maxRetries", 20);
+
+    private static final String FILE_NAME = "gitlab-merge-request-notes.bin";
+
+    private static final GitLabMergeRequestNotes INSTANCE = new GitLabMergeRequestNotes(MAX_ENTRIES, COALESCE_MILLIS, new Api() {
+        public Integer create(GitLab gitlab, Integer projectId, Integer mergeRequestId, String body) throws IOException {
+            GitlabNote note = gitlab.createNote(projectId, mergeRequestId, body, false);
+            return note == null ? null : note.getId();
+        }
+
+        public void update(GitLab gitlab, Integer projectId, Integer mergeRequestId, Integer noteId, String body) throws IOException {
+            gitlab.updateNote(projectId, mergeRequestId, noteId, body);
+        }
+    }, null);
+
+    /**
+     * The calls to GitLab, replaced in tests.
+     */
+    interface Api {
+        /**
+         * @return the id of the new note
+         */
+        Integer create(GitLab gitlab, Integer projectId, Integer mergeRequestId, String body) throws IOException;
+
+        void update(GitLab gitlab, Integer projectId, Integer mergeRequestId, Integer noteId, String body) throws IOException;
+    }
+
+    private final long coalesceMillis;
+    private final Api api;
+    private final ScheduledExecutorService scheduler;
+
+    /** the note id of each merge request and job, the least recently used first */
+    private final LinkedHashMap<String, Integer> noteIds;
+    private final Map<String, Pending> pending = new HashMap<String, Pending>();
+
+    GitLabMergeRequestNotes(final int maxEntries, long coalesceMillis, Api api, ScheduledExecutorService scheduler) {
+        this.coalesceMillis = coalesceMillis;
+        this.api = api;
+        this.scheduler = scheduler;
+        this.noteIds = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public static GitLabMergeRequestNotes instance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Sets the text of the note of the job on the merge request of the GitLab server, creating the
+     * note if needed.
+     */
+    public void post(GitLab gitlab, String jobName, Integer projectId, Integer mergeRequestId, String body) {
+        String key = jobName + "#" + projectId + "!" + mergeRequestId;
+        synchronized (this) {
+            Pending note = pending.get(key);
+            if (note != null) {
+                note.body = body;
+                note.dirty = true;
+                return;
+            }
+            note = new Pending(gitlab, key, projectId, mergeRequestId, body);
+            pending.put(key, note);
+            schedule(note, coalesceMillis);
+        }
+    }
+
+    private void schedule(final Pending note, long delayMillis) {
+        Runnable send = new Runnable() {
+            public void run() {
+                send(note);
+            }
+        };
+        (scheduler != null ? scheduler : Timer.get()).schedule(send, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void send(Pending note) {
+        String body;
+        Integer noteId;
+        boolean failed = false;
+        synchronized (this) {
+            body = note.body;
+            note.dirty = false;
+            noteId = noteIds.get(note.key);
+        }
+        try {
+            if (noteId != null) {
+                try {
+                    api.update(note.gitlab, note.projectId, note.mergeRequestId, noteId, body);
+                } catch (IOException e) {
+                    if (!GitLab.isNotFound(e)) {
+                        // the note may well be there, creating another one would duplicate it
+                        throw e;
+                    }
+                    LOGGER.log(Level.FINE, "Note " + noteId + " is gone, creating a new one", e);
+                    noteId = null;
+                }
+            }
+            if (noteId == null) {
+                noteId = api.create(note.gitlab, note.projectId, note.mergeRequestId, body);
+            }
+        } catch (IOException e) {
+            failed = GitLab.isTransient(e);
+            LOGGER.log(Level.WARNING, "Could not send the build note of merge request " + note.mergeRequestId
+                    + " of project " + note.projectId, e);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Could not send the build note of merge request " + note.mergeRequestId
+                    + " of project " + note.projectId, e);
+        } finally {
+            synchronized (this) {
+                if (noteId != null) {
+                    noteIds.put(note.key, noteId);
+                }
+                if (failed && note.failures < MAX_RETRIES) {
+                    note.failures++;
+                    note.dirty = false;
+                    schedule(note, RETRY_MILLIS);
+                } else if (note.dirty) {
+                    note.failures = 0;
+                    schedule(note, coalesceMillis);
+                } else {
+                    pending.remove(note.key);
+                }
+            }
+        }
+    }
+
+    synchronized Integer getNoteId(String jobName, Integer projectId, Integer mergeRequestId) {
+        return noteIds.get(jobName + "#" + projectId + "!" + mergeRequestId);
+    }
+
+    @Initializer(after = InitMilestone.PLUGINS_STARTED, before = InitMilestone.JOB_LOADED)
+    public static void load() {
+        File file = new File(Jenkins.getInstance().getRootDir(), FILE_NAME);
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            INSTANCE.readFrom(file);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not load the merge request note ids from " + file, e);
+        }
+    }
+
+    @Terminator
+    public static void save() {
+        File file = new File(Jenkins.getInstance().getRootDir(), FILE_NAME);
+        try {
+            INSTANCE.writeTo(file);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not save the merge request note ids to " + file, e);
+        }
+    }
+
+    synchronized void writeTo(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            for (Map.Entry<String, Integer> entry : noteIds.entrySet()) {
+                out.writeInt(entry.getValue());
+                out.writeUTF(entry.getKey());
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    synchronized void readFrom(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                int noteId;
+                try {
+                    noteId = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                String key = in.readUTF();
+                if (!noteIds.containsKey(key)) {
+                    noteIds.put(key, noteId);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * The text waiting to be sent to the note of a merge request.
+     */
+    static final class Pending {
+        final GitLab gitlab;
+        final String key;
+        final Integer projectId;
+        final Integer mergeRequestId;
+        String body;
+        /** set when the text changed after the last send started */
+        boolean dirty;
+        /** the sends failed in a row */
+        int failures;
+
+        Pending(GitLab gitlab, String key, Integer projectId, Integer mergeRequestId, String body) {
+            this.gitlab = gitlab;
+            this.key = key;
+            this.projectId = projectId;
+            this.mergeRequestId = mergeRequestId;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package com.dabsquared.gitlabjenkins;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.Cause;
+import hudson.model.CauseAction;
+import hudson.model.Job;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.Queue;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.StringParameterValue;
+import hudson.model.queue.QueueListener;
+import hudson.plugins.git.GitSCM;
+import hudson.scm.SCM;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.ParameterizedJobMixIn;
+import jenkins.triggers.SCMTriggerItem;
+import jenkins.triggers.SCMTriggerItem.SCMTriggerItems;
+import jenkins.util.Timer;
+
+import com.dabsquared.gitlabjenkins.data.ObjectAttributes;
+
+/**
+ * Merge trains: instead of accepting each merge request as soon as its build succeeds, the ready
+ * merge requests of a job to the same target branch wait in a train, and up to {@link #MAX_CARS} of
+ * them are built together, merged into the target branch, and accepted together if that build
+ * succeeds. If it fails, the batch is split in two halves built one after the other, until the
+ * merge request breaking the build is found alone and dropped from the train. If it is aborted, or
+ * cancelled while queued, the train stops: its merge requests wait until another one joins it, and
+ * the batch is then built again with it.
+ *
+ * The batch is merged by the {@link GitLabMergeTrainMerge} extension of the git SCM of the job,
+ * without it the merge requests are accepted on their own. Merge requests from forks are accepted
+ * on their own as before, and trains are not kept across restarts: the merge requests of a lost
+ * train have to be built again.
+ */
+public final class GitLabMergeTrain {
+
+    private static final Logger LOGGER = Logger.getLogger(GitLabMergeTrain.class.getName());
+
+    static final int MAX_CARS = Math.max(1, Integer.getInteger(GitLabMergeTrain.class.getName() + ".maxCars", 8));
+
+    private static final GitLabMergeTrain INSTANCE = new GitLabMergeTrain();
+
+    private final Map<String, Train> trains = new HashMap<String, Train>();
+
+    public static GitLabMergeTrain instance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Adds a merge request whose build succeeded to the train of its target branch, and builds
+     * the train if it is not building already.
+     *
+     * @return false if the merge request cannot ride a train and has to be accepted on its own
+     */
+    public boolean join(Job<?, ?> job, GitLabMergeRequest mergeRequest) {
+        String name = trainOf(job, mergeRequest);
+        if (name == null) {
+            return false;
+        }
+        synchronized (this) {
+            Train train = trains.get(name);
+            if (train == null) {
+                train = new Train();
+                trains.put(name, train);
+            }
+            train.add(mergeRequest);
+            depart(job, name, train);
+        }
+        return true;
+    }
+
+    /**
+     * Accepts or splits the batch built by the run.
+     */
+    void arrived(GitLabPushTrigger trigger, Run<?, ?> run, GitLabMergeTrainCause cause) {
+        Train.Arrival arrival;
+        synchronized (this) {
+            Train train = trains.get(cause.getTrain());
+            if (train == null) {
+                return;
+            }
+            if (run.getResult() == Result.ABORTED) {
+                if (train.cancelled(cause.getCar())) {
+                    LOGGER.log(Level.INFO, "The build of merge train {0} was aborted, the train waits for another merge request",
+                            cause.getTrain());
+                }
+                return;
+            }
+            arrival = train.arrive(cause.getCar(), run.getResult() == Result.SUCCESS);
+            if (arrival == null) {
+                return;
+            }
+            depart(run.getParent(), cause.getTrain(), train);
+            if (train.isEmpty()) {
+                trains.remove(cause.getTrain());
+            }
+        }
+        for (GitLabMergeRequest mergeRequest : arrival.accepted) {
+            trigger.acceptMergeRequest(mergeRequest);
+        }
+        for (GitLabMergeRequest mergeRequest : arrival.rejected) {
+            trigger.addNote(mergeRequest, ":no_entry_sign: Dropped from the merge train, it fails the build of "
+                    + mergeRequest.getObjectAttribute().getTargetBranch() + ": " + GitLabPushTrigger.getRunUrl(run));
+        }
+    }
+
+    /**
+     * Stops the train whose queued build was cancelled, until another merge request joins it.
+     */
+    synchronized void cancelled(GitLabMergeTrainCause cause) {
+        Train train = trains.get(cause.getTrain());
+        if (train != null && train.cancelled(cause.getCar())) {
+            LOGGER.log(Level.INFO, "The build of merge train {0} was cancelled, the train waits for another merge request",
+                    cause.getTrain());
+        }
+    }
+
+    private void depart(Job<?, ?> job, String name, Train train) {
+        List<GitLabMergeRequest> batch = train.depart(MAX_CARS);
+        if (batch == null) {
+            return;
+        }
+        GitLabMergeTrainCause cause = new GitLabMergeTrainCause(name, train.car, batch);
+        LOGGER.log(Level.INFO, "Building {0}", cause.getShortDescription());
+        if (schedule(job, cause) == null) {
+            LOGGER.log(Level.WARNING, "Could not schedule the build of merge train {0}", name);
+            train.cancelled();
+        }
+    }
+
+    private static Future<?> schedule(final Job<?, ?> job, GitLabMergeTrainCause cause) {
+        GitLabJobContext context = GitLabJobContext.of(job);
+        String targetBranch = cause.getMergeRequests().get(0).getObjectAttribute().getTargetBranch();
+        StringBuilder iids = new StringBuilder();
+        for (GitLabMergeRequest mergeRequest : cause.getMergeRequests()) {
+            iids.append(iids.length() == 0 ? "" : ",").append(mergeRequest.getObjectAttribute().getIid());
+        }
+        Map<String, ParameterValue> values = context.getDefaultParameters();
+        values.put("gitlabSourceBranch", new StringParameterValue("gitlabSourceBranch", targetBranch));
+        values.put("gitlabTargetBranch", new StringParameterValue("gitlabTargetBranch", targetBranch));
+        values.put("gitlabActionType", new StringParameterValue("gitlabActionType", "MERGE_TRAIN"));
+        values.put("gitlabMergeRequestId", new StringParameterValue("gitlabMergeRequestId", iids.toString()));
+        values.put("gitlabSourceRepoName", new StringParameterValue("gitlabSourceRepoName", context.getSourceRepoName()));
+        values.put("gitlabSourceRepoURL", new StringParameterValue("gitlabSourceRepoURL",
+                context.getSourceRepoURL() == null ? null : context.getSourceRepoURL().toString()));
+
+        ParameterizedJobMixIn scheduledJob = new ParameterizedJobMixIn() {
+            @Override
+            protected Job asJob() {
+                return job;
+            }
+        };
+        GitLabMetrics.buildScheduled();
+        return scheduledJob.scheduleBuild2(0, new Action[] {
+                new ParametersAction(new ArrayList<ParameterValue>(values.values())), new CauseAction(cause) });
+    }
+
+    /**
+     * The merge requests waiting in the train of a job and target branch.
+     */
+    static final class Train {
+        /** the ready merge requests not in a batch yet */
+        private final LinkedList<GitLabMergeRequest> waiting = new LinkedList<GitLabMergeRequest>();
+        /** the halves of failed batches, built before the waiting merge requests */
+        private final LinkedList<List<GitLabMergeRequest>> split = new LinkedList<List<GitLabMergeRequest>>();
+        private List<GitLabMergeRequest> building;
+        private int car;
+
+        /**
+         * Adds the merge request, or replaces its older version if it rides the train already.
+         */
+        void add(GitLabMergeRequest mergeRequest) {
+            remove(waiting, mergeRequest);
+            for (Iterator<List<GitLabMergeRequest>> halves = split.iterator(); halves.hasNext();) {
+                List<GitLabMergeRequest> half = halves.next();
+                if (remove(half, mergeRequest) && half.isEmpty()) {
+                    halves.remove();
+                }
+            }
+            // a newer version of a merge request being built waits for the next batch
+            waiting.add(mergeRequest);
+        }
+
+        /**
+         * @return the next batch to build, or null if a batch is building or none is waiting
+         */
+        List<GitLabMergeRequest> depart(int maxCars) {
+            if (building != null) {
+                return null;
+            }
+            List<GitLabMergeRequest> batch = split.poll();
+            if (batch == null) {
+                batch = new ArrayList<GitLabMergeRequest>();
+                while (!waiting.isEmpty() && batch.size() < maxCars) {
+                    batch.add(waiting.removeFirst());
+                }
+            }
+            if (batch.isEmpty()) {
+                return null;
+            }
+            building = batch;
+            car++;
+            return batch;
+        }
+
+        /**
+         * @return the merge requests to accept or to drop, or null if the car is not the one
+         *         building
+         */
+        Arrival arrive(int car, boolean success) {
+            if (building == null || car != this.car) {
+                return null;
+            }
+            Arrival arrival = new Arrival();
+            if (success) {
+                for (GitLabMergeRequest mergeRequest : building) {
+                    // an updated merge request is only accepted once its new commit has been built
+                    if (indexOf(waiting, mergeRequest) < 0) {
+                        arrival.accepted.add(mergeRequest);
+                    }
+                }
+            } else if (building.size() == 1) {
+                if (indexOf(waiting, building.get(0)) < 0) {
+                    arrival.rejected.add(building.get(0));
+                }
+            } else {
+                int half = (building.size() + 1) / 2;
+                split.addFirst(new ArrayList<GitLabMergeRequest>(building.subList(half, building.size())));
+                split.addFirst(new ArrayList<GitLabMergeRequest>(building.subList(0, half)));
+            }
+            building = null;
+            return arrival;
+        }
+
+        /**
+         * The build of the batch did not happen, its merge requests go first in the next one.
+         */
+        void cancelled() {
+            if (building != null) {
+                for (int i = building.size() - 1; i >= 0; i--) {
+                    if (indexOf(waiting, building.get(i)) < 0) {
+                        waiting.addFirst(building.get(i));
+                    }
+                }
+            }
+            building = null;
+        }
+
+        /**
+         * @return true if the car was the one building, and its merge requests go first in the
+         *         next batch
+         */
+        boolean cancelled(int car) {
+            if (building == null || car != this.car) {
+                return false;
+            }
+            cancelled();
+            return true;
+        }
+
+        boolean isEmpty() {
+            return building == null && waiting.isEmpty() && split.isEmpty();
+        }
+
+        private static boolean remove(List<GitLabMergeRequest> mergeRequests, GitLabMergeRequest mergeRequest) {
+            int index = indexOf(mergeRequests, mergeRequest);
+            if (index >= 0) {
+                mergeRequests.remove(index);
+                return true;
+            }
+            return false;
+        }
+
+        private static int indexOf(List<GitLabMergeRequest> mergeRequests, GitLabMergeRequest mergeRequest) {
+            Integer iid = mergeRequest.getObjectAttribute().getIid();
+            for (int i = 0; i < mergeRequests.size(); i++) {
+                if (iid.equals(mergeRequests.get(i).getObjectAttribute().getIid())) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        static final class Arrival {
+            final List<GitLabMergeRequest> accepted = new ArrayList<GitLabMergeRequest>();
+            final List<GitLabMergeRequest> rejected = new ArrayList<GitLabMergeRequest>();
+        }
+    }
+
+    /**
+     * Notices the cancelled queued builds of the trains, which never complete.
+     */
+    @Extension
+    public static class CancelledListener extends QueueListener {
+        @Override
+        public void onLeft(Queue.LeftItem item) {
+            if (!item.isCancelled() || !(item.task instanceof Job)) {
+                return;
+            }
+            for (Cause cause : item.getCauses()) {
+                if (cause instanceof GitLabMergeTrainCause) {
+                    final GitLabMergeTrainCause trainCause = (GitLabMergeTrainCause) cause;
+                    // out of the lock of the queue, which the trains take while scheduling their builds
+                    Timer.get().submit(new Runnable() {
+                        public void run() {
+                            instance().cancelled(trainCause);
+                        }
+                    });
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the name of the train of the merge request, for its job, target project and target
+     *         branch, or null if it comes from a fork, its last commit is unknown or the job cannot
+     *         merge trains
+     */
+    static String trainOf(Job<?, ?> job, GitLabMergeRequest mergeRequest) {
+        ObjectAttributes attributes = mergeRequest.getObjectAttribute();
+        if (!mergesTrains(job)) {
+            LOGGER.log(Level.FINE, "{0} has no merge train merge in its git SCM, merge requests are accepted on their own",
+                    job.getFullName());
+            return null;
+        }
+        if (attributes.getIid() == null || attributes.getLastCommit() == null || attributes.getLastCommit().getId() == null
+                || attributes.getTargetProjectId() == null || !attributes.getTargetProjectId().equals(attributes.getSourceProjectId())) {
+            return null;
+        }
+        return job.getFullName() + "#" + attributes.getTargetProjectId() + ":" + attributes.getTargetBranch();
+    }
+
+    private static boolean mergesTrains(Job<?, ?> job) {
+        SCMTriggerItem item = SCMTriggerItems.asSCMTriggerItem(job);
+        if (item == null) {
+            return false;
+        }
+        for (SCM scm : item.getSCMs()) {
+            if (scm instanceof GitSCM && ((GitSCM) scm).getExtensions().get(GitLabMergeTrainMerge.class) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,59 @@
+package com.dabsquared.gitlabjenkins;
+
+import hudson.model.Cause;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Cause of the build of a merge train: the target branch with the last commits of several ready
+ * merge requests merged into it.
+ */
+public class GitLabMergeTrainCause extends Cause {
+
+    private final String train;
+    private final int car;
+    private final List<GitLabMergeRequest> mergeRequests;
+
+    public GitLabMergeTrainCause(String train, int car, List<GitLabMergeRequest> mergeRequests) {
+        this.train = train;
+        this.car = car;
+        this.mergeRequests = new ArrayList<GitLabMergeRequest>(mergeRequests);
+    }
+
+    public String getTrain() {
+        return train;
+    }
+
+    public int getCar() {
+        return car;
+    }
+
+    public List<GitLabMergeRequest> getMergeRequests() {
+        return Collections.unmodifiableList(mergeRequests);
+    }
+
+    /**
+     * @return the last commits of the merge requests, in the order they are merged
+     */
+    public List<String> getCommits() {
+        List<String> commits = new ArrayList<String>(mergeRequests.size());
+        for (GitLabMergeRequest mergeRequest : mergeRequests) {
+            commits.add(mergeRequest.getObjectAttribute().getLastCommit().getId());
+        }
+        return commits;
+    }
+
+    @Override
+    public String getShortDescription() {
+        StringBuilder description = new StringBuilder("GitLab merge train of merge requests");
+        for (GitLabMergeRequest mergeRequest : mergeRequests) {
+            description.append(" #").append(mergeRequest.getObjectAttribute().getIid());
+        }
+        if (!mergeRequests.isEmpty()) {
+            description.append(" => ").append(mergeRequests.get(0).getObjectAttribute().getTargetBranch());
+        }
+        return description.toString();
+    }
+}
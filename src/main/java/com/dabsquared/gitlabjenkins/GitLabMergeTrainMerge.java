@@ -0,0 +1,58 @@
+package com.dabsquared.gitlabjenkins;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.plugins.git.GitException;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.Revision;
+import hudson.plugins.git.extensions.GitSCMExtension;
+import hudson.plugins.git.extensions.GitSCMExtensionDescriptor;
+
+import java.io.IOException;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.jenkinsci.plugins.gitclient.GitClient;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Git extension merging the last commits of the merge requests of a merge train into the revision
+ * to build, see {@link GitLabMergeTrain}. Does nothing for the other builds.
+ */
+public class GitLabMergeTrainMerge extends GitSCMExtension {
+
+    @DataBoundConstructor
+    public GitLabMergeTrainMerge() {
+    }
+
+    @Override
+    public Revision decorateRevisionToBuild(GitSCM scm, Run<?, ?> build, GitClient git, TaskListener listener, Revision marked, Revision rev)
+            throws IOException, InterruptedException, GitException {
+        GitLabMergeTrainCause cause = (GitLabMergeTrainCause) build.getCause(GitLabMergeTrainCause.class);
+        if (cause == null) {
+            return rev;
+        }
+        git.checkout().ref(rev.getSha1String()).execute();
+        for (String commit : cause.getCommits()) {
+            listener.getLogger().println("Merging " + commit + " of the merge train");
+            try {
+                git.merge().setRevisionToMerge(ObjectId.fromString(commit)).execute();
+            } catch (GitException e) {
+                // leave the workspace clean for the next build
+                git.checkout().ref(rev.getSha1String()).execute();
+                listener.getLogger().println("Could not merge " + commit + ": " + e.getMessage());
+                throw new AbortException("The merge train does not merge cleanly into " + rev.getSha1String());
+            }
+        }
+        return new Revision(git.revParse("HEAD"), rev.getBranches());
+    }
+
+    @Extension
+    public static class DescriptorImpl extends GitSCMExtensionDescriptor {
+        @Override
+        public String getDisplayName() {
+            return "Merge the GitLab merge train before build";
+        }
+    }
+}
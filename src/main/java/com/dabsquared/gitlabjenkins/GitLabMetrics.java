@@ -0,0 +1,247 @@
+package com.dabsquared.gitlabjenkins;
+
+import hudson.Extension;
+import hudson.model.UnprotectedRootAction;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Counters and latency histograms of the plugin, exposed in the Prometheus text format at
+ * <code>/gitlab-metrics/</code>.
+ *
+ * Recording only touches preallocated atomic arrays, so it is lock-free, does not allocate and
+ * can stay enabled in production.
+ */
+@Extension
+public class GitLabMetrics implements UnprotectedRootAction {
+
+    public static final String METRICS_URL = "gitlab-metrics";
+
+    public enum Event {
+        PUSH, MERGE_REQUEST, STATUS_JSON, STATUS_PNG, REDIRECT, UNKNOWN
+    }
+
+    public enum Outcome {
+        OK, QUEUED, SKIPPED, NOT_FOUND, TOO_LARGE, OVERLOADED, ERROR
+    }
+
+    public enum ApiMethod {
+        GET_PROJECTS, GET_PROJECT, GET_BRANCHES, GET_BRANCH, GET_OPEN_MERGE_REQUESTS, GET_MERGE_REQUEST,
+        CREATE_NOTE, UPDATE_NOTE, CREATE_COMMIT_STATUS, ACCEPT_MERGE_REQUEST
+    }
+
+    public enum Cache {
+        PROJECT_MAP, BRANCHES
+    }
+
+    private static final int OUTCOMES = Outcome.values().length;
+
+    private static final AtomicLongArray REQUESTS = new AtomicLongArray(Event.values().length * OUTCOMES);
+    private static final Histogram[] REQUEST_DURATION = histograms(Event.values().length);
+    private static final Histogram PARSE_DURATION = new Histogram();
+    private static final Histogram JOB_RESOLUTION_DURATION = new Histogram();
+    private static final AtomicLong BRANCH_FILTER_REJECTS = new AtomicLong();
+    private static final AtomicLong SCHEDULED_BUILDS = new AtomicLong();
+    private static final AtomicLong TRUNCATED_PUSHES = new AtomicLong();
+    private static final AtomicLong DUPLICATE_EVENTS = new AtomicLong();
+    private static final AtomicLongArray API_CALLS = new AtomicLongArray(ApiMethod.values().length * 2);
+    private static final Histogram[] API_CALL_DURATION = histograms(ApiMethod.values().length);
+    private static final AtomicLongArray CACHE_REQUESTS = new AtomicLongArray(Cache.values().length * 2);
+
+    public static void recordRequest(Event event, Outcome outcome, long durationNanos) {
+        REQUESTS.incrementAndGet(event.ordinal() * OUTCOMES + outcome.ordinal());
+        REQUEST_DURATION[event.ordinal()].record(durationNanos);
+    }
+
+    public static void recordParse(long durationNanos) {
+        PARSE_DURATION.record(durationNanos);
+    }
+
+    public static void recordJobResolution(long durationNanos) {
+        JOB_RESOLUTION_DURATION.record(durationNanos);
+    }
+
+    public static void branchFilterRejected() {
+        BRANCH_FILTER_REJECTS.incrementAndGet();
+    }
+
+    public static void buildScheduled() {
+        SCHEDULED_BUILDS.incrementAndGet();
+    }
+
+    public static void pushTruncated() {
+        TRUNCATED_PUSHES.incrementAndGet();
+    }
+
+    public static void duplicateDropped() {
+        DUPLICATE_EVENTS.incrementAndGet();
+    }
+
+    public static void recordApiCall(ApiMethod method, boolean success, long startNanos) {
+        API_CALLS.incrementAndGet(method.ordinal() * 2 + (success ? 0 : 1));
+        API_CALL_DURATION[method.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    public static void recordCacheLookup(Cache cache, boolean hit) {
+        CACHE_REQUESTS.incrementAndGet(cache.ordinal() * 2 + (hit ? 0 : 1));
+    }
+
+    public static long getCacheHits(Cache cache) {
+        return CACHE_REQUESTS.get(cache.ordinal() * 2);
+    }
+
+    public static long getCacheMisses(Cache cache) {
+        return CACHE_REQUESTS.get(cache.ordinal() * 2 + 1);
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return null;
+    }
+
+    public String getUrlName() {
+        return METRICS_URL;
+    }
+
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        rsp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        rsp.setHeader("Cache-Control", "no-cache, private");
+        PrintWriter w = rsp.getWriter();
+
+        header(w, "gitlab_webhook_requests_total", "counter", "Webhook requests by event kind and outcome.");
+        for (Event event : Event.values()) {
+            for (Outcome outcome : Outcome.values()) {
+                w.print("gitlab_webhook_requests_total{event=\"" + label(event) + "\",outcome=\"" + label(outcome) + "\"} ");
+                w.println(REQUESTS.get(event.ordinal() * OUTCOMES + outcome.ordinal()));
+            }
+        }
+
+        header(w, "gitlab_webhook_request_duration_seconds", "histogram", "Time spent answering webhook requests.");
+        for (Event event : Event.values()) {
+            REQUEST_DURATION[event.ordinal()].write(w, "gitlab_webhook_request_duration_seconds", "event=\"" + label(event) + "\"");
+        }
+
+        header(w, "gitlab_webhook_parse_duration_seconds", "histogram", "Time spent parsing webhook payloads.");
+        PARSE_DURATION.write(w, "gitlab_webhook_parse_duration_seconds", null);
+
+        header(w, "gitlab_webhook_job_resolution_duration_seconds", "histogram", "Time spent resolving the job of a webhook request.");
+        JOB_RESOLUTION_DURATION.write(w, "gitlab_webhook_job_resolution_duration_seconds", null);
+
+        header(w, "gitlab_branch_filter_rejects_total", "counter", "Events not built because of the branch filter of the job.");
+        w.println("gitlab_branch_filter_rejects_total " + BRANCH_FILTER_REJECTS.get());
+
+        header(w, "gitlab_scheduled_builds_total", "counter", "Calls to scheduleBuild2 made by the trigger.");
+        w.println("gitlab_scheduled_builds_total " + SCHEDULED_BUILDS.get());
+
+        header(w, "gitlab_webhook_truncated_pushes_total", "counter", "Oversized push events of which only the first and last commits were kept.");
+        w.println("gitlab_webhook_truncated_pushes_total " + TRUNCATED_PUSHES.get());
+
+        header(w, "gitlab_webhook_duplicate_events_total", "counter", "Events dropped because the same event was received shortly before.");
+        w.println("gitlab_webhook_duplicate_events_total " + DUPLICATE_EVENTS.get());
+
+        header(w, "gitlab_webhook_events_waiting", "gauge", "Events admitted and waiting for their turn to be processed.");
+        w.println("gitlab_webhook_events_waiting " + GitLabWebHookAdmission.instance().getWaitingCount());
+
+        header(w, "gitlab_webhook_events_processing", "gauge", "Events being processed.");
+        w.println("gitlab_webhook_events_processing " + GitLabWebHookAdmission.instance().getRunningCount());
+
+        header(w, "gitlab_outbox_pending", "gauge", "Commit statuses and notes waiting to be sent to GitLab again.");
+        w.println("gitlab_outbox_pending " + GitLabOutbox.instance().size());
+
+        header(w, "gitlab_api_calls_total", "counter", "Calls to the GitLab API by method and outcome.");
+        for (ApiMethod method : ApiMethod.values()) {
+            w.println("gitlab_api_calls_total{method=\"" + label(method) + "\",outcome=\"ok\"} " + API_CALLS.get(method.ordinal() * 2));
+            w.println("gitlab_api_calls_total{method=\"" + label(method) + "\",outcome=\"error\"} " + API_CALLS.get(method.ordinal() * 2 + 1));
+        }
+
+        header(w, "gitlab_api_call_duration_seconds", "histogram", "Latency of the calls to the GitLab API by method.");
+        for (ApiMethod method : ApiMethod.values()) {
+            API_CALL_DURATION[method.ordinal()].write(w, "gitlab_api_call_duration_seconds", "method=\"" + label(method) + "\"");
+        }
+
+        header(w, "gitlab_cache_requests_total", "counter", "Lookups in the GitLab project and branch caches.");
+        for (Cache cache : Cache.values()) {
+            w.println("gitlab_cache_requests_total{cache=\"" + label(cache) + "\",result=\"hit\"} " + getCacheHits(cache));
+            w.println("gitlab_cache_requests_total{cache=\"" + label(cache) + "\",result=\"miss\"} " + getCacheMisses(cache));
+        }
+
+        w.flush();
+    }
+
+    private static void header(PrintWriter w, String name, String type, String help) {
+        w.println("# HELP " + name + " " + help);
+        w.println("# TYPE " + name + " " + type);
+    }
+
+    private static String label(Enum<?> value) {
+        return value.name().toLowerCase(Locale.ENGLISH);
+    }
+
+    private static Histogram[] histograms(int count) {
+        Histogram[] histograms = new Histogram[count];
+        for (int i = 0; i < count; i++) {
+            histograms[i] = new Histogram();
+        }
+        return histograms;
+    }
+
+    /**
+     * Latency histogram with fixed buckets from 1ms to 30s.
+     */
+    static final class Histogram {
+
+        private static final double[] BOUNDS_SECONDS = { 0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30 };
+        private static final long[] BOUNDS_NANOS = new long[BOUNDS_SECONDS.length];
+
+        static {
+            for (int i = 0; i < BOUNDS_SECONDS.length; i++) {
+                BOUNDS_NANOS[i] = (long) (BOUNDS_SECONDS[i] * 1000000000L);
+            }
+        }
+
+        // the last bucket is +Inf
+        private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS_NANOS.length + 1);
+        private final AtomicLong sumNanos = new AtomicLong();
+
+        void record(long durationNanos) {
+            int bucket = 0;
+            while (bucket < BOUNDS_NANOS.length && durationNanos > BOUNDS_NANOS[bucket]) {
+                bucket++;
+            }
+            buckets.incrementAndGet(bucket);
+            sumNanos.addAndGet(durationNanos);
+        }
+
+        long getCount() {
+            long count = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                count += buckets.get(i);
+            }
+            return count;
+        }
+
+        void write(PrintWriter w, String name, String labels) {
+            String prefix = labels == null ? "" : labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < BOUNDS_SECONDS.length; i++) {
+                cumulative += buckets.get(i);
+                w.println(name + "_bucket{" + prefix + "le=\"" + BOUNDS_SECONDS[i] + "\"} " + cumulative);
+            }
+            cumulative += buckets.get(BOUNDS_SECONDS.length);
+            w.println(name + "_bucket{" + prefix + "le=\"+Inf\"} " + cumulative);
+            String suffix = labels == null ? "" : "{" + labels + "}";
+            w.println(name + "_sum" + suffix + " " + (sumNanos.get() / 1e9));
+            w.println(name + "_count" + suffix + " " + cumulative);
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.dabsquared.gitlabjenkins;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.gitlab.api.models.GitlabMergeRequest;
+
+import com.dabsquared.gitlabjenkins.data.ObjectAttributes;
+
+/**
+ * The open merge requests of the GitLab projects pushed to, by source and target branch, so that a
+ * push finds the merge requests to build without listing them all through the API.
+ *
+ * The merge requests of a project are listed once, on its first push, and then kept up to date by
+ * the merge request webhooks: opened, reopened and updated merge requests are added or replaced,
+ * closed and merged ones removed. Since webhooks can be lost, the {@link Reconciliation} lists the
+ * open merge requests of every project again every {@link #RECONCILE_MINUTES} minutes, one project
+ * at a time, and forgets the projects not pushed to for a day. The projects of each GitLab server
+ * are kept apart.
+ */
+public final class GitLabOpenMergeRequests {
+
+    private static final Logger LOGGER = Logger.getLogger(GitLabOpenMergeRequests.class.getName());
+
+    static final long RECONCILE_MINUTES = Long.getLong(GitLabOpenMergeRequests.class.getName() + ".reconcileMinutes", 15);
+
+    /** pause between the projects reconciled, to keep the load on GitLab low */
+    private static final long RECONCILE_PAUSE_MILLIS = 1000;
+
+    private static final long UNUSED_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private static final GitLabOpenMergeRequests INSTANCE = new GitLabOpenMergeRequests();
+
+    /** by GitLab connection and project id */
+    private final ConcurrentMap<String, ProjectMergeRequests> projects = new ConcurrentHashMap<String, ProjectMergeRequests>();
+
+    public static GitLabOpenMergeRequests instance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return copies of the open merge requests of the project from the branch, or also to the
+     *         branch if <code>includeTarget</code> is set
+     */
+    public List<ObjectAttributes> find(GitLab api, Integer projectId, String branch, boolean includeTarget) throws IOException {
+        String key = key(api, projectId);
+        ProjectMergeRequests project = projects.get(key);
+        if (project == null) {
+            project = new ProjectMergeRequests(api, projectId);
+            project.load(list(api, projectId));
+            ProjectMergeRequests loaded = projects.putIfAbsent(key, project);
+            if (loaded != null) {
+                project = loaded;
+            }
+        }
+        return project.find(branch, includeTarget);
+    }
+
+    /**
+     * Applies a merge request webhook of the GitLab server to the merge requests of its target
+     * project, if they are known.
+     */
+    public void update(GitLab api, ObjectAttributes mergeRequest) {
+        if (mergeRequest == null || mergeRequest.getTargetProjectId() == null || mergeRequest.getIid() == null) {
+            return;
+        }
+        ProjectMergeRequests project = projects.get(key(api, mergeRequest.getTargetProjectId()));
+        if (project != null) {
+            project.update(mergeRequest);
+        }
+    }
+
+    /**
+     * @return the number of projects of the GitLab server whose open merge requests are known
+     */
+    public int getProjectCount(GitLab api) {
+        String prefix = api.getName() + "/";
+        int count = 0;
+        for (String key : projects.keySet()) {
+            if (key.startsWith(prefix)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Forgets the open merge requests of the projects of the GitLab server, listed again when next needed.
+     */
+    public void flush(GitLab api) {
+        String prefix = api.getName() + "/";
+        for (String key : projects.keySet()) {
+            if (key.startsWith(prefix)) {
+                projects.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Lists the open merge requests of every known project again.
+     */
+    void reconcile() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, ProjectMergeRequests> entry : projects.entrySet()) {
+            ProjectMergeRequests project = entry.getValue();
+            if (now - project.lastUsed > UNUSED_MILLIS) {
+                projects.remove(entry.getKey(), project);
+                continue;
+            }
+            try {
+                project.load(list(project.api, project.projectId));
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not list the open merge requests of project " + entry.getKey(), e);
+            }
+            Thread.sleep(RECONCILE_PAUSE_MILLIS);
+        }
+    }
+
+    private static String key(GitLab api, Integer projectId) {
+        return api.getName() + "/" + projectId;
+    }
+
+    private static List<ObjectAttributes> list(GitLab api, Integer projectId) throws IOException {
+        List<ObjectAttributes> mergeRequests = new ArrayList<ObjectAttributes>();
+        for (GitlabMergeRequest mr : api.getOpenMergeRequests(projectId)) {
+            mergeRequests.add(attributesOf(mr, projectId));
+        }
+        return mergeRequests;
+    }
+
+    static ObjectAttributes attributesOf(GitlabMergeRequest mr, Integer projectId) {
+        ObjectAttributes attributes = new ObjectAttributes();
+        if (mr.getAssignee() != null)
+            attributes.setAssignee(mr.getAssignee());
+        if (mr.getAuthor() != null)
+            attributes.setAuthor(mr.getAuthor());
+        attributes.setDescription(mr.getDescription());
+        attributes.setId(mr.getId());
+        attributes.setIid(mr.getIid());
+        attributes.setState(mr.getState());
+        attributes.setMergeStatus(mr.getState());
+        attributes.setSourceBranch(mr.getSourceBranch());
+        attributes.setSourceProjectId(mr.getSourceProjectId());
+        attributes.setTargetBranch(mr.getTargetBranch());
+        attributes.setTargetProjectId(projectId);
+        attributes.setTitle(mr.getTitle());
+        return attributes;
+    }
+
+    static ObjectAttributes copy(ObjectAttributes from) {
+        ObjectAttributes to = new ObjectAttributes();
+        to.setId(from.getId());
+        to.setIid(from.getIid());
+        to.setTargetBranch(from.getTargetBranch());
+        to.setSourceBranch(from.getSourceBranch());
+        to.setSourceProjectId(from.getSourceProjectId());
+        to.setAuthor(from.getAuthor());
+        to.setAssignee(from.getAssignee());
+        to.setTitle(from.getTitle());
+        to.setCreatedAt(from.getCreatedAt());
+        to.setUpdatedAt(from.getUpdatedAt());
+        to.setState(from.getState());
+        to.setMergeStatus(from.getMergeStatus());
+        to.setTargetProjectId(from.getTargetProjectId());
+        to.setDescription(from.getDescription());
+        to.setSource(from.getSource());
+        to.setTarget(from.getTarget());
+        to.setLastCommit(from.getLastCommit());
+        to.setAction(from.getAction());
+        return to;
+    }
+
+    /**
+     * The open merge requests of a project, by iid and by branch.
+     */
+    static final class ProjectMergeRequests {
+        private final GitLab api;
+        private final Integer projectId;
+        private final Map<Integer, ObjectAttributes> byIid = new LinkedHashMap<Integer, ObjectAttributes>();
+        private final Map<String, Set<Integer>> bySource = new HashMap<String, Set<Integer>>();
+        private final Map<String, Set<Integer>> byTarget = new HashMap<String, Set<Integer>>();
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        ProjectMergeRequests(GitLab api, Integer projectId) {
+            this.api = api;
+            this.projectId = projectId;
+        }
+
+        synchronized void load(List<ObjectAttributes> mergeRequests) {
+            Map<Integer, ObjectAttributes> known = new HashMap<Integer, ObjectAttributes>(byIid);
+            byIid.clear();
+            bySource.clear();
+            byTarget.clear();
+            for (ObjectAttributes mergeRequest : mergeRequests) {
+                // the API does not return the last commit, keep the one of the webhooks
+                ObjectAttributes previous = known.get(mergeRequest.getIid());
+                if (previous != null && mergeRequest.getLastCommit() == null
+                        && previous.getSourceBranch() != null && previous.getSourceBranch().equals(mergeRequest.getSourceBranch())) {
+                    mergeRequest.setLastCommit(previous.getLastCommit());
+                }
+                put(mergeRequest);
+            }
+        }
+
+        synchronized void update(ObjectAttributes mergeRequest) {
+            ObjectAttributes previous = byIid.get(mergeRequest.getIid());
+            if (previous != null && previous.getUpdatedAt() != null && mergeRequest.getUpdatedAt() != null
+                    && mergeRequest.getUpdatedAt().before(previous.getUpdatedAt())) {
+                // delivered out of order
+                return;
+            }
+            remove(mergeRequest.getIid());
+            String state = mergeRequest.getState();
+            if ("opened".equals(state) || "reopened".equals(state)) {
+                put(copy(mergeRequest));
+            }
+        }
+
+        synchronized List<ObjectAttributes> find(String branch, boolean includeTarget) {
+            lastUsed = System.currentTimeMillis();
+            Set<Integer> iids = new LinkedHashSet<Integer>();
+            if (bySource.containsKey(branch)) {
+                iids.addAll(bySource.get(branch));
+            }
+            if (includeTarget && byTarget.containsKey(branch)) {
+                iids.addAll(byTarget.get(branch));
+            }
+            List<ObjectAttributes> found = new ArrayList<ObjectAttributes>(iids.size());
+            for (Integer iid : iids) {
+                found.add(copy(byIid.get(iid)));
+            }
+            return found;
+        }
+
+        private void put(ObjectAttributes mergeRequest) {
+            byIid.put(mergeRequest.getIid(), mergeRequest);
+            index(bySource, mergeRequest.getSourceBranch(), mergeRequest.getIid());
+            index(byTarget, mergeRequest.getTargetBranch(), mergeRequest.getIid());
+        }
+
+        private void remove(Integer iid) {
+            ObjectAttributes removed = byIid.remove(iid);
+            if (removed != null) {
+                unindex(bySource, removed.getSourceBranch(), iid);
+                unindex(byTarget, removed.getTargetBranch(), iid);
+            }
+        }
+
+        private static void index(Map<String, Set<Integer>> index, String branch, Integer iid) {
+            Set<Integer> iids = index.get(branch);
+            if (iids == null) {
+                iids = new LinkedHashSet<Integer>();
+                index.put(branch, iids);
+            }
+            iids.add(iid);
+        }
+
+        private static void unindex(Map<String, Set<Integer>> index, String branch, Integer iid) {
+            Set<Integer> iids = index.get(branch);
+            if (iids != null && iids.remove(iid) && iids.isEmpty()) {
+                index.remove(branch);
+            }
+        }
+    }
+
+    @Extension
+    public static class Reconciliation extends AsyncPeriodicWork {
+
+        public Reconciliation() {
+            super("GitLab open merge requests reconciliation");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.MINUTES.toMillis(Math.max(1, RECONCILE_MINUTES));
+        }
+
+        @Override
+        protected void execute(TaskListener listener) throws IOException, InterruptedException {
+            instance().reconcile();
+        }
+    }
+}
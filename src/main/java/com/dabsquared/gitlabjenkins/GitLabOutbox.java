@@ -0,0 +1,482 @@
+package com.dabsquared.gitlabjenkins;
+
+import hudson.Extension;
+import hudson.init.Terminator;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+import org.gitlab.api.models.GitlabProject;
+
+/**
+ * The commit statuses and notes GitLab could not be sent, for instance during an outage, sent again
+ * once GitLab answers, so that merge requests are not left with a running build forever.
+ *
+ * The statuses of a commit fold into the last one: only the latest status of a commit is sent
+ * again, and none if a later status of the commit is being delivered meanwhile. A status sent
+ * while the outbox is sending an earlier one of the same commit waits for it, at most
+ * {@link #SENDING_WAIT_MILLIS} milliseconds, so that GitLab gets the statuses in order. Every
+ * {@link #REPLAY_SECONDS} seconds up to {@link #BATCH_SIZE} deliveries are sent, at most
+ * {@link #REPLAY_PER_SECOND} per second, the oldest first; the first failure ends the round, since
+ * GitLab is not back yet. Only the calls GitLab could not answer, or answered with a server error,
+ * are kept: GitLab would refuse the others again, and a delivery refused during the replay is
+ * dropped.
+ *
+ * The deliveries are kept in <code>gitlab-outbox.bin</code> in the Jenkins home, at most
+ * {@link #MAX_ENTRIES} of them and for {@link #MAX_AGE_HOURS} hours. The file is written in the
+ * background, at most once every {@link #SAVE_DELAY_MILLIS} milliseconds, and when Jenkins stops.
+ */
+public final class GitLabOutbox {
+
+    private static final Logger LOGGER = Logger.getLogger(GitLabOutbox.class.getName());
+
+    private static final String PREFIX = GitLabOutbox.class.getName() + ".";
+
+    static final long REPLAY_SECONDS = Long.getLong(PREFIX + "replaySeconds", 30);
+    static final int BATCH_SIZE = Integer.getInteger(PREFIX + "batchSize", 50);
+    static final int REPLAY_PER_SECOND = Math.max(1, Integer.getInteger(PREFIX + "replayPerSecond", 5));
+    static final int MAX_ENTRIES = Integer.getInteger(PREFIX + "maxEntries", 1000);
+    static final long MAX_AGE_HOURS = Long.getLong(PREFIX + "maxAgeHours", 72);
+    static final long SAVE_DELAY_MILLIS = Long.getLong(PREFIX + "saveDelayMillis", 1000);
+    static final long SENDING_WAIT_MILLIS = Long.getLong(PREFIX + "sendingWaitMillis", 30000);
+
+    private static final String FILE_NAME = "gitlab-outbox.bin";
+
+    private static GitLabOutbox instance;
+
+    /**
+     * Sends a delivery to GitLab, replaced in tests.
+     */
+    interface Sender {
+        void send(Delivery delivery) throws IOException;
+    }
+
+    private final File file;
+    private final int maxEntries;
+    private final Sender sender;
+    private final ScheduledExecutorService scheduler;
+    /** by key, the oldest first */
+    private final LinkedHashMap<String, Delivery> deliveries = new LinkedHashMap<String, Delivery>();
+    /** the keys of the deliveries being sent by the replay */
+    private final Set<String> sending = new HashSet<String>();
+    /** set while a write of the file is scheduled */
+    private boolean saveScheduled;
+    /** held while the file is written */
+    private final Object writing = new Object();
+
+    GitLabOutbox(File file, int maxEntries, Sender sender, ScheduledExecutorService scheduler) {
+        this.file = file;
+        this.maxEntries = maxEntries;
+        this.sender = sender;
+        this.scheduler = scheduler;
+    }
+
+    public static synchronized GitLabOutbox instance() {
+        if (instance == null) {
+            Jenkins jenkins = Jenkins.getInstance();
+            File file = jenkins == null ? null : new File(jenkins.getRootDir(), FILE_NAME);
+            instance = new GitLabOutbox(file, MAX_ENTRIES, new Sender() {
+                public void send(Delivery delivery) throws IOException {
+                    delivery.send(GitLabPushTrigger.getDesc().getGitlab(delivery.connection));
+                }
+            }, null);
+            instance.load();
+        }
+        return instance;
+    }
+
+    /**
+     * Keeps a commit status GitLab could not be sent, replacing the earlier status of the commit.
+     */
+    public void statusFailed(String connection, Integer projectId, String sha, String status, String ref, String name,
+            String targetUrl, String description) {
+        if (projectId == null || sha == null) {
+            return;
+        }
+        Delivery delivery = new Delivery(Delivery.STATUS, connection, projectId, System.currentTimeMillis());
+        delivery.sha = sha;
+        delivery.status = status;
+        delivery.ref = ref;
+        delivery.name = name;
+        delivery.targetUrl = targetUrl;
+        delivery.description = description;
+        add(delivery);
+    }
+
+    /**
+     * Forgets the status of a commit waiting to be sent again, since a later one is about to be sent,
+     * and waits until the replay is done sending an earlier status of the commit.
+     */
+    public void statusSending(String connection, Integer projectId, String sha, String name) {
+        if (projectId == null || sha == null) {
+            return;
+        }
+        Delivery delivery = new Delivery(Delivery.STATUS, connection, projectId, 0);
+        delivery.sha = sha;
+        delivery.name = name;
+        String key = delivery.key();
+        synchronized (this) {
+            if (deliveries.remove(key) != null) {
+                save();
+            }
+            long deadline = System.currentTimeMillis() + SENDING_WAIT_MILLIS;
+            while (sending.contains(key)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    LOGGER.log(Level.WARNING, "Still sending an earlier status of {0}, sending the later one anyway", sha);
+                    return;
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Keeps a note GitLab could not be sent.
+     */
+    public void noteFailed(String connection, Integer projectId, Integer mergeRequestId, String body) {
+        if (projectId == null || mergeRequestId == null) {
+            return;
+        }
+        Delivery delivery = new Delivery(Delivery.NOTE, connection, projectId, System.currentTimeMillis());
+        delivery.mergeRequestId = mergeRequestId;
+        delivery.body = body;
+        add(delivery);
+    }
+
+    private synchronized void add(Delivery delivery) {
+        String key = delivery.key();
+        deliveries.remove(key);
+        deliveries.put(key, delivery);
+        while (deliveries.size() > maxEntries) {
+            Iterator<Delivery> oldest = deliveries.values().iterator();
+            LOGGER.log(Level.WARNING, "The GitLab outbox is full, dropping {0}", oldest.next());
+            oldest.remove();
+        }
+        save();
+    }
+
+    public synchronized int size() {
+        return deliveries.size();
+    }
+
+    /**
+     * Sends up to <code>batchSize</code> deliveries, the oldest first, until GitLab cannot be reached.
+     *
+     * @return the number of deliveries sent
+     */
+    int replay(int batchSize, int perSecond) throws InterruptedException {
+        List<Delivery> batch;
+        synchronized (this) {
+            expire(System.currentTimeMillis());
+            batch = new ArrayList<Delivery>();
+            for (Iterator<Delivery> it = deliveries.values().iterator(); it.hasNext() && batch.size() < batchSize;) {
+                batch.add(it.next());
+            }
+        }
+        int sent = 0;
+        for (Delivery delivery : batch) {
+            String key = delivery.key();
+            if (sent > 0) {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(1) / perSecond);
+            }
+            synchronized (this) {
+                // delivered or replaced meanwhile, a later status is sent after this one is
+                if (deliveries.get(key) != delivery) {
+                    continue;
+                }
+                sending.add(key);
+            }
+            boolean unreachable = false;
+            try {
+                sender.send(delivery);
+            } catch (IOException e) {
+                if (GitLab.isTransient(e)) {
+                    LOGGER.log(Level.FINE, "GitLab is still unreachable, " + delivery + " will be sent again later", e);
+                    unreachable = true;
+                } else {
+                    LOGGER.log(Level.WARNING, "GitLab refused " + delivery + ", dropping it", e);
+                }
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Could not send " + delivery + ", dropping it", e);
+            } finally {
+                synchronized (this) {
+                    sending.remove(key);
+                    notifyAll();
+                }
+            }
+            if (unreachable) {
+                break;
+            }
+            synchronized (this) {
+                if (deliveries.get(key) == delivery) {
+                    deliveries.remove(key);
+                    save();
+                }
+            }
+            sent++;
+        }
+        return sent;
+    }
+
+    private void expire(long now) {
+        boolean expired = false;
+        for (Iterator<Delivery> it = deliveries.values().iterator(); it.hasNext();) {
+            if (now - it.next().time < TimeUnit.HOURS.toMillis(MAX_AGE_HOURS)) {
+                break;
+            }
+            it.remove();
+            expired = true;
+        }
+        if (expired) {
+            save();
+        }
+    }
+
+    /**
+     * Schedules a write of the file, the changes made until it starts are written together.
+     */
+    private void save() {
+        if (file == null || saveScheduled) {
+            return;
+        }
+        saveScheduled = true;
+        Runnable flush = new Runnable() {
+            public void run() {
+                flush();
+            }
+        };
+        (scheduler != null ? scheduler : Timer.get()).schedule(flush, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes the deliveries waiting to the file.
+     */
+    void flush() {
+        if (file == null) {
+            return;
+        }
+        synchronized (writing) {
+            List<Delivery> waiting;
+            synchronized (this) {
+                saveScheduled = false;
+                waiting = new ArrayList<Delivery>(deliveries.values());
+            }
+            try {
+                if (waiting.isEmpty()) {
+                    if (file.exists() && !file.delete()) {
+                        throw new IOException("Could not delete " + file);
+                    }
+                    return;
+                }
+                writeTo(file, waiting);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not save the GitLab outbox to " + file, e);
+            }
+        }
+    }
+
+    @Terminator
+    public static void flushOnShutdown() {
+        GitLabOutbox outbox;
+        synchronized (GitLabOutbox.class) {
+            outbox = instance;
+        }
+        if (outbox != null) {
+            outbox.flush();
+        }
+    }
+
+    private void load() {
+        if (file == null || !file.exists()) {
+            return;
+        }
+        try {
+            readFrom(file);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not load the GitLab outbox from " + file, e);
+        }
+    }
+
+    static void writeTo(File to, Collection<Delivery> deliveries) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(to)));
+        try {
+            for (Delivery delivery : deliveries) {
+                delivery.writeTo(out);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    synchronized void readFrom(File from) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(from)));
+        try {
+            while (true) {
+                Delivery delivery;
+                try {
+                    delivery = Delivery.readFrom(in);
+                } catch (EOFException e) {
+                    break;
+                }
+                if (!deliveries.containsKey(delivery.key())) {
+                    deliveries.put(delivery.key(), delivery);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * A commit status or a note to send again.
+     */
+    static final class Delivery {
+        static final byte STATUS = 1;
+        static final byte NOTE = 2;
+
+        final byte kind;
+        final String connection;
+        final int projectId;
+        final long time;
+        String sha;
+        String status;
+        String ref;
+        String name;
+        String targetUrl;
+        String description;
+        Integer mergeRequestId;
+        String body;
+
+        Delivery(byte kind, String connection, int projectId, long time) {
+            this.kind = kind;
+            this.connection = connection == null ? "" : connection;
+            this.projectId = projectId;
+            this.time = time;
+        }
+
+        /**
+         * @return the key folding the statuses of a commit, and identical notes
+         */
+        String key() {
+            if (kind == STATUS) {
+                return "status|" + connection + "|" + projectId + "|" + sha + "|" + name;
+            }
+            return "note|" + connection + "|" + projectId + "|" + mergeRequestId + "|" + (body == null ? 0 : body.hashCode());
+        }
+
+        /**
+         * Sends the delivery through the client, which records it in the metrics, without keeping
+         * it again on failure: the replay keeps it until it is sent.
+         */
+        void send(GitLab gitlab) throws IOException {
+            if (kind == STATUS) {
+                GitlabProject project = new GitlabProject();
+                project.setId(projectId);
+                gitlab.createCommitStatus(project, sha, status, ref, name, targetUrl, description, false);
+            } else {
+                gitlab.createNote(projectId, mergeRequestId, body, false);
+            }
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeByte(kind);
+            out.writeUTF(connection);
+            out.writeInt(projectId);
+            out.writeLong(time);
+            writeString(out, sha);
+            writeString(out, status);
+            writeString(out, ref);
+            writeString(out, name);
+            writeString(out, targetUrl);
+            writeString(out, description);
+            out.writeInt(mergeRequestId == null ? -1 : mergeRequestId);
+            writeString(out, body);
+        }
+
+        static Delivery readFrom(DataInputStream in) throws IOException {
+            Delivery delivery = new Delivery(in.readByte(), in.readUTF(), in.readInt(), in.readLong());
+            delivery.sha = readString(in);
+            delivery.status = readString(in);
+            delivery.ref = readString(in);
+            delivery.name = readString(in);
+            delivery.targetUrl = readString(in);
+            delivery.description = readString(in);
+            int mergeRequestId = in.readInt();
+            delivery.mergeRequestId = mergeRequestId < 0 ? null : mergeRequestId;
+            delivery.body = readString(in);
+            return delivery;
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            out.writeBoolean(value != null);
+            if (value != null) {
+                out.writeUTF(value);
+            }
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            return in.readBoolean() ? in.readUTF() : null;
+        }
+
+        @Override
+        public String toString() {
+            return kind == STATUS ? "status " + status + " of " + sha + " in project " + projectId
+                    : "note on merge request " + mergeRequestId + " of project " + projectId;
+        }
+    }
+
+    @Extension
+    public static class Replay extends AsyncPeriodicWork {
+
+        public Replay() {
+            super("GitLab outbox replay");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.SECONDS.toMillis(Math.max(1, REPLAY_SECONDS));
+        }
+
+        @Override
+        protected void execute(TaskListener listener) throws IOException, InterruptedException {
+            GitLabOutbox outbox = instance();
+            if (outbox.size() == 0) {
+                return;
+            }
+            int sent = outbox.replay(BATCH_SIZE, REPLAY_PER_SECOND);
+            if (sent > 0) {
+                LOGGER.log(Level.INFO, "Sent {0} commit statuses and notes to GitLab again, {1} left",
+                        new Object[] { sent, outbox.size() });
+            }
+        }
+    }
+}
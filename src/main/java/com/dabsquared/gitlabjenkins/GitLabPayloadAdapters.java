@@ -0,0 +1,620 @@
+package com.dabsquared.gitlabjenkins;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import com.dabsquared.gitlabjenkins.data.Branch;
+import com.dabsquared.gitlabjenkins.data.Commit;
+import com.dabsquared.gitlabjenkins.data.LastCommit;
+import com.dabsquared.gitlabjenkins.data.ObjectAttributes;
+import com.dabsquared.gitlabjenkins.data.Repository;
+import com.dabsquared.gitlabjenkins.data.User;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Hand-written Gson type adapters for the webhook payloads.
+ *
+ * They bind the same snake_case keys as the reflective binding with
+ * {@code FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES} did, ignore unknown keys and accept the
+ * same loose token types (numbers as strings and the other way round), but read the stream
+ * straight into the setters, without reflection or intermediate objects.
+ */
+final class GitLabPayloadAdapters {
+
+    private static final String[] DATE_FORMATS = new String[] {
+            "yyyy-MM-dd HH:mm:ss Z", "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'" };
+
+    /**
+     * SimpleDateFormat is expensive to create and not thread-safe, so every thread keeps its own.
+     */
+    private static final ThreadLocal<SimpleDateFormat[]> DATE_PARSERS = new ThreadLocal<SimpleDateFormat[]>() {
+        @Override
+        protected SimpleDateFormat[] initialValue() {
+            SimpleDateFormat[] parsers = new SimpleDateFormat[DATE_FORMATS.length];
+            for (int i = 0; i < DATE_FORMATS.length; i++) {
+                parsers[i] = new SimpleDateFormat(DATE_FORMATS[i], Locale.US);
+            }
+            return parsers;
+        }
+    };
+
+    private GitLabPayloadAdapters() {
+    }
+
+    static GsonBuilder register(GsonBuilder builder) {
+        return builder
+                .registerTypeAdapter(GitLabPushRequest.class, new PushRequestAdapter(0).nullSafe())
+                .registerTypeAdapter(GitLabMergeRequest.class, new MergeRequestAdapter().nullSafe())
+                .registerTypeAdapter(ObjectAttributes.class, OBJECT_ATTRIBUTES)
+                .registerTypeAdapter(Commit.class, COMMIT)
+                .registerTypeAdapter(User.class, USER)
+                .registerTypeAdapter(Repository.class, REPOSITORY)
+                .registerTypeAdapter(Branch.class, BRANCH)
+                .registerTypeAdapter(LastCommit.class, LAST_COMMIT)
+                .registerTypeAdapter(Date.class, DATE);
+    }
+
+    /**
+     * Parses the dates GitLab sends, either <code>2015-11-12 07:49:09 +1100</code> or
+     * <code>2015-11-12T07:49:09.000Z</code>. The format is chosen by looking at the separator
+     * between date and time instead of trying each one until no exception is thrown.
+     */
+    static Date parseDate(String value) {
+        SimpleDateFormat[] parsers = DATE_PARSERS.get();
+        int first = value.length() > 10 && value.charAt(10) == 'T' ? 1 : 0;
+        for (int i = 0; i < parsers.length; i++) {
+            SimpleDateFormat parser = parsers[(first + i) % parsers.length];
+            ParsePosition position = new ParsePosition(0);
+            Date date = parser.parse(value, position);
+            if (date != null) {
+                return date;
+            }
+        }
+        throw new JsonParseException("Unparseable date: \"" + value + "\". Supported formats: "
+                + Arrays.toString(DATE_FORMATS));
+    }
+
+    static final TypeAdapter<Date> DATE = new TypeAdapter<Date>() {
+        @Override
+        public Date read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            return parseDate(in.nextString());
+        }
+
+        @Override
+        public void write(JsonWriter out, Date value) throws IOException {
+            out.value(value == null ? null : DATE_PARSERS.get()[0].format(value));
+        }
+    };
+
+    /**
+     * Reads a push event from a stream that may be too large to be held in memory, keeping only
+     * the first and last {@code keptCommits} commits.
+     *
+     * @throws JsonParseException if the stream is not a push event
+     */
+    static GitLabPushRequest readTruncatedPush(Reader reader, int keptCommits) throws IOException {
+        JsonReader in = new JsonReader(reader);
+        in.setLenient(true);
+        return new PushRequestAdapter(keptCommits).read(in);
+    }
+
+    /**
+     * Reads the <code>object_kind</code> of an event without binding the rest of it, the other
+     * top-level values are skipped as they are streamed.
+     *
+     * @return null if the event has none, like the push events of GitLab before 7.x
+     * @throws JsonParseException if the event is not a JSON object
+     */
+    static String readObjectKind(String json) {
+        try {
+            JsonReader in = new JsonReader(new StringReader(json));
+            in.setLenient(true);
+            if (in.peek() != JsonToken.BEGIN_OBJECT) {
+                return null;
+            }
+            in.beginObject();
+            while (in.hasNext()) {
+                if ("object_kind".equals(in.nextName())) {
+                    return readString(in);
+                }
+                in.skipValue();
+            }
+            return null;
+        } catch (IOException e) {
+            throw new JsonParseException(e);
+        }
+    }
+
+    static String toJson(GitLabPushRequest request) throws IOException {
+        StringWriter json = new StringWriter();
+        new PushRequestAdapter(0).write(new JsonWriter(json), request);
+        return json.toString();
+    }
+
+    static final class PushRequestAdapter extends TypeAdapter<GitLabPushRequest> {
+
+        private final int keptCommits;
+
+        /**
+         * @param keptCommits number of commits kept at each end of the commit list, 0 to keep all
+         *                    of them
+         */
+        PushRequestAdapter(int keptCommits) {
+            this.keptCommits = keptCommits;
+        }
+
+        @Override
+        public GitLabPushRequest read(JsonReader in) throws IOException {
+            GitLabPushRequest request = new GitLabPushRequest();
+            int commitCount = -1;
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if ("commits".equals(name)) {
+                    commitCount = readCommits(in, request);
+                } else if ("object_kind".equals(name)) {
+                    String kind = readString(in);
+                    if (keptCommits > 0 && kind != null && !"push".equals(kind)) {
+                        throw new JsonParseException("Only push events can be truncated, got " + kind);
+                    }
+                } else if ("before".equals(name)) {
+                    request.setBefore(readString(in));
+                } else if ("after".equals(name)) {
+                    request.setAfter(readString(in));
+                } else if ("ref".equals(name)) {
+                    request.setRef(readString(in));
+                } else if ("checkout_sha".equals(name)) {
+                    request.setCheckout_sha(readString(in));
+                } else if ("user_id".equals(name)) {
+                    request.setUser_id(readInteger(in));
+                } else if ("user_name".equals(name)) {
+                    request.setUser_name(readString(in));
+                } else if ("project_id".equals(name)) {
+                    request.setProject_id(readInteger(in));
+                } else if ("total_commits_count".equals(name)) {
+                    request.setTotal_commits_count(readInteger(in));
+                } else if ("repository".equals(name)) {
+                    request.setRepository(REPOSITORY.read(in));
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            if (keptCommits > 0 && request.getTotal_commits_count() == null && commitCount >= 0) {
+                // GitLab before 7.4 does not send the count, keep the one of the full list
+                request.setTotal_commits_count(commitCount);
+            }
+            return request;
+        }
+
+        /**
+         * @return the number of commits in the payload, which may be more than the ones kept
+         */
+        private int readCommits(JsonReader in, GitLabPushRequest request) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return -1;
+            }
+            List<Commit> commits = new ArrayList<Commit>();
+            ArrayDeque<Commit> lastCommits = new ArrayDeque<Commit>();
+            int count = 0;
+            in.beginArray();
+            while (in.hasNext()) {
+                Commit commit = COMMIT.read(in);
+                count++;
+                if (keptCommits == 0 || commits.size() < keptCommits) {
+                    commits.add(commit);
+                } else {
+                    if (lastCommits.size() == keptCommits) {
+                        lastCommits.removeFirst();
+                    }
+                    lastCommits.addLast(commit);
+                }
+            }
+            in.endArray();
+            commits.addAll(lastCommits);
+            request.setCommits(commits);
+            return count;
+        }
+
+        @Override
+        public void write(JsonWriter out, GitLabPushRequest value) throws IOException {
+            out.beginObject();
+            out.name("before").value(value.getBefore());
+            out.name("after").value(value.getAfter());
+            out.name("checkout_sha").value(value.getCheckout_sha());
+            out.name("ref").value(value.getRef());
+            out.name("user_id").value(value.getUser_id());
+            out.name("user_name").value(value.getUser_name());
+            out.name("project_id").value(value.getProject_id());
+            out.name("total_commits_count").value(value.getTotal_commits_count());
+            out.name("repository");
+            REPOSITORY.write(out, value.getRepository());
+            out.name("commits");
+            if (value.getCommits() == null) {
+                out.nullValue();
+            } else {
+                out.beginArray();
+                for (Commit commit : value.getCommits()) {
+                    COMMIT.write(out, commit);
+                }
+                out.endArray();
+            }
+            out.endObject();
+        }
+    }
+
+    static final class MergeRequestAdapter extends TypeAdapter<GitLabMergeRequest> {
+
+        @Override
+        public GitLabMergeRequest read(JsonReader in) throws IOException {
+            GitLabMergeRequest request = new GitLabMergeRequest();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if ("object_attributes".equals(name)) {
+                    request.setObjectAttribute(OBJECT_ATTRIBUTES.read(in));
+                } else if ("object_kind".equals(name)) {
+                    request.setObject_kind(readString(in));
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return request;
+        }
+
+        @Override
+        public void write(JsonWriter out, GitLabMergeRequest value) throws IOException {
+            out.beginObject();
+            out.name("object_kind").value(value.getObject_kind());
+            out.name("object_attributes");
+            OBJECT_ATTRIBUTES.write(out, value.getObjectAttribute());
+            out.endObject();
+        }
+    }
+
+    static final TypeAdapter<ObjectAttributes> OBJECT_ATTRIBUTES = new TypeAdapter<ObjectAttributes>() {
+        @Override
+        public ObjectAttributes read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            ObjectAttributes attributes = new ObjectAttributes();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if ("id".equals(name)) {
+                    attributes.setId(readInteger(in));
+                } else if ("iid".equals(name)) {
+                    attributes.setIid(readInteger(in));
+                } else if ("target_branch".equals(name)) {
+                    attributes.setTargetBranch(readString(in));
+                } else if ("source_branch".equals(name)) {
+                    attributes.setSourceBranch(readString(in));
+                } else if ("source_project_id".equals(name)) {
+                    attributes.setSourceProjectId(readInteger(in));
+                } else if ("target_project_id".equals(name)) {
+                    attributes.setTargetProjectId(readInteger(in));
+                } else if ("author".equals(name)) {
+                    attributes.setAuthor(USER.read(in));
+                } else if ("assignee".equals(name)) {
+                    attributes.setAssignee(USER.read(in));
+                } else if ("title".equals(name)) {
+                    attributes.setTitle(readString(in));
+                } else if ("created_at".equals(name)) {
+                    attributes.setCreatedAt(DATE.read(in));
+                } else if ("updated_at".equals(name)) {
+                    attributes.setUpdatedAt(DATE.read(in));
+                } else if ("state".equals(name)) {
+                    attributes.setState(readString(in));
+                } else if ("merge_status".equals(name)) {
+                    attributes.setMergeStatus(readString(in));
+                } else if ("description".equals(name)) {
+                    attributes.setDescription(readString(in));
+                } else if ("source".equals(name)) {
+                    attributes.setSource(BRANCH.read(in));
+                } else if ("target".equals(name)) {
+                    attributes.setTarget(BRANCH.read(in));
+                } else if ("last_commit".equals(name)) {
+                    attributes.setLastCommit(LAST_COMMIT.read(in));
+                } else if ("action".equals(name)) {
+                    attributes.setAction(readString(in));
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return attributes;
+        }
+
+        @Override
+        public void write(JsonWriter out, ObjectAttributes value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("id").value(value.getId());
+            out.name("iid").value(value.getIid());
+            out.name("target_branch").value(value.getTargetBranch());
+            out.name("source_branch").value(value.getSourceBranch());
+            out.name("source_project_id").value(value.getSourceProjectId());
+            out.name("target_project_id").value(value.getTargetProjectId());
+            out.name("author");
+            USER.write(out, value.getAuthor());
+            out.name("assignee");
+            USER.write(out, value.getAssignee());
+            out.name("title").value(value.getTitle());
+            out.name("created_at");
+            DATE.write(out, value.getCreatedAt());
+            out.name("updated_at");
+            DATE.write(out, value.getUpdatedAt());
+            out.name("state").value(value.getState());
+            out.name("merge_status").value(value.getMergeStatus());
+            out.name("description").value(value.getDescription());
+            out.name("source");
+            BRANCH.write(out, value.getSource());
+            out.name("target");
+            BRANCH.write(out, value.getTarget());
+            out.name("last_commit");
+            LAST_COMMIT.write(out, value.getLastCommit());
+            out.name("action").value(value.getAction());
+            out.endObject();
+        }
+    };
+
+    static final TypeAdapter<Commit> COMMIT = new TypeAdapter<Commit>() {
+        @Override
+        public Commit read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            Commit commit = new Commit();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if ("id".equals(name)) {
+                    commit.setId(readString(in));
+                } else if ("message".equals(name)) {
+                    commit.setMessage(readString(in));
+                } else if ("timestamp".equals(name)) {
+                    commit.setTimestamp(readString(in));
+                } else if ("url".equals(name)) {
+                    commit.setUrl(readString(in));
+                } else if ("author".equals(name)) {
+                    commit.setAuthor(USER.read(in));
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return commit;
+        }
+
+        @Override
+        public void write(JsonWriter out, Commit value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("id").value(value.getId());
+            out.name("message").value(value.getMessage());
+            out.name("timestamp").value(value.getTimestamp());
+            out.name("url").value(value.getUrl());
+            out.name("author");
+            USER.write(out, value.getAuthor());
+            out.endObject();
+        }
+    };
+
+    static final TypeAdapter<User> USER = new TypeAdapter<User>() {
+        @Override
+        public User read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            User user = new User();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if ("name".equals(name)) {
+                    user.setName(readString(in));
+                } else if ("email".equals(name)) {
+                    user.setEmail(readString(in));
+                } else if ("id".equals(name)) {
+                    user.setId(readInteger(in));
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return user;
+        }
+
+        @Override
+        public void write(JsonWriter out, User value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("id").value(value.getId());
+            out.name("name").value(value.getName());
+            out.name("email").value(value.getEmail());
+            out.endObject();
+        }
+    };
+
+    static final TypeAdapter<Repository> REPOSITORY = new TypeAdapter<Repository>() {
+        @Override
+        public Repository read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            Repository repository = new Repository();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if ("name".equals(name)) {
+                    repository.setName(readString(in));
+                } else if ("url".equals(name)) {
+                    repository.setUrl(readString(in));
+                } else if ("description".equals(name)) {
+                    repository.setDescription(readString(in));
+                } else if ("homepage".equals(name)) {
+                    repository.setHomepage(readString(in));
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return repository;
+        }
+
+        @Override
+        public void write(JsonWriter out, Repository value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("name").value(value.getName());
+            out.name("url").value(value.getUrl());
+            out.name("description").value(value.getDescription());
+            out.name("homepage").value(value.getHomepage());
+            out.endObject();
+        }
+    };
+
+    static final TypeAdapter<Branch> BRANCH = new TypeAdapter<Branch>() {
+        @Override
+        public Branch read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            Branch branch = new Branch();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if ("name".equals(name)) {
+                    branch.setName(readString(in));
+                } else if ("ssh_url".equals(name)) {
+                    branch.setSsh_url(readString(in));
+                } else if ("http_url".equals(name)) {
+                    branch.setHttp_url(readString(in));
+                } else if ("namespace".equals(name)) {
+                    branch.setNamespace(readString(in));
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return branch;
+        }
+
+        @Override
+        public void write(JsonWriter out, Branch value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("name").value(value.getName());
+            out.name("ssh_url").value(value.getSsh_url());
+            out.name("http_url").value(value.getHttp_url());
+            out.name("namespace").value(value.getNamespace());
+            out.endObject();
+        }
+    };
+
+    static final TypeAdapter<LastCommit> LAST_COMMIT = new TypeAdapter<LastCommit>() {
+        @Override
+        public LastCommit read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            LastCommit lastCommit = new LastCommit();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if ("id".equals(name)) {
+                    lastCommit.setId(readString(in));
+                } else if ("message".equals(name)) {
+                    lastCommit.setMessage(readString(in));
+                } else if ("url".equals(name)) {
+                    lastCommit.setUrl(readString(in));
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return lastCommit;
+        }
+
+        @Override
+        public void write(JsonWriter out, LastCommit value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("id").value(value.getId());
+            out.name("message").value(value.getMessage());
+            out.name("url").value(value.getUrl());
+            out.endObject();
+        }
+    };
+
+    /**
+     * Reads a string like Gson does: numbers and booleans are accepted as their text.
+     */
+    static String readString(JsonReader in) throws IOException {
+        JsonToken token = in.peek();
+        if (token == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        if (token == JsonToken.BOOLEAN) {
+            return Boolean.toString(in.nextBoolean());
+        }
+        return in.nextString();
+    }
+
+    /**
+     * Reads an integer like Gson does: quoted numbers are accepted.
+     */
+    static Integer readInteger(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextInt();
+    }
+}
@@ -2,15 +2,26 @@ package com.dabsquared.gitlabjenkins;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.gitlab.api.models.GitlabBranch;
 import org.gitlab.api.models.GitlabProject;
 
+import com.dabsquared.gitlabjenkins.GitLabMetrics.ApiMethod;
+import com.dabsquared.gitlabjenkins.GitLabMetrics.Cache;
+
+/**
+ * Caches the projects and branches of a GitLab server. The caches are read without locking, and
+ * only their loads, which call GitLab, are serialized: the diagnostics and the form validations
+ * never wait for GitLab.
+ */
 public class GitLabProjectBranchesService {
 
     private static final Logger LOGGER = Logger.getLogger(GitLabProjectBranchesService.class.getName());
@@ -19,7 +30,10 @@ public class GitLabProjectBranchesService {
      * A map of git projects' branches; this is cached for
      * BRANCH_CACHE_TIME_IN_MILLISECONDS ms
      */
-    private final Map<String, BranchListEntry> projectBranchCache = new HashMap<String, BranchListEntry>();
+    private final Map<String, BranchListEntry> projectBranchCache = new ConcurrentHashMap<String, BranchListEntry>();
+
+    /** held while branches are loaded, so that a repository is loaded once at a time */
+    private final Object branchLoads = new Object();
 
     /**
      * length of time a git project's branch list is kept in the
@@ -29,9 +43,12 @@ public class GitLabProjectBranchesService {
 
     /**
      * a map of git projects; this is cached for
-     * PROJECT_LIST_CACHE_TIME_IN_MILLISECONDS ms
+     * PROJECT_LIST_CACHE_TIME_IN_MILLISECONDS ms. Replaced as a whole, never changed once published.
      */
-    private HashMap<String, GitlabProject> projectMapCache = new HashMap<String, GitlabProject>();
+    private volatile Map<String, GitlabProject> projectMapCache = Collections.emptyMap();
+
+    /** held while the projects are loaded */
+    private final Object projectLoads = new Object();
 
     /**
      * length of time the list of git project is kept without being refreshed
@@ -43,10 +60,17 @@ public class GitLabProjectBranchesService {
     /**
      * time (epoch) the project cache will have expired
      */
-    private long projectCacheExpiry;
+    private volatile long projectCacheExpiry;
+
+    /** rough sizes in bytes of the cached branch names and projects, kept up to date as entries change */
+    private final AtomicLong branchCacheBytes = new AtomicLong();
+    private volatile long projectMapBytes;
 
     private final TimeUtility timeUtility;
 
+    /** numbers the branch lists loaded, so results computed from a list can tell it was replaced */
+    private static final AtomicLong BRANCH_LIST_VERSIONS = new AtomicLong();
+
     private static transient GitLabProjectBranchesService gitLabProjectBranchesService;
 
     public static GitLabProjectBranchesService instance() {
@@ -61,32 +85,67 @@ public class GitLabProjectBranchesService {
     }
 
     public List<String> getBranches(GitLab gitLab, String sourceRepositoryString) throws IOException {
+        BranchListEntry branchListEntry = getBranchListEntry(gitLab, sourceRepositoryString);
+        return branchListEntry != null ? branchListEntry.branchNames : new ArrayList<String>();
+    }
 
-        synchronized (projectBranchCache) {
-            BranchListEntry branchListEntry = projectBranchCache.get(sourceRepositoryString);
+    /**
+     * @return the search index of the branches of the repository, built once per load of the branches
+     */
+    public GitLabBranchIndex getBranchIndex(GitLab gitLab, String sourceRepositoryString) throws IOException {
+        BranchListEntry branchListEntry = getBranchListEntry(gitLab, sourceRepositoryString);
+        return branchListEntry != null ? branchListEntry.getIndex() : new GitLabBranchIndex(new ArrayList<String>());
+    }
+
+    /**
+     * @return the branches of the repository loaded last, even if they expired, without calling
+     *         GitLab, or null if they were never loaded
+     */
+    BranchListEntry peekBranchListEntry(String sourceRepositoryString) {
+        return projectBranchCache.get(sourceRepositoryString);
+    }
+
+    private BranchListEntry getBranchListEntry(GitLab gitLab, String sourceRepositoryString) throws IOException {
+        BranchListEntry branchListEntry = projectBranchCache.get(sourceRepositoryString);
+        boolean hit = branchListEntry != null && !branchListEntry.hasExpired();
+        GitLabMetrics.recordCacheLookup(Cache.BRANCHES, hit);
+        if (hit) {
+            if (LOGGER.isLoggable(Level.FINEST)) {
+                LOGGER.log(Level.FINEST, "found branches in cache for {0}", sourceRepositoryString);
+            }
+            return branchListEntry;
+        }
+
+        synchronized (branchLoads) {
+            // loaded while waiting for the lock
+            branchListEntry = projectBranchCache.get(sourceRepositoryString);
             if (branchListEntry != null && !branchListEntry.hasExpired()) {
-                if (LOGGER.isLoggable(Level.FINEST)) {
-                    LOGGER.log(Level.FINEST, "found branches in cache for {0}", sourceRepositoryString);
-                }
-                return branchListEntry.branchNames;
+                return branchListEntry;
             }
 
             final List<String> branchNames = new ArrayList<String>();
+            branchListEntry = null;
 
             try {
                 GitlabProject gitlabProject = findGitlabProjectForRepositoryUrl(gitLab, sourceRepositoryString);
                 if (gitlabProject != null) {
-                    final List<GitlabBranch> branches = gitLab.instance().getBranches(gitlabProject);
+                    final List<GitlabBranch> branches = getBranches(gitLab, gitlabProject);
                     for (final GitlabBranch branch : branches) {
                         branchNames.add(branch.getName());
                     }
-                    projectBranchCache.put(sourceRepositoryString, new BranchListEntry(branchNames));
 
                     if (LOGGER.isLoggable(Level.FINEST)) {
                         LOGGER.log(Level.FINEST, "found these branches for repo {0} : {1}",
                                 new Object[] { sourceRepositoryString, branchNames.toString() });
                     }
+                } else {
+                    // cached as a project without branches, the project list is not loaded again for each lookup
+                    LOGGER.log(Level.FINE, "no GitLab project for repo {0}", sourceRepositoryString);
                 }
+                branchListEntry = new BranchListEntry(branchNames);
+                BranchListEntry previous = projectBranchCache.put(sourceRepositoryString, branchListEntry);
+                branchCacheBytes.addAndGet(branchListEntry.estimateBytes(sourceRepositoryString)
+                        - (previous == null ? 0 : previous.estimateBytes(sourceRepositoryString)));
             } catch (final Error error) {
                 /* WTF WTF WTF */
                 final Throwable cause = error.getCause();
@@ -96,40 +155,51 @@ public class GitLabProjectBranchesService {
                     throw error;
                 }
             }
-            return branchNames;
+            return branchListEntry;
         }
     }
 
     public GitlabProject findGitlabProjectForRepositoryUrl(GitLab gitLab, String sourceRepositoryString)
             throws IOException {
-        synchronized (projectMapCache) {
-            String repositoryUrl = sourceRepositoryString.toLowerCase();
-            if (projectCacheExpiry < timeUtility.getCurrentTimeInMillis()
-                    || !projectMapCache.containsKey(repositoryUrl)) {
-
-                if (LOGGER.isLoggable(Level.FINEST)) {
-                    LOGGER.log(Level.FINEST,
-                            "refreshing repo map for {0} because expired : {1} or missing Key {2} expiry:{3} TS:{4}",
-                            new Object[] { sourceRepositoryString,
-                                    (Boolean) (projectCacheExpiry < timeUtility.getCurrentTimeInMillis()),
-                                    (Boolean) projectMapCache.containsKey(repositoryUrl), projectCacheExpiry,
-                                    timeUtility.getCurrentTimeInMillis() });
-                }
-                refreshGitLabProjectMap(gitLab);
+        String repositoryUrl = sourceRepositoryString.toLowerCase();
+        boolean miss = projectCacheExpiry < timeUtility.getCurrentTimeInMillis()
+                || !projectMapCache.containsKey(repositoryUrl);
+        GitLabMetrics.recordCacheLookup(Cache.PROJECT_MAP, !miss);
+        if (!miss) {
+            return projectMapCache.get(repositoryUrl);
+        }
+        synchronized (projectLoads) {
+            // refreshed while waiting for the lock
+            if (projectCacheExpiry >= timeUtility.getCurrentTimeInMillis() && projectMapCache.containsKey(repositoryUrl)) {
+                return projectMapCache.get(repositoryUrl);
             }
+            if (LOGGER.isLoggable(Level.FINEST)) {
+                LOGGER.log(Level.FINEST,
+                        "refreshing repo map for {0} because expired : {1} or missing Key {2} expiry:{3} TS:{4}",
+                        new Object[] { sourceRepositoryString,
+                                (Boolean) (projectCacheExpiry < timeUtility.getCurrentTimeInMillis()),
+                                (Boolean) projectMapCache.containsKey(repositoryUrl), projectCacheExpiry,
+                                timeUtility.getCurrentTimeInMillis() });
+            }
+            refreshGitLabProjectMap(gitLab);
             return projectMapCache.get(repositoryUrl);
         }
     }
 
     public Map<String, GitlabProject> refreshGitLabProjectMap(GitLab gitLab) throws IOException {
-        synchronized (projectMapCache) {
+        synchronized (projectLoads) {
             try {
-                projectMapCache.clear();
-                List<GitlabProject> projects = gitLab.instance().getProjects();
+                Map<String, GitlabProject> projectMap = new HashMap<String, GitlabProject>();
+                long bytes = 0;
+                List<GitlabProject> projects = getProjects(gitLab);
                 for (GitlabProject gitlabProject : projects) {
-                    projectMapCache.put(gitlabProject.getSshUrl().toLowerCase(), gitlabProject);
-                    projectMapCache.put(gitlabProject.getHttpUrl().toLowerCase(), gitlabProject);
+                    projectMap.put(gitlabProject.getSshUrl().toLowerCase(), gitlabProject);
+                    projectMap.put(gitlabProject.getHttpUrl().toLowerCase(), gitlabProject);
+                    bytes += PROJECT_BYTES + 2 * (ENTRY_BYTES + stringBytes(gitlabProject.getSshUrl())
+                            + stringBytes(gitlabProject.getHttpUrl()));
                 }
+                projectMapCache = Collections.unmodifiableMap(projectMap);
+                projectMapBytes = bytes;
                 projectCacheExpiry = timeUtility.getCurrentTimeInMillis() + PROJECT_MAP_CACHE_TIME_IN_MILLISECONDS;
             } catch (final Error error) {
                 final Throwable cause = error.getCause();
@@ -143,18 +213,112 @@ public class GitLabProjectBranchesService {
         }
     }
 
+    public int getBranchCacheSize() {
+        return projectBranchCache.size();
+    }
+
+    public long getBranchCacheBytes() {
+        return branchCacheBytes.get();
+    }
+
+    /**
+     * @return the number of cached projects, each cached under its SSH and its HTTP URL
+     */
+    public int getProjectCacheSize() {
+        return projectMapCache.size() / 2;
+    }
+
+    public long getProjectCacheBytes() {
+        return projectMapBytes;
+    }
+
+    /**
+     * Empties the branch cache right away, a load in progress still caches its branches.
+     */
+    public void flushBranches() {
+        projectBranchCache.clear();
+        branchCacheBytes.set(0);
+    }
+
+    /**
+     * Empties the project cache right away, a load in progress still caches its projects.
+     */
+    public void flushProjects() {
+        projectCacheExpiry = 0;
+        projectMapCache = Collections.emptyMap();
+        projectMapBytes = 0;
+    }
+
+    private List<GitlabBranch> getBranches(GitLab gitLab, GitlabProject gitlabProject) throws IOException {
+        long started = gitLab.begin();
+        boolean success = false;
+        try {
+            List<GitlabBranch> branches = gitLab.readInstance().getBranches(gitlabProject);
+            success = true;
+            return branches;
+        } catch (IOException e) {
+            gitLab.failed(ApiMethod.GET_BRANCHES, e);
+            throw e;
+        } finally {
+            gitLab.end(ApiMethod.GET_BRANCHES, success, started);
+        }
+    }
+
+    private List<GitlabProject> getProjects(GitLab gitLab) throws IOException {
+        long started = gitLab.begin();
+        boolean success = false;
+        try {
+            List<GitlabProject> projects = gitLab.readInstance().getProjects();
+            success = true;
+            return projects;
+        } catch (IOException e) {
+            gitLab.failed(ApiMethod.GET_PROJECTS, e);
+            throw e;
+        } finally {
+            gitLab.end(ApiMethod.GET_PROJECTS, success, started);
+        }
+    }
+
+    /*
+     * Rough sizes for the diagnostics page: a map entry, a GitlabProject with its strings, and a
+     * String of n characters.
+     */
+    private static final long ENTRY_BYTES = 48;
+    private static final long PROJECT_BYTES = 1024;
+
+    static long stringBytes(String value) {
+        return value == null ? 0 : 40 + 2L * value.length();
+    }
+
     public class BranchListEntry {
         long expireTimestamp;
         List<String> branchNames;
+        final long version = BRANCH_LIST_VERSIONS.incrementAndGet();
+        private GitLabBranchIndex index;
 
         public BranchListEntry(List<String> branchNames) {
             this.branchNames = branchNames;
             this.expireTimestamp = timeUtility.getCurrentTimeInMillis() + BRANCH_CACHE_TIME_IN_MILLISECONDS;
         }
 
+        synchronized GitLabBranchIndex getIndex() {
+            if (index == null) {
+                index = new GitLabBranchIndex(branchNames);
+            }
+            return index;
+        }
+
         boolean hasExpired() {
             return expireTimestamp < timeUtility.getCurrentTimeInMillis();
         }
+
+        long estimateBytes(String key) {
+            long bytes = ENTRY_BYTES + stringBytes(key);
+            for (String branchName : branchNames) {
+                bytes += 8 + stringBytes(branchName);
+            }
+            return bytes;
+        }
     }
 
     public static class TimeUtility {
@@ -1,10 +1,16 @@
 package com.dabsquared.gitlabjenkins;
 
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Queue;
+import hudson.model.Run;
 import hudson.triggers.SCMTrigger;
 
 import java.io.File;
 import java.io.IOException;
 
+import com.dabsquared.gitlabjenkins.data.Sha1;
+
 /**
  * Created by daniel on 6/8/14.
  */
@@ -26,6 +32,16 @@ public class GitLabPushCause extends SCMTrigger.SCMTriggerCause {
         this.pushRequest=pushRequest;
     }
 
+    /**
+     * The commit ids of the causes are written to build records and the queue as they were before
+     * being held in 20 bytes, so the records loaded before read the same.
+     */
+    @Initializer(after = InitMilestone.PLUGINS_STARTED, before = InitMilestone.JOB_LOADED)
+    public static void registerConverters() {
+        Run.XSTREAM2.registerConverter(new Sha1.ConverterImpl());
+        Queue.XSTREAM.registerConverter(new Sha1.ConverterImpl());
+    }
+
     public GitLabPushRequest getPushRequest() {
         return pushRequest;
     }
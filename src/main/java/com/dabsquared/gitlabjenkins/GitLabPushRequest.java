@@ -1,10 +1,11 @@
 package com.dabsquared.gitlabjenkins;
 
 import com.dabsquared.gitlabjenkins.data.Commit;
+import com.dabsquared.gitlabjenkins.data.Interner;
 import com.dabsquared.gitlabjenkins.data.Repository;
+import com.dabsquared.gitlabjenkins.data.Sha1;
 import org.apache.commons.lang.builder.ToStringBuilder;
 import org.apache.commons.lang.builder.ToStringStyle;
-import org.gitlab.api.GitlabAPI;
 import org.gitlab.api.models.GitlabCommitStatus;
 import org.gitlab.api.models.GitlabProject;
 
@@ -33,15 +34,16 @@ public class GitLabPushRequest extends GitLabRequest {
 
     public GitlabProject getSourceProject (GitLab api) throws IOException {
         if (sourceProject == null) {
-            sourceProject = api.instance().getProject(project_id);
+            sourceProject = api.getProject(project_id);
         }
         return sourceProject;
     }
 
-    public GitlabCommitStatus createCommitStatus(GitlabAPI api, String status, String targetUrl) {
+    public GitlabCommitStatus createCommitStatus(GitLab api, String status, String targetUrl) {
         try {
             if(getLastCommit()!=null) {
-                return api.createCommitStatus(sourceProject, checkout_sha, status, checkout_sha, "Jenkins", targetUrl, null);
+                String sha = getCheckout_sha();
+                return api.createCommitStatus(sourceProject, sha, status, sha, "Jenkins", targetUrl, null);
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -49,9 +51,9 @@ public class GitLabPushRequest extends GitLabRequest {
         return null;
     }
 
-    private String before;
-    private String after;
-    private String checkout_sha;
+    private Sha1 before;
+    private Sha1 after;
+    private Sha1 checkout_sha;
     private String ref;
     private Integer user_id;
     private String user_name;
@@ -91,19 +93,19 @@ public class GitLabPushRequest extends GitLabRequest {
     }
 
     public String getBefore() {
-        return before;
+        return Sha1.toString(before);
     }
 
     public void setBefore(String before) {
-        this.before = before;
+        this.before = Sha1.of(before);
     }
 
     public String getAfter() {
-        return after;
+        return Sha1.toString(after);
     }
 
     public void setAfter(String after) {
-        this.after = after;
+        this.after = Sha1.of(after);
     }
 
     public String getRef() {
@@ -111,7 +113,7 @@ public class GitLabPushRequest extends GitLabRequest {
     }
 
     public void setRef(String ref) {
-        this.ref = ref;
+        this.ref = Interner.intern(ref);
     }
 
     public Integer getUser_id() {
@@ -127,7 +129,7 @@ public class GitLabPushRequest extends GitLabRequest {
     }
 
     public void setUser_name(String userName) {
-        this.user_name = userName;
+        this.user_name = Interner.intern(userName);
     }
 
     public Integer getProject_id() {
@@ -138,17 +140,27 @@ public class GitLabPushRequest extends GitLabRequest {
         this.project_id = projectId;
     }
 
+    /**
+     * Shares the ref and user name of the pushes of build records, their commits and repository
+     * do it themselves.
+     */
+    private Object readResolve() {
+        ref = Interner.intern(ref);
+        user_name = Interner.intern(user_name);
+        return this;
+    }
+
     @Override
     public String toString() {
         return ToStringBuilder.reflectionToString(this, ToStringStyle.MULTI_LINE_STYLE);
     }
 
     public String getCheckout_sha() {
-        return checkout_sha;
+        return Sha1.toString(checkout_sha);
     }
 
     public void setCheckout_sha(String checkout_sha) {
-        this.checkout_sha = checkout_sha;
+        this.checkout_sha = Sha1.of(checkout_sha);
     }
 
 }
@@ -2,6 +2,7 @@ package com.dabsquared.gitlabjenkins;
 
 import hudson.Extension;
 import hudson.Util;
+import hudson.console.AnnotatedLargeText;
 import hudson.model.Action;
 import hudson.model.AutoCompletionCandidates;
 import hudson.model.Item;
@@ -11,9 +12,7 @@ import hudson.model.AbstractProject;
 import hudson.model.Cause;
 import hudson.model.CauseAction;
 import hudson.model.Job;
-import hudson.model.ParameterDefinition;
 import hudson.model.ParametersAction;
-import hudson.model.ParametersDefinitionProperty;
 import hudson.model.Run;
 import hudson.model.StringParameterValue;
 import hudson.plugins.git.RevisionParameterAction;
@@ -29,38 +28,43 @@ import hudson.util.ListBoxModel.Option;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.net.URISyntaxException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import jenkins.model.Jenkins;
 import jenkins.model.ParameterizedJobMixIn;
 import jenkins.triggers.SCMTriggerItem;
 import jenkins.triggers.SCMTriggerItem.SCMTriggerItems;
+import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 
+import org.apache.commons.jelly.XMLOutput;
 import org.apache.commons.lang.StringUtils;
 import org.eclipse.jgit.transport.RemoteConfig;
 import org.eclipse.jgit.transport.URIish;
 import org.gitlab.api.models.GitlabProject;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
-import org.springframework.util.AntPathMatcher;
+import org.kohsuke.stapler.StaplerResponse;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Objects;
 import com.google.common.base.Splitter;
-import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Multimap;
-import com.google.common.collect.Sets;
 import com.thoughtworks.xstream.converters.Converter;
 import com.thoughtworks.xstream.converters.MarshallingContext;
 import com.thoughtworks.xstream.converters.UnmarshallingContext;
@@ -92,6 +96,10 @@ public class GitLabPushTrigger extends Trigger<Job<?, ?>> {
     private final String excludeBranchesSpec;
     private final String targetBranchRegex;
     private boolean acceptMergeRequestOnSuccess = false;
+    private boolean reuseBuildResults = false;
+    private boolean mergeTrain = false;
+    private boolean updateNoteOnMergeRequest = false;
+    private String gitlabConnection;
 
     @DataBoundConstructor
     public GitLabPushTrigger(boolean triggerOnPush, boolean triggerOnMergeRequest, String triggerOpenMergeRequestOnPush,
@@ -113,6 +121,26 @@ public class GitLabPushTrigger extends Trigger<Job<?, ?>> {
         this.acceptMergeRequestOnSuccess = acceptMergeRequestOnSuccess;
     }
 
+    @DataBoundSetter
+    public void setReuseBuildResults(boolean reuseBuildResults) {
+        this.reuseBuildResults = reuseBuildResults;
+    }
+
+    @DataBoundSetter
+    public void setMergeTrain(boolean mergeTrain) {
+        this.mergeTrain = mergeTrain;
+    }
+
+    @DataBoundSetter
+    public void setUpdateNoteOnMergeRequest(boolean updateNoteOnMergeRequest) {
+        this.updateNoteOnMergeRequest = updateNoteOnMergeRequest;
+    }
+
+    @DataBoundSetter
+    public void setGitlabConnection(String gitlabConnection) {
+        this.gitlabConnection = gitlabConnection;
+    }
+
     public boolean getTriggerOnPush() {
     	return triggerOnPush;
     }
@@ -141,64 +169,39 @@ public class GitLabPushTrigger extends Trigger<Job<?, ?>> {
         return acceptMergeRequestOnSuccess;
     }
 
-    public boolean getAddCiMessage() {
-        return addCiMessage;
+    public boolean getReuseBuildResults() {
+        return reuseBuildResults;
     }
 
-    public boolean getCiSkip() {
-        return ciSkip;
+    public boolean getMergeTrain() {
+        return mergeTrain;
     }
 
-    private boolean isAllowedByTargetBranchRegex(String branchName) {
-        final String regex = this.getTargetBranchRegex();
-
-        if (StringUtils.isEmpty(regex)) {
-            return true;
-        }
-        final Pattern pattern = Pattern.compile(regex);
-        return pattern.matcher(branchName).matches();
+    public boolean getUpdateNoteOnMergeRequest() {
+        return updateNoteOnMergeRequest;
     }
 
-    private boolean isAllowedByList(final String branchName) {
+    /**
+     * @return the name of the GitLab connection of the job, empty for the default GitLab server
+     */
+    public String getGitlabConnection() {
+        return gitlabConnection;
+    }
 
-        final List<String> exclude = DescriptorImpl.splitBranchSpec(this.getExcludeBranchesSpec());
-        final List<String> include = DescriptorImpl.splitBranchSpec(this.getIncludeBranchesSpec());
-        if (exclude.isEmpty() && include.isEmpty()) {
-            return true;
-        }
+    public GitLab getGitlab() {
+        return getDescriptor().getGitlab(gitlabConnection);
+    }
 
-        final AntPathMatcher matcher = new AntPathMatcher();
-        for (final String pattern : exclude) {
-            if (matcher.match(pattern, branchName)) {
-                return false;
-            }
-        }
-        for (final String pattern : include) {
-            if (matcher.match(pattern, branchName)) {
-                return true;
-            }
-        }
+    public boolean getAddCiMessage() {
+        return addCiMessage;
+    }
 
-        return false;
+    public boolean getCiSkip() {
+        return ciSkip;
     }
 
     private boolean isBranchAllowed(final String branchName) {
-
-        final String branchFilterName = this.getBranchFilterName();
-        if (branchFilterName.isEmpty()) {
-            // no filter is applied, allow all branches
-            return true;
-        }
-
-        if (Objects.equal(branchFilterName, "NameBasedFilter")) {
-            return this.isAllowedByList(branchName);
-        }
-
-        if (Objects.equal(branchFilterName, "RegexBasedFilter")) {
-            return this.isAllowedByTargetBranchRegex(branchName);
-        }
-
-        return false;
+        return GitLabJobContext.of(job).isBranchAllowed(branchName);
     }
 
     // TODO use an enum instead of a String for this
@@ -221,6 +224,20 @@ public class GitLabPushTrigger extends Trigger<Job<?, ?>> {
 
     public String getTargetBranchRegex() { return this.targetBranchRegex == null ? "" : this.targetBranchRegex; }
 
+    @Override
+    public void start(Job<?, ?> project, boolean newInstance) {
+        super.start(project, newInstance);
+        GitLabJobContext.build(project, this);
+    }
+
+    @Override
+    public void stop() {
+        if (job != null) {
+            GitLabJobContext.invalidate(job.getFullName());
+        }
+        super.stop();
+    }
+
     // executes when the Trigger receives a push request
     public void onPost(final GitLabPushRequest req) {
         // TODO 1.621+ use standard method
@@ -231,7 +248,13 @@ public class GitLabPushTrigger extends Trigger<Job<?, ?>> {
             }
         };
 
-        if (triggerOnPush && this.isBranchAllowed(this.getSourceBranch(req))) {
+        long filterStarted = System.nanoTime();
+        boolean branchAllowed = !triggerOnPush || this.isBranchAllowed(this.getSourceBranch(req));
+        GitLabWebHookTrace.record(GitLabWebHookTrace.Stage.BRANCH_FILTER, filterStarted);
+
+        if (!branchAllowed) {
+            GitLabMetrics.branchFilterRejected();
+        } else if (triggerOnPush) {
 
             LOGGER.log(Level.INFO, "{0} triggered for push.", job.getFullName());
 
@@ -247,10 +270,15 @@ public class GitLabPushTrigger extends Trigger<Job<?, ?>> {
             }
 
             if(addCiMessage) {
-                req.createCommitStatus(getDescriptor().getGitlab().instance(), "pending", Jenkins.getInstance().getRootUrl() + job.getUrl());
+                long statusStarted = System.nanoTime();
+                req.createCommitStatus(getGitlab(), "pending", Jenkins.getInstance().getRootUrl() + job.getUrl());
+                GitLabWebHookTrace.record(GitLabWebHookTrace.Stage.COMMIT_STATUS, statusStarted);
             }
 
+            GitLabMetrics.buildScheduled();
+            long scheduleStarted = System.nanoTime();
             scheduledJob.scheduleBuild2(projectbuildDelay, actions);
+            GitLabWebHookTrace.record(GitLabWebHookTrace.Stage.SCHEDULE_BUILD, scheduleStarted);
         }
     }
 
@@ -272,7 +300,8 @@ public class GitLabPushTrigger extends Trigger<Job<?, ?>> {
 
         LOGGER.log(Level.INFO, "GitLab Push Request from branch {0}.", branch);
 
-        Map<String, ParameterValue> values = getDefaultParameters();
+        GitLabJobContext context = GitLabJobContext.of(job);
+        Map<String, ParameterValue> values = context.getDefaultParameters();
         values.put("gitlabSourceBranch", new StringParameterValue("gitlabSourceBranch", branch));
         values.put("gitlabTargetBranch", new StringParameterValue("gitlabTargetBranch", branch));
         values.put("gitlabBranch", new StringParameterValue("gitlabBranch", branch));
@@ -285,16 +314,19 @@ public class GitLabPushTrigger extends Trigger<Job<?, ?>> {
         values.put("gitlabMergeRequestAssignee", new StringParameterValue("gitlabMergeRequestAssignee", ""));
 
         LOGGER.log(Level.INFO, "Trying to get name and URL for job: {0}", job.getFullName());
-        String sourceRepoName = getDesc().getSourceRepoNameDefault(job);
-        String sourceRepoURL = getDesc().getSourceRepoURLDefault(job).toString();
+        String sourceRepoName = context.getSourceRepoName();
+        String sourceRepoURL = context.getSourceRepoURL() == null ? null : context.getSourceRepoURL().toString();
 
-        if (!getDescriptor().getGitlabHostUrl().isEmpty()) {
+        if (getGitlab().isConfigured()) {
             // Get source repository if communication to Gitlab is possible
+            long sourceProjectStarted = System.nanoTime();
             try {
-                sourceRepoName = req.getSourceProject(getDesc().getGitlab()).getPathWithNamespace();
-                sourceRepoURL = req.getSourceProject(getDesc().getGitlab()).getSshUrl();
+                sourceRepoName = req.getSourceProject(getGitlab()).getPathWithNamespace();
+                sourceRepoURL = req.getSourceProject(getGitlab()).getSshUrl();
             } catch (IOException ex) {
                 LOGGER.log(Level.WARNING, "Could not fetch source project''s data from Gitlab. '('{0}':' {1}')'", new String[]{ex.toString(), ex.getMessage()});
+            } finally {
+                GitLabWebHookTrace.record(GitLabWebHookTrace.Stage.SOURCE_PROJECT, sourceProjectStarted);
             }
         }
 
@@ -361,7 +393,20 @@ public class GitLabPushTrigger extends Trigger<Job<?, ?>> {
             }
         };
 
-        if (triggerOnMergeRequest && this.isBranchAllowed(req.getObjectAttribute().getTargetBranch())) {
+        long filterStarted = System.nanoTime();
+        boolean branchAllowed = !triggerOnMergeRequest || this.isBranchAllowed(req.getObjectAttribute().getTargetBranch());
+        GitLabWebHookTrace.record(GitLabWebHookTrace.Stage.BRANCH_FILTER, filterStarted);
+
+        if (!branchAllowed) {
+            GitLabMetrics.branchFilterRejected();
+            LOGGER.log(Level.INFO, "{0} not triggered, target branch of the merge request is filtered.", job.getFullName());
+        } else if (triggerOnMergeRequest) {
+
+    	    if (reuseBuildResults && GitLabResultReuse.link(this, job, req)) {
+    	        LOGGER.log(Level.INFO, "{0} reuses the build of {1} for merge request !{2}.", new Object[] { job.getFullName(),
+    	                req.getObjectAttribute().getLastCommit().getId(), req.getObjectAttribute().getIid() });
+    	        return;
+    	    }
 
     	    LOGGER.log(Level.INFO, "{0} triggered for merge request.", job.getFullName());
 
@@ -378,10 +423,15 @@ public class GitLabPushTrigger extends Trigger<Job<?, ?>> {
 	        }
 
     	    if(addCiMessage) {
-	    	    req.createCommitStatus(getDescriptor().getGitlab().instance(), "pending", Jenkins.getInstance().getRootUrl() + job.getUrl());
+	    	    long statusStarted = System.nanoTime();
+	    	    req.createCommitStatus(getGitlab(), "pending", Jenkins.getInstance().getRootUrl() + job.getUrl());
+	    	    GitLabWebHookTrace.record(GitLabWebHookTrace.Stage.COMMIT_STATUS, statusStarted);
 	        }
 
+	        GitLabMetrics.buildScheduled();
+	        long scheduleStarted = System.nanoTime();
 	        scheduledJob.scheduleBuild2(projectbuildDelay, action, new CauseAction(cause));
+	        GitLabWebHookTrace.record(GitLabWebHookTrace.Stage.SCHEDULE_BUILD, scheduleStarted);
     	} else {
 	        LOGGER.log(Level.INFO, "trigger on merge request not set");
 	    }
@@ -398,7 +448,8 @@ public class GitLabPushTrigger extends Trigger<Job<?, ?>> {
     }
 
     private Action createAction(GitLabMergeRequest req, Job job) {
-        Map<String, ParameterValue> values = getDefaultParameters();
+        GitLabJobContext context = GitLabJobContext.of(job);
+        Map<String, ParameterValue> values = context.getDefaultParameters();
         values.put("gitlabSourceBranch", new StringParameterValue("gitlabSourceBranch", getSourceBranch(req)));
         values.put("gitlabTargetBranch", new StringParameterValue("gitlabTargetBranch", req.getObjectAttribute().getTargetBranch()));
         values.put("gitlabActionType", new StringParameterValue("gitlabActionType", "MERGE"));
@@ -414,16 +465,19 @@ public class GitLabPushTrigger extends Trigger<Job<?, ?>> {
 
 
         LOGGER.log(Level.INFO, "Trying to get name and URL for job: {0}", job.getFullName());
-        String sourceRepoName = getDesc().getSourceRepoNameDefault(job);
-        String sourceRepoURL = getDesc().getSourceRepoURLDefault(job).toString();
+        String sourceRepoName = context.getSourceRepoName();
+        String sourceRepoURL = context.getSourceRepoURL() == null ? null : context.getSourceRepoURL().toString();
 
-        if (!getDescriptor().getGitlabHostUrl().isEmpty()) {
+        if (getGitlab().isConfigured()) {
             // Get source repository if communication to Gitlab is possible
+            long sourceProjectStarted = System.nanoTime();
             try {
-                sourceRepoName = req.getSourceProject(getDesc().getGitlab()).getPathWithNamespace();
-                sourceRepoURL = req.getSourceProject(getDesc().getGitlab()).getSshUrl();
+                sourceRepoName = req.getSourceProject(getGitlab()).getPathWithNamespace();
+                sourceRepoURL = req.getSourceProject(getGitlab()).getSshUrl();
             } catch (IOException ex) {
                 LOGGER.log(Level.WARNING, "Could not fetch source project''s data from Gitlab. '('{0}':' {1}')'", new String[]{ex.toString(), ex.getMessage()});
+            } finally {
+                GitLabWebHookTrace.record(GitLabWebHookTrace.Stage.SOURCE_PROJECT, sourceProjectStarted);
             }
         }
 
@@ -435,26 +489,15 @@ public class GitLabPushTrigger extends Trigger<Job<?, ?>> {
         return new ParametersAction(listValues);
     }
 
-    private Map<String, ParameterValue> getDefaultParameters() {
-        Map<String, ParameterValue> values = new HashMap<String, ParameterValue>();
-        ParametersDefinitionProperty definitionProperty = job.getProperty(ParametersDefinitionProperty.class);
-
-        if (definitionProperty != null) {
-            for (ParameterDefinition definition : definitionProperty.getParameterDefinitions()) {
-                values.put(definition.getName(), definition.getDefaultParameterValue());
-            }
-        }
-
-        return values;
-    }
-
     private void setBuildCauseInJob(Run run){
         if(setBuildDescription){
             Cause pcause= run.getCause(GitLabPushCause.class);
             Cause mcause= run.getCause(GitLabMergeCause.class);
+            Cause tcause= run.getCause(GitLabMergeTrainCause.class);
             String desc = null;
             if(pcause!=null) desc = pcause.getShortDescription();
             if(mcause!=null) desc = mcause.getShortDescription();
+            if(tcause!=null) desc = tcause.getShortDescription();
             if(desc!=null && desc.length()>0){
                 try {
                     run.setDescription(desc);
@@ -476,6 +519,17 @@ public class GitLabPushTrigger extends Trigger<Job<?, ?>> {
             onCompletedPushRequest(run, (GitLabPushCause) pCause);
         }
 
+        GitLabResultReuse.Action reuse = run.getAction(GitLabResultReuse.Action.class);
+        if (reuse != null) {
+            for (GitLabMergeRequest mergeRequest : reuse.takeUnreported()) {
+                onCompleteMergeRequest(run, mergeRequest, true);
+            }
+        }
+
+        GitLabMergeTrainCause trainCause = (GitLabMergeTrainCause) run.getCause(GitLabMergeTrainCause.class);
+        if (trainCause != null) {
+            GitLabMergeTrain.instance().arrived(this, run, trainCause);
+        }
     }
 
     private void onCompletedPushRequest(Run run, GitLabPushCause cause) {
@@ -488,22 +542,22 @@ public class GitLabPushTrigger extends Trigger<Job<?, ?>> {
             }else {
                 status = "failed";
             }
-            cause.getPushRequest().createCommitStatus(this.getDescriptor().getGitlab().instance(), status, Jenkins.getInstance().getRootUrl() + run.getUrl());
+            cause.getPushRequest().createCommitStatus(getGitlab(), status, Jenkins.getInstance().getRootUrl() + run.getUrl());
         }
     }
 
     private void onCompleteMergeRequest(Run run,GitLabMergeCause cause){
-        if (acceptMergeRequestOnSuccess && run.getResult() == Result.SUCCESS) {
-            try {
-                GitlabProject proj = new GitlabProject();
-                proj.setId(cause.getMergeRequest().getObjectAttribute().getTargetProjectId());
-                this.getDescriptor().getGitlab().instance().acceptMergeRequest(
-                        proj,
-                        cause.getMergeRequest().getObjectAttribute().getId(),
-                        "Merge Request accepted by jenkins build success");
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        onCompleteMergeRequest(run, cause.getMergeRequest(), false);
+    }
+
+    /**
+     * Reports the result of the build on the merge request, which the build was triggered by or reuses.
+     * A reused build only reports its result: the merge request is accepted by its own builds.
+     */
+    void onCompleteMergeRequest(Run run, GitLabMergeRequest mergeRequest, boolean reused){
+        if (acceptMergeRequestOnSuccess && !reused && run.getResult() == Result.SUCCESS
+                && !(mergeTrain && GitLabMergeTrain.instance().join(job, mergeRequest))) {
+            acceptMergeRequest(mergeRequest);
         }
         if(addNoteOnMergeRequest) {
             StringBuilder msg = new StringBuilder();
@@ -515,16 +569,14 @@ public class GitLabPushTrigger extends Trigger<Job<?, ?>> {
                 msg.append(icon);
             }
             msg.append(" Jenkins Build ").append(run.getResult().color.getDescription());
-            String buildUrl = Jenkins.getInstance().getRootUrl() + run.getUrl();
+            String buildUrl = getRunUrl(run);
             msg.append("\n\nResults available at: ")
                     .append("[").append("Jenkins " + buildUrl).append("](").append(buildUrl).append(")");
-            try {
-                GitlabProject proj = new GitlabProject();
-                proj.setId(cause.getMergeRequest().getObjectAttribute().getTargetProjectId());
-                org.gitlab.api.models.GitlabMergeRequest mr = this.getDescriptor().getGitlab().instance().getMergeRequest(proj,cause.getMergeRequest().getObjectAttribute().getId());
-                this.getDescriptor().getGitlab().instance().createNote(mr,msg.toString());
-            } catch (IOException e) {
-                e.printStackTrace();
+            if (updateNoteOnMergeRequest) {
+                GitLabMergeRequestNotes.instance().post(getGitlab(), job.getFullName(), mergeRequest.getObjectAttribute().getTargetProjectId(),
+                        mergeRequest.getObjectAttribute().getId(), msg.toString());
+            } else {
+                addNote(mergeRequest, msg.toString());
             }
         }
 
@@ -537,10 +589,36 @@ public class GitLabPushTrigger extends Trigger<Job<?, ?>> {
             }else {
                 status = "failed";
             }
-            cause.getMergeRequest().createCommitStatus(this.getDescriptor().getGitlab().instance(), status, Jenkins.getInstance().getRootUrl() + run.getUrl());
+            mergeRequest.createCommitStatus(getGitlab(), status, Jenkins.getInstance().getRootUrl() + run.getUrl());
+        }
+    }
+
+    void acceptMergeRequest(GitLabMergeRequest mergeRequest) {
+        try {
+            GitlabProject proj = new GitlabProject();
+            proj.setId(mergeRequest.getObjectAttribute().getTargetProjectId());
+            getGitlab().acceptMergeRequest(
+                    proj,
+                    mergeRequest.getObjectAttribute().getId(),
+                    "Merge Request accepted by jenkins build success");
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
+    void addNote(GitLabMergeRequest mergeRequest, String note) {
+        try {
+            getGitlab().createNote(mergeRequest.getObjectAttribute().getTargetProjectId(),
+                    mergeRequest.getObjectAttribute().getId(), note);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    static String getRunUrl(Run run) {
+        return Jenkins.getInstance().getRootUrl() + run.getUrl();
+    }
+
     public void onStarted(Run run) {
         setBuildCauseInJob(run);
 
@@ -553,17 +631,28 @@ public class GitLabPushTrigger extends Trigger<Job<?, ?>> {
         if (pCause != null && pCause instanceof GitLabPushCause) {
             onStartedPushRequest(run, (GitLabPushCause) pCause);
         }
+
+        GitLabResultReuse.Action reuse = run.getAction(GitLabResultReuse.Action.class);
+        if (reuse != null) {
+            for (GitLabMergeRequest mergeRequest : reuse.getMergeRequests()) {
+                onStartedMergeRequest(run, mergeRequest);
+            }
+        }
     }
 
     private void onStartedPushRequest(Run run, GitLabPushCause cause) {
         if(addCiMessage) {
-            cause.getPushRequest().createCommitStatus(this.getDescriptor().getGitlab().instance(), "running", Jenkins.getInstance().getRootUrl() + run.getUrl());
+            cause.getPushRequest().createCommitStatus(getGitlab(), "running", Jenkins.getInstance().getRootUrl() + run.getUrl());
         }
     }
 
     private void onStartedMergeRequest(Run run, GitLabMergeCause cause) {
+        onStartedMergeRequest(run, cause.getMergeRequest());
+    }
+
+    void onStartedMergeRequest(Run run, GitLabMergeRequest mergeRequest) {
         if(addCiMessage) {
-            cause.getMergeRequest().createCommitStatus(this.getDescriptor().getGitlab().instance(), "running", Jenkins.getInstance().getRootUrl() + run.getUrl());
+            mergeRequest.createCommitStatus(getGitlab(), "running", Jenkins.getInstance().getRootUrl() + run.getUrl());
         }
     }
 
@@ -591,6 +680,73 @@ public class GitLabPushTrigger extends Trigger<Job<?, ?>> {
         return new File(job.getRootDir(), "gitlab-polling.log");
     }
 
+    @Override
+    public Collection<? extends Action> getProjectActions() {
+        if (job == null) {
+            return Collections.emptyList();
+        }
+        return Collections.singleton(new GitLabWebHookPollingAction());
+    }
+
+    /**
+     * The GitLab page of the job: the log of the last push and the slowest webhook events with
+     * the time they spent in each stage.
+     */
+    public final class GitLabWebHookPollingAction implements Action {
+
+        public Job<?, ?> getOwner() {
+            return job;
+        }
+
+        public String getIconFileName() {
+            return "clipboard.png";
+        }
+
+        public String getDisplayName() {
+            return "GitLab Hook Log";
+        }
+
+        public String getUrlName() {
+            return "GitLabWebHookLog";
+        }
+
+        public String getLog() throws IOException {
+            return Util.loadFile(getLogFile());
+        }
+
+        public void writeLogTo(XMLOutput out) throws IOException {
+            new AnnotatedLargeText<GitLabWebHookPollingAction>(getLogFile(), Charset.defaultCharset(), true, this)
+                    .writeHtmlTo(0, out.asWriter());
+        }
+
+        public GitLabWebHookTrace.Stage[] getStages() {
+            return GitLabWebHookTrace.Stage.values();
+        }
+
+        public List<GitLabWebHookTrace> getSlowestEvents() {
+            return GitLabWebHookTrace.getSlowest(job.getFullName());
+        }
+
+        public String formatMillis(double millis) {
+            return String.format("%.1f", millis);
+        }
+
+        /**
+         * Exports the slowest events as JSON, at <code>GitLabWebHookLog/slowestEvents</code>.
+         */
+        public void doSlowestEvents(StaplerRequest req, StaplerResponse rsp) throws IOException {
+            job.checkPermission(Item.READ);
+            JSONArray events = new JSONArray();
+            for (GitLabWebHookTrace trace : getSlowestEvents()) {
+                events.add(trace.toJSON());
+            }
+            rsp.setContentType("application/json;charset=UTF-8");
+            PrintWriter w = rsp.getWriter();
+            w.write(events.toString(2));
+            w.flush();
+        }
+    }
+
     public static final class ConverterImpl extends XStream2.PassthruConverter<GitLabPushTrigger> {
 
         public ConverterImpl(final XStream2 xstream) {
@@ -653,9 +809,18 @@ public class GitLabPushTrigger extends Trigger<Job<?, ?>> {
         Job project;
         private String gitlabApiToken;
         private String gitlabHostUrl = "";
+        private String gitlabReadHostUrl = "";
+        private int gitlabRequestsPerSecond = 0;
+        private List<GitLabConnection> connections = new ArrayList<GitLabConnection>();
         private boolean ignoreCertificateErrors = false;
+        private boolean captureWebHooks = false;
+        private boolean durableWebHookQueue = false;
+        private int maxWebHookBodySize = 10240;
+        private boolean truncateOversizedPushes = false;
+        private int truncatedPushCommits = 20;
         private transient final SequentialExecutionQueue queue = new SequentialExecutionQueue(Jenkins.MasterComputer.threadPoolForRemoting);
         private transient GitLab gitlab;
+        private transient Map<String, GitLab> connectionClients;
 
         public DescriptorImpl() {
         	load();
@@ -703,23 +868,97 @@ public class GitLabPushTrigger extends Trigger<Job<?, ?>> {
 
         @Override
         public boolean configure(StaplerRequest req, JSONObject formData) throws FormException {
+            String previousHostUrl = gitlabHostUrl;
+            String previousReadHostUrl = gitlabReadHostUrl;
+            String previousApiToken = gitlabApiToken;
+            boolean previousIgnoreCertificateErrors = ignoreCertificateErrors;
             gitlabApiToken = formData.getString("gitlabApiToken");
             gitlabHostUrl = formData.getString("gitlabHostUrl");
             ignoreCertificateErrors = formData.getBoolean("ignoreCertificateErrors");
+            gitlabReadHostUrl = formData.optString("gitlabReadHostUrl");
+            gitlabRequestsPerSecond = Math.max(0, formData.optInt("gitlabRequestsPerSecond", 0));
+            connections = bindConnections(req, formData.get("connections"));
+            captureWebHooks = formData.optBoolean("captureWebHooks");
+            if (!captureWebHooks) {
+                GitLabWebHookJournal.instance().close();
+            }
+            durableWebHookQueue = formData.optBoolean("durableWebHookQueue");
+            maxWebHookBodySize = Math.max(0, formData.optInt("maxWebHookBodySize", maxWebHookBodySize));
+            truncateOversizedPushes = formData.optBoolean("truncateOversizedPushes");
+            truncatedPushCommits = Math.max(1, formData.optInt("truncatedPushCommits", truncatedPushCommits));
             save();
-            gitlab = new GitLab();
+            synchronized (this) {
+                // the clients of the unchanged servers keep their caches and rate limits
+                if (gitlab != null && !(Objects.equal(previousHostUrl, gitlabHostUrl) && Objects.equal(previousReadHostUrl, gitlabReadHostUrl)
+                        && Objects.equal(previousApiToken, gitlabApiToken) && previousIgnoreCertificateErrors == ignoreCertificateErrors)) {
+                    gitlab.disconnect();
+                }
+                if (connectionClients != null) {
+                    Map<String, GitLab> clients = new HashMap<String, GitLab>();
+                    for (GitLabConnection connection : getConnections()) {
+                        GitLab client = connectionClients.remove(connection.getName());
+                        if (client != null && connection.equals(client.getConnection())) {
+                            clients.put(connection.getName(), client);
+                        } else {
+                            if (client != null) {
+                                client.release();
+                            }
+                            clients.put(connection.getName(), new GitLab(connection));
+                        }
+                    }
+                    // the clients of the removed connections
+                    for (GitLab client : connectionClients.values()) {
+                        client.release();
+                    }
+                    connectionClients = clients;
+                }
+            }
             return super.configure(req, formData);
         }
 
+        /**
+         * Binds the named connections of the form, or of the JSON alone when there is no request, as
+         * when the configuration is set up programmatically.
+         */
+        private List<GitLabConnection> bindConnections(StaplerRequest req, Object json) {
+            if (json == null) {
+                return new ArrayList<GitLabConnection>();
+            }
+            if (req != null) {
+                return req.bindJSONToList(GitLabConnection.class, json);
+            }
+            JSONArray array = json instanceof JSONArray ? (JSONArray) json : JSONArray.fromObject(Collections.singletonList(json));
+            List<GitLabConnection> bound = new ArrayList<GitLabConnection>();
+            for (int i = 0; i < array.size(); i++) {
+                JSONObject connection = array.getJSONObject(i);
+                bound.add(new GitLabConnection(connection.optString("name"), connection.optString("url"), connection.optString("apiToken"),
+                        connection.optString("readUrl"), connection.optBoolean("ignoreCertificateErrors"),
+                        connection.optInt("requestsPerSecond")));
+            }
+            return bound;
+        }
+
         public ListBoxModel doFillTriggerOpenMergeRequestOnPushItems(@QueryParameter String triggerOpenMergeRequestOnPush) {
             return new ListBoxModel(new Option("Never", "never", triggerOpenMergeRequestOnPush.matches("never") ),
                     new Option("On push to source branch", "source", triggerOpenMergeRequestOnPush.matches("source") ),
                     new Option("On push to source or target branch", "both", triggerOpenMergeRequestOnPush.matches("both") ));
         }
 
-        private List<String> getProjectBranches(final Job<?, ?> job) throws IOException, IllegalStateException {
+        private GitLabBranchIndex getProjectBranchIndex(final Job<?, ?> job) throws IOException, IllegalStateException {
+            final URIish sourceRepository = getBranchesRepository(job);
+            if (sourceRepository == null) {
+                return new GitLabBranchIndex(new ArrayList<String>());
+            }
+            GitLab gitlab = getGitlab(job);
+            return gitlab.getBranchesService().getBranchIndex(gitlab, sourceRepository.toString());
+        }
+
+        /**
+         * @return the repository to list the branches of, null if there are none to list
+         */
+        private URIish getBranchesRepository(final Job<?, ?> job) throws IllegalStateException {
             if (!(job instanceof AbstractProject<?, ?>)) {
-                return Lists.newArrayList();
+                return null;
             }
 
             final URIish sourceRepository = getSourceRepoURLDefault(job);
@@ -728,13 +967,12 @@ public class GitLabPushTrigger extends Trigger<Job<?, ?>> {
                 throw new IllegalStateException(Messages.GitLabPushTrigger_NoSourceRepository());
             }
 
-            if (!getGitlabHostUrl().isEmpty()) {
-                return GitLabProjectBranchesService.instance().getBranches(getGitlab(), sourceRepository.toString());
-            } else {
-                LOGGER.log(Level.WARNING, "getProjectBranches: gitlabHostUrl hasn't been configured globally. Job {0}.",
+            if (!getGitlab(job).isConfigured()) {
+                LOGGER.log(Level.WARNING, "getProjectBranches: the GitLab server of job {0} hasn't been configured globally.",
                         job.getFullName());
-                return Lists.newArrayList();
+                return null;
             }
+            return sourceRepository;
         }
 
         private GitSCM getGitSCM(SCMTriggerItem item) {
@@ -748,28 +986,16 @@ public class GitLabPushTrigger extends Trigger<Job<?, ?>> {
             return null;
         }
 
-        private static List<String> splitBranchSpec(final String spec) {
+        static List<String> splitBranchSpec(final String spec) {
             return Lists.newArrayList(Splitter.on(',').omitEmptyStrings().trimResults().split(spec));
         }
 
         private AutoCompletionCandidates doAutoCompleteBranchesSpec(final Job<?, ?> job, @QueryParameter final String value) {
-            String query = value.toLowerCase();
-
             final AutoCompletionCandidates ac = new AutoCompletionCandidates();
-            List<String> values = ac.getValues();
 
             try {
-                List<String> branches = this.getProjectBranches(job);
-                // show all suggestions for short strings
-                if (query.length() < 2){
-                    values.addAll(branches);
-                } else {
-                    for (String branch : branches){
-                      if (branch.toLowerCase().indexOf(query) > -1){
-                        values.add(branch);
-                      }
-                    }
-                }
+                // ranked and capped, short queries do not list every branch of the repository
+                ac.getValues().addAll(this.getProjectBranchIndex(job).search(value));
             } catch (final IllegalStateException ex) {
                 LOGGER.log(Level.FINEST, "Unexpected IllegalStateException. Please check the logs and your configuration.", ex);
             } catch (final IOException ex) {
@@ -797,34 +1023,18 @@ public class GitLabPushTrigger extends Trigger<Job<?, ?>> {
                 return FormValidation.ok();
             }
 
-            final List<String> projectBranches;
+            final URIish sourceRepository;
             try {
-                projectBranches = this.getProjectBranches(project);
+                sourceRepository = getBranchesRepository(project);
             } catch (final IllegalStateException ex) {
                 return FormValidation.warning(Messages.GitLabPushTrigger_CannotConnectToGitLab(ex.getMessage()));
-            } catch (final IOException ex) {
-                return FormValidation.warning(project.hasPermission(Jenkins.ADMINISTER) ? ex : null,
-                                              Messages.GitLabPushTrigger_CannotCheckBranches());
-            }
-
-            final Multimap<String, String> matchedSpecs = HashMultimap.create();
-            final AntPathMatcher matcher = new AntPathMatcher();
-            for (final String projectBranch : projectBranches) {
-                for (final String branchSpec : branchSpecs) {
-                    if (matcher.match(branchSpec, projectBranch)) {
-                        matchedSpecs.put(branchSpec, projectBranch);
-                    }
-                }
             }
-
-            branchSpecs.removeAll(matchedSpecs.keySet());
-            if (!branchSpecs.isEmpty()) {
-                final String unknownBranchNames = StringUtils.join(branchSpecs, ", ");
-                return FormValidation.warning(Messages.GitLabPushTrigger_BranchesNotFound(unknownBranchNames));
-            } else {
-                final int matchedBranchesCount = Sets.newHashSet(matchedSpecs.values()).size();
-                return FormValidation.ok(Messages.GitLabPushTrigger_BranchesMatched(matchedBranchesCount));
+            if (sourceRepository == null) {
+                return GitLabBranchSpecValidation.validate(branchSpecs, new ArrayList<String>());
             }
+            // answers right away, the branches are loaded in the background if needed
+            return GitLabBranchSpecValidation.instance().check(getGitlab(project), sourceRepository.toString(), branchSpecs,
+                    project.hasPermission(Jenkins.ADMINISTER));
         }
 
         public FormValidation doCheckIncludeBranchesSpec(@AncestorInPath final Job<?, ?> project, @QueryParameter final String value) {
@@ -835,6 +1045,22 @@ public class GitLabPushTrigger extends Trigger<Job<?, ?>> {
             return this.doCheckBranchesSpec(project, value);
         }
 
+        public FormValidation doCheckTargetBranchRegex(@QueryParameter final String value) {
+            return checkTargetBranchRegex(value);
+        }
+
+        static FormValidation checkTargetBranchRegex(String value) {
+            if (StringUtils.isEmpty(value)) {
+                return FormValidation.ok();
+            }
+            try {
+                Pattern.compile(value);
+                return FormValidation.ok();
+            } catch (PatternSyntaxException e) {
+                return FormValidation.error(Messages.GitLabPushTrigger_InvalidTargetBranchRegex(e.getDescription()));
+            }
+        }
+
         /**
          * Get the URL of the first declared repository in the project configuration.
          * Use this as default source repository url.
@@ -921,13 +1147,67 @@ public class GitLabPushTrigger extends Trigger<Job<?, ?>> {
             }
         }
 
-        public GitLab getGitlab() {
+        public synchronized GitLab getGitlab() {
             if (gitlab == null) {
                 gitlab = new GitLab();
             }
             return gitlab;
         }
 
+        /**
+         * @return the client of the named connection, or of the default server if the name is empty
+         *         or not configured
+         */
+        public synchronized GitLab getGitlab(String connectionName) {
+            if (connectionName == null || connectionName.isEmpty()) {
+                return getGitlab();
+            }
+            if (connectionClients == null) {
+                connectionClients = new HashMap<String, GitLab>();
+                for (GitLabConnection connection : getConnections()) {
+                    connectionClients.put(connection.getName(), new GitLab(connection));
+                }
+            }
+            GitLab client = connectionClients.get(connectionName);
+            if (client == null) {
+                LOGGER.log(Level.WARNING, "Unknown GitLab connection {0}, using the default GitLab server", connectionName);
+                return getGitlab();
+            }
+            return client;
+        }
+
+        /**
+         * @return the clients of the default server, if it is configured, and of the named connections
+         */
+        public List<GitLab> getGitlabs() {
+            List<GitLab> gitlabs = new ArrayList<GitLab>();
+            if (getGitlab().isConfigured()) {
+                gitlabs.add(getGitlab());
+            }
+            for (GitLabConnection connection : getConnections()) {
+                gitlabs.add(getGitlab(connection.getName()));
+            }
+            return gitlabs;
+        }
+
+        private GitLab getGitlab(Job<?, ?> job) {
+            GitLabPushTrigger trigger = GitLabJobContext.of(job).getTrigger();
+            return trigger == null ? getGitlab() : trigger.getGitlab();
+        }
+
+        public List<GitLabConnection> getConnections() {
+            return connections == null ? new ArrayList<GitLabConnection>() : connections;
+        }
+
+        public ListBoxModel doFillGitlabConnectionItems() {
+            ListBoxModel items = new ListBoxModel();
+            items.add("Default GitLab server", "");
+            for (GitLabConnection connection : getConnections()) {
+                items.add(connection.getName());
+            }
+            return items;
+        }
+
         public String getGitlabApiToken() {
             return gitlabApiToken;
         }
@@ -936,10 +1216,47 @@ public class GitLabPushTrigger extends Trigger<Job<?, ?>> {
             return gitlabHostUrl;
         }
 
+        /**
+         * @return the URL of the replica of the default server serving the read-only calls, empty for none
+         */
+        public String getGitlabReadHostUrl() {
+            return gitlabReadHostUrl;
+        }
+
         public boolean getIgnoreCertificateErrors() {
         	return ignoreCertificateErrors;
         }
 
+        /**
+         * @return the largest number of calls per second to the default server, 0 for no limit
+         */
+        public int getGitlabRequestsPerSecond() {
+            return gitlabRequestsPerSecond;
+        }
+
+        public boolean getCaptureWebHooks() {
+            return captureWebHooks;
+        }
+
+        public boolean getDurableWebHookQueue() {
+            return durableWebHookQueue;
+        }
+
+        /**
+         * @return the largest webhook body accepted, in KiB, 0 for no limit
+         */
+        public int getMaxWebHookBodySize() {
+            return maxWebHookBodySize;
+        }
+
+        public boolean getTruncateOversizedPushes() {
+            return truncateOversizedPushes;
+        }
+
+        public int getTruncatedPushCommits() {
+            return truncatedPushCommits;
+        }
+
         public static DescriptorImpl get() {
             return Trigger.all().get(DescriptorImpl.class);
         }
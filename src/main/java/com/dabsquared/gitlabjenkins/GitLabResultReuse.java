@@ -0,0 +1,285 @@
+package com.dabsquared.gitlabjenkins;
+
+import hudson.Extension;
+import hudson.model.InvisibleAction;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.queue.QueueListener;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.RevisionParameterAction;
+import hudson.plugins.git.extensions.impl.PreBuildMerge;
+import hudson.scm.SCM;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.triggers.SCMTriggerItem;
+import jenkins.triggers.SCMTriggerItem.SCMTriggerItems;
+import jenkins.util.Timer;
+
+import com.dabsquared.gitlabjenkins.data.ObjectAttributes;
+
+/**
+ * Result reuse: a merge request whose last commit is already being built, or has been built
+ * successfully, by a push build of the same job is linked to that build instead of being built
+ * again. The commit status and the note of the merge request are then posted from that build, when
+ * it starts and completes, or right away if it has completed already. A reused build never accepts
+ * the merge request: it did not build the merge request itself.
+ *
+ * The actions added to a queued item once it is about to start do not reach the build, so the
+ * merge requests waiting for a queued build are kept by the job and commit, and attached to the
+ * build when it starts. They are also kept in an action of the queued item, saved with the queue,
+ * which brings them to the build after a restart of Jenkins. If the queued build is cancelled,
+ * they are built on their own.
+ *
+ * Only push builds are reused, and only for jobs that do not merge the target branch before
+ * building, since their merge request builds would not build the same tree.
+ */
+public final class GitLabResultReuse {
+
+    private static final Logger LOGGER = Logger.getLogger(GitLabResultReuse.class.getName());
+
+    /** how many of the newest builds are checked for a running build of the commit */
+    private static final int RUNNING_BUILDS_CHECKED = 20;
+
+    /** the merge requests waiting for a queued build, by job and commit */
+    private static final Map<String, List<GitLabMergeRequest>> WAITING = new HashMap<String, List<GitLabMergeRequest>>();
+
+    private GitLabResultReuse() {
+    }
+
+    /**
+     * @return true if the merge request has been linked to a queued, running or successful build of
+     *         its last commit, false if it has to be built
+     */
+    static boolean link(GitLabPushTrigger trigger, Job<?, ?> job, final GitLabMergeRequest mergeRequest) {
+        if (mergeRequest.getObjectAttribute().getLastCommit() == null || mergesBeforeBuilding(job)) {
+            return false;
+        }
+        final String commitSHA1 = mergeRequest.getObjectAttribute().getLastCommit().getId();
+
+        if (job instanceof Queue.Task) {
+            final Queue.Task task = (Queue.Task) job;
+            final boolean[] queued = { false };
+            final String jobName = job.getFullName();
+            // under the lock of the queue, the item cannot start before the merge request waits for it
+            Queue.withLock(new Runnable() {
+                public void run() {
+                    for (Queue.Item item : Queue.getInstance().getItems(task)) {
+                        if (isBuildOf(item.getAction(RevisionParameterAction.class), commitSHA1)) {
+                            waitFor(jobName, commitSHA1, mergeRequest);
+                            actionOf(item).add(mergeRequest);
+                            queued[0] = true;
+                            return;
+                        }
+                    }
+                }
+            });
+            if (queued[0]) {
+                return true;
+            }
+        }
+
+        int checked = 0;
+        for (Run<?, ?> build : job.getBuilds()) {
+            if (checked++ >= RUNNING_BUILDS_CHECKED) {
+                break;
+            }
+            if (build.isBuilding() && isBuildOf(build.getAction(RevisionParameterAction.class), commitSHA1)) {
+                link(trigger, build, mergeRequest);
+                return true;
+            }
+        }
+
+        Run<?, ?> build = GitLabBuildHistory.getBuildBySHA1(job, commitSHA1, false);
+        if (build != null && !build.isBuilding() && build.getResult() == Result.SUCCESS) {
+            link(trigger, build, mergeRequest);
+            return true;
+        }
+        return false;
+    }
+
+    private static void link(GitLabPushTrigger trigger, Run<?, ?> build, GitLabMergeRequest mergeRequest) {
+        Action action = actionOf(build);
+        action.add(mergeRequest);
+        if (build.isBuilding()) {
+            trigger.onStartedMergeRequest(build, mergeRequest);
+        } else {
+            try {
+                build.save();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not save the merge requests reusing " + build, e);
+            }
+        }
+        // the build may have completed in the meantime, without reporting to this merge request
+        if (!build.isBuilding()) {
+            for (GitLabMergeRequest unreported : action.takeUnreported()) {
+                trigger.onCompleteMergeRequest(build, unreported, true);
+            }
+        }
+    }
+
+    /**
+     * Attaches the merge requests waiting for the build, called when it starts.
+     */
+    static void attach(Run<?, ?> build) {
+        RevisionParameterAction revision = build.getAction(RevisionParameterAction.class);
+        if (revision == null || revision.commit == null) {
+            return;
+        }
+        List<GitLabMergeRequest> waiting = takeWaiting(build.getParent().getFullName(), revision.commit);
+        if (!waiting.isEmpty()) {
+            Action action = actionOf(build);
+            for (GitLabMergeRequest mergeRequest : waiting) {
+                action.add(mergeRequest);
+            }
+        }
+    }
+
+    static void waitFor(String jobName, String commitSHA1, GitLabMergeRequest mergeRequest) {
+        synchronized (WAITING) {
+            String key = jobName + "@" + commitSHA1;
+            List<GitLabMergeRequest> waiting = WAITING.get(key);
+            if (waiting == null) {
+                waiting = new ArrayList<GitLabMergeRequest>();
+                WAITING.put(key, waiting);
+            }
+            waiting.add(mergeRequest);
+        }
+    }
+
+    /**
+     * @return the merge requests waiting for a build of the commit, each returned only once
+     */
+    static List<GitLabMergeRequest> takeWaiting(String jobName, String commitSHA1) {
+        synchronized (WAITING) {
+            List<GitLabMergeRequest> waiting = WAITING.remove(jobName + "@" + commitSHA1);
+            return waiting == null ? Collections.<GitLabMergeRequest> emptyList() : waiting;
+        }
+    }
+
+    /**
+     * Builds on their own the merge requests waiting for a queued build that got cancelled.
+     */
+    @Extension
+    public static class CancelledListener extends QueueListener {
+        @Override
+        public void onLeft(Queue.LeftItem item) {
+            if (!item.isCancelled() || !(item.task instanceof Job)) {
+                return;
+            }
+            RevisionParameterAction revision = item.getAction(RevisionParameterAction.class);
+            if (revision == null || revision.commit == null) {
+                return;
+            }
+            final Job<?, ?> job = (Job<?, ?>) item.task;
+            // the ones kept by the item alone were queued before a restart
+            final Action action = new Action();
+            Action queued = item.getAction(Action.class);
+            if (queued != null) {
+                for (GitLabMergeRequest mergeRequest : queued.getMergeRequests()) {
+                    action.add(mergeRequest);
+                }
+            }
+            for (GitLabMergeRequest mergeRequest : takeWaiting(job.getFullName(), revision.commit)) {
+                action.add(mergeRequest);
+            }
+            final List<GitLabMergeRequest> waiting = action.getMergeRequests();
+            if (waiting.isEmpty()) {
+                return;
+            }
+            // out of the lock of the queue, which scheduling the builds takes again
+            Timer.get().submit(new Runnable() {
+                public void run() {
+                    GitLabPushTrigger trigger = GitLabJobContext.of(job).getTrigger();
+                    if (trigger == null) {
+                        return;
+                    }
+                    for (GitLabMergeRequest mergeRequest : waiting) {
+                        LOGGER.log(Level.INFO, "The build reused by merge request !{0} of {1} was cancelled",
+                                new Object[] { mergeRequest.getObjectAttribute().getIid(), job.getFullName() });
+                        trigger.onPost(mergeRequest);
+                    }
+                }
+            });
+        }
+    }
+
+    private static boolean isBuildOf(RevisionParameterAction revision, String commitSHA1) {
+        return revision != null && commitSHA1.equals(revision.commit);
+    }
+
+    private static boolean mergesBeforeBuilding(Job<?, ?> job) {
+        SCMTriggerItem item = SCMTriggerItems.asSCMTriggerItem(job);
+        if (item == null) {
+            return true;
+        }
+        for (SCM scm : item.getSCMs()) {
+            if (scm instanceof GitSCM && ((GitSCM) scm).getExtensions().get(PreBuildMerge.class) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Action actionOf(hudson.model.Actionable actionable) {
+        synchronized (actionable) {
+            Action action = actionable.getAction(Action.class);
+            if (action == null) {
+                action = new Action();
+                actionable.addAction(action);
+            }
+            return action;
+        }
+    }
+
+    /**
+     * The merge requests reusing the result of a build, and how many of them have been told about
+     * the result.
+     */
+    public static final class Action extends InvisibleAction {
+        private final List<GitLabMergeRequest> mergeRequests = new ArrayList<GitLabMergeRequest>();
+        private int reported;
+
+        /**
+         * Adds the merge request, unless it is there already: the build gets the merge requests
+         * waiting for it both from the queued item and from {@link GitLabResultReuse#takeWaiting}.
+         */
+        synchronized void add(GitLabMergeRequest mergeRequest) {
+            for (GitLabMergeRequest added : mergeRequests) {
+                if (isSame(added, mergeRequest)) {
+                    return;
+                }
+            }
+            mergeRequests.add(mergeRequest);
+        }
+
+        private static boolean isSame(GitLabMergeRequest one, GitLabMergeRequest other) {
+            ObjectAttributes a = one.getObjectAttribute();
+            ObjectAttributes b = other.getObjectAttribute();
+            return a.getIid() != null && a.getIid().equals(b.getIid())
+                    && (a.getTargetProjectId() == null ? b.getTargetProjectId() == null : a.getTargetProjectId().equals(b.getTargetProjectId()));
+        }
+
+        public synchronized List<GitLabMergeRequest> getMergeRequests() {
+            return Collections.unmodifiableList(new ArrayList<GitLabMergeRequest>(mergeRequests));
+        }
+
+        /**
+         * @return the merge requests not told about the result yet, each returned only once
+         */
+        synchronized List<GitLabMergeRequest> takeUnreported() {
+            List<GitLabMergeRequest> unreported = new ArrayList<GitLabMergeRequest>(mergeRequests.subList(reported, mergeRequests.size()));
+            reported = mergeRequests.size();
+            return unreported;
+        }
+    }
+}
@@ -5,8 +5,6 @@ import hudson.model.Run;
 import hudson.model.AbstractBuild;
 import hudson.model.TaskListener;
 import hudson.model.listeners.RunListener;
-import hudson.triggers.Trigger;
-import jenkins.model.ParameterizedJobMixIn;
 
 import javax.annotation.Nonnull;
 
@@ -14,6 +12,8 @@ import javax.annotation.Nonnull;
  * RunListener that will be called when a build starts and completes.
  * Will lookup GitLabPushTrigger and call onStarted and onCompleted methods
  * in order to have access to the build and set properties.
+ * Attaches the merge requests waiting for the build, see {@link GitLabResultReuse}.
+ * Also wakes up the status requests waiting for a build of the job, see {@link GitLabStatusWatchers}.
  */
 @Extension
 public class GitLabRunListener extends RunListener<Run> {
@@ -24,26 +24,25 @@ public class GitLabRunListener extends RunListener<Run> {
         if (trig != null) {
             trig.onCompleted(run);
         }
+        GitLabStatusWatchers.fireChanged(run.getParent());
         super.onCompleted(run, listener);
     }
 
     @Override
     public void onStarted(Run run, TaskListener listener) {
+        GitLabResultReuse.attach(run);
         GitLabPushTrigger trig = getTrigger(run);
         if (trig != null) {
             trig.onStarted(run);
         }
+        GitLabStatusWatchers.fireChanged(run.getParent());
         super.onStarted(run, listener);
     }
 
 
     private GitLabPushTrigger getTrigger(Run run) {
         if (run instanceof AbstractBuild) {
-            ParameterizedJobMixIn.ParameterizedJob p = ((AbstractBuild) run).getProject();
-            for (Trigger t : p.getTriggers().values()) {
-                if (t instanceof GitLabPushTrigger)
-                    return (GitLabPushTrigger) t;
-            }
+            return GitLabJobContext.of(((AbstractBuild<?, ?>) run).getProject()).getTrigger();
         }
 
         return null;
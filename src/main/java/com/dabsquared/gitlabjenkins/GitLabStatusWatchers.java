@@ -0,0 +1,255 @@
+package com.dabsquared.gitlabjenkins;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.SCMListener;
+import hudson.scm.SCM;
+import hudson.scm.SCMRevisionState;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import jenkins.util.Timer;
+import net.sf.json.JSONObject;
+
+/**
+ * Long polling of <code>status.json</code>: a request with the <code>wait</code> parameter whose
+ * <code>If-None-Match</code> is the current ETag of the commit status is held until the status
+ * changes or the wait times out, instead of being answered with 304 right away.
+ *
+ * Waiting requests are woken up by the builds of their job starting, checking out and
+ * completing, see {@link GitLabRunListener}. They are Servlet 3 asynchronous requests, so no
+ * thread is held while waiting, and at most {@link #MAX_WAITERS} wait at a time. Containers
+ * without asynchronous requests answer right away, as without <code>wait</code>: holding their
+ * threads would starve the rest of Jenkins.
+ */
+public final class GitLabStatusWatchers {
+
+    private static final Logger LOGGER = Logger.getLogger(GitLabStatusWatchers.class.getName());
+
+    static final int MAX_WAIT_SECONDS = Integer.getInteger(GitLabStatusWatchers.class.getName() + ".maxWaitSeconds", 60);
+    static final int MAX_WAITERS = Integer.getInteger(GitLabStatusWatchers.class.getName() + ".maxWaiters", 1000);
+
+    private static final ConcurrentMap<String, Queue<Watcher>> WATCHERS = new ConcurrentHashMap<String, Queue<Watcher>>();
+    private static final AtomicInteger COUNT = new AtomicInteger();
+
+    private GitLabStatusWatchers() {
+    }
+
+    /**
+     * @return the wait requested by the <code>wait</code> parameter, in milliseconds, capped at
+     *         {@link #MAX_WAIT_SECONDS}
+     */
+    static long waitMillis(HttpServletRequest req) {
+        String wait = req.getParameter("wait");
+        if (wait == null) {
+            return 0;
+        }
+        try {
+            return TimeUnit.SECONDS.toMillis(Math.max(0, Math.min(MAX_WAIT_SECONDS, Integer.parseInt(wait))));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return true if the <code>If-None-Match</code> header matches the ETag: equal to it, weak or
+     *         not, equal to one in a list of them, or <code>*</code>
+     */
+    static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String opaqueTag = opaqueTag(etag);
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*") || opaqueTag.equals(opaqueTag(candidate))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String opaqueTag(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    /**
+     * Waits asynchronously for the status of the commit to change from the given ETag and writes
+     * it, or writes 304 once the wait is over.
+     *
+     * @param completed run once the request is answered, before it is completed
+     * @return true if the request is answered asynchronously, false if the container does not
+     *         support it or there are too many waiting requests already, and the caller has to
+     *         answer it
+     */
+    static boolean await(Job<?, ?> job, String commitSHA1, String etag, long waitMillis,
+            HttpServletRequest req, Runnable completed) {
+        if (COUNT.incrementAndGet() > MAX_WAITERS) {
+            COUNT.decrementAndGet();
+            return false;
+        }
+        // the timeout is handled by the watcher, so it answers with 304
+        AsyncContext async = GitLabWebHookExecutor.startAsync(req);
+        if (async == null) {
+            COUNT.decrementAndGet();
+            return false;
+        }
+        AsyncWatcher watcher = new AsyncWatcher(job, commitSHA1, etag, async, completed);
+        add(watcher);
+        // the build may have changed between the lookup of the caller and the registration
+        watcher.changed();
+        watcher.scheduleTimeout(waitMillis);
+        return true;
+    }
+
+    /**
+     * Wakes up the requests waiting for a change of status of a build of the job.
+     */
+    static void fireChanged(Job<?, ?> job) {
+        Queue<Watcher> watchers = WATCHERS.get(job.getFullName());
+        if (watchers != null) {
+            for (Watcher watcher : watchers) {
+                watcher.changed();
+            }
+        }
+    }
+
+    static int getWaitingCount() {
+        return COUNT.get();
+    }
+
+    private static void add(Watcher watcher) {
+        Queue<Watcher> watchers = WATCHERS.get(watcher.jobName);
+        if (watchers == null) {
+            Queue<Watcher> created = new ConcurrentLinkedQueue<Watcher>();
+            watchers = WATCHERS.putIfAbsent(watcher.jobName, created);
+            if (watchers == null) {
+                watchers = created;
+            }
+        }
+        watchers.add(watcher);
+    }
+
+    private static void remove(Watcher watcher) {
+        Queue<Watcher> watchers = WATCHERS.get(watcher.jobName);
+        if (watchers != null && watchers.remove(watcher)) {
+            COUNT.decrementAndGet();
+        }
+    }
+
+    /**
+     * A request waiting for the status of a commit to change.
+     */
+    private abstract static class Watcher {
+        final Job<?, ?> job;
+        final String jobName;
+        final String commitSHA1;
+        final String etag;
+
+        Watcher(Job<?, ?> job, String commitSHA1, String etag) {
+            this.job = job;
+            this.jobName = job.getFullName();
+            this.commitSHA1 = commitSHA1;
+            this.etag = etag;
+        }
+
+        abstract void changed();
+
+        /**
+         * @return the current status if its ETag is not the awaited one, null otherwise
+         */
+        JSONObject changedStatus() {
+            JSONObject status = GitLabWebHook.statusJSON(job, commitSHA1);
+            return etag.equals(GitLabWebHook.etag(status)) ? null : status;
+        }
+    }
+
+    private static final class AsyncWatcher extends Watcher implements Runnable {
+        private final AsyncContext async;
+        private final Runnable completed;
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        AsyncWatcher(Job<?, ?> job, String commitSHA1, String etag, AsyncContext async, Runnable completed) {
+            super(job, commitSHA1, etag);
+            this.async = async;
+            this.completed = completed;
+        }
+
+        void scheduleTimeout(long waitMillis) {
+            Timer.get().schedule(new Runnable() {
+                public void run() {
+                    respond(null);
+                }
+            }, waitMillis, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        void changed() {
+            // the status is computed off the thread of the build
+            Timer.get().execute(this);
+        }
+
+        public void run() {
+            try {
+                JSONObject status = changedStatus();
+                if (status != null) {
+                    respond(status);
+                }
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Could not compute the status of " + commitSHA1 + " in " + jobName, e);
+            }
+        }
+
+        private void respond(JSONObject status) {
+            if (!done.compareAndSet(false, true)) {
+                return;
+            }
+            remove(this);
+            try {
+                HttpServletResponse rsp = (HttpServletResponse) async.getResponse();
+                if (status == null) {
+                    GitLabWebHook.writeNotModified(rsp, etag);
+                } else {
+                    GitLabWebHook.writeStatus(rsp, status);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Could not answer a waiting status request, the client is probably gone", e);
+            } finally {
+                try {
+                    completed.run();
+                } finally {
+                    async.complete();
+                }
+            }
+        }
+    }
+
+    /**
+     * The status of a commit becomes "running" once the build has checked it out.
+     */
+    @Extension
+    public static class CheckoutListener extends SCMListener {
+        @Override
+        public void onCheckout(Run<?, ?> build, SCM scm, FilePath workspace, TaskListener listener, File changelogFile,
+                SCMRevisionState pollingBaseline) throws Exception {
+            fireChanged(build.getParent());
+        }
+    }
+}
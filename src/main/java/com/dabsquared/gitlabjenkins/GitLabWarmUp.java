@@ -0,0 +1,93 @@
+package com.dabsquared.gitlabjenkins;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Job;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Fills the caches of the plugin right after startup instead of on the first webhooks and status
+ * requests: connects the GitLab client, loads the project map of the
+ * {@link GitLabProjectBranchesService} and builds the {@link GitLabBuildIndex} of every job with a
+ * {@link GitLabPushTrigger}.
+ *
+ * Runs in the background once the jobs are loaded, so Jenkins does not start any later. The build
+ * indexes are built by the threads of {@link GitLabBuildIndex}, which bounds the disk load.
+ * Disabled with the system property <code>com.dabsquared.gitlabjenkins.GitLabWarmUp.disabled</code>.
+ */
+public final class GitLabWarmUp {
+
+    private static final Logger LOGGER = Logger.getLogger(GitLabWarmUp.class.getName());
+
+    static final boolean DISABLED = Boolean.getBoolean(GitLabWarmUp.class.getName() + ".disabled");
+
+    private GitLabWarmUp() {
+    }
+
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void warmUp() {
+        if (DISABLED) {
+            return;
+        }
+        ExecutorService executor = Executors.newSingleThreadExecutor(
+                new NamingThreadFactory(new DaemonThreadFactory(), "GitLab warm-up"));
+        executor.execute(new Runnable() {
+            public void run() {
+                long started = System.nanoTime();
+                connect();
+                int jobs = indexBuilds();
+                LOGGER.log(Level.INFO, "Warmed up the GitLab caches in {0}ms, indexing the builds of {1} jobs",
+                        new Object[] { (System.nanoTime() - started) / 1000000, jobs });
+            }
+        });
+        executor.shutdown();
+    }
+
+    private static void connect() {
+        GitLabPushTrigger.DescriptorImpl descriptor = GitLabPushTrigger.getDesc();
+        if (descriptor != null) {
+            connect(descriptor.getGitlabs());
+        }
+    }
+
+    /**
+     * Connects the clients and loads their project maps, a server that cannot be reached does not
+     * keep the others from being warmed up.
+     */
+    static void connect(Iterable<GitLab> gitlabs) {
+        for (GitLab gitlab : gitlabs) {
+            try {
+                gitlab.instance();
+                gitlab.getBranchesService().refreshGitLabProjectMap(gitlab);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not load the GitLab projects at startup, they will be loaded on first use", e);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Could not connect to GitLab at startup", e);
+            }
+        }
+    }
+
+    private static int indexBuilds() {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return 0;
+        }
+        int jobs = 0;
+        for (Job<?, ?> job : jenkins.getAllItems(Job.class)) {
+            if (GitLabJobContext.of(job).getTrigger() != null) {
+                GitLabBuildIndex.schedule(job);
+                jobs++;
+            }
+        }
+        return jobs;
+    }
+}
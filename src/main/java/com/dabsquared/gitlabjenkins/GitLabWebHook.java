@@ -4,48 +4,48 @@ import com.dabsquared.gitlabjenkins.data.LastCommit;
 import com.dabsquared.gitlabjenkins.data.ObjectAttributes;
 import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
+import com.google.gson.JsonParseException;
 import hudson.Extension;
 import hudson.model.*;
-import hudson.plugins.git.Branch;
 import hudson.plugins.git.GitSCM;
-import hudson.plugins.git.util.Build;
-import hudson.plugins.git.util.BuildData;
-import hudson.plugins.git.util.MergeRecord;
 import hudson.scm.SCM;
 import hudson.security.ACL;
 import hudson.security.csrf.CrumbExclusion;
-import hudson.triggers.Trigger;
 import hudson.util.HttpResponses;
-import hudson.util.RunList;
 import jenkins.model.Jenkins;
-import jenkins.model.ParameterizedJobMixIn;
 import jenkins.triggers.SCMTriggerItem;
 import jenkins.triggers.SCMTriggerItem.SCMTriggerItems;
 import net.sf.json.JSONObject;
 import org.acegisecurity.Authentication;
 import org.acegisecurity.context.SecurityContextHolder;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
-import org.eclipse.jgit.lib.ObjectId;
 import org.gitlab.api.models.GitlabBranch;
 import org.gitlab.api.models.GitlabCommit;
-import org.gitlab.api.models.GitlabMergeRequest;
 import org.gitlab.api.models.GitlabProject;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.io.SequenceInputStream;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -74,9 +74,36 @@ public class GitLabWebHook implements UnprotectedRootAction {
     }
 
     public void getDynamic(final String projectName, final StaplerRequest req, StaplerResponse res) {
+        final RequestContext context = new RequestContext();
+        context.arrivalTime = System.currentTimeMillis();
+        context.started = System.nanoTime();
+        context.trace = GitLabWebHookTrace.begin(context.arrivalTime, projectName + req.getRestOfPath());
+        try {
+            handle(projectName, req, res, context);
+        } finally {
+            if (context.async) {
+                // finished by the thread completing the request
+                GitLabWebHookTrace.suspend();
+            } else {
+                finish(req, context);
+            }
+        }
+    }
+
+    private static void finish(StaplerRequest req, RequestContext context) {
+        long duration = System.nanoTime() - context.started;
+        GitLabMetrics.recordRequest(context.event, context.outcome, duration);
+        context.trace.end(context.jobName, context.event, context.outcome, duration);
+        if (GitLabWebHookJournal.isEnabled()) {
+            GitLabWebHookJournal.instance().append(req, context.body, context.arrivalTime, duration);
+        }
+    }
+
+    private void handle(final String projectName, final StaplerRequest req, StaplerResponse res, RequestContext context) {
         LOGGER.log(Level.INFO, "WebHook called with url: {0}", req.getRestOfPath());
         final Iterator<String> restOfPathParts = Splitter.on('/').omitEmptyStrings().split(req.getRestOfPath()).iterator();
         final Job<?, ?>[] projectHolder = new Job<?, ?>[] { null };
+        final long resolutionStarted = System.nanoTime();
         ACL.impersonate(ACL.SYSTEM, new Runnable() {
 
             public void run() {
@@ -93,11 +120,15 @@ public class GitLabWebHook implements UnprotectedRootAction {
             }
 
         });
+        GitLabMetrics.recordJobResolution(System.nanoTime() - resolutionStarted);
+        GitLabWebHookTrace.record(GitLabWebHookTrace.Stage.JOB_LOOKUP, resolutionStarted);
 
         final Job<?, ?> project = projectHolder[0];
         if (project == null) {
+            context.outcome = GitLabMetrics.Outcome.NOT_FOUND;
             throw HttpResponses.notFound();
         }
+        context.jobName = project.getFullName();
 
         final List<String> paths = new ArrayList<String>();
         while (restOfPathParts.hasNext()) {
@@ -127,35 +158,36 @@ public class GitLabWebHook implements UnprotectedRootAction {
 
         //TODO: Check token authentication with project id. For now we are not using this.
 
-        StringWriter writer = new StringWriter();
-        try {
-            IOUtils.copy(req.getInputStream(), writer, "UTF-8");
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        String theString = writer.toString();
+        long readStarted = System.nanoTime();
+        String theString = readBody(req, context);
+        GitLabWebHookTrace.record(GitLabWebHookTrace.Stage.BODY_READ, readStarted);
+        context.body = theString;
 
         if(paths.size() == 0) {
         	if (req.getParameter("ref") != null){
         		// support /project/PROJECT_NAME?ref=BRANCH_NAME
         		// link on project activity page - build status
-        		Run build = this.getBuildByBranch(project, req.getParameter("ref"));
+        		context.event = GitLabMetrics.Event.REDIRECT;
+        		long lookupStarted = System.nanoTime();
+        		Run build = GitLabBuildHistory.getBuildByBranch(project, req.getParameter("ref"));
+        		GitLabWebHookTrace.record(GitLabWebHookTrace.Stage.BUILD_LOOKUP, lookupStarted);
         		redirectToBuildPage(res, build);
         	} else {
-        		this.generateBuild(theString, project, req, res);           
+        		this.build(theString, project, req, res, context);
         	}
-        	throw HttpResponses.ok();
+        	throw context.ok();
         }
 
         String lastPath = paths.get(paths.size()-1);
         String firstPath = paths.get(0);
         if(lastPath.equals("status.json") && !firstPath.equals("!builds")) {
+            context.event = GitLabMetrics.Event.STATUS_JSON;
             String commitSHA1 = paths.get(1);
-            this.generateStatusJSON(commitSHA1, project, req, res);
+            this.generateStatusJSON(commitSHA1, project, req, res, context);
         } else if(lastPath.equals("build") || (lastPath.equals("status.json") && firstPath.equals("!builds"))) {
-            this.generateBuild(theString, project, req, res);
+            this.build(theString, project, req, res, context);
         } else if(lastPath.equals("status.png")) {
+            context.event = GitLabMetrics.Event.STATUS_PNG;
             String branch = req.getParameter("ref");
             String commitSHA1 = req.getParameter("sha1");
             try {
@@ -168,14 +200,255 @@ public class GitLabWebHook implements UnprotectedRootAction {
                 throw HttpResponses.error(500,"Could not generate an image.");
             }
         } else if((firstPath.equals("commits") || firstPath.equals("builds")) && !lastPath.equals("status.json")) {
-            Run build = this.getBuildBySHA1(project, lastPath, true);
+            context.event = GitLabMetrics.Event.REDIRECT;
+            long lookupStarted = System.nanoTime();
+            Run build = GitLabBuildHistory.getBuildBySHA1(project, lastPath, true);
+            GitLabWebHookTrace.record(GitLabWebHookTrace.Stage.BUILD_LOOKUP, lookupStarted);
             redirectToBuildPage(res, build);
         } else{
             LOGGER.warning("Dynamic request mot met: First path: '" + firstPath + "' late path: '" + lastPath + "'");
         }
 
-        throw HttpResponses.ok();
+        throw context.ok();
+
+    }
 
+    /**
+     * Hands a push or merge request event to the trigger of the job, through the
+     * {@link GitLabWebHookQueue} if it is enabled, otherwise on the {@link GitLabWebHookExecutor}
+     * when the container supports asynchronous requests. Either way, with the executor enabled
+     * the event waits for its turn in the {@link GitLabWebHookAdmission}.
+     */
+    private void build(String data, Job project, StaplerRequest req, StaplerResponse rsp, RequestContext context) {
+        GitLabWebHookAdmission.Ticket ticket = null;
+        if (GitLabWebHookExecutor.isEnabled()) {
+            // unless the event is queued, the request thread waits for it without asynchronous requests
+            boolean blocking = !GitLabWebHookQueue.isEnabled() && !GitLabWebHookExecutor.isAsyncSupported(req);
+            ticket = admit(data, project, blocking, context);
+        }
+        if (GitLabWebHookQueue.isEnabled()) {
+            try {
+                GitLabWebHookQueue.instance().enqueue(project.getFullName(), data, ticket);
+                context.event = eventOf(req);
+                context.outcome = GitLabMetrics.Outcome.QUEUED;
+                return;
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not queue the webhook event, processing it right away", e);
+            }
+        }
+        if (ticket != null) {
+            AsyncContext async = GitLabWebHookExecutor.startAsync(req);
+            if (async != null) {
+                processAsync(data, project, req, async, ticket, context);
+            }
+            processOnExecutor(data, project, ticket, context);
+            return;
+        }
+        generateBuild(data, project, req, rsp, context);
+    }
+
+    private static GitLabWebHookAdmission.Ticket admit(String data, Job project, boolean blocking, RequestContext context) {
+        try {
+            return GitLabWebHookAdmission.instance().admit(
+                    GitLabWebHookAdmission.projectKey(data, project.getFullName()), project.getFullName(), blocking);
+        } catch (RejectedExecutionException e) {
+            LOGGER.log(Level.WARNING, "Refusing the webhook event of {0}: {1}", new Object[] { project.getFullName(), e.getMessage() });
+            context.outcome = GitLabMetrics.Outcome.OVERLOADED;
+            throw new HttpResponses.HttpResponseException() {
+                public void generateResponse(StaplerRequest req, StaplerResponse rsp, Object node) throws IOException {
+                    rsp.setHeader("Retry-After", String.valueOf(GitLabWebHookAdmission.RETRY_AFTER_SECONDS));
+                    rsp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many webhook events waiting");
+                }
+            };
+        }
+    }
+
+    /**
+     * Processes the event on the {@link GitLabWebHookExecutor} in its turn, waiting for it in the
+     * request thread, for containers without asynchronous requests.
+     */
+    private void processOnExecutor(final String data, final Job project, GitLabWebHookAdmission.Ticket ticket,
+            final RequestContext context) {
+        FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+            public void run() {
+                context.trace.resume();
+                try {
+                    generateBuild(data, project, null, null, context);
+                } finally {
+                    GitLabWebHookTrace.suspend();
+                }
+            }
+        }, null);
+        ticket.start(task);
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw HttpResponses.error(500, "Interrupted while processing the webhook event");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Processes the event on the {@link GitLabWebHookExecutor} in its turn, which answers and completes the request.
+     */
+    private void processAsync(final String data, final Job project, final StaplerRequest req, final AsyncContext async,
+            GitLabWebHookAdmission.Ticket ticket, final RequestContext context) {
+        context.async = true;
+        // created before handing over, the context belongs to the executor afterwards
+        HttpResponses.HttpResponseException handled = context.handled();
+        ticket.start(GitLabWebHookExecutor.completing(async, project.getFullName(), new Runnable() {
+            public void run() {
+                context.trace.resume();
+                context.outcome = GitLabMetrics.Outcome.ERROR;
+                generateBuild(data, project, null, null, context);
+            }
+        }, new Runnable() {
+            public void run() {
+                finish(req, context);
+            }
+        }));
+        throw handled;
+    }
+
+    /**
+     * The event kind from the header GitLab sends since 7.x, to avoid parsing queued events twice.
+     */
+    private static GitLabMetrics.Event eventOf(StaplerRequest req) {
+        String event = req.getHeader("X-Gitlab-Event");
+        if ("Merge Request Hook".equals(event)) {
+            return GitLabMetrics.Event.MERGE_REQUEST;
+        } else if ("Push Hook".equals(event)) {
+            return GitLabMetrics.Event.PUSH;
+        }
+        return GitLabMetrics.Event.UNKNOWN;
+    }
+
+    /**
+     * Processes an event taken from the {@link GitLabWebHookQueue}.
+     */
+    static void processQueued(final String jobName, final String data) {
+        final Job<?, ?>[] projectHolder = new Job<?, ?>[] { null };
+        ACL.impersonate(ACL.SYSTEM, new Runnable() {
+            public void run() {
+                Jenkins jenkins = Jenkins.getInstance();
+                if (jenkins != null) {
+                    projectHolder[0] = jenkins.getItemByFullName(jobName, Job.class);
+                }
+            }
+        });
+        if (projectHolder[0] == null) {
+            LOGGER.log(Level.WARNING, "Dropping the queued webhook event of {0}, the job does not exist anymore", jobName);
+            return;
+        }
+        Jenkins.getInstance().getExtensionList(RootAction.class).get(GitLabWebHook.class)
+                .generateBuild(data, projectHolder[0], null, null, new RequestContext());
+    }
+
+    /**
+     * Reads the request body, enforcing the maximum size of the global configuration while the
+     * body is streamed so an oversized request never gets buffered completely.
+     *
+     * Past the limit, the request is rejected with 413, or if truncation is enabled the rest of
+     * the stream is parsed as a push event keeping only the first and last commits, and the body
+     * becomes that smaller push.
+     */
+    private String readBody(StaplerRequest req, RequestContext context) {
+        GitLabPushTrigger.DescriptorImpl descriptor = GitLabPushTrigger.getDesc();
+        long maxBodySize = descriptor == null ? 0 : descriptor.getMaxWebHookBodySize() * 1024L;
+        boolean truncate = descriptor != null && descriptor.getTruncateOversizedPushes();
+        if (maxBodySize > 0 && !truncate && req.getContentLength() > maxBodySize) {
+            throw tooLarge(context, maxBodySize);
+        }
+
+        BodyBuffer buffer = new BodyBuffer();
+        try {
+            InputStream in = req.getInputStream();
+            byte[] chunk = new byte[8192];
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                buffer.write(chunk, 0, read);
+                if (maxBodySize > 0 && buffer.size() > maxBodySize) {
+                    if (!truncate) {
+                        throw tooLarge(context, maxBodySize);
+                    }
+                    return truncatePush(new SequenceInputStream(buffer.toInputStream(), in),
+                            descriptor.getTruncatedPushCommits(), context, maxBodySize);
+                }
+            }
+            return buffer.toString("UTF-8");
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not read the webhook request", e);
+            throw HttpResponses.error(400, "Could not read the request body");
+        }
+    }
+
+    private String truncatePush(InputStream body, int keptCommits, RequestContext context, long maxBodySize) throws IOException {
+        try {
+            GitLabPushRequest push = GitLabPayloadAdapters.readTruncatedPush(
+                    new BufferedReader(new InputStreamReader(body, "UTF-8")), keptCommits);
+            LOGGER.log(Level.INFO, "Truncated a push of {0} commits larger than {1} bytes to {2} commits",
+                    new Object[] { push.getTotal_commits_count(), maxBodySize, push.getCommits() == null ? 0 : push.getCommits().size() });
+            GitLabMetrics.pushTruncated();
+            return GitLabPayloadAdapters.toJson(push);
+        } catch (JsonParseException e) {
+            LOGGER.log(Level.WARNING, "Could not truncate an oversized webhook request: {0}", e.getMessage());
+            throw tooLarge(context, maxBodySize);
+        }
+    }
+
+    private static HttpResponses.HttpResponseException tooLarge(RequestContext context, long maxBodySize) {
+        context.outcome = GitLabMetrics.Outcome.TOO_LARGE;
+        return HttpResponses.error(413, "Request body larger than " + maxBodySize + " bytes");
+    }
+
+    /**
+     * Hands what has been read so far to the truncating parser without copying it.
+     */
+    private static final class BodyBuffer extends ByteArrayOutputStream {
+        InputStream toInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+
+    /**
+     * What {@link #getDynamic} did, for {@link GitLabMetrics}, the {@link GitLabWebHookTrace} and the
+     * {@link GitLabWebHookJournal}.
+     */
+    private static final class RequestContext {
+        GitLabMetrics.Event event = GitLabMetrics.Event.UNKNOWN;
+        GitLabMetrics.Outcome outcome = GitLabMetrics.Outcome.ERROR;
+        String jobName;
+        String body;
+        long arrivalTime;
+        long started;
+        GitLabWebHookTrace trace;
+        /** whether the request is completed by the {@link GitLabWebHookExecutor} */
+        boolean async;
+
+        HttpResponses.HttpResponseException ok() {
+            if (outcome == GitLabMetrics.Outcome.ERROR) {
+                outcome = GitLabMetrics.Outcome.OK;
+            }
+            return HttpResponses.ok();
+        }
+
+        /**
+         * For requests that are already answered, or are answered later by an asynchronous request.
+         */
+        HttpResponses.HttpResponseException handled() {
+            if (outcome == GitLabMetrics.Outcome.ERROR) {
+                outcome = GitLabMetrics.Outcome.OK;
+            }
+            return new HttpResponses.HttpResponseException() {
+                public void generateResponse(StaplerRequest req, StaplerResponse rsp, Object node) {
+                }
+            };
+        }
     }
 
 	private void redirectToBuildPage(StaplerResponse res, Run build) {
@@ -203,7 +476,8 @@ public class GitLabWebHook implements UnprotectedRootAction {
         return null;
     }
 
-    private void generateStatusJSON(String commitSHA1, Job project, StaplerRequest req, StaplerResponse rsp) {
+    private void generateStatusJSON(String commitSHA1, Job project, final StaplerRequest req, StaplerResponse rsp,
+            final RequestContext context) {
         SCMTriggerItem item = SCMTriggerItems.asSCMTriggerItem(project);
         GitSCM gitSCM = getGitSCM(item);
 
@@ -211,22 +485,48 @@ public class GitLabWebHook implements UnprotectedRootAction {
             throw new IllegalArgumentException("This repo does not use git.");
         }
 
-        Run mainBuild = this.getBuildBySHA1(project, commitSHA1, true);
+        JSONObject object = statusJSON(project, commitSHA1);
+        String etag = etag(object);
+
+        try {
+            if(GitLabStatusWatchers.matches(req.getHeader("If-None-Match"), etag)) {
+                // created before handing over, the context belongs to the watcher afterwards
+                HttpResponses.HttpResponseException handled = context.handled();
+                long wait = GitLabStatusWatchers.waitMillis(req);
+                context.async = true;
+                if(wait > 0 && GitLabStatusWatchers.await(project, commitSHA1, etag, wait, req, new Runnable() {
+                    public void run() {
+                        finish(req, context);
+                    }
+                })) {
+                    throw handled;
+                }
+                context.async = false;
+                writeNotModified(rsp, etag);
+                throw handled;
+            }
+            writeStatus(rsp, object);
+        } catch (IOException e) {
+            throw HttpResponses.error(500,"Could not generate response.");
+        }
+    }
+
+    /**
+     * @return the status of the newest build of the commit, "pending" if there is none
+     */
+    static JSONObject statusJSON(Job<?, ?> project, String commitSHA1) {
+        long lookupStarted = System.nanoTime();
+        Run mainBuild = GitLabBuildHistory.getBuildBySHA1(project, commitSHA1, true);
+        GitLabWebHookTrace.record(GitLabWebHookTrace.Stage.BUILD_LOOKUP, lookupStarted);
 
         JSONObject object = new JSONObject();
         object.put("sha", commitSHA1);
 
         if(mainBuild == null) {
-            try {
-                object.put("status", "pending");
-                this.writeJSON(rsp, object);
-                return;
-            } catch (IOException e) {
-                throw HttpResponses.error(500,"Could not generate response.");
-            }
+            object.put("status", "pending");
+            return object;
         }
 
-
         object.put("id", mainBuild.getNumber());
 
         Result res = mainBuild.getResult();
@@ -241,12 +541,26 @@ public class GitLabWebHook implements UnprotectedRootAction {
         }else {
             object.put("status", "failed");
         }
-        
-        try {
-            this.writeJSON(rsp, object);
-        } catch (IOException e) {
-            throw HttpResponses.error(500,"Could not generate response.");
-        }
+        return object;
+    }
+
+    /**
+     * The ETag of a status only depends on its content, so it changes with the build and its result.
+     */
+    static String etag(JSONObject status) {
+        return '"' + Integer.toHexString(status.toString().hashCode()) + '"';
+    }
+
+    static void writeStatus(HttpServletResponse rsp, JSONObject status) throws IOException {
+        rsp.setHeader("ETag", etag(status));
+        rsp.setHeader("Cache-Control", "no-cache");
+        writeJSON(rsp, status);
+    }
+
+    static void writeNotModified(HttpServletResponse rsp, String etag) {
+        rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        rsp.setHeader("ETag", etag);
+        rsp.setHeader("Cache-Control", "no-cache");
     }
 
 
@@ -260,11 +574,13 @@ public class GitLabWebHook implements UnprotectedRootAction {
 
         Run mainBuild = null;
 
+        long lookupStarted = System.nanoTime();
         if(branch != null) {
-            mainBuild = this.getBuildByBranch(project, branch);
+            mainBuild = GitLabBuildHistory.getBuildByBranch(project, branch);
         } else if(commitSHA1 != null) {
-            mainBuild = this.getBuildBySHA1(project, commitSHA1, false);
+            mainBuild = GitLabBuildHistory.getBuildBySHA1(project, commitSHA1, false);
         }
+        GitLabWebHookTrace.record(GitLabWebHookTrace.Stage.BUILD_LOOKUP, lookupStarted);
 
         String baseUrl = Jenkins.getInstance().getRootUrl();
         // Remove trailing slash
@@ -288,6 +604,7 @@ public class GitLabWebHook implements UnprotectedRootAction {
         }       
         Authentication old = SecurityContextHolder.getContext().getAuthentication();
         SecurityContextHolder.getContext().setAuthentication(ACL.SYSTEM);
+        long responseStarted = System.nanoTime();
         try {
             URL resourceUrl = new URL(Jenkins.getInstance().getPlugin("gitlab-plugin").getWrapper().baseResourceURL + imageUrl);
             LOGGER.info("serving image "+resourceUrl.toExternalForm());
@@ -300,6 +617,7 @@ public class GitLabWebHook implements UnprotectedRootAction {
 			throw HttpResponses.error(500,"Could not generate response.");
 		} finally {
             SecurityContextHolder.getContext().setAuthentication(old);
+            GitLabWebHookTrace.record(GitLabWebHookTrace.Stage.RESPONSE, responseStarted);
         }
 
     }
@@ -326,52 +644,66 @@ public class GitLabWebHook implements UnprotectedRootAction {
      #   }
      * @param data
      */
-    private void generateBuild(String data, Job project, StaplerRequest req, StaplerResponse rsp) {
-        JSONObject json = JSONObject.fromObject(data);
-        LOGGER.log(Level.FINE, "data: {0}", json.toString(4));
+    private void generateBuild(String data, Job project, StaplerRequest req, StaplerResponse rsp, RequestContext context) {
+        LOGGER.log(Level.FINE, "data: {0}", data);
 
-        String objectType = json.optString("object_kind");
+        String objectType = GitLabPayloadAdapters.readObjectKind(data);
 
+        boolean triggered;
         if(objectType != null && objectType.equals("merge_request")) {
-            this.generateMergeRequestBuild(data, project, req, rsp);
+            context.event = GitLabMetrics.Event.MERGE_REQUEST;
+            triggered = this.generateMergeRequestBuild(data, project, req, rsp);
         } else {
-            this.generatePushBuild(data, project, req, rsp);
+            context.event = GitLabMetrics.Event.PUSH;
+            triggered = this.generatePushBuild(data, project, req, rsp);
         }
+        context.outcome = triggered ? GitLabMetrics.Outcome.OK : GitLabMetrics.Outcome.SKIPPED;
     }
 
 
-    public void generatePushBuild(String json, Job project, StaplerRequest req, StaplerResponse rsp) {
+    /**
+     * @return true if the push has been handed to the trigger of the job
+     */
+    public boolean generatePushBuild(String json, Job project, StaplerRequest req, StaplerResponse rsp) {
+        long parseStarted = System.nanoTime();
         GitLabPushRequest request = GitLabPushRequest.create(json);
+        GitLabMetrics.recordParse(System.nanoTime() - parseStarted);
+        GitLabWebHookTrace.record(GitLabWebHookTrace.Stage.PARSE, parseStarted);
         String repositoryUrl = request.getRepository().getUrl();
         if (repositoryUrl == null) {
 
             LOGGER.log(Level.WARNING, "No repository url found.");
-            return;
+            return false;
+        }
+        String dedupKey = GitLabWebHookDedup.pushKey(project.getFullName(), request);
+        if (!GitLabWebHookDedup.instance().firstDelivery(dedupKey)) {
+            LOGGER.log(Level.INFO, "Skipping push of {0} already received", request.getAfter());
+            GitLabMetrics.duplicateDropped();
+            return false;
+        }
+        try {
+            return triggerPushBuild(request, project);
+        } catch (RuntimeException e) {
+            // GitLab delivers it again
+            GitLabWebHookDedup.instance().forget(dedupKey);
+            throw e;
         }
+    }
 
+    private boolean triggerPushBuild(GitLabPushRequest request, Job project) {
         Authentication old = SecurityContextHolder.getContext().getAuthentication();
         SecurityContextHolder.getContext().setAuthentication(ACL.SYSTEM);
         try {
 
-            GitLabPushTrigger trigger = null;
-            if (project instanceof ParameterizedJobMixIn.ParameterizedJob) {
-                ParameterizedJobMixIn.ParameterizedJob p = (ParameterizedJobMixIn.ParameterizedJob) project;
-                for (Trigger t : p.getTriggers().values()) {
-
-                    if (t instanceof GitLabPushTrigger) {
-                        trigger = (GitLabPushTrigger) t;
-                    }
-                }
-            }
-
+            GitLabPushTrigger trigger = GitLabJobContext.of(project).getTrigger();
             if (trigger == null) {
-                return;
+                return false;
             }
 
             if(trigger.getCiSkip() && request.getLastCommit() != null) {
                 if(request.getLastCommit().getMessage().contains("[ci-skip]")) {
                     LOGGER.log(Level.INFO, "Skipping due to ci-skip.");
-                    return;
+                    return false;
                 }
             }
 
@@ -379,32 +711,47 @@ public class GitLabWebHook implements UnprotectedRootAction {
 
             if (!trigger.getTriggerOpenMergeRequestOnPush().equals("never")) {
             	// Fetch and build open merge requests with the same source branch
-            	buildOpenMergeRequests(trigger, request.getProject_id(), request.getRef());
+            	long openMergeRequestsStarted = System.nanoTime();
+            	buildOpenMergeRequests(trigger, request.getProject_id(), request.getRef(), pushedCommit(request));
+            	GitLabWebHookTrace.record(GitLabWebHookTrace.Stage.OPEN_MERGE_REQUESTS, openMergeRequestsStarted);
             }
+            return true;
         } finally {
             SecurityContextHolder.getContext().setAuthentication(old);
         }
     }
 
 	protected void buildOpenMergeRequests(GitLabPushTrigger trigger, Integer projectId, String projectRef) {
+		buildOpenMergeRequests(trigger, projectId, projectRef, null);
+	}
+
+	/**
+	 * Builds the open merge requests from, or also to, the pushed branch, found in the
+	 * {@link GitLabOpenMergeRequests}.
+	 *
+	 * @param pushedCommit the head of the pushed branch, or null to ask GitLab for it
+	 */
+	protected void buildOpenMergeRequests(GitLabPushTrigger trigger, Integer projectId, String projectRef, LastCommit pushedCommit) {
 		try {
-			GitLab api = new GitLab();
-			List<GitlabMergeRequest> mergeRequests = api.instance().getOpenMergeRequests(projectId);
-
-			for (org.gitlab.api.models.GitlabMergeRequest mr : mergeRequests) {
-				if (projectRef.endsWith(mr.getSourceBranch()) || 
-                                        (trigger.getTriggerOpenMergeRequestOnPush().equals("both") && projectRef.endsWith(mr.getTargetBranch()))) {
-                                    
-                                        if (trigger.getCiSkip() && mr.getDescription().contains("[ci-skip]")) {
+			GitLab api = trigger.getGitlab();
+			String pushedBranch = projectRef.startsWith("refs/heads/") ? projectRef.substring("refs/heads/".length()) : projectRef;
+			List<ObjectAttributes> mergeRequests = GitLabOpenMergeRequests.instance().find(api, projectId, pushedBranch,
+					trigger.getTriggerOpenMergeRequestOnPush().equals("both"));
+
+			for (ObjectAttributes mr : mergeRequests) {
+                                        if (trigger.getCiSkip() && mr.getDescription() != null && mr.getDescription().contains("[ci-skip]")) {
                                             LOGGER.log(Level.INFO, "Skipping MR " + mr.getTitle() + " due to ci-skip.");
                                             continue;
                                         }
-					GitlabBranch branch = api.instance().getBranch(api.instance().getProject(projectId), mr.getSourceBranch());
-                    LastCommit lastCommit = new LastCommit();
-                    lastCommit.setId(branch.getCommit().getId());
-                    lastCommit.setMessage(branch.getCommit().getMessage());
-                    lastCommit.setUrl(GitlabProject.URL + "/" + projectId + "/repository" + GitlabCommit.URL + "/"
-                            + branch.getCommit().getId());
+                    LastCommit lastCommit = pushedBranch.equals(mr.getSourceBranch()) ? pushedCommit : mr.getLastCommit();
+                    if (lastCommit == null) {
+                        GitlabBranch branch = api.getBranch(api.getProject(projectId), mr.getSourceBranch());
+                        lastCommit = new LastCommit();
+                        lastCommit.setId(branch.getCommit().getId());
+                        lastCommit.setMessage(branch.getCommit().getMessage());
+                        lastCommit.setUrl(GitlabProject.URL + "/" + projectId + "/repository" + GitlabCommit.URL + "/"
+                                + branch.getCommit().getId());
+                    }
 
 					LOGGER.log(Level.FINE,
 							"Generating new merge trigger from "
@@ -419,20 +766,9 @@ public class GitLabWebHook implements UnprotectedRootAction {
                                     + lastCommit.getId() + "\n\n");
 					GitLabMergeRequest newReq = new GitLabMergeRequest();
 					newReq.setObject_kind("merge_request");
-					newReq.setObjectAttribute(new ObjectAttributes());
-					if (mr.getAssignee() != null)
-						newReq.getObjectAttribute().setAssignee(mr.getAssignee());
-					if (mr.getAuthor() != null)
-                        newReq.getObjectAttribute().setAuthor(mr.getAuthor());
-					newReq.getObjectAttribute().setDescription(mr.getDescription());
-					newReq.getObjectAttribute().setId(mr.getId());
-					newReq.getObjectAttribute().setIid(mr.getIid());
+					newReq.setObjectAttribute(mr);
 					newReq.getObjectAttribute().setMergeStatus(mr.getState());
-					newReq.getObjectAttribute().setSourceBranch(mr.getSourceBranch());
-					newReq.getObjectAttribute().setSourceProjectId(mr.getSourceProjectId());
-					newReq.getObjectAttribute().setTargetBranch(mr.getTargetBranch());
 					newReq.getObjectAttribute().setTargetProjectId(projectId);
-					newReq.getObjectAttribute().setTitle(mr.getTitle());
                     newReq.getObjectAttribute().setLastCommit(lastCommit);
 
 					Authentication old = SecurityContextHolder.getContext().getAuthentication();
@@ -442,7 +778,6 @@ public class GitLabWebHook implements UnprotectedRootAction {
 					} finally {
 						SecurityContextHolder.getContext().setAuthentication(old);
 					}
-				}
 			}
 		} catch (Exception e) {
 			LOGGER.warning("failed to communicate with gitlab server to determine is this is an update for a merge request: "
@@ -451,22 +786,64 @@ public class GitLabWebHook implements UnprotectedRootAction {
 		}
 	}
 
-    public void generateMergeRequestBuild(String json, Job project, StaplerRequest req, StaplerResponse rsp) {
+	/**
+	 * @return the head of the pushed branch, null if the push deleted it or has no commits
+	 */
+	private static LastCommit pushedCommit(GitLabPushRequest request) {
+		if (request.getLastCommit() == null || request.getAfter() == null || request.getAfter().matches("0+")) {
+			return null;
+		}
+		LastCommit lastCommit = new LastCommit();
+		lastCommit.setId(request.getAfter());
+		lastCommit.setMessage(request.getLastCommit().getMessage());
+		lastCommit.setUrl(request.getLastCommit().getUrl());
+		return lastCommit;
+	}
+
+    /**
+     * @return true if the merge request has been handed to the trigger of the job
+     */
+    public boolean generateMergeRequestBuild(String json, Job project, StaplerRequest req, StaplerResponse rsp) {
+        long parseStarted = System.nanoTime();
         GitLabMergeRequest request = GitLabMergeRequest.create(json);
+        GitLabMetrics.recordParse(System.nanoTime() - parseStarted);
+        GitLabWebHookTrace.record(GitLabWebHookTrace.Stage.PARSE, parseStarted);
+        GitLabPushTrigger trigger = GitLabJobContext.of(project).getTrigger();
+        if (trigger != null) {
+            GitLabOpenMergeRequests.instance().update(trigger.getGitlab(), request.getObjectAttribute());
+        }
         if("closed".equals(request.getObjectAttribute().getState())) {
             LOGGER.log(Level.INFO, "Closed Merge Request, no build started");
-            return;
+            return false;
         }
         if("merged".equals(request.getObjectAttribute().getState())) {
             LOGGER.log(Level.INFO, "Accepted Merge Request, no build started");
-            return;
+            return false;
         }
         if("update".equals(request.getObjectAttribute().getAction())) {
             LOGGER.log(Level.INFO, "Existing Merge Request, build will be trigged by buildOpenMergeRequests instead");
-            return;
+            return false;
+        }
+        String dedupKey = GitLabWebHookDedup.mergeRequestKey(project.getFullName(), request);
+        if (!GitLabWebHookDedup.instance().firstDelivery(dedupKey)) {
+            LOGGER.log(Level.INFO, "Skipping merge request !{0} already received", request.getObjectAttribute().getIid());
+            GitLabMetrics.duplicateDropped();
+            return false;
         }
+        try {
+            return triggerMergeRequestBuild(request, project, trigger);
+        } catch (RuntimeException e) {
+            // GitLab delivers it again
+            GitLabWebHookDedup.instance().forget(dedupKey);
+            throw e;
+        }
+    }
+
+    private boolean triggerMergeRequestBuild(GitLabMergeRequest request, Job project, GitLabPushTrigger trigger) {
         if(request.getObjectAttribute().getLastCommit()!=null) {
-            Run mergeBuild = getBuildBySHA1(project, request.getObjectAttribute().getLastCommit().getId(), true);
+            long lookupStarted = System.nanoTime();
+            Run mergeBuild = GitLabBuildHistory.getBuildBySHA1(project, request.getObjectAttribute().getLastCommit().getId(), true);
+            GitLabWebHookTrace.record(GitLabWebHookTrace.Stage.BUILD_LOOKUP, lookupStarted);
             if (mergeBuild != null) {
                 StringParameterValue mergeBuildTargetBranch = (StringParameterValue) mergeBuild.getAction(ParametersAction.class).getParameter("gitlabTargetBranch");
                 boolean targetBranchesEqual = StringUtils.equals(mergeBuildTargetBranch.value, request.getObjectAttribute().getTargetBranch());
@@ -477,7 +854,7 @@ public class GitLabWebHook implements UnprotectedRootAction {
 
                 if (targetBranchesEqual) {
                     LOGGER.log(Level.INFO, "Last commit in Merge Request has already been built in build #" + mergeBuild.getId());
-                    return;
+                    return false;
                 }
             }
         }
@@ -485,25 +862,17 @@ public class GitLabWebHook implements UnprotectedRootAction {
         Authentication old = SecurityContextHolder.getContext().getAuthentication();
         SecurityContextHolder.getContext().setAuthentication(ACL.SYSTEM);
         try {
-            GitLabPushTrigger trigger = null;
-            if (project instanceof ParameterizedJobMixIn.ParameterizedJob) {
-                ParameterizedJobMixIn.ParameterizedJob p = (ParameterizedJobMixIn.ParameterizedJob) project;
-                for (Trigger t : p.getTriggers().values()) {
-                    if (t instanceof GitLabPushTrigger) {
-                        trigger = (GitLabPushTrigger) t;
-                    }
-                }
-            }
             if (trigger == null) {
-                return;
+                return false;
             }
 
             if(trigger.getCiSkip() && request.getObjectAttribute().getDescription().contains("[ci-skip]")) {
                 LOGGER.log(Level.INFO, "Skipping MR " + request.getObjectAttribute().getTitle() + " due to ci-skip.");
-                return;
+                return false;
             }
 
             trigger.onPost(request);
+            return true;
         } finally {
             SecurityContextHolder.getContext().setAuthentication(old);
         }
@@ -518,100 +887,13 @@ public class GitLabWebHook implements UnprotectedRootAction {
      **************************************************/
 
 
-    /**
-     *
-     * @param project
-     * @param commitSHA1
-     * @return
-     */
-    private Run getBuildBySHA1(Job project, String commitSHA1, boolean triggeredByMergeRequest) {
-        List<Run> builds = project.getBuilds();
-        for(Run build : builds) {
-            BuildData data = build.getAction(BuildData.class);
-            MergeRecord mergeRecord = build.getAction(MergeRecord.class);
-            if (mergeRecord == null) {
-                //Determine if build was triggered by a Merge Request event
-                ParametersAction params = build.getAction(ParametersAction.class);
-
-                if (params == null) continue;
-
-                StringParameterValue sourceBranch = (StringParameterValue) params.getParameter("gitlabSourceBranch");
-                StringParameterValue targetBranch = (StringParameterValue) params.getParameter("gitlabTargetBranch");
-                boolean isMergeRequestBuild = (sourceBranch != null && !sourceBranch.value.equals(targetBranch.value));
-
-                if (!triggeredByMergeRequest) {
-    				if (isMergeRequestBuild)
-    					// skip Merge Request builds
-    					continue;
-
-                    if (data.getLastBuiltRevision().getSha1String().contains(commitSHA1)) {
-                        return build;
-                    }
-                } else {
-    				if (hasBeenBuilt(data, ObjectId.fromString(commitSHA1), build)) {
-    					return build;
-    				}
-                }
-
-            } else {
-            	Build b =  data.lastBuild;
-            	boolean isMergeBuild = mergeRecord!=null && !mergeRecord.getSha1().equals(b.getMarked().getSha1String());
-            	if(b!=null && b.getMarked()!=null && b.getMarked().getSha1String().equals(commitSHA1)){
-            		if(triggeredByMergeRequest == isMergeBuild){
-            			LOGGER.log(Level.FINE, build.getNumber()+" Build found matching "+commitSHA1+" "+(isMergeBuild? "merge":"normal")+" build");
-            			return build;
-            		}
-            	}
-            }
-        }
-        return null;
-    }
-
-    private boolean hasBeenBuilt(BuildData data, ObjectId sha1, Run build) {
-		try {
-			for (Build b : data.getBuildsByBranchName().values()) {
-				if (b.getBuildNumber() == build.number
-						&& b.marked.getSha1().equals(sha1))
-					return true;
-			}
-			return false;
-		} catch (Exception ex) {
-			return false;
-		}
-	}
-    
-    /**
-     *
-     * @param project
-     * @param branch
-     * @return latest build of the branch specified that is not part of a merge request
-     */
-    @SuppressWarnings("rawtypes")
-	private Run getBuildByBranch(Job project, String branch) {
-        RunList<?> builds = project.getBuilds();
-        for(Run build : builds) {
-            BuildData data = build.getAction(BuildData.class);
-            if(data!=null && data.lastBuild!=null) {
-                MergeRecord merge = build.getAction(MergeRecord.class);
-                boolean isMergeBuild = merge != null && !merge.getSha1().equals(data.lastBuild.getMarked().getSha1String());
-                if (data.lastBuild.getRevision() != null && !isMergeBuild) {
-                    for (Branch b : data.lastBuild.getRevision().getBranches()) {
-                        if (b.getName().endsWith("/" + branch))
-                            return build;
-                    }
-                }
-            }
-        }
-        return null;
-    }
-
-
     /**
      *
      * @param rsp The stapler response to write the output to.
      * @throws IOException
      */
-    private void writeJSON(StaplerResponse rsp, JSONObject jsonObject) throws IOException {
+    private static void writeJSON(HttpServletResponse rsp, JSONObject jsonObject) throws IOException {
+        long responseStarted = System.nanoTime();
         rsp.setContentType("application/json");
         PrintWriter w = rsp.getWriter();
 
@@ -623,7 +905,7 @@ public class GitLabWebHook implements UnprotectedRootAction {
 
         w.flush();
         w.close();
-
+        GitLabWebHookTrace.record(GitLabWebHookTrace.Stage.RESPONSE, responseStarted);
     }
 
     @Extension
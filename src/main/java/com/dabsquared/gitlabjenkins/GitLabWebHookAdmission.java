@@ -0,0 +1,347 @@
+package com.dabsquared.gitlabjenkins;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Splitter;
+
+/**
+ * Admission control in front of the processing of push and merge request events on the
+ * {@link GitLabWebHookExecutor}.
+ *
+ * Events wait in one queue per GitLab project, served by deficit round robin so that a project
+ * pushing every few seconds gets its share of the threads and no more: each turn a project may
+ * start as many events as its weight (1 unless configured). At most {@link #PROJECT_CONCURRENCY}
+ * events of a project and {@link #JOB_CONCURRENCY} of a job are processed at a time, which with
+ * the default of 1 also keeps the events of a job in order. Once {@link #HIGH_WATER_MARK} events
+ * are waiting, new ones are refused and answered with 503 and a <code>Retry-After</code> of
+ * {@link #RETRY_AFTER_SECONDS}, so GitLab delivers them again later.
+ *
+ * On containers without asynchronous requests the request thread waits for its event, so the
+ * waiting events hold container threads: at most {@link #BLOCKING_HIGH_WATER_MARK} of them are
+ * admitted at a time, the others are refused the same way.
+ *
+ * Configured with system properties prefixed with
+ * <code>com.dabsquared.gitlabjenkins.GitLabWebHookAdmission.</code>; <code>weights</code> is a
+ * list like <code>12=4,34=2</code> of GitLab project ids and weights.
+ */
+public final class GitLabWebHookAdmission {
+
+    private static final String PREFIX = GitLabWebHookAdmission.class.getName() + ".";
+
+    static final int PROJECT_CONCURRENCY = Integer.getInteger(PREFIX + "projectConcurrency", 2);
+    static final int JOB_CONCURRENCY = Integer.getInteger(PREFIX + "jobConcurrency", 1);
+    static final int HIGH_WATER_MARK = Integer.getInteger(PREFIX + "highWaterMark", 500);
+    /** the events whose request thread waits for them, by default as many as the executor has threads */
+    static final int BLOCKING_HIGH_WATER_MARK = Integer.getInteger(PREFIX + "blockingHighWaterMark", GitLabWebHookExecutor.THREADS);
+    static final int RETRY_AFTER_SECONDS = Integer.getInteger(PREFIX + "retryAfterSeconds", 30);
+    /** the number of jobs whose last event latency is remembered for the diagnostics page */
+    static final int LATENCY_JOBS = Integer.getInteger(PREFIX + "latencyJobs", 1000);
+
+    private static final Pattern PROJECT_ID = Pattern.compile("\"(?:target_)?project_id\"\\s*:\\s*(\\d+)");
+
+    private static GitLabWebHookAdmission instance;
+
+    private final int maxRunning;
+    private final int projectConcurrency;
+    private final int jobConcurrency;
+    private final int highWaterMark;
+    private final int blockingHighWaterMark;
+    private final Map<String, Integer> weights;
+    private final Executor executor;
+
+    private final Map<String, ProjectQueue> projects = new HashMap<String, ProjectQueue>();
+    /** the projects with waiting events, in the order of their next turn */
+    private final LinkedList<ProjectQueue> active = new LinkedList<ProjectQueue>();
+    private final Map<String, Integer> runningByJob = new HashMap<String, Integer>();
+    /** the events admitted and not finished yet, the oldest first */
+    private final Set<Ticket> tickets = new LinkedHashSet<Ticket>();
+    /** the time from admission to the end of the last event of each job, the least recently updated first */
+    private final LinkedHashMap<String, Long> lastLatencyByJob = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > LATENCY_JOBS;
+        }
+    };
+    private int running;
+    private int waiting;
+    /** the events admitted and not finished yet whose request thread waits for them */
+    private int blocking;
+
+    GitLabWebHookAdmission(int maxRunning, int projectConcurrency, int jobConcurrency, int highWaterMark,
+            Map<String, Integer> weights, Executor executor) {
+        this(maxRunning, projectConcurrency, jobConcurrency, highWaterMark, BLOCKING_HIGH_WATER_MARK, weights, executor);
+    }
+
+    GitLabWebHookAdmission(int maxRunning, int projectConcurrency, int jobConcurrency, int highWaterMark,
+            int blockingHighWaterMark, Map<String, Integer> weights, Executor executor) {
+        this.maxRunning = maxRunning;
+        this.projectConcurrency = projectConcurrency;
+        this.jobConcurrency = jobConcurrency;
+        this.highWaterMark = highWaterMark;
+        this.blockingHighWaterMark = blockingHighWaterMark;
+        this.weights = weights;
+        this.executor = executor;
+    }
+
+    public static synchronized GitLabWebHookAdmission instance() {
+        if (instance == null) {
+            instance = new GitLabWebHookAdmission(GitLabWebHookExecutor.THREADS, PROJECT_CONCURRENCY, JOB_CONCURRENCY,
+                    HIGH_WATER_MARK, parseWeights(System.getProperty(PREFIX + "weights", "")), new Executor() {
+                        public void execute(Runnable command) {
+                            GitLabWebHookExecutor.execute(command);
+                        }
+                    });
+        }
+        return instance;
+    }
+
+    static Map<String, Integer> parseWeights(String spec) {
+        Map<String, Integer> weights = new HashMap<String, Integer>();
+        for (String entry : Splitter.on(',').omitEmptyStrings().trimResults().split(spec)) {
+            int equals = entry.indexOf('=');
+            if (equals > 0) {
+                try {
+                    weights.put(entry.substring(0, equals).trim(), Math.max(1, Integer.parseInt(entry.substring(equals + 1).trim())));
+                } catch (NumberFormatException e) {
+                    // ignored, the project keeps the default weight
+                }
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * @return the id of the GitLab project of the event, found without parsing the whole body, or
+     *         the job name if there is none
+     */
+    static String projectKey(String body, String jobName) {
+        Matcher matcher = PROJECT_ID.matcher(body);
+        return matcher.find() ? matcher.group(1) : jobName;
+    }
+
+    /**
+     * Reserves a place in the queue of the project.
+     *
+     * @throws RejectedExecutionException if too many events are waiting already
+     */
+    public Ticket admit(String projectKey, String jobName) {
+        return admit(projectKey, jobName, false);
+    }
+
+    /**
+     * Reserves a place in the queue of the project.
+     *
+     * @param blocking whether the request thread waits for the event to be processed
+     * @throws RejectedExecutionException if too many events are waiting already
+     */
+    public synchronized Ticket admit(String projectKey, String jobName, boolean blocking) {
+        if (waiting >= highWaterMark) {
+            throw new RejectedExecutionException(waiting + " webhook events are waiting already");
+        }
+        if (blocking && this.blocking >= blockingHighWaterMark) {
+            throw new RejectedExecutionException(this.blocking + " request threads are waiting for webhook events already");
+        }
+        waiting++;
+        if (blocking) {
+            this.blocking++;
+        }
+        Ticket ticket = new Ticket(projectKey, jobName, blocking);
+        tickets.add(ticket);
+        return ticket;
+    }
+
+    public synchronized int getWaitingCount() {
+        return waiting;
+    }
+
+    public synchronized int getRunningCount() {
+        return running;
+    }
+
+    /**
+     * @return the events admitted and not finished yet, the oldest first
+     */
+    public synchronized List<Ticket> getTickets() {
+        return new ArrayList<Ticket>(tickets);
+    }
+
+    /**
+     * @return the time in milliseconds from admission to the end of the last event of each job
+     */
+    public synchronized Map<String, Long> getLastLatencies() {
+        return new HashMap<String, Long>(lastLatencyByJob);
+    }
+
+    private void start(Ticket ticket) {
+        List<Ticket> started;
+        synchronized (this) {
+            ProjectQueue project = projects.get(ticket.projectKey);
+            if (project == null) {
+                Integer weight = weights.get(ticket.projectKey);
+                project = new ProjectQueue(weight == null ? 1 : weight);
+                projects.put(ticket.projectKey, project);
+            }
+            if (project.waiting.isEmpty()) {
+                active.addLast(project);
+            }
+            project.waiting.add(ticket);
+            started = dispatch();
+        }
+        execute(started);
+    }
+
+    private void finished(Ticket ticket) {
+        List<Ticket> started;
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            tickets.remove(ticket);
+            if (ticket.blocking) {
+                blocking--;
+            }
+            lastLatencyByJob.put(ticket.jobName, now - ticket.admitted);
+            running--;
+            ProjectQueue project = projects.get(ticket.projectKey);
+            project.running--;
+            Integer jobRunning = runningByJob.remove(ticket.jobName);
+            if (jobRunning > 1) {
+                runningByJob.put(ticket.jobName, jobRunning - 1);
+            }
+            if (project.running == 0 && project.waiting.isEmpty()) {
+                projects.remove(ticket.projectKey);
+            }
+            started = dispatch();
+        }
+        execute(started);
+    }
+
+    /**
+     * One round robin pass after the other over the projects with waiting events, until the
+     * threads are busy or no waiting event may start.
+     *
+     * @return the events to start, outside of the lock
+     */
+    private List<Ticket> dispatch() {
+        List<Ticket> started = new ArrayList<Ticket>();
+        boolean progress = true;
+        while (progress && running < maxRunning && !active.isEmpty()) {
+            progress = false;
+            for (int turns = active.size(); turns > 0 && running < maxRunning; turns--) {
+                ProjectQueue project = active.removeFirst();
+                if (project.deficit < 1) {
+                    project.deficit += project.weight;
+                }
+                while (project.deficit >= 1 && running < maxRunning && canStart(project)) {
+                    Ticket ticket = project.waiting.removeFirst();
+                    ticket.started = System.currentTimeMillis();
+                    project.deficit--;
+                    project.running++;
+                    Integer jobRunning = runningByJob.get(ticket.jobName);
+                    runningByJob.put(ticket.jobName, jobRunning == null ? 1 : jobRunning + 1);
+                    running++;
+                    waiting--;
+                    started.add(ticket);
+                    progress = true;
+                }
+                if (project.waiting.isEmpty()) {
+                    project.deficit = 0;
+                } else if (project.deficit >= 1 && running >= maxRunning) {
+                    // the threads are busy, the project keeps the rest of its turn
+                    active.addFirst(project);
+                } else {
+                    active.addLast(project);
+                }
+            }
+        }
+        return started;
+    }
+
+    private boolean canStart(ProjectQueue project) {
+        if (project.waiting.isEmpty() || project.running >= projectConcurrency) {
+            return false;
+        }
+        Integer jobRunning = runningByJob.get(project.waiting.getFirst().jobName);
+        return jobRunning == null || jobRunning < jobConcurrency;
+    }
+
+    private void execute(List<Ticket> started) {
+        for (Ticket ticket : started) {
+            executor.execute(ticket);
+        }
+    }
+
+    private static final class ProjectQueue {
+        final int weight;
+        final LinkedList<Ticket> waiting = new LinkedList<Ticket>();
+        int running;
+        int deficit;
+
+        ProjectQueue(int weight) {
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * A place in the queue of a project, for one event.
+     */
+    public final class Ticket implements Runnable {
+        private final String projectKey;
+        private final String jobName;
+        private final boolean blocking;
+        private final long admitted = System.currentTimeMillis();
+        /** when the event started to be processed, 0 while it waits */
+        private volatile long started;
+        private Runnable task;
+
+        Ticket(String projectKey, String jobName, boolean blocking) {
+            this.projectKey = projectKey;
+            this.jobName = jobName;
+            this.blocking = blocking;
+        }
+
+        public String getProjectKey() {
+            return projectKey;
+        }
+
+        public String getJobName() {
+            return jobName;
+        }
+
+        public boolean isRunning() {
+            return started != 0;
+        }
+
+        /**
+         * @return the time in milliseconds since the event was admitted
+         */
+        public long getAge() {
+            return System.currentTimeMillis() - admitted;
+        }
+
+        /**
+         * Queues the processing of the event, which runs once the project and the job have a turn.
+         */
+        public void start(Runnable task) {
+            this.task = task;
+            GitLabWebHookAdmission.this.start(this);
+        }
+
+        public void run() {
+            try {
+                task.run();
+            } finally {
+                finished(this);
+            }
+        }
+    }
+}
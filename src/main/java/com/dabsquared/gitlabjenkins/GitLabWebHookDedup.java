@@ -0,0 +1,193 @@
+package com.dabsquared.gitlabjenkins;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Drops the events GitLab, or a proxy in front of Jenkins, delivers again after a timeout.
+ *
+ * An event is identified by its job, its kind and what it builds: the ref and the before and
+ * after SHA1s of a push, the iid, last commit, action and state of a merge request. An event is
+ * recorded when its processing starts and forgotten if it fails, so the delivery GitLab retries
+ * then is processed. The identities seen during
+ * the last {@link #WINDOW_SECONDS} are kept in insertion order, at most {@link #MAX_ENTRIES} of
+ * them, so a lookup and the expiry of the oldest ones are constant time. A window of 0 disables
+ * the deduplication.
+ *
+ * With the system property <code>com.dabsquared.gitlabjenkins.GitLabWebHookDedup.persist</code>
+ * the identities are saved when Jenkins stops and loaded before the {@link GitLabWebHookQueue}
+ * processes the events it still holds, so those already processed are not built again.
+ */
+public final class GitLabWebHookDedup {
+
+    private static final Logger LOGGER = Logger.getLogger(GitLabWebHookDedup.class.getName());
+
+    public static final String FILE_NAME = "gitlab-webhook-dedup.bin";
+
+    static final long WINDOW_SECONDS = Long.getLong(GitLabWebHookDedup.class.getName() + ".windowSeconds", 600);
+    static final int MAX_ENTRIES = Integer.getInteger(GitLabWebHookDedup.class.getName() + ".maxEntries", 10000);
+    static final boolean PERSIST = Boolean.getBoolean(GitLabWebHookDedup.class.getName() + ".persist");
+
+    private static final GitLabWebHookDedup INSTANCE = new GitLabWebHookDedup(TimeUnit.SECONDS.toMillis(WINDOW_SECONDS), MAX_ENTRIES);
+
+    private final long windowMillis;
+    private final int maxEntries;
+    private final LinkedHashMap<String, Long> seen = new LinkedHashMap<String, Long>();
+
+    GitLabWebHookDedup(long windowMillis, int maxEntries) {
+        this.windowMillis = windowMillis;
+        this.maxEntries = maxEntries;
+    }
+
+    public static GitLabWebHookDedup instance() {
+        return INSTANCE;
+    }
+
+    static String pushKey(String jobName, GitLabPushRequest push) {
+        return jobName + "\npush\n" + push.getRef() + "\n" + push.getBefore() + "\n" + push.getAfter();
+    }
+
+    static String mergeRequestKey(String jobName, GitLabMergeRequest mergeRequest) {
+        return jobName + "\nmerge_request\n" + mergeRequest.getObjectAttribute().getTargetProjectId() + "\n"
+                + mergeRequest.getObjectAttribute().getIid() + "\n"
+                + (mergeRequest.getObjectAttribute().getLastCommit() == null ? null
+                        : mergeRequest.getObjectAttribute().getLastCommit().getId()) + "\n"
+                + mergeRequest.getObjectAttribute().getAction() + "\n" + mergeRequest.getObjectAttribute().getState();
+    }
+
+    /**
+     * Records the event.
+     *
+     * @return false if the same event has already been recorded within the window
+     */
+    public boolean firstDelivery(String key) {
+        return firstDelivery(key, System.currentTimeMillis());
+    }
+
+    synchronized boolean firstDelivery(String key, long now) {
+        if (windowMillis <= 0) {
+            return true;
+        }
+        expire(now);
+        if (seen.containsKey(key)) {
+            return false;
+        }
+        seen.put(key, now);
+        if (seen.size() > maxEntries) {
+            Iterator<Long> oldest = seen.values().iterator();
+            oldest.next();
+            oldest.remove();
+        }
+        return true;
+    }
+
+    /**
+     * Forgets an event whose processing failed, so that it is processed when delivered again.
+     */
+    public synchronized void forget(String key) {
+        seen.remove(key);
+    }
+
+    synchronized int size() {
+        return seen.size();
+    }
+
+    /**
+     * Removes the expired entries, which are all at the head of the map.
+     */
+    private void expire(long now) {
+        for (Iterator<Long> it = seen.values().iterator(); it.hasNext();) {
+            if (now - it.next() < windowMillis) {
+                break;
+            }
+            it.remove();
+        }
+    }
+
+    @Initializer(after = InitMilestone.PLUGINS_STARTED, before = InitMilestone.JOB_LOADED)
+    public static void load() {
+        if (!PERSIST) {
+            return;
+        }
+        File file = new File(Jenkins.getInstance().getRootDir(), FILE_NAME);
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            INSTANCE.readFrom(file);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not load the webhook events seen before the restart from " + file, e);
+        }
+    }
+
+    @Terminator
+    public static void save() {
+        if (!PERSIST) {
+            return;
+        }
+        File file = new File(Jenkins.getInstance().getRootDir(), FILE_NAME);
+        try {
+            INSTANCE.writeTo(file);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not save the webhook events seen to " + file, e);
+        }
+    }
+
+    synchronized void writeTo(File file) throws IOException {
+        expire(System.currentTimeMillis());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            for (Map.Entry<String, Long> entry : seen.entrySet()) {
+                out.writeLong(entry.getValue());
+                out.writeUTF(entry.getKey());
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    synchronized void readFrom(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                long time;
+                try {
+                    time = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                String key = in.readUTF();
+                if (!seen.containsKey(key)) {
+                    seen.put(key, time);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        expire(System.currentTimeMillis());
+        while (seen.size() > maxEntries) {
+            Iterator<Long> oldest = seen.values().iterator();
+            oldest.next();
+            oldest.remove();
+        }
+    }
+}
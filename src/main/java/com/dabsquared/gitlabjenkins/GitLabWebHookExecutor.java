@@ -0,0 +1,141 @@
+package com.dabsquared.gitlabjenkins;
+
+import hudson.init.Terminator;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Threads processing the webhook events, so that the threads of the container are released as
+ * soon as the body is read and the user interface never waits behind a slow GitLab.
+ *
+ * The request is turned into a Servlet 3 asynchronous request, which the executor completes once
+ * the event is processed. Containers without asynchronous requests keep processing events in the
+ * request thread. Sized with the system properties
+ * <code>com.dabsquared.gitlabjenkins.GitLabWebHookExecutor.threads</code> (0 disables it) and
+ * <code>com.dabsquared.gitlabjenkins.GitLabWebHookExecutor.queueSize</code>; when the queue is
+ * full, the event is processed in the request thread.
+ */
+public final class GitLabWebHookExecutor {
+
+    private static final Logger LOGGER = Logger.getLogger(GitLabWebHookExecutor.class.getName());
+
+    static final int THREADS = Integer.getInteger(GitLabWebHookExecutor.class.getName() + ".threads", 8);
+    static final int QUEUE_SIZE = Integer.getInteger(GitLabWebHookExecutor.class.getName() + ".queueSize", 200);
+
+    private static final ThreadPoolExecutor EXECUTOR = THREADS > 0 ? executor() : null;
+
+    private GitLabWebHookExecutor() {
+    }
+
+    private static ThreadPoolExecutor executor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new NamingThreadFactory(new DaemonThreadFactory(), "GitLab webhook"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    static boolean isEnabled() {
+        return EXECUTOR != null;
+    }
+
+    /**
+     * Runs the task on the executor, or in the current thread if the executor is saturated.
+     */
+    static void execute(Runnable task) {
+        execute(EXECUTOR, task);
+    }
+
+    static void execute(ThreadPoolExecutor executor, Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            LOGGER.log(Level.FINE, "The webhook executor is saturated, processing the event in the request thread");
+            task.run();
+        }
+    }
+
+    /**
+     * @return the number of events waiting for a thread
+     */
+    static int getQueueDepth() {
+        return EXECUTOR == null ? 0 : EXECUTOR.getQueue().size();
+    }
+
+    /**
+     * @return whether the request can be turned into an asynchronous one
+     */
+    static boolean isAsyncSupported(HttpServletRequest req) {
+        try {
+            return req.isAsyncSupported();
+        } catch (LinkageError e) {
+            // Servlet 2.x container
+            return false;
+        }
+    }
+
+    /**
+     * Starts an asynchronous request without timeout, the caller completes it.
+     *
+     * @return null if the container does not support asynchronous requests
+     */
+    static AsyncContext startAsync(HttpServletRequest req) {
+        try {
+            if (req.isAsyncSupported()) {
+                AsyncContext async = req.startAsync();
+                async.setTimeout(0);
+                return async;
+            }
+        } catch (LinkageError e) {
+            // Servlet 2.x container
+        } catch (IllegalStateException e) {
+            LOGGER.log(Level.FINE, "Could not start an asynchronous request", e);
+        }
+        return null;
+    }
+
+    /**
+     * @param jobName the job the event was sent to, for the log
+     * @param process processes the event, the request is answered with 500 if it throws
+     * @param finished run once the event is processed, before the request is completed
+     * @return the task processing the event and completing the asynchronous request
+     */
+    static Runnable completing(final AsyncContext async, final String jobName, final Runnable process, final Runnable finished) {
+        return new Runnable() {
+            public void run() {
+                HttpServletResponse rsp = (HttpServletResponse) async.getResponse();
+                try {
+                    process.run();
+                    rsp.setStatus(HttpServletResponse.SC_OK);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Could not process the webhook event of " + jobName, e);
+                    rsp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                } finally {
+                    try {
+                        finished.run();
+                    } finally {
+                        async.complete();
+                    }
+                }
+            }
+        };
+    }
+
+    @Terminator
+    public static void shutdown() throws InterruptedException {
+        if (EXECUTOR != null) {
+            EXECUTOR.shutdown();
+            EXECUTOR.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+}
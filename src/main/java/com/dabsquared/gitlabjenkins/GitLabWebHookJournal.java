@@ -0,0 +1,175 @@
+package com.dabsquared.gitlabjenkins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Opt-in capture of the raw webhook traffic into <code>$JENKINS_HOME/gitlab-webhook-journal</code>,
+ * so a production burst can be replayed locally with {@link GitLabWebHookReplay}.
+ *
+ * Each record is compressed into its own gzip member and appended to the current segment, so
+ * a segment stays readable up to the last complete record even if Jenkins dies while writing.
+ * Segments are rotated once they reach {@link #SEGMENT_SIZE} bytes and only the newest
+ * {@link #MAX_SEGMENTS} are kept.
+ */
+public final class GitLabWebHookJournal {
+
+    private static final Logger LOGGER = Logger.getLogger(GitLabWebHookJournal.class.getName());
+
+    public static final String DIRECTORY = "gitlab-webhook-journal";
+
+    static final long SEGMENT_SIZE = Long.getLong(GitLabWebHookJournal.class.getName() + ".segmentSize", 16 * 1024 * 1024);
+    static final int MAX_SEGMENTS = Integer.getInteger(GitLabWebHookJournal.class.getName() + ".maxSegments", 20);
+
+    /**
+     * Headers holding credentials are journaled without their value.
+     */
+    private static final String[] REDACTED_HEADERS = { "Authorization", "Cookie", "X-Gitlab-Token" };
+
+    /**
+     * Query parameters holding credentials, like the build token of the hook URL, are journaled
+     * without their value too.
+     */
+    private static final String[] REDACTED_PARAMETERS = { "token", "private_token" };
+
+    private static final GitLabWebHookJournal INSTANCE = new GitLabWebHookJournal();
+
+    private File segment;
+    private FileOutputStream out;
+
+    private GitLabWebHookJournal() {
+    }
+
+    public static GitLabWebHookJournal instance() {
+        return INSTANCE;
+    }
+
+    public static boolean isEnabled() {
+        GitLabPushTrigger.DescriptorImpl descriptor = GitLabPushTrigger.getDesc();
+        return descriptor != null && descriptor.getCaptureWebHooks();
+    }
+
+    /**
+     * Journals a webhook request. Failures are logged and never affect the request.
+     */
+    public void append(HttpServletRequest req, String body, long arrivalTime, long processingNanos) {
+        try {
+            String path = req.getRequestURI().substring(req.getContextPath().length());
+            if (req.getQueryString() != null) {
+                path += "?" + redactQuery(req.getQueryString());
+            }
+            GitLabWebHookRecord record = new GitLabWebHookRecord(req.getMethod(), path, headers(req), arrivalTime,
+                    processingNanos, body);
+
+            // compress outside of the lock, the requests only queue up for the write itself
+            ByteArrayOutputStream member = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(new GZIPOutputStream(member));
+            record.writeTo(data);
+            data.close();
+
+            write(member.toByteArray());
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not journal webhook request", e);
+        }
+    }
+
+    private synchronized void write(byte[] member) throws IOException {
+        if (out == null || segment.length() >= SEGMENT_SIZE) {
+            rotate();
+        }
+        out.write(member);
+        out.flush();
+    }
+
+    private void rotate() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        File directory = getDirectory();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        String name = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS", Locale.ENGLISH).format(new Date());
+        segment = new File(directory, name + GitLabWebHookRecord.SEGMENT_SUFFIX);
+        out = new FileOutputStream(segment, true);
+        LOGGER.log(Level.FINE, "Journaling webhook requests to {0}", segment);
+
+        File[] segments = GitLabWebHookRecord.segments(directory);
+        for (int i = 0; i < segments.length - MAX_SEGMENTS; i++) {
+            if (!segments[i].delete()) {
+                LOGGER.log(Level.WARNING, "Could not delete old webhook journal segment {0}", segments[i]);
+            }
+        }
+    }
+
+    /**
+     * Closes the current segment, the next request starts a new one.
+     */
+    public synchronized void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Could not close webhook journal segment " + segment, e);
+            }
+            out = null;
+        }
+    }
+
+    public static File getDirectory() {
+        return new File(Jenkins.getInstance().getRootDir(), DIRECTORY);
+    }
+
+    private static Map<String, String> headers(HttpServletRequest req) {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        Enumeration<?> names = req.getHeaderNames();
+        while (names != null && names.hasMoreElements()) {
+            String name = (String) names.nextElement();
+            headers.put(name, isRedacted(name) ? "" : req.getHeader(name));
+        }
+        return headers;
+    }
+
+    private static boolean isRedacted(String header) {
+        return contains(REDACTED_HEADERS, header);
+    }
+
+    static String redactQuery(String query) {
+        StringBuilder redacted = new StringBuilder(query.length());
+        for (String parameter : query.split("&", -1)) {
+            if (redacted.length() > 0) {
+                redacted.append('&');
+            }
+            int equals = parameter.indexOf('=');
+            String name = equals < 0 ? parameter : parameter.substring(0, equals);
+            redacted.append(equals >= 0 && contains(REDACTED_PARAMETERS, name) ? name + "=" : parameter);
+        }
+        return redacted.toString();
+    }
+
+    private static boolean contains(String[] names, String name) {
+        for (String redacted : names) {
+            if (redacted.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
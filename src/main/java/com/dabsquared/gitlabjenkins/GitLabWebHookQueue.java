@@ -0,0 +1,584 @@
+package com.dabsquared.gitlabjenkins;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+/**
+ * Opt-in durable queue of the push and merge request events, in
+ * <code>$JENKINS_HOME/gitlab-webhook-queue.log</code>.
+ *
+ * An accepted event is appended to the log and forced to disk before GitLab gets its answer,
+ * then processed by a worker, which appends an acknowledgement once the trigger is done with it.
+ * Events without acknowledgement when Jenkins starts, because it stopped or crashed in between,
+ * are processed again once the jobs are loaded. Delivery is thus at least once.
+ *
+ * An event whose processing fails is left without acknowledgement and processed again
+ * {@link #RETRY_SECONDS} seconds later, up to {@link #MAX_ATTEMPTS} times. It is then appended to
+ * <code>$JENKINS_HOME/gitlab-webhook-queue-failed.log</code>, in the format of the queue, and
+ * acknowledged.
+ *
+ * When the {@link GitLabWebHookExecutor} is enabled, the events are processed on it in their turn
+ * given by the {@link GitLabWebHookAdmission}, like the events that are not queued, and a hook
+ * arriving past its high-water mark is refused before being queued. Otherwise they are processed
+ * by {@link #WORKERS} threads of the queue.
+ *
+ * Concurrent hooks share their fsync: the first one waiting for its entry to be durable forces
+ * everything appended so far, the others only wait for it. Acknowledgements are not forced, a
+ * lost one only means the event is processed again. The log is rewritten with the pending
+ * entries alone once it grows past {@link #CHECKPOINT_SIZE} bytes.
+ */
+public final class GitLabWebHookQueue {
+
+    private static final Logger LOGGER = Logger.getLogger(GitLabWebHookQueue.class.getName());
+
+    public static final String FILE_NAME = "gitlab-webhook-queue.log";
+    public static final String FAILED_FILE_NAME = "gitlab-webhook-queue-failed.log";
+
+    static final long CHECKPOINT_SIZE = Long.getLong(GitLabWebHookQueue.class.getName() + ".checkpointSize", 4 * 1024 * 1024);
+    static final int WORKERS = Integer.getInteger(GitLabWebHookQueue.class.getName() + ".workers", 4);
+    static final int MAX_ATTEMPTS = Math.max(1, Integer.getInteger(GitLabWebHookQueue.class.getName() + ".maxAttempts", 3));
+    static final long RETRY_SECONDS = Long.getLong(GitLabWebHookQueue.class.getName() + ".retrySeconds", 30);
+    /** how long the shutdown waits for the events being processed, to log their acknowledgement */
+    static final long CLOSE_TIMEOUT_MILLIS = 10000;
+
+    private static final byte ENTRY = 1;
+    private static final byte ACK = 2;
+
+    private static GitLabWebHookQueue instance;
+
+    private final File file;
+    private final long checkpointSize;
+    private final Processor processor;
+    /** null to process the events on the workers of the queue */
+    private final GitLabWebHookAdmission admission;
+    private final Object lock = new Object();
+    private final Map<Long, Entry> pending = new LinkedHashMap<Long, Entry>();
+    private final ExecutorService workers;
+
+    private FileOutputStream fileOut;
+    private DataOutputStream out;
+    private long size;
+    private long nextSequence;
+    private long written;
+    private long synced;
+    private boolean syncing;
+    private boolean closing;
+    /** the events being processed, which the shutdown waits for */
+    private int processing;
+    /** how long a failed event waits before it is processed again, shortened in tests */
+    long retryDelayMillis = TimeUnit.SECONDS.toMillis(RETRY_SECONDS);
+
+    GitLabWebHookQueue(File file, int workerCount, long checkpointSize, Processor processor, GitLabWebHookAdmission admission) {
+        this.file = file;
+        this.checkpointSize = checkpointSize;
+        this.processor = processor;
+        this.admission = admission;
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "GitLab webhook queue"));
+    }
+
+    public static synchronized GitLabWebHookQueue instance() {
+        if (instance == null) {
+            instance = new GitLabWebHookQueue(new File(Jenkins.getInstance().getRootDir(), FILE_NAME), WORKERS,
+                    CHECKPOINT_SIZE, new Processor() {
+                        public void process(String jobName, String body) {
+                            GitLabWebHook.processQueued(jobName, body);
+                        }
+                    }, GitLabWebHookExecutor.isEnabled() ? GitLabWebHookAdmission.instance() : null);
+        }
+        return instance;
+    }
+
+    public static boolean isEnabled() {
+        GitLabPushTrigger.DescriptorImpl descriptor = GitLabPushTrigger.getDesc();
+        return descriptor != null && descriptor.getDurableWebHookQueue();
+    }
+
+    /**
+     * Processes again the events left in the log by the previous run, once their jobs are loaded.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void recover() {
+        File file = new File(Jenkins.getInstance().getRootDir(), FILE_NAME);
+        if (file.exists()) {
+            try {
+                instance().open();
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Could not recover the webhook events queued in " + file, e);
+            }
+        }
+    }
+
+    @Terminator
+    public static void shutdown() {
+        GitLabWebHookQueue queue;
+        synchronized (GitLabWebHookQueue.class) {
+            queue = instance;
+        }
+        if (queue != null) {
+            queue.close();
+        }
+    }
+
+    /**
+     * Appends the event to the log and returns once it is on disk. The event is processed
+     * asynchronously.
+     *
+     * @param ticket the place of the event in the {@link GitLabWebHookAdmission}, or null if the
+     *               executor is disabled; the caller keeps it if the event could not be queued
+     */
+    public void enqueue(String jobName, String body, GitLabWebHookAdmission.Ticket ticket) throws IOException {
+        Entry entry;
+        long position;
+        synchronized (lock) {
+            if (closing) {
+                throw new IOException("The webhook queue is closed");
+            }
+            if (out == null) {
+                open();
+            }
+            entry = new Entry(nextSequence++, jobName, body);
+            pending.put(entry.sequence, entry);
+            position = write(entry.toBytes());
+        }
+        try {
+            awaitDurable(position);
+        } catch (IOException e) {
+            // the caller processes the event itself
+            synchronized (lock) {
+                pending.remove(entry.sequence);
+            }
+            throw e;
+        }
+        submit(entry, ticket);
+    }
+
+    /**
+     * @return the number of events accepted and not processed yet
+     */
+    public int getPendingCount() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Opens the log, queueing again the entries it holds without acknowledgement.
+     */
+    void open() throws IOException {
+        List<Entry> recovered;
+        synchronized (lock) {
+            if (out != null) {
+                return;
+            }
+            if (file.exists()) {
+                read();
+            }
+            recovered = new ArrayList<Entry>(pending.values());
+            checkpoint();
+        }
+        if (!recovered.isEmpty()) {
+            LOGGER.log(Level.INFO, "Processing {0} webhook events queued before the restart", recovered.size());
+        }
+        for (Entry entry : recovered) {
+            resubmit(entry);
+        }
+    }
+
+    /**
+     * Stops processing events, waits for those being processed to be acknowledged and closes the
+     * log. The events not processed yet stay in it for the next start.
+     */
+    void close() {
+        synchronized (lock) {
+            closing = true;
+        }
+        workers.shutdown();
+        synchronized (lock) {
+            long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MILLIS;
+            long remaining = CLOSE_TIMEOUT_MILLIS;
+            while (processing > 0 && remaining > 0) {
+                try {
+                    lock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+            if (processing > 0) {
+                LOGGER.log(Level.WARNING, "Closing the webhook queue while {0} events are processed, they are processed again after the restart", processing);
+            }
+            if (out != null) {
+                try {
+                    out.flush();
+                    fileOut.getChannel().force(false);
+                    out.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not close the webhook queue " + file, e);
+                }
+                out = null;
+            }
+        }
+    }
+
+    private void submit(final Entry entry, GitLabWebHookAdmission.Ticket ticket) {
+        Runnable task = new Runnable() {
+            public void run() {
+                process(entry);
+            }
+        };
+        if (ticket != null) {
+            ticket.start(task);
+        } else {
+            workers.execute(task);
+        }
+    }
+
+    /**
+     * Submits an event read from the log, waiting for the admission to have room for it.
+     */
+    private void resubmit(final Entry entry) {
+        if (admission == null) {
+            submit(entry, null);
+            return;
+        }
+        try {
+            submit(entry, admission.admit(GitLabWebHookAdmission.projectKey(entry.body, entry.jobName), entry.jobName));
+        } catch (RejectedExecutionException e) {
+            Timer.get().schedule(new Runnable() {
+                public void run() {
+                    synchronized (lock) {
+                        if (closing) {
+                            return;
+                        }
+                    }
+                    resubmit(entry);
+                }
+            }, GitLabWebHookAdmission.RETRY_AFTER_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    private void process(Entry entry) {
+        synchronized (lock) {
+            if (closing) {
+                // still in the log, processed after the restart
+                return;
+            }
+            processing++;
+        }
+        try {
+            try {
+                processor.process(entry.jobName, entry.body);
+            } catch (RuntimeException e) {
+                failed(entry, e);
+                return;
+            }
+            acknowledge(entry);
+        } finally {
+            synchronized (lock) {
+                processing--;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Processes the event again later, or sets it aside once it failed {@link #MAX_ATTEMPTS} times.
+     */
+    private void failed(final Entry entry, RuntimeException e) {
+        entry.attempts++;
+        if (entry.attempts < MAX_ATTEMPTS) {
+            LOGGER.log(Level.WARNING, "Could not process the queued webhook event of " + entry.jobName + ", attempt "
+                    + entry.attempts + " of " + MAX_ATTEMPTS, e);
+            Timer.get().schedule(new Runnable() {
+                public void run() {
+                    synchronized (lock) {
+                        if (closing) {
+                            return;
+                        }
+                    }
+                    resubmit(entry);
+                }
+            }, retryDelayMillis, TimeUnit.MILLISECONDS);
+            return;
+        }
+        File failedFile = new File(file.getParentFile(), FAILED_FILE_NAME);
+        LOGGER.log(Level.SEVERE, "Could not process the queued webhook event of " + entry.jobName + " after " + MAX_ATTEMPTS
+                + " attempts, moving it to " + failedFile, e);
+        try {
+            FileOutputStream failedOut = new FileOutputStream(failedFile, true);
+            try {
+                failedOut.write(entry.toBytes());
+            } finally {
+                failedOut.close();
+            }
+        } catch (IOException writeFailure) {
+            LOGGER.log(Level.WARNING, "Could not write the failed webhook event to " + failedFile + ", dropping it", writeFailure);
+        }
+        acknowledge(entry);
+    }
+
+    private void acknowledge(Entry entry) {
+        synchronized (lock) {
+            pending.remove(entry.sequence);
+            if (out == null) {
+                return;
+            }
+            try {
+                write(ack(entry.sequence));
+                // not while another thread forces the file about to be replaced
+                if (size > checkpointSize && !syncing) {
+                    checkpoint();
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not acknowledge a webhook event in " + file, e);
+            }
+        }
+    }
+
+    /**
+     * @return the position to wait for with {@link #awaitDurable(long)}
+     */
+    private long write(byte[] record) throws IOException {
+        out.write(record);
+        size += record.length;
+        return ++written;
+    }
+
+    /**
+     * Group commit: forces the log once for all the records appended by the time the force
+     * starts, while the records appended meanwhile wait for the next one.
+     */
+    private void awaitDurable(long position) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                FileOutputStream toForce;
+                long target;
+                synchronized (lock) {
+                    while (synced < position && syncing) {
+                        try {
+                            lock.wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                    if (synced >= position) {
+                        return;
+                    }
+                    if (out == null) {
+                        throw new IOException("The webhook queue is closed");
+                    }
+                    out.flush();
+                    syncing = true;
+                    target = written;
+                    toForce = fileOut;
+                }
+                // appends go on in the buffer while the disk is busy
+                IOException failure = null;
+                try {
+                    toForce.getChannel().force(false);
+                } catch (IOException e) {
+                    failure = e;
+                }
+                synchronized (lock) {
+                    syncing = false;
+                    if (failure == null) {
+                        synced = Math.max(synced, target);
+                    }
+                    lock.notifyAll();
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Replaces the log by one holding only the pending entries.
+     */
+    private void checkpoint() throws IOException {
+        if (out != null) {
+            out.close();
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream tmpOut = new FileOutputStream(tmp);
+        long pendingSize = 0;
+        try {
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(tmpOut));
+            for (Entry entry : pending.values()) {
+                byte[] record = entry.toBytes();
+                data.write(record);
+                pendingSize += record.length;
+            }
+            data.flush();
+            tmpOut.getChannel().force(false);
+        } finally {
+            tmpOut.close();
+        }
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+            throw new IOException("Could not replace " + file + " by " + tmp);
+        }
+        fileOut = new FileOutputStream(file, true);
+        out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        size = pendingSize;
+        synced = written;
+    }
+
+    /**
+     * Loads the entries of the log that have no acknowledgement, up to the first incomplete or
+     * corrupted record.
+     */
+    private void read() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                try {
+                    if (type == ENTRY) {
+                        Entry entry = Entry.readFrom(in);
+                        pending.put(entry.sequence, entry);
+                        nextSequence = Math.max(nextSequence, entry.sequence + 1);
+                    } else if (type == ACK) {
+                        long sequence = in.readLong();
+                        if (in.readInt() != (int) crc(sequence)) {
+                            throw new IOException("Corrupted acknowledgement");
+                        }
+                        pending.remove(sequence);
+                    } else {
+                        throw new IOException("Unknown record type " + type);
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Ignoring the end of the webhook queue {0}: {1}", new Object[] { file, e });
+                    break;
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] ack(long sequence) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(13);
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeByte(ACK);
+        data.writeLong(sequence);
+        data.writeInt((int) crc(sequence));
+        return bytes.toByteArray();
+    }
+
+    private static long crc(long sequence) {
+        CRC32 crc = new CRC32();
+        for (int i = 56; i >= 0; i -= 8) {
+            crc.update((int) (sequence >>> i));
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Processes the events taken from the queue.
+     */
+    interface Processor {
+        void process(String jobName, String body);
+    }
+
+    /**
+     * A queued event: the full name of the job it was sent to and its body.
+     */
+    static final class Entry {
+        final long sequence;
+        final String jobName;
+        final String body;
+        /** the failed attempts to process it since Jenkins started */
+        int attempts;
+
+        Entry(long sequence, String jobName, String body) {
+            this.sequence = sequence;
+            this.jobName = jobName;
+            this.body = body;
+        }
+
+        byte[] toBytes() throws IOException {
+            byte[] job = jobName.getBytes("UTF-8");
+            byte[] content = body.getBytes("UTF-8");
+            CRC32 crc = new CRC32();
+            crc.update(job);
+            crc.update(content);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(25 + job.length + content.length);
+            DataOutputStream data = new DataOutputStream(bytes);
+            data.writeByte(ENTRY);
+            data.writeLong(sequence);
+            data.writeInt(job.length);
+            data.write(job);
+            data.writeInt(content.length);
+            data.write(content);
+            data.writeInt((int) crc.getValue());
+            return bytes.toByteArray();
+        }
+
+        static Entry readFrom(DataInputStream in) throws IOException {
+            long sequence = in.readLong();
+            byte[] job = readBytes(in);
+            byte[] content = readBytes(in);
+            CRC32 crc = new CRC32();
+            crc.update(job);
+            crc.update(content);
+            if (in.readInt() != (int) crc.getValue()) {
+                throw new IOException("Corrupted entry " + sequence);
+            }
+            return new Entry(sequence, new String(job, "UTF-8"), new String(content, "UTF-8"));
+        }
+
+        private static byte[] readBytes(DataInputStream in) throws IOException {
+            int length = in.readInt();
+            if (length < 0) {
+                throw new IOException("Invalid length " + length);
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.dabsquared.gitlabjenkins;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One webhook request as stored in the {@link GitLabWebHookJournal}: the path and query it was
+ * sent to, its headers and raw body, when it arrived and how long it took to answer.
+ *
+ * Only depends on the JDK, so {@link GitLabWebHookReplay} can read journals outside of Jenkins.
+ */
+public final class GitLabWebHookRecord {
+
+    public static final String SEGMENT_SUFFIX = ".journal.gz";
+
+    private static final int MAGIC = 0x474c5748; // "GLWH"
+    private static final int VERSION = 1;
+
+    private final String method;
+    private final String path;
+    private final Map<String, String> headers;
+    private final long arrivalTime;
+    private final long processingNanos;
+    private final String body;
+
+    public GitLabWebHookRecord(String method, String path, Map<String, String> headers, long arrivalTime,
+                               long processingNanos, String body) {
+        this.method = method;
+        this.path = path;
+        this.headers = Collections.unmodifiableMap(new LinkedHashMap<String, String>(headers));
+        this.arrivalTime = arrivalTime;
+        this.processingNanos = processingNanos;
+        this.body = body;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * @return the path below the Jenkins root, with the query string if there was one
+     */
+    public String getPath() {
+        return path;
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @return the arrival time in milliseconds since the epoch
+     */
+    public long getArrivalTime() {
+        return arrivalTime;
+    }
+
+    public long getProcessingNanos() {
+        return processingNanos;
+    }
+
+    /**
+     * @return the raw request body, or null if the request had none
+     */
+    public String getBody() {
+        return body;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(arrivalTime);
+        out.writeLong(processingNanos);
+        writeString(out, method);
+        writeString(out, path);
+        out.writeInt(headers.size());
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            writeString(out, header.getKey());
+            writeString(out, header.getValue());
+        }
+        writeString(out, body);
+    }
+
+    /**
+     * @return the next record of the stream, or null at its end
+     */
+    static GitLabWebHookRecord readFrom(DataInputStream in) throws IOException {
+        int magic;
+        try {
+            magic = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (magic != MAGIC) {
+            throw new IOException("Not a webhook journal record");
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported webhook journal version " + version);
+        }
+        long arrivalTime = in.readLong();
+        long processingNanos = in.readLong();
+        String method = readString(in);
+        String path = readString(in);
+        int headerCount = in.readInt();
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        for (int i = 0; i < headerCount; i++) {
+            headers.put(readString(in), readString(in));
+        }
+        String body = readString(in);
+        return new GitLabWebHookRecord(method, path, headers, arrivalTime, processingNanos, body);
+    }
+
+    /**
+     * @return the journal segments of the directory, oldest first
+     */
+    public static File[] segments(File directory) {
+        File[] segments = directory.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (segments == null) {
+            return new File[0];
+        }
+        // the names start with their creation time
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    // unlike writeUTF, not limited to 64k, which payloads of large pushes exceed
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
@@ -0,0 +1,198 @@
+package com.dabsquared.gitlabjenkins;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Replays a {@link GitLabWebHookJournal} against a Jenkins instance, so that a burst captured in
+ * production can be profiled locally. The requests go through the HTTP stack into
+ * {@link GitLabWebHook} exactly as GitLab sent them.
+ *
+ * Only depends on the JDK and can be started from the plugin jar:
+ * <pre>
+ * java -cp gitlab-plugin.jar com.dabsquared.gitlabjenkins.GitLabWebHookReplay \
+ *     [--speed 1] [--threads 16] JOURNAL_FILE_OR_DIRECTORY JENKINS_URL
+ * </pre>
+ * <code>--speed</code> keeps the recorded spacing between the requests divided by the given
+ * factor; 0 sends them as fast as possible.
+ */
+public final class GitLabWebHookReplay {
+
+    /**
+     * Not replayed, the connection to the target sets them.
+     */
+    private static final List<String> SKIPPED_HEADERS = Arrays.asList("host", "content-length", "connection",
+            "transfer-encoding", "expect");
+
+    private final URL jenkinsUrl;
+    private final double speed;
+    private final ExecutorService senders;
+
+    private final AtomicInteger sent = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final List<Long> recordedNanos = Collections.synchronizedList(new ArrayList<Long>());
+    private final List<Long> replayedNanos = Collections.synchronizedList(new ArrayList<Long>());
+
+    public GitLabWebHookReplay(URL jenkinsUrl, double speed, int threads) {
+        this.jenkinsUrl = jenkinsUrl;
+        this.speed = speed;
+        this.senders = Executors.newFixedThreadPool(threads);
+    }
+
+    public static void main(String[] args) throws Exception {
+        double speed = 1;
+        int threads = 16;
+        List<String> arguments = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--speed".equals(args[i]) && i + 1 < args.length) {
+                speed = Double.parseDouble(args[++i]);
+            } else if ("--threads".equals(args[i]) && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else {
+                arguments.add(args[i]);
+            }
+        }
+        if (arguments.size() != 2 || speed < 0 || threads < 1) {
+            System.err.println("Usage: java -cp gitlab-plugin.jar " + GitLabWebHookReplay.class.getName()
+                    + " [--speed FACTOR] [--threads N] JOURNAL_FILE_OR_DIRECTORY JENKINS_URL");
+            System.exit(2);
+        }
+
+        File journal = new File(arguments.get(0));
+        File[] segments = journal.isDirectory() ? GitLabWebHookRecord.segments(journal) : new File[] { journal };
+        String url = arguments.get(1);
+        GitLabWebHookReplay replay = new GitLabWebHookReplay(new URL(url.endsWith("/") ? url : url + "/"), speed, threads);
+        replay.replay(segments);
+        System.out.println(replay.summary());
+    }
+
+    public void replay(File[] segments) throws IOException, InterruptedException {
+        long firstArrival = -1;
+        long started = System.nanoTime();
+        for (File segment : segments) {
+            DataInputStream in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(segment))));
+            try {
+                while (true) {
+                    GitLabWebHookRecord record;
+                    try {
+                        record = GitLabWebHookRecord.readFrom(in);
+                    } catch (IOException e) {
+                        // the last record of a segment is incomplete if Jenkins stopped while writing it
+                        System.err.println("Skipping the rest of " + segment + ": " + e);
+                        break;
+                    }
+                    if (record == null) {
+                        break;
+                    }
+                    if (firstArrival < 0) {
+                        firstArrival = record.getArrivalTime();
+                    }
+                    if (speed > 0) {
+                        long due = started + (long) ((record.getArrivalTime() - firstArrival) * 1000000L / speed);
+                        long wait = due - System.nanoTime();
+                        if (wait > 0) {
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                        }
+                    }
+                    submit(record);
+                }
+            } finally {
+                in.close();
+            }
+        }
+        senders.shutdown();
+        senders.awaitTermination(1, TimeUnit.HOURS);
+    }
+
+    private void submit(final GitLabWebHookRecord record) {
+        senders.execute(new Runnable() {
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    int status = send(record);
+                    if (status >= 500) {
+                        failed.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    failed.incrementAndGet();
+                    System.err.println(record.getPath() + ": " + e);
+                }
+                sent.incrementAndGet();
+                recordedNanos.add(record.getProcessingNanos());
+                replayedNanos.add(System.nanoTime() - start);
+            }
+        });
+    }
+
+    private int send(GitLabWebHookRecord record) throws IOException {
+        String path = record.getPath().startsWith("/") ? record.getPath().substring(1) : record.getPath();
+        HttpURLConnection connection = (HttpURLConnection) new URL(jenkinsUrl, path).openConnection();
+        connection.setInstanceFollowRedirects(false);
+        connection.setRequestMethod(record.getMethod());
+        for (Map.Entry<String, String> header : record.getHeaders().entrySet()) {
+            if (!SKIPPED_HEADERS.contains(header.getKey().toLowerCase())) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+        }
+        if (record.getBody() != null && !record.getBody().isEmpty()) {
+            connection.setDoOutput(true);
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(record.getBody().getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+        }
+        int status = connection.getResponseCode();
+        InputStream response = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        if (response != null) {
+            byte[] buffer = new byte[4096];
+            while (response.read(buffer) != -1) {
+                // drain, so the connection can be reused
+            }
+            response.close();
+        }
+        return status;
+    }
+
+    public String summary() {
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format("Replayed %d webhook requests, %d failed%n", sent.get(), failed.get()));
+        summary.append(String.format("%-10s %12s %12s%n", "", "recorded", "replayed"));
+        for (double percentile : new double[] { 0.5, 0.9, 0.99, 1 }) {
+            summary.append(String.format("%-10s %10.2fms %10.2fms%n", "p" + Math.round(percentile * 100),
+                    percentile(recordedNanos, percentile), percentile(replayedNanos, percentile)));
+        }
+        return summary.toString();
+    }
+
+    private static double percentile(List<Long> nanos, double percentile) {
+        List<Long> sorted;
+        synchronized (nanos) {
+            sorted = new ArrayList<Long>(nanos);
+        }
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        Collections.sort(sorted);
+        int index = (int) Math.ceil(percentile * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index)) / 1e6;
+    }
+}
@@ -0,0 +1,222 @@
+package com.dabsquared.gitlabjenkins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Time spent by one webhook request in each stage of its handling, from the job lookup in
+ * {@link GitLabWebHook} to the calls to GitLab and the scheduling of the build in
+ * {@link GitLabPushTrigger#onPost}.
+ *
+ * The trace of the request being handled is bound to the handling thread, so the stages are
+ * recorded with {@link #record(Stage, long)} without passing it around. The slowest
+ * {@link #SLOWEST_EVENTS} push and merge request events of every job are kept in memory and shown
+ * on the GitLab page of the job; the status requests, which long polls keep open for up to a
+ * minute, are not.
+ *
+ * Stages may nest: the open merge requests built after a push record their own commit status
+ * and scheduling stages within {@link Stage#OPEN_MERGE_REQUESTS}.
+ */
+public final class GitLabWebHookTrace {
+
+    public enum Stage {
+        JOB_LOOKUP, BODY_READ, PARSE, BRANCH_FILTER, SOURCE_PROJECT, COMMIT_STATUS, OPEN_MERGE_REQUESTS,
+        BUILD_LOOKUP, SCHEDULE_BUILD, RESPONSE
+    }
+
+    static final int SLOWEST_EVENTS = Integer.getInteger(GitLabWebHookTrace.class.getName() + ".slowestEvents", 20);
+
+    private static final ThreadLocal<GitLabWebHookTrace> CURRENT = new ThreadLocal<GitLabWebHookTrace>();
+
+    private static final ConcurrentMap<String, SlowestEvents> SLOWEST = new ConcurrentHashMap<String, SlowestEvents>();
+
+    private static final Comparator<GitLabWebHookTrace> BY_DURATION = new Comparator<GitLabWebHookTrace>() {
+        public int compare(GitLabWebHookTrace a, GitLabWebHookTrace b) {
+            return a.totalNanos < b.totalNanos ? 1 : (a.totalNanos == b.totalNanos ? 0 : -1);
+        }
+    };
+
+    private final long arrivalTime;
+    private final String path;
+    private final long[] stageNanos = new long[Stage.values().length];
+    private final int[] stageCounts = new int[Stage.values().length];
+    private GitLabMetrics.Event event;
+    private GitLabMetrics.Outcome outcome;
+    private long totalNanos;
+
+    private GitLabWebHookTrace(long arrivalTime, String path) {
+        this.arrivalTime = arrivalTime;
+        this.path = path;
+    }
+
+    /**
+     * Starts the trace of the request handled by the current thread.
+     */
+    static GitLabWebHookTrace begin(long arrivalTime, String path) {
+        GitLabWebHookTrace trace = new GitLabWebHookTrace(arrivalTime, path);
+        CURRENT.set(trace);
+        return trace;
+    }
+
+    /**
+     * Continues the trace in the current thread, for requests completed asynchronously.
+     */
+    void resume() {
+        CURRENT.set(this);
+    }
+
+    /**
+     * Stops tracing in the current thread without ending the trace.
+     */
+    static void suspend() {
+        CURRENT.remove();
+    }
+
+    /**
+     * Adds the time since {@code startedNanos} to the given stage of the current trace, if any.
+     */
+    public static void record(Stage stage, long startedNanos) {
+        GitLabWebHookTrace trace = CURRENT.get();
+        if (trace != null) {
+            trace.stageNanos[stage.ordinal()] += System.nanoTime() - startedNanos;
+            trace.stageCounts[stage.ordinal()]++;
+        }
+    }
+
+    /**
+     * Ends the trace of the current thread and keeps it if it is one of the slowest webhook events of the job.
+     *
+     * @param jobName full name of the job, or null if the request did not resolve to one
+     */
+    void end(String jobName, GitLabMetrics.Event event, GitLabMetrics.Outcome outcome, long totalNanos) {
+        CURRENT.remove();
+        this.event = event;
+        this.outcome = outcome;
+        this.totalNanos = totalNanos;
+        if (jobName != null && SLOWEST_EVENTS > 0
+                && (event == GitLabMetrics.Event.PUSH || event == GitLabMetrics.Event.MERGE_REQUEST)) {
+            SlowestEvents slowest = SLOWEST.get(jobName);
+            if (slowest == null) {
+                SlowestEvents created = new SlowestEvents();
+                slowest = SLOWEST.putIfAbsent(jobName, created);
+                if (slowest == null) {
+                    slowest = created;
+                }
+            }
+            slowest.offer(this);
+        }
+    }
+
+    /**
+     * @return the slowest events of the job, slowest first
+     */
+    public static List<GitLabWebHookTrace> getSlowest(String jobName) {
+        SlowestEvents slowest = SLOWEST.get(jobName);
+        return slowest == null ? Collections.<GitLabWebHookTrace>emptyList() : slowest.snapshot();
+    }
+
+    static void forget(String jobName) {
+        SLOWEST.remove(jobName);
+    }
+
+    public long getArrivalTime() {
+        return arrivalTime;
+    }
+
+    public Date getArrivalDate() {
+        return new Date(arrivalTime);
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public GitLabMetrics.Event getEvent() {
+        return event;
+    }
+
+    public GitLabMetrics.Outcome getOutcome() {
+        return outcome;
+    }
+
+    public double getTotalMillis() {
+        return totalNanos / 1e6;
+    }
+
+    /**
+     * @return the time spent in the stage, 0 if the event did not go through it
+     */
+    public double getStageMillis(Stage stage) {
+        return stageNanos[stage.ordinal()] / 1e6;
+    }
+
+    public int getStageCount(Stage stage) {
+        return stageCounts[stage.ordinal()];
+    }
+
+    /**
+     * @return the stages the event went through, in handling order
+     */
+    public List<Stage> getStages() {
+        List<Stage> stages = new ArrayList<Stage>();
+        for (Stage stage : Stage.values()) {
+            if (stageCounts[stage.ordinal()] > 0) {
+                stages.add(stage);
+            }
+        }
+        return stages;
+    }
+
+    public JSONObject toJSON() {
+        JSONArray stages = new JSONArray();
+        for (Stage stage : getStages()) {
+            JSONObject json = new JSONObject();
+            json.put("stage", stage.name());
+            json.put("millis", getStageMillis(stage));
+            json.put("count", getStageCount(stage));
+            stages.add(json);
+        }
+        JSONObject json = new JSONObject();
+        json.put("arrivalTime", arrivalTime);
+        json.put("path", path);
+        json.put("event", event.name());
+        json.put("outcome", outcome.name());
+        json.put("totalMillis", getTotalMillis());
+        json.put("stages", stages);
+        return json;
+    }
+
+    /**
+     * The {@link #SLOWEST_EVENTS} slowest traces of a job.
+     */
+    private static final class SlowestEvents {
+
+        private final List<GitLabWebHookTrace> traces = new ArrayList<GitLabWebHookTrace>(SLOWEST_EVENTS);
+        private long fastestNanos;
+
+        synchronized void offer(GitLabWebHookTrace trace) {
+            if (traces.size() < SLOWEST_EVENTS) {
+                traces.add(trace);
+            } else if (trace.totalNanos > fastestNanos) {
+                // the list is sorted slowest first after every change, so the last one is the fastest
+                traces.set(traces.size() - 1, trace);
+            } else {
+                return;
+            }
+            Collections.sort(traces, BY_DURATION);
+            fastestNanos = traces.get(traces.size() - 1).totalNanos;
+        }
+
+        synchronized List<GitLabWebHookTrace> snapshot() {
+            return new ArrayList<GitLabWebHookTrace>(traces);
+        }
+    }
+}
@@ -15,7 +15,7 @@ public class Branch {
     }
 
     public void setName(String name) {
-        this.name = name;
+        this.name = Interner.intern(name);
     }
 
     public String getSsh_url() {
@@ -23,7 +23,7 @@ public class Branch {
     }
 
     public void setSsh_url(String ssh_url) {
-        this.ssh_url = ssh_url;
+        this.ssh_url = Interner.intern(ssh_url);
     }
 
     public String getHttp_url() {
@@ -31,7 +31,7 @@ public class Branch {
     }
 
     public void setHttp_url(String http_url) {
-        this.http_url = http_url;
+        this.http_url = Interner.intern(http_url);
     }
 
     public String getNamespace() {
@@ -39,6 +39,17 @@ public class Branch {
     }
 
     public void setNamespace(String namespace) {
-        this.namespace = namespace;
+        this.namespace = Interner.intern(namespace);
     }
-}
\ No newline at end of file
+
+    /**
+     * Shares the names and URLs of build records loaded from disk.
+     */
+    private Object readResolve() {
+        name = Interner.intern(name);
+        ssh_url = Interner.intern(ssh_url);
+        http_url = Interner.intern(http_url);
+        namespace = Interner.intern(namespace);
+        return this;
+    }
+}
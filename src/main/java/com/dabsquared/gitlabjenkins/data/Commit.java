@@ -5,7 +5,7 @@ import org.apache.commons.lang.builder.ToStringStyle;
 
 public class Commit {
 
-    private String id;
+    private Sha1 id;
 
     private String message;
 
@@ -19,11 +19,11 @@ public class Commit {
     }
 
     public String getId() {
-        return id;
+        return Sha1.toString(id);
     }
 
     public void setId(String id) {
-        this.id = id;
+        this.id = Sha1.of(id);
     }
 
     public String getMessage() {
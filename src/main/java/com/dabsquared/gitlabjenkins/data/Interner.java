@@ -0,0 +1,65 @@
+package com.dabsquared.gitlabjenkins.data;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Shares the strings repeated in every payload and build cause, like author names and emails,
+ * repository URLs and branch names, so that thousands of loaded builds hold one copy of each.
+ *
+ * The strings are held weakly, so a value no build refers to any more can be collected, and the
+ * interner is bounded: it is split in {@link #STRIPES} locked maps of at most
+ * {@link #MAX_ENTRIES} strings in total, and once a map is full new values are returned as they
+ * are. Strings longer than {@link #MAX_LENGTH}, like commit messages, are not interned.
+ */
+public final class Interner {
+
+    static final int MAX_ENTRIES = Integer.getInteger(Interner.class.getName() + ".maxEntries", 65536);
+    static final int MAX_LENGTH = 512;
+
+    private static final int STRIPES = 16;
+
+    @SuppressWarnings("unchecked")
+    private static final Map<String, WeakReference<String>>[] MAPS = new Map[STRIPES];
+
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            MAPS[i] = new WeakHashMap<String, WeakReference<String>>();
+        }
+    }
+
+    private Interner() {
+    }
+
+    /**
+     * @return the shared copy of the value
+     */
+    public static String intern(String value) {
+        if (value == null || value.length() > MAX_LENGTH) {
+            return value;
+        }
+        Map<String, WeakReference<String>> map = MAPS[(value.hashCode() & 0x7fffffff) % STRIPES];
+        synchronized (map) {
+            WeakReference<String> shared = map.get(value);
+            String existing = shared == null ? null : shared.get();
+            if (existing != null) {
+                return existing;
+            }
+            if (map.size() < MAX_ENTRIES / STRIPES) {
+                map.put(value, new WeakReference<String>(value));
+            }
+            return value;
+        }
+    }
+
+    static int size() {
+        int size = 0;
+        for (Map<String, WeakReference<String>> map : MAPS) {
+            synchronized (map) {
+                size += map.size();
+            }
+        }
+        return size;
+    }
+}
@@ -5,18 +5,18 @@ import org.apache.commons.lang.builder.ToStringStyle;
 
 public class LastCommit {
 
-    private String id;
+    private Sha1 id;
 
     private String message;
 
     private String url;
 
     public String getId() {
-        return id;
+        return Sha1.toString(id);
     }
 
     public void setId(String id) {
-        this.id = id;
+        this.id = Sha1.of(id);
     }
 
     public String getMessage() {
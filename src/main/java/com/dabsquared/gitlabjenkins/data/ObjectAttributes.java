@@ -47,6 +47,18 @@ public class ObjectAttributes {
     public ObjectAttributes() {
     }
 
+    /**
+     * Shares the branch names and states of merge requests loaded from build records.
+     */
+    private Object readResolve() {
+        targetBranch = Interner.intern(targetBranch);
+        sourceBranch = Interner.intern(sourceBranch);
+        state = Interner.intern(state);
+        mergeStatus = Interner.intern(mergeStatus);
+        action = Interner.intern(action);
+        return this;
+    }
+
     @Override
     public String toString() {
         return ToStringBuilder.reflectionToString(this, ToStringStyle.MULTI_LINE_STYLE);
@@ -73,7 +85,7 @@ public class ObjectAttributes {
     }
 
     public void setTargetBranch(String targetBranch) {
-        this.targetBranch = targetBranch;
+        this.targetBranch = Interner.intern(targetBranch);
     }
 
     public String getSourceBranch() {
@@ -81,7 +93,7 @@ public class ObjectAttributes {
     }
 
     public void setSourceBranch(String sourceBranch) {
-        this.sourceBranch = sourceBranch;
+        this.sourceBranch = Interner.intern(sourceBranch);
     }
 
     public Integer getSourceProjectId() {
@@ -151,7 +163,7 @@ public class ObjectAttributes {
     }
 
     public void setState(String state) {
-        this.state = state;
+        this.state = Interner.intern(state);
     }
 
     public String getMergeStatus() {
@@ -159,7 +171,7 @@ public class ObjectAttributes {
     }
 
     public void setMergeStatus(String mergeStatus) {
-        this.mergeStatus = mergeStatus;
+        this.mergeStatus = Interner.intern(mergeStatus);
     }
 
     public Integer getTargetProjectId() {
@@ -207,6 +219,6 @@ public class ObjectAttributes {
     }
 
     public void setAction(String action) {
-        this.action = action;
+        this.action = Interner.intern(action);
     }
 }
\ No newline at end of file
@@ -21,7 +21,7 @@ public class Repository {
     }
 
     public void setName(String name) {
-        this.name = name;
+        this.name = Interner.intern(name);
     }
 
     public String getUrl() {
@@ -29,7 +29,7 @@ public class Repository {
     }
 
     public void setUrl(String url) {
-        this.url = url;
+        this.url = Interner.intern(url);
     }
 
     public String getDescription() {
@@ -37,7 +37,7 @@ public class Repository {
     }
 
     public void setDescription(String description) {
-        this.description = description;
+        this.description = Interner.intern(description);
     }
 
     public String getHomepage() {
@@ -45,9 +45,19 @@ public class Repository {
     }
 
     public void setHomepage(String homepage) {
-        this.homepage = homepage;
+        this.homepage = Interner.intern(homepage);
     }
 
+    /**
+     * Shares the repository of build records loaded from disk with the payloads.
+     */
+    private Object readResolve() {
+        name = Interner.intern(name);
+        url = Interner.intern(url);
+        description = Interner.intern(description);
+        homepage = Interner.intern(homepage);
+        return this;
+    }
 
     @Override
     public String toString() {
@@ -0,0 +1,133 @@
+package com.dabsquared.gitlabjenkins.data;
+
+import com.thoughtworks.xstream.converters.basic.AbstractSingleValueConverter;
+
+/**
+ * A commit id held in 20 bytes instead of a string of 40 characters.
+ *
+ * Values that are not 40 lowercase hexadecimal digits, which GitLab does not send but older build
+ * records or tests may hold, are kept as they are. Build records store the hexadecimal form with
+ * {@link ConverterImpl}, so they look the same as when the ids were strings.
+ */
+public final class Sha1 {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final long high;
+    private final long middle;
+    private final int low;
+    /** the value if it is not a SHA1 */
+    private final String text;
+
+    private Sha1(long high, long middle, int low) {
+        this.high = high;
+        this.middle = middle;
+        this.low = low;
+        this.text = null;
+    }
+
+    private Sha1(String text) {
+        this.high = 0;
+        this.middle = 0;
+        this.low = 0;
+        this.text = text;
+    }
+
+    /**
+     * @return null for null
+     */
+    public static Sha1 of(String value) {
+        if (value == null) {
+            return null;
+        }
+        if (value.length() != 40) {
+            return new Sha1(Interner.intern(value));
+        }
+        long high = 0;
+        long middle = 0;
+        int low = 0;
+        for (int i = 0; i < 40; i++) {
+            int digit = digit(value.charAt(i));
+            if (digit < 0) {
+                return new Sha1(Interner.intern(value));
+            }
+            if (i < 16) {
+                high = high << 4 | digit;
+            } else if (i < 32) {
+                middle = middle << 4 | digit;
+            } else {
+                low = low << 4 | digit;
+            }
+        }
+        return new Sha1(high, middle, low);
+    }
+
+    /**
+     * @return null for null
+     */
+    public static String toString(Sha1 sha1) {
+        return sha1 == null ? null : sha1.toString();
+    }
+
+    private static int digit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        if (text != null) {
+            return text;
+        }
+        char[] hex = new char[40];
+        for (int i = 0; i < 16; i++) {
+            hex[i] = HEX[(int) (high >>> (60 - 4 * i)) & 0xf];
+            hex[16 + i] = HEX[(int) (middle >>> (60 - 4 * i)) & 0xf];
+        }
+        for (int i = 0; i < 8; i++) {
+            hex[32 + i] = HEX[(low >>> (28 - 4 * i)) & 0xf];
+        }
+        return new String(hex);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Sha1)) {
+            return false;
+        }
+        Sha1 other = (Sha1) o;
+        return high == other.high && middle == other.middle && low == other.low
+                && (text == null ? other.text == null : text.equals(other.text));
+    }
+
+    @Override
+    public int hashCode() {
+        return text != null ? text.hashCode() : (int) high;
+    }
+
+    /**
+     * Writes and reads the hexadecimal form in build records.
+     */
+    public static final class ConverterImpl extends AbstractSingleValueConverter {
+        @Override
+        @SuppressWarnings("rawtypes")
+        public boolean canConvert(Class type) {
+            return type == Sha1.class;
+        }
+
+        @Override
+        public Object fromString(String str) {
+            return of(str);
+        }
+
+        @Override
+        public String toString(Object obj) {
+            return obj == null ? null : obj.toString();
+        }
+    }
+}
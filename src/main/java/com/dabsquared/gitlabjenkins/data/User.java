@@ -27,7 +27,7 @@ public class User {
     }
 
     public void setName(String name) {
-        this.name = name;
+        this.name = Interner.intern(name);
     }
 
     public String getEmail() {
@@ -35,7 +35,16 @@ public class User {
     }
 
     public void setEmail(String email) {
-        this.email = email;
+        this.email = Interner.intern(email);
+    }
+
+    /**
+     * Shares the names and emails of the users of build records loaded from disk.
+     */
+    private Object readResolve() {
+        name = Interner.intern(name);
+        email = Interner.intern(email);
+        return this;
     }
 
     @Override
@@ -0,0 +1,19 @@
+// Checks a branch spec field again while the branches of the repository are loaded in the
+// background: the check answers with a span of class gitlab-branches-checking until they are.
+Behaviour.specify("span.gitlab-branches-checking", "gitlab-branches-checking", 0, function(span) {
+    var inputs = document.getElementsByTagName("input");
+    for (var i = 0; i < inputs.length; i++) {
+        var input = inputs[i];
+        if (input.targetElement && input.targetElement.contains && input.targetElement.contains(span)) {
+            input.gitlabBranchChecks = (input.gitlabBranchChecks || 0) + 1;
+            if (input.gitlabBranchChecks <= 30) {
+                window.setTimeout(function() {
+                    if (input.targetElement.contains(span) && typeof input.onchange == "function") {
+                        input.onchange();
+                    }
+                }, 1000);
+            }
+            return;
+        }
+    }
+});
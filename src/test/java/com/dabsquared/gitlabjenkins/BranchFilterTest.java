@@ -0,0 +1,37 @@
+package com.dabsquared.gitlabjenkins;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import hudson.util.FormValidation;
+
+import org.junit.Test;
+
+public class BranchFilterTest {
+
+    @Test
+    public void shouldMatchTheTargetBranchRegex() {
+        BranchFilter filter = new BranchFilter("RegexBasedFilter", "", "", "release-.*");
+
+        assertThat(filter.isBranchAllowed("release-1.0"), is(true));
+        assertThat(filter.isBranchAllowed("master"), is(false));
+    }
+
+    @Test
+    public void shouldAcceptAValidTargetBranchRegex() {
+        assertThat(GitLabPushTrigger.DescriptorImpl.checkTargetBranchRegex("release-.*").kind, is(FormValidation.Kind.OK));
+    }
+
+    @Test
+    public void shouldReportAnInvalidTargetBranchRegex() {
+        assertThat(GitLabPushTrigger.DescriptorImpl.checkTargetBranchRegex("release-(").kind, is(FormValidation.Kind.ERROR));
+    }
+
+    @Test
+    public void shouldIgnoreAnInvalidTargetBranchRegex() {
+        BranchFilter filter = new BranchFilter("RegexBasedFilter", "", "", "release-(");
+
+        assertThat(filter.isBranchAllowed("master"), is(false));
+        assertThat(filter.isBranchAllowed("release-("), is(false));
+    }
+}
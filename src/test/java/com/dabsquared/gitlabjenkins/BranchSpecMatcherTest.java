@@ -0,0 +1,36 @@
+package com.dabsquared.gitlabjenkins;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+import org.springframework.util.AntPathMatcher;
+
+public class BranchSpecMatcherTest {
+
+    private static final String[] SPECS = { "master", "release/*", "release/**", "**/hotfix", "feature/**/ui", "feat*",
+            "feature-?", "**", "*", "a.b", "v1.*", "team/*/wip", "**/*-stable", "release/**/**", "/master", "master/",
+            "a//b", "{name}" };
+
+    private static final String[] BRANCHES = { "master", "release", "release/1.0", "release/1.0/rc1", "hotfix",
+            "fix/hotfix", "team/a/hotfix", "feature/ui", "feature/x/y/ui", "feature", "feature-1", "feature-12",
+            "a.b", "axb", "v1.2", "v1-2", "team/bob/wip", "team/wip", "3.x-stable", "old/3.x-stable", "{name}" };
+
+    @Test
+    public void shouldMatchLikeTheAntPathMatcher() {
+        AntPathMatcher ant = new AntPathMatcher();
+        for (String spec : SPECS) {
+            BranchSpecMatcher matcher = BranchSpecMatcher.compile(spec);
+            for (String branch : BRANCHES) {
+                assertThat(spec + " on " + branch, matcher.matches(branch), is(ant.match(spec, branch)));
+            }
+        }
+    }
+
+    @Test
+    public void shouldQuoteTheLiteralParts() {
+        assertThat(BranchSpecMatcher.compile("v1.*").matches("v1.2"), is(true));
+        assertThat(BranchSpecMatcher.compile("v1.*").matches("v1x2"), is(false));
+        assertThat(BranchSpecMatcher.compile("a+b*").matches("a+bc"), is(true));
+    }
+}
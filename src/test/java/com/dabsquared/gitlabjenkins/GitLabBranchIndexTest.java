@@ -0,0 +1,45 @@
+package com.dabsquared.gitlabjenkins;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class GitLabBranchIndexTest {
+
+    private final GitLabBranchIndex index = new GitLabBranchIndex(Arrays.asList(
+            "feature/Login-Page", "master", "release-1.0", "Feature", "hotfix/login", "feature/logout", "bugfix/relogin"));
+
+    @Test
+    public void shouldRankExactThenPrefixThenPartThenSubstringMatches() {
+        assertThat(index.search("feature"), is(Arrays.asList("Feature", "feature/Login-Page", "feature/logout")));
+        assertThat(index.search("login"), is(Arrays.asList("hotfix/login", "feature/Login-Page", "bugfix/relogin")));
+        assertThat(index.search("LOG"), is(Arrays.asList("hotfix/login", "feature/Login-Page", "feature/logout",
+                "bugfix/relogin")));
+    }
+
+    @Test
+    public void shouldMatchPartsAfterAnySeparator() {
+        assertThat(index.search("page"), is(Arrays.asList("feature/Login-Page")));
+        assertThat(index.search("1.0"), is(Arrays.asList("release-1.0")));
+        assertThat(index.search("nothing"), is(Arrays.<String> asList()));
+    }
+
+    @Test
+    public void shouldCapTheSuggestions() {
+        List<String> branches = new ArrayList<String>();
+        for (int i = 0; i < 10000; i++) {
+            branches.add(String.format("feature/%05d", i));
+        }
+        GitLabBranchIndex large = new GitLabBranchIndex(branches);
+
+        assertThat(large.search("").size(), is(GitLabBranchIndex.MAX_SUGGESTIONS));
+        assertThat(large.search("f", 5), is(Arrays.asList("feature/00000", "feature/00001", "feature/00002",
+                "feature/00003", "feature/00004")));
+        assertThat(large.search("9999", 5), is(Arrays.asList("feature/09999")));
+    }
+}
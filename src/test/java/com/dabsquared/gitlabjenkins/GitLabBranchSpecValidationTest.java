@@ -0,0 +1,132 @@
+package com.dabsquared.gitlabjenkins;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import hudson.Util;
+import hudson.util.FormValidation;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.gitlab.api.GitlabAPI;
+import org.gitlab.api.models.GitlabBranch;
+import org.gitlab.api.models.GitlabProject;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GitLabBranchSpecValidationTest {
+
+    private static final String REPOSITORY = "git@git.example.com:group/project.git";
+
+    private final LinkedList<Runnable> loads = new LinkedList<Runnable>();
+    private final GitLabBranchSpecValidation validation = new GitLabBranchSpecValidation(100, new Executor() {
+        public void execute(Runnable command) {
+            loads.add(command);
+        }
+    });
+
+    private GitlabAPI api;
+    private GitLab gitlab;
+    private GitlabProject project;
+
+    @Before
+    public void setUp() throws IOException {
+        project = new GitlabProject();
+        project.setSshUrl(REPOSITORY);
+        project.setHttpUrl("http://git.example.com/group/project.git");
+        api = mock(GitlabAPI.class);
+        when(api.getProjects()).thenReturn(asList(project));
+        when(api.getBranches(project)).thenReturn(branches("master", "release/1.0", "release/2.0"));
+
+        gitlab = mock(GitLab.class);
+        when(gitlab.getName()).thenReturn("");
+        when(gitlab.readInstance()).thenReturn(api);
+        when(gitlab.getBranchesService()).thenReturn(new GitLabProjectBranchesService(new GitLabProjectBranchesService.TimeUtility()));
+    }
+
+    @Test
+    public void shouldAnswerRightAwayWhileTheBranchesAreLoaded() throws IOException {
+        FormValidation checking = validation.check(gitlab, REPOSITORY, asList("release/*"), false);
+        assertThat(checking.renderHtml(), containsString(GitLabBranchSpecValidation.CHECKING_CLASS));
+        // a second check does not load the branches twice
+        validation.check(gitlab, REPOSITORY, asList("release/*"), false);
+        assertThat(loads.size(), is(1));
+
+        loads.removeFirst().run();
+
+        FormValidation checked = validation.check(gitlab, REPOSITORY, asList("release/*"), false);
+        assertThat(checked.kind, is(FormValidation.Kind.OK));
+        assertThat(checked.getMessage(), is(Util.escape(Messages.GitLabPushTrigger_BranchesMatched(2))));
+        verify(api, times(1)).getBranches(project);
+    }
+
+    @Test
+    public void shouldKeepTheResultForTheBranchList() {
+        validation.check(gitlab, REPOSITORY, asList("master"), false);
+        loads.removeFirst().run();
+
+        FormValidation first = validation.check(gitlab, REPOSITORY, asList("master"), false);
+        assertThat(validation.check(gitlab, REPOSITORY, asList("master"), false) == first, is(true));
+    }
+
+    @Test
+    public void shouldShowTheFailureToLoadTheBranches() throws IOException {
+        when(api.getProjects()).thenThrow(new IOException("502 Bad Gateway"));
+        validation.check(gitlab, REPOSITORY, asList("master"), false);
+        loads.removeFirst().run();
+
+        FormValidation failed = validation.check(gitlab, REPOSITORY, asList("master"), false);
+        assertThat(failed.kind, is(FormValidation.Kind.WARNING));
+        assertThat(loads.isEmpty(), is(true));
+    }
+
+    @Test
+    public void shouldNotFindTheBranchesOfAnUnknownProject() throws IOException {
+        when(api.getProjects()).thenReturn(new ArrayList<GitlabProject>());
+        validation.check(gitlab, REPOSITORY, asList("master"), false);
+        loads.removeFirst().run();
+
+        FormValidation notFound = validation.check(gitlab, REPOSITORY, asList("master"), false);
+        assertThat(notFound.kind, is(FormValidation.Kind.WARNING));
+        assertThat(notFound.getMessage(), is(Util.escape(Messages.GitLabPushTrigger_BranchesNotFound("master"))));
+        assertThat(loads.isEmpty(), is(true));
+        verify(api, times(1)).getProjects();
+    }
+
+    @Test
+    public void shouldListTheSpecsMatchingNoBranch() {
+        FormValidation result = GitLabBranchSpecValidation.validate(asList("master", "develop", "release/**", "hotfix-*"),
+                asList("master", "release/1.0", "release/1.0/rc1"));
+
+        assertThat(result.kind, is(FormValidation.Kind.WARNING));
+        assertThat(result.getMessage(), is(Util.escape(Messages.GitLabPushTrigger_BranchesNotFound("develop, hotfix-*"))));
+    }
+
+    @Test
+    public void shouldCountEachMatchedBranchOnce() {
+        FormValidation result = GitLabBranchSpecValidation.validate(asList("master", "*", "release/**"),
+                asList("master", "develop", "release/1.0"));
+
+        assertThat(result.getMessage(), is(Util.escape(Messages.GitLabPushTrigger_BranchesMatched(3))));
+    }
+
+    private static List<GitlabBranch> branches(String... names) {
+        List<GitlabBranch> branches = new ArrayList<GitlabBranch>();
+        for (String name : names) {
+            GitlabBranch branch = new GitlabBranch();
+            branch.setName(name);
+            branches.add(branch);
+        }
+        return branches;
+    }
+}
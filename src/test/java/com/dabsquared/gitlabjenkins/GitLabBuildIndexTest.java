@@ -0,0 +1,120 @@
+package com.dabsquared.gitlabjenkins;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import hudson.model.Action;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.StringParameterValue;
+import hudson.plugins.git.Branch;
+import hudson.plugins.git.Revision;
+import hudson.plugins.git.util.Build;
+import hudson.plugins.git.util.BuildData;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.dabsquared.gitlabjenkins.benchmark.SyntheticJob;
+import com.dabsquared.gitlabjenkins.benchmark.SyntheticRun;
+
+public class GitLabBuildIndexTest {
+
+    private static final int BUILDS = 50;
+
+    private SyntheticJob job;
+
+    @Before
+    public void setUp() throws Exception {
+        job = SyntheticJob.create();
+        for (int number = 1; number <= BUILDS; number++) {
+            // every commit is built twice, once for the branch and once for a merge request
+            job.add(SyntheticRun.create(job, number, actions(number, (number + 1) / 2, number % 2 == 0)));
+        }
+        long timeout = System.currentTimeMillis() + 10000;
+        while (GitLabBuildIndex.of(job) == null && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        assertThat(GitLabBuildIndex.of(job), is(notNullValue()));
+    }
+
+    @Test
+    public void shouldFindTheSameBuildsAsTheScan() {
+        for (int commit = 1; commit <= BUILDS / 2 + 1; commit++) {
+            assertSameBuild(GitLabBuildHistory.getBuildBySHA1(job, sha(commit), false), scanBySHA1(sha(commit), false));
+            assertSameBuild(GitLabBuildHistory.getBuildBySHA1(job, sha(commit), true), scanBySHA1(sha(commit), true));
+            assertSameBuild(GitLabBuildHistory.getBuildByBranch(job, "feature-" + commit), scanByBranch("feature-" + commit));
+        }
+        assertThat(GitLabBuildHistory.getBuildByBranch(job, "feature-3").getNumber(), is(6));
+    }
+
+    @Test
+    public void shouldFindBuildsAddedAfterIndexing() {
+        job.add(SyntheticRun.create(job, BUILDS + 1, actions(BUILDS + 1, 3, false)));
+
+        assertThat(GitLabBuildHistory.getBuildByBranch(job, "feature-3").getNumber(), is(BUILDS + 1));
+        assertThat(GitLabBuildHistory.getBuildBySHA1(job, sha(3), false).getNumber(), is(BUILDS + 1));
+    }
+
+    @Test
+    public void shouldStillMatchAbbreviatedSHA1ByScanning() {
+        assertThat(GitLabBuildHistory.getBuildBySHA1(job, sha(7).substring(30), false).getNumber(), is(14));
+    }
+
+    private void assertSameBuild(Run<?, ?> actual, Run<?, ?> expected) {
+        if (expected == null) {
+            assertThat(actual, is(nullValue()));
+        } else {
+            assertThat(actual.getNumber(), is(expected.getNumber()));
+        }
+    }
+
+    private Run<?, ?> scanBySHA1(String sha1, boolean mergeRequest) {
+        for (Run<?, ?> build : job.getBuilds()) {
+            if (GitLabBuildHistory.isBuildOf(build, sha1, mergeRequest)) {
+                return build;
+            }
+        }
+        return null;
+    }
+
+    private Run<?, ?> scanByBranch(String branch) {
+        for (Run<?, ?> build : job.getBuilds()) {
+            if (GitLabBuildHistory.isBuildOfBranch(build, branch)) {
+                return build;
+            }
+        }
+        return null;
+    }
+
+    private static List<Action> actions(int number, int commit, boolean pushBuild) {
+        ObjectId sha1 = ObjectId.fromString(sha(commit));
+        String branchName = "feature-" + commit;
+        Revision revision = new Revision(sha1, Collections.singletonList(new Branch("origin/" + branchName, sha1)));
+
+        BuildData buildData = new BuildData();
+        buildData.saveBuild(new Build(revision, number, Result.SUCCESS));
+
+        List<ParameterValue> parameters = new ArrayList<ParameterValue>();
+        parameters.add(new StringParameterValue("gitlabSourceBranch", branchName));
+        parameters.add(new StringParameterValue("gitlabTargetBranch", pushBuild ? branchName : "master"));
+
+        List<Action> actions = new ArrayList<Action>();
+        actions.add(buildData);
+        actions.add(new ParametersAction(parameters));
+        return actions;
+    }
+
+    private static String sha(int number) {
+        return String.format("%040x", number);
+    }
+}
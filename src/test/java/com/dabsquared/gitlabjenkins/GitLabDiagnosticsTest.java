@@ -0,0 +1,74 @@
+package com.dabsquared.gitlabjenkins;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import hudson.security.ACL;
+import hudson.security.FullControlOnceLoggedInAuthorizationStrategy;
+
+import java.io.IOException;
+
+import jenkins.model.Jenkins;
+
+import org.acegisecurity.AccessDeniedException;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.gitlab.api.GitlabAPI;
+import org.gitlab.api.models.GitlabProject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class GitLabDiagnosticsTest {
+
+    @Rule
+    public JenkinsRule jenkins = new JenkinsRule();
+
+    private final GitLabDiagnostics diagnostics = new GitLabDiagnostics();
+
+    @Before
+    public void setUp() throws IOException {
+        jenkins.jenkins.setSecurityRealm(jenkins.createDummySecurityRealm());
+        jenkins.jenkins.setAuthorizationStrategy(new FullControlOnceLoggedInAuthorizationStrategy());
+
+        GitlabProject project = new GitlabProject();
+        project.setSshUrl("git@git.example.com:group/project.git");
+        project.setHttpUrl("http://git.example.com/group/project.git");
+        GitlabAPI api = mock(GitlabAPI.class);
+        when(api.getProjects()).thenReturn(asList(project));
+        GitLab gitlab = mock(GitLab.class);
+        when(gitlab.readInstance()).thenReturn(api);
+        // the cache of the default server
+        GitLabProjectBranchesService.instance().refreshGitLabProjectMap(gitlab);
+    }
+
+    @Test
+    public void shouldLetOnlyAdministratorsFlushTheCaches() throws IOException {
+        SecurityContext previous = ACL.impersonate(Jenkins.ANONYMOUS);
+        try {
+            diagnostics.doFlush("", "projects");
+            fail("flushed without the ADMINISTER permission");
+        } catch (AccessDeniedException expected) {
+            assertThat(GitLabProjectBranchesService.instance().getProjectCacheSize(), is(1));
+        } finally {
+            SecurityContextHolder.setContext(previous);
+        }
+    }
+
+    @Test
+    public void shouldFlushTheProjectsOfTheServer() throws IOException {
+        SecurityContext previous = ACL.impersonate(ACL.SYSTEM);
+        try {
+            diagnostics.doFlush("", "projects");
+        } finally {
+            SecurityContextHolder.setContext(previous);
+        }
+
+        assertThat(GitLabProjectBranchesService.instance().getProjectCacheSize(), is(0));
+        assertThat(GitLabProjectBranchesService.instance().getProjectCacheBytes(), is(0L));
+    }
+}
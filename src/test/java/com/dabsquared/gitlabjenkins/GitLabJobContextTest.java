@@ -0,0 +1,80 @@
+package com.dabsquared.gitlabjenkins;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import hudson.model.Job;
+import hudson.model.ParameterDefinition;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.StringParameterValue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class GitLabJobContextTest {
+
+    @Test
+    public void shouldAskTheDefaultParameterValuesForEachBuild() {
+        ParameterDefinition definition = mock(ParameterDefinition.class);
+        when(definition.getName()).thenReturn("LAST_BUILD");
+        when(definition.getDefaultParameterValue()).thenReturn(new StringParameterValue("LAST_BUILD", "1"),
+                new StringParameterValue("LAST_BUILD", "2"));
+        Job<?, ?> job = job("context-defaults", new ParametersDefinitionProperty(Arrays.asList(definition)));
+
+        GitLabJobContext context = GitLabJobContext.of(job);
+
+        assertThat(value(context, "LAST_BUILD"), is("1"));
+        assertThat(value(context, "LAST_BUILD"), is("2"));
+    }
+
+    @Test
+    public void shouldHandOutAMapPerBuild() {
+        Job<?, ?> job = job("context-map", null);
+        GitLabJobContext context = GitLabJobContext.of(job);
+
+        context.getDefaultParameters().put("gitlabSourceBranch", new StringParameterValue("gitlabSourceBranch", "master"));
+
+        assertThat(context.getDefaultParameters().isEmpty(), is(true));
+    }
+
+    @Test
+    public void shouldBuildTheContextAgainOnceTheJobIsSaved() {
+        Job<?, ?> job = job("context-saved", null);
+        GitLabJobContext context = GitLabJobContext.of(job);
+        assertThat(GitLabJobContext.of(job), is(sameInstance(context)));
+
+        new GitLabJobContext.SaveableListenerImpl().onChange(job, null);
+
+        GitLabJobContext rebuilt = GitLabJobContext.of(job);
+        assertThat(rebuilt, is(not(sameInstance(context))));
+        assertThat(GitLabJobContext.of(job), is(sameInstance(rebuilt)));
+    }
+
+    @Test
+    public void shouldBuildTheContextAgainOnceTheJobIsRenamed() {
+        Job<?, ?> job = job("context-renamed", null);
+        GitLabJobContext context = GitLabJobContext.of(job);
+
+        new GitLabJobContext.ItemListenerImpl().onLocationChanged(job, "context-renamed", "context-moved");
+
+        assertThat(GitLabJobContext.of(job), is(not(sameInstance(context))));
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static Job<?, ?> job(String fullName, ParametersDefinitionProperty parameters) {
+        Job job = mock(Job.class);
+        when(job.getFullName()).thenReturn(fullName);
+        when(job.getProperty(ParametersDefinitionProperty.class)).thenReturn(parameters);
+        return job;
+    }
+
+    private static String value(GitLabJobContext context, String name) {
+        ParameterValue value = context.getDefaultParameters().get(name);
+        return (String) value.getValue();
+    }
+}
@@ -0,0 +1,193 @@
+package com.dabsquared.gitlabjenkins;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class GitLabMergeRequestNotesTest {
+
+    private final List<Runnable> scheduled = new ArrayList<Runnable>();
+    private final List<String> sent = new ArrayList<String>();
+    private final ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+
+    private final GitLabMergeRequestNotes.Api api = new GitLabMergeRequestNotes.Api() {
+        public Integer create(GitLab gitlab, Integer projectId, Integer mergeRequestId, String body) {
+            sent.add("create " + body);
+            return 42;
+        }
+
+        public void update(GitLab gitlab, Integer projectId, Integer mergeRequestId, Integer noteId, String body) throws IOException {
+            if (noteId != 42) {
+                throw new FileNotFoundException("http://gitlab/api/v3/projects/1/merge_requests/10/notes/" + noteId);
+            }
+            sent.add("update " + noteId + " " + body);
+        }
+    };
+
+    private final GitLabMergeRequestNotes notes = new GitLabMergeRequestNotes(100, 2000, api, scheduler);
+
+    {
+        when(scheduler.schedule(any(Runnable.class), anyLong(), eq(TimeUnit.MILLISECONDS))).thenAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) {
+                scheduled.add((Runnable) invocation.getArguments()[0]);
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void shouldCreateTheNoteOnceAndThenEditIt() {
+        notes.post(null, "job", 1, 10, "first");
+        runScheduled();
+        notes.post(null, "job", 1, 10, "second");
+        runScheduled();
+
+        assertThat(sent.toString(), is("[create first, update 42 second]"));
+    }
+
+    @Test
+    public void shouldSendOnlyTheLastOfTheResultsPostedTogether() {
+        notes.post(null, "job", 1, 10, "first");
+        notes.post(null, "job", 1, 10, "second");
+        notes.post(null, "job", 1, 10, "third");
+        runScheduled();
+
+        assertThat(sent.toString(), is("[create third]"));
+        verify(scheduler, times(1)).schedule(any(Runnable.class), anyLong(), eq(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void shouldKeepOneNotePerJob() {
+        notes.post(null, "job", 1, 10, "job");
+        notes.post(null, "other", 1, 10, "other");
+        runScheduled();
+
+        assertThat(sent.toString(), is("[create job, create other]"));
+    }
+
+    @Test
+    public void shouldRememberTheNoteIdsAcrossRestarts() throws IOException {
+        File file = File.createTempFile("notes", ".bin");
+        try {
+            GitLabMergeRequestNotes saved = new GitLabMergeRequestNotes(100, 2000, api, scheduler);
+            saved.post(null, "job", 1, 10, "first");
+            runScheduled();
+            saved.writeTo(file);
+            notes.readFrom(file);
+        } finally {
+            file.delete();
+        }
+        assertThat(notes.getNoteId("job", 1, 10), is(42));
+    }
+
+    @Test
+    public void shouldCreateANewNoteWhenTheNoteCannotBeEdited() {
+        GitLabMergeRequestNotes deleted = new GitLabMergeRequestNotes(100, 2000, new GitLabMergeRequestNotes.Api() {
+            public Integer create(GitLab gitlab, Integer projectId, Integer mergeRequestId, String body) {
+                sent.add("create " + body);
+                return 43;
+            }
+
+            public void update(GitLab gitlab, Integer projectId, Integer mergeRequestId, Integer noteId, String body) throws IOException {
+                throw new FileNotFoundException("http://gitlab/api/v3/projects/1/merge_requests/10/notes/" + noteId);
+            }
+        }, scheduler);
+        deleted.post(null, "job", 1, 10, "first");
+        runScheduled();
+        deleted.post(null, "job", 1, 10, "second");
+        runScheduled();
+
+        assertThat(deleted.getNoteId("job", 1, 10), is(43));
+        assertThat(sent.toString(), is("[create first, create second]"));
+    }
+
+    @Test
+    public void shouldEditTheNoteAgainRatherThanCreateAnotherOne() {
+        final int[] failures = { 1 };
+        GitLabMergeRequestNotes outage = new GitLabMergeRequestNotes(100, 2000, new GitLabMergeRequestNotes.Api() {
+            public Integer create(GitLab gitlab, Integer projectId, Integer mergeRequestId, String body) {
+                sent.add("create " + body);
+                return 45;
+            }
+
+            public void update(GitLab gitlab, Integer projectId, Integer mergeRequestId, Integer noteId, String body) throws IOException {
+                if (failures[0]-- > 0) {
+                    throw new IOException("Server returned HTTP response code: 502 for URL: http://gitlab/api/v3/projects/1");
+                }
+                sent.add("update " + noteId + " " + body);
+            }
+        }, scheduler);
+        outage.post(null, "job", 1, 10, "first");
+        runScheduled();
+        outage.post(null, "job", 1, 10, "second");
+        runScheduled();
+
+        assertThat(sent.toString(), is("[create first, update 45 second]"));
+    }
+
+    @Test
+    public void shouldSendAgainTheNoteItCouldNotCreate() {
+        final int[] failures = { 1 };
+        GitLabMergeRequestNotes outage = new GitLabMergeRequestNotes(100, 2000, new GitLabMergeRequestNotes.Api() {
+            public Integer create(GitLab gitlab, Integer projectId, Integer mergeRequestId, String body) throws IOException {
+                if (failures[0]-- > 0) {
+                    throw new IOException("502 Bad Gateway");
+                }
+                sent.add("create " + body);
+                return 44;
+            }
+
+            public void update(GitLab gitlab, Integer projectId, Integer mergeRequestId, Integer noteId, String body) {
+                sent.add("update " + noteId + " " + body);
+            }
+        }, scheduler);
+        outage.post(null, "job", 1, 10, "first");
+        scheduled.remove(0).run();
+        outage.post(null, "job", 1, 10, "second");
+        runScheduled();
+
+        assertThat(outage.getNoteId("job", 1, 10), is(44));
+        assertThat(sent.toString(), is("[create second]"));
+    }
+
+    @Test
+    public void shouldGiveUpAfterTheLastRetry() {
+        GitLabMergeRequestNotes down = new GitLabMergeRequestNotes(100, 2000, new GitLabMergeRequestNotes.Api() {
+            public Integer create(GitLab gitlab, Integer projectId, Integer mergeRequestId, String body) throws IOException {
+                sent.add("create " + body);
+                throw new IOException("502 Bad Gateway");
+            }
+
+            public void update(GitLab gitlab, Integer projectId, Integer mergeRequestId, Integer noteId, String body) {
+            }
+        }, scheduler);
+        down.post(null, "job", 1, 10, "first");
+        runScheduled();
+
+        assertThat(sent.size(), is(GitLabMergeRequestNotes.MAX_RETRIES + 1));
+    }
+
+    private void runScheduled() {
+        while (!scheduled.isEmpty()) {
+            scheduled.remove(0).run();
+        }
+    }
+}
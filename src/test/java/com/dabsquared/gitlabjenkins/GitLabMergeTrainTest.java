@@ -0,0 +1,97 @@
+package com.dabsquared.gitlabjenkins;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static com.dabsquared.gitlabjenkins.testhelpers.GitLabMergeRequests.iids;
+import static com.dabsquared.gitlabjenkins.testhelpers.GitLabMergeRequests.mergeRequest;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.dabsquared.gitlabjenkins.GitLabMergeTrain.Train;
+
+public class GitLabMergeTrainTest {
+
+    private final Train train = new Train();
+
+    @Test
+    public void shouldAcceptTheWholeBatchWhenItsBuildSucceeds() {
+        train.add(mergeRequest(1, "a"));
+        assertThat(iids(train.depart(8)), is(Arrays.asList(1)));
+        train.add(mergeRequest(2, "b"));
+        train.add(mergeRequest(3, "c"));
+        assertThat(train.depart(8), is(nullValue()));
+
+        assertThat(iids(train.arrive(1, true).accepted), is(Arrays.asList(1)));
+        assertThat(iids(train.depart(8)), is(Arrays.asList(2, 3)));
+        assertThat(iids(train.arrive(2, true).accepted), is(Arrays.asList(2, 3)));
+        assertThat(train.isEmpty(), is(true));
+    }
+
+    @Test
+    public void shouldBisectAFailingBatch() {
+        for (int iid = 1; iid <= 4; iid++) {
+            train.add(mergeRequest(iid, "commit-" + iid));
+        }
+        assertThat(iids(train.depart(8)), is(Arrays.asList(1, 2, 3, 4)));
+        assertThat(iids(train.arrive(1, false).accepted), is(Arrays.<Integer> asList()));
+
+        assertThat(iids(train.depart(8)), is(Arrays.asList(1, 2)));
+        assertThat(iids(train.arrive(2, true).accepted), is(Arrays.asList(1, 2)));
+        assertThat(iids(train.depart(8)), is(Arrays.asList(3, 4)));
+        train.arrive(3, false);
+        assertThat(iids(train.depart(8)), is(Arrays.asList(3)));
+        assertThat(iids(train.arrive(4, false).rejected), is(Arrays.asList(3)));
+        assertThat(iids(train.depart(8)), is(Arrays.asList(4)));
+        assertThat(iids(train.arrive(5, true).accepted), is(Arrays.asList(4)));
+        assertThat(train.isEmpty(), is(true));
+    }
+
+    @Test
+    public void shouldNotAcceptAMergeRequestUpdatedWhileItsBatchIsBuilding() {
+        train.add(mergeRequest(1, "a"));
+        train.add(mergeRequest(2, "b"));
+        train.depart(8);
+        train.add(mergeRequest(2, "b2"));
+
+        assertThat(iids(train.arrive(1, true).accepted), is(Arrays.asList(1)));
+        List<GitLabMergeRequest> next = train.depart(8);
+        assertThat(next.get(0).getObjectAttribute().getLastCommit().getId(), is("b2"));
+    }
+
+    @Test
+    public void shouldIgnoreTheArrivalOfAnOldCar() {
+        train.add(mergeRequest(1, "a"));
+        train.depart(8);
+        train.cancelled();
+        train.depart(8);
+
+        assertThat(train.arrive(1, true), is(nullValue()));
+        assertThat(iids(train.arrive(2, true).accepted), is(Arrays.asList(1)));
+    }
+
+    @Test
+    public void shouldPutBackTheBatchOfACancelledCar() {
+        train.add(mergeRequest(1, "a"));
+        train.add(mergeRequest(2, "b"));
+        train.depart(8);
+
+        assertThat(train.cancelled(2), is(false));
+        assertThat(train.cancelled(1), is(true));
+        assertThat(train.isEmpty(), is(false));
+        train.add(mergeRequest(3, "c"));
+        assertThat(iids(train.depart(8)), is(Arrays.asList(1, 2, 3)));
+        assertThat(train.cancelled(1), is(false));
+    }
+
+    @Test
+    public void shouldLimitTheCarsOfABatch() {
+        for (int iid = 1; iid <= 3; iid++) {
+            train.add(mergeRequest(iid, "commit-" + iid));
+        }
+        assertThat(iids(train.depart(2)), is(Arrays.asList(1, 2)));
+    }
+}
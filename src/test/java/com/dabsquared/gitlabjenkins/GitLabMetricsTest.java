@@ -0,0 +1,120 @@
+package com.dabsquared.gitlabjenkins;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import com.dabsquared.gitlabjenkins.GitLabMetrics.ApiMethod;
+import com.dabsquared.gitlabjenkins.GitLabMetrics.Cache;
+import com.dabsquared.gitlabjenkins.GitLabMetrics.Event;
+import com.dabsquared.gitlabjenkins.GitLabMetrics.Outcome;
+
+public class GitLabMetricsTest {
+
+    @Test
+    public void shouldCountTheDurationsInTheirBuckets() {
+        GitLabMetrics.Histogram histogram = new GitLabMetrics.Histogram();
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(500));
+        // a bound belongs to its bucket
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(1));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(20));
+        histogram.record(TimeUnit.SECONDS.toNanos(60));
+
+        String text = write(histogram, null);
+
+        assertThat(histogram.getCount(), is(4L));
+        assertThat(text, containsString("latency_bucket{le=\"0.001\"} 2\n"));
+        assertThat(text, containsString("latency_bucket{le=\"0.01\"} 2\n"));
+        assertThat(text, containsString("latency_bucket{le=\"0.025\"} 3\n"));
+        assertThat(text, containsString("latency_bucket{le=\"30.0\"} 3\n"));
+        assertThat(text, containsString("latency_bucket{le=\"+Inf\"} 4\n"));
+        assertThat(text, containsString("latency_sum 60.0215\n"));
+        assertThat(text, containsString("latency_count 4\n"));
+    }
+
+    @Test
+    public void shouldLabelTheSeriesOfAHistogram() {
+        GitLabMetrics.Histogram histogram = new GitLabMetrics.Histogram();
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(2));
+
+        String text = write(histogram, "method=\"get_branch\"");
+
+        assertThat(text, containsString("latency_bucket{method=\"get_branch\",le=\"0.005\"} 1\n"));
+        assertThat(text, containsString("latency_count{method=\"get_branch\"} 1\n"));
+    }
+
+    @Test
+    public void shouldExportTheCounters() throws IOException {
+        String before = export();
+        GitLabMetrics.recordRequest(Event.REDIRECT, Outcome.TOO_LARGE, TimeUnit.MILLISECONDS.toNanos(3));
+        GitLabMetrics.recordApiCall(ApiMethod.ACCEPT_MERGE_REQUEST, false, System.nanoTime());
+        GitLabMetrics.recordCacheLookup(Cache.BRANCHES, true);
+        GitLabMetrics.recordCacheLookup(Cache.BRANCHES, false);
+        GitLabMetrics.recordCacheLookup(Cache.BRANCHES, false);
+        GitLabMetrics.duplicateDropped();
+
+        String after = export();
+
+        assertThat(increase(before, after, "gitlab_webhook_requests_total{event=\"redirect\",outcome=\"too_large\"}"), is(1L));
+        assertThat(increase(before, after, "gitlab_webhook_requests_total{event=\"redirect\",outcome=\"ok\"}"), is(0L));
+        assertThat(increase(before, after, "gitlab_webhook_request_duration_seconds_bucket{event=\"redirect\",le=\"0.005\"}"), is(1L));
+        assertThat(increase(before, after, "gitlab_api_calls_total{method=\"accept_merge_request\",outcome=\"error\"}"), is(1L));
+        assertThat(increase(before, after, "gitlab_api_calls_total{method=\"accept_merge_request\",outcome=\"ok\"}"), is(0L));
+        assertThat(increase(before, after, "gitlab_cache_requests_total{cache=\"branches\",result=\"hit\"}"), is(1L));
+        assertThat(increase(before, after, "gitlab_cache_requests_total{cache=\"branches\",result=\"miss\"}"), is(2L));
+        assertThat(increase(before, after, "gitlab_webhook_duplicate_events_total"), is(1L));
+        assertThat(after, containsString("# TYPE gitlab_webhook_requests_total counter\n"));
+        assertThat(after, containsString("# TYPE gitlab_api_call_duration_seconds histogram\n"));
+    }
+
+    @Test
+    public void shouldServeThePrometheusTextFormat() throws IOException {
+        StaplerResponse rsp = mock(StaplerResponse.class);
+        when(rsp.getWriter()).thenReturn(new PrintWriter(new StringWriter()));
+
+        new GitLabMetrics().doIndex(mock(StaplerRequest.class), rsp);
+
+        verify(rsp).setContentType("text/plain; version=0.0.4; charset=UTF-8");
+    }
+
+    private static String write(GitLabMetrics.Histogram histogram, String labels) {
+        StringWriter text = new StringWriter();
+        PrintWriter w = new PrintWriter(text);
+        histogram.write(w, "latency", labels);
+        w.flush();
+        return text.toString().replace(System.getProperty("line.separator"), "\n");
+    }
+
+    private static String export() throws IOException {
+        StringWriter text = new StringWriter();
+        StaplerResponse rsp = mock(StaplerResponse.class);
+        when(rsp.getWriter()).thenReturn(new PrintWriter(text));
+        new GitLabMetrics().doIndex(mock(StaplerRequest.class), rsp);
+        return text.toString().replace(System.getProperty("line.separator"), "\n");
+    }
+
+    private static long increase(String before, String after, String series) {
+        return value(after, series) - value(before, series);
+    }
+
+    private static long value(String text, String series) {
+        for (String line : text.split("\n")) {
+            if (line.startsWith(series + " ")) {
+                return Long.parseLong(line.substring(series.length() + 1));
+            }
+        }
+        throw new AssertionError(series + " is not exported");
+    }
+}
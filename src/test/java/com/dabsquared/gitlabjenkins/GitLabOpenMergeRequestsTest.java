@@ -0,0 +1,74 @@
+package com.dabsquared.gitlabjenkins;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static com.dabsquared.gitlabjenkins.testhelpers.GitLabMergeRequests.attributeIids;
+import static com.dabsquared.gitlabjenkins.testhelpers.GitLabMergeRequests.attributes;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.dabsquared.gitlabjenkins.GitLabOpenMergeRequests.ProjectMergeRequests;
+import com.dabsquared.gitlabjenkins.data.LastCommit;
+import com.dabsquared.gitlabjenkins.data.ObjectAttributes;
+
+public class GitLabOpenMergeRequestsTest {
+
+    private final ProjectMergeRequests project = new ProjectMergeRequests(null, 1);
+
+    @Test
+    public void shouldFindMergeRequestsBySourceAndTargetBranch() {
+        project.load(Arrays.asList(attributes(1, "feature", "master", "opened", 0), attributes(2, "fix", "feature", "opened", 0)));
+
+        assertThat(attributeIids(project.find("feature", false)), is(Arrays.asList(1)));
+        assertThat(attributeIids(project.find("feature", true)), is(Arrays.asList(1, 2)));
+        assertThat(attributeIids(project.find("master", false)), is(Arrays.<Integer> asList()));
+    }
+
+    @Test
+    public void shouldFollowTheMergeRequestWebhooks() {
+        project.load(Arrays.asList(attributes(1, "feature", "master", "opened", 0)));
+
+        project.update(attributes(2, "fix", "master", "opened", 1));
+        project.update(attributes(1, "feature", "release", "opened", 2));
+        assertThat(attributeIids(project.find("master", true)), is(Arrays.asList(2)));
+        assertThat(attributeIids(project.find("release", true)), is(Arrays.asList(1)));
+
+        project.update(attributes(2, "fix", "master", "merged", 3));
+        project.update(attributes(1, "feature", "release", "closed", 3));
+        assertThat(attributeIids(project.find("master", true)), is(Arrays.<Integer> asList()));
+        assertThat(attributeIids(project.find("feature", true)), is(Arrays.<Integer> asList()));
+    }
+
+    @Test
+    public void shouldIgnoreWebhooksDeliveredOutOfOrder() {
+        project.update(attributes(1, "feature", "master", "opened", 5));
+        project.update(attributes(1, "feature", "master", "closed", 4));
+
+        assertThat(attributeIids(project.find("feature", false)), is(Arrays.asList(1)));
+    }
+
+    @Test
+    public void shouldKeepTheLastCommitOfTheWebhooksWhenReconciling() {
+        ObjectAttributes updated = attributes(1, "feature", "master", "opened", 1);
+        updated.setLastCommit(new LastCommit());
+        updated.getLastCommit().setId("abc");
+        project.update(updated);
+
+        project.load(Arrays.asList(attributes(1, "feature", "master", "opened", 2), attributes(2, "fix", "master", "opened", 2)));
+
+        assertThat(project.find("feature", false).get(0).getLastCommit().getId(), is("abc"));
+        assertThat(project.find("fix", false).get(0).getLastCommit(), is(nullValue()));
+    }
+
+    @Test
+    public void shouldReturnCopies() {
+        project.load(Arrays.asList(attributes(1, "feature", "master", "opened", 0)));
+
+        project.find("feature", false).get(0).setTargetBranch("changed");
+
+        assertThat(project.find("feature", false).get(0).getTargetBranch(), is("master"));
+    }
+}
@@ -0,0 +1,182 @@
+package com.dabsquared.gitlabjenkins;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class GitLabOutboxTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+    private final ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+    private int failAfter = Integer.MAX_VALUE;
+    private String refused;
+
+    private final GitLabOutbox.Sender sender = new GitLabOutbox.Sender() {
+        public void send(GitLabOutbox.Delivery delivery) throws IOException {
+            if (sent.size() >= failAfter) {
+                throw new IOException("502 Bad Gateway");
+            }
+            if (delivery.sha != null && delivery.sha.equals(refused)) {
+                throw new IOException("Server returned HTTP response code: 403 for URL: http://gitlab/api/v3/projects/1/statuses/"
+                        + delivery.sha);
+            }
+            sent.add(delivery.kind == GitLabOutbox.Delivery.STATUS ? delivery.sha + " " + delivery.status : "note " + delivery.body);
+        }
+    };
+
+    private final GitLabOutbox outbox = new GitLabOutbox(null, 100, sender, null);
+
+    @Test
+    public void shouldSendOnlyTheLastStatusOfACommit() throws InterruptedException {
+        outbox.statusFailed("", 1, "abc", "pending", "abc", "Jenkins", null, null);
+        outbox.statusFailed("", 1, "abc", "running", "abc", "Jenkins", null, null);
+        outbox.statusFailed("", 1, "def", "running", "def", "Jenkins", null, null);
+        outbox.statusFailed("", 1, "abc", "success", "abc", "Jenkins", null, null);
+
+        assertThat(outbox.size(), is(2));
+        assertThat(outbox.replay(50, 1000), is(2));
+        assertThat(sent.toString(), is("[def running, abc success]"));
+        assertThat(outbox.size(), is(0));
+    }
+
+    @Test
+    public void shouldForgetAStatusWhenALaterOneIsSent() throws InterruptedException {
+        outbox.statusFailed("", 1, "abc", "running", "abc", "Jenkins", null, null);
+        outbox.statusSending("", 1, "abc", "Jenkins");
+
+        assertThat(outbox.size(), is(0));
+        assertThat(outbox.replay(50, 1000), is(0));
+    }
+
+    @Test
+    public void shouldSendALaterStatusOnlyOnceTheEarlierOneIsSent() throws InterruptedException {
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch answered = new CountDownLatch(1);
+        final GitLabOutbox slow = new GitLabOutbox(null, 100, new GitLabOutbox.Sender() {
+            public void send(GitLabOutbox.Delivery delivery) throws IOException {
+                sending.countDown();
+                try {
+                    answered.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                sent.add(delivery.sha + " " + delivery.status);
+            }
+        }, null);
+        slow.statusFailed("", 1, "abc", "running", "abc", "Jenkins", null, null);
+        Thread replay = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    slow.replay(50, 1000);
+                } catch (InterruptedException e) {
+                    // the test fails below
+                }
+            }
+        };
+        replay.start();
+        sending.await();
+
+        Thread later = new Thread() {
+            @Override
+            public void run() {
+                slow.statusSending("", 1, "abc", "Jenkins");
+                sent.add("abc success");
+            }
+        };
+        later.start();
+        later.join(200);
+        assertThat(later.isAlive(), is(true));
+
+        answered.countDown();
+        later.join();
+        replay.join();
+        assertThat(sent.toString(), is("[abc running, abc success]"));
+        assertThat(slow.size(), is(0));
+    }
+
+    @Test
+    public void shouldStopAtTheFirstFailureAndRetryLater() throws InterruptedException {
+        outbox.statusFailed("", 1, "abc", "success", "abc", "Jenkins", null, null);
+        outbox.noteFailed("", 1, 10, "Build passed");
+        outbox.statusFailed("", 1, "def", "failed", "def", "Jenkins", null, null);
+        failAfter = 1;
+
+        assertThat(outbox.replay(50, 1000), is(1));
+        assertThat(outbox.size(), is(2));
+
+        failAfter = Integer.MAX_VALUE;
+        assertThat(outbox.replay(50, 1000), is(2));
+        assertThat(sent.toString(), is("[abc success, note Build passed, def failed]"));
+    }
+
+    @Test
+    public void shouldDropTheDeliveriesGitLabRefuses() throws InterruptedException {
+        outbox.statusFailed("", 1, "abc", "success", "abc", "Jenkins", null, null);
+        outbox.statusFailed("", 1, "def", "failed", "def", "Jenkins", null, null);
+        refused = "abc";
+
+        assertThat(outbox.replay(50, 1000), is(2));
+        assertThat(sent.toString(), is("[def failed]"));
+        assertThat(outbox.size(), is(0));
+    }
+
+    @Test
+    public void shouldSendAtMostABatchPerRound() throws InterruptedException {
+        for (int i = 0; i < 5; i++) {
+            outbox.statusFailed("", 1, "sha" + i, "success", "sha" + i, "Jenkins", null, null);
+        }
+
+        assertThat(outbox.replay(3, 1000), is(3));
+        assertThat(outbox.size(), is(2));
+    }
+
+    @Test
+    public void shouldDropTheOldestDeliveriesWhenFull() {
+        GitLabOutbox small = new GitLabOutbox(null, 2, sender, null);
+        small.statusFailed("", 1, "abc", "success", "abc", "Jenkins", null, null);
+        small.statusFailed("", 1, "def", "success", "def", "Jenkins", null, null);
+        small.statusFailed("", 1, "ghi", "success", "ghi", "Jenkins", null, null);
+
+        assertThat(small.size(), is(2));
+    }
+
+    @Test
+    public void shouldKeepTheDeliveriesAcrossRestarts() throws IOException, InterruptedException {
+        File file = new File(folder.getRoot(), "outbox.bin");
+        GitLabOutbox saved = new GitLabOutbox(file, 100, sender, scheduler);
+        saved.statusFailed("other", 1, "abc", "success", "abc", "Jenkins", "http://jenkins/job/a/1/", null);
+        saved.noteFailed("other", 1, 10, "Build passed");
+        // both changes are written by the one write scheduled
+        verify(scheduler, times(1)).schedule(any(Runnable.class), anyLong(), eq(TimeUnit.MILLISECONDS));
+        assertThat(file.exists(), is(false));
+        saved.flush();
+
+        outbox.readFrom(file);
+
+        assertThat(outbox.size(), is(2));
+        assertThat(outbox.replay(50, 1000), is(2));
+        assertThat(sent.toString(), is("[abc success, note Build passed]"));
+    }
+}
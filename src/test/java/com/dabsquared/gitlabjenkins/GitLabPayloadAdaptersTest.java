@@ -0,0 +1,105 @@
+package com.dabsquared.gitlabjenkins;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.StringReader;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+
+import org.junit.Test;
+
+import com.dabsquared.gitlabjenkins.data.ObjectAttributes;
+import com.dabsquared.gitlabjenkins.testhelpers.GitLabRequestPayloads;
+import com.google.gson.JsonParseException;
+
+public class GitLabPayloadAdaptersTest {
+
+    @Test
+    public void shouldReadPushPayload() {
+        GitLabPushRequest push = GitLabPushRequest.create(GitLabRequestPayloads.pushPayload("8.1.2", 3, 42));
+        GitLabPushRequest sample = GitLabRequestPayloads.samples("8.1.2").mergePushRequest();
+
+        assertThat(push.getBefore(), is(sample.getBefore()));
+        assertThat(push.getAfter(), is(sample.getAfter()));
+        assertThat(push.getRef(), is(sample.getRef()));
+        assertThat(push.getCheckout_sha(), is(sample.getCheckout_sha()));
+        assertThat(push.getUser_name(), is(sample.getUser_name()));
+        assertThat(push.getProject_id(), is(42));
+        assertThat(push.getTotal_commits_count(), is(3));
+        assertThat(push.getRepository().getUrl(), is(sample.getRepository().getUrl()));
+        assertThat(push.getCommits().size(), is(3));
+        assertThat(push.getLastCommit().getId(), is(sample.getLastCommit().getId()));
+        assertThat(push.getLastCommit().getAuthor().getEmail(), is(sample.getLastCommit().getAuthor().getEmail()));
+    }
+
+    @Test
+    public void shouldReadMergeRequestPayloadAndSkipUnknownFields() throws Exception {
+        GitLabMergeRequest mergeRequest = GitLabMergeRequest.create(GitLabRequestPayloads.mergeRequestPayload("open"));
+        ObjectAttributes attributes = mergeRequest.getObjectAttribute();
+
+        assertThat(mergeRequest.getObject_kind(), is("merge_request"));
+        assertThat(attributes.getId(), is(99));
+        assertThat(attributes.getIid(), is(1));
+        assertThat(attributes.getSourceBranch(), is("feature"));
+        assertThat(attributes.getTargetBranch(), is("master"));
+        assertThat(attributes.getSourceProjectId(), is(345));
+        assertThat(attributes.getAuthor(), is(nullValue()));
+        assertThat(attributes.getSource().getHttp_url(), is("http://gitlabserver.example.com/test-group/test-repo.git"));
+        assertThat(attributes.getLastCommit().getId(), is("e5a46665b80965724b45fe921788105258b3ec5c"));
+        assertThat(attributes.getAction(), is("open"));
+        assertThat(attributes.getCreatedAt(),
+                is(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss Z", Locale.US).parse("2015-11-12 07:49:09 +1100")));
+    }
+
+    @Test
+    public void shouldKeepFirstAndLastCommitsOfTruncatedPush() throws Exception {
+        String payload = GitLabRequestPayloads.pushPayload("8.1.2", 500);
+        GitLabPushRequest full = GitLabPushRequest.create(payload);
+
+        GitLabPushRequest truncated = GitLabPayloadAdapters.readTruncatedPush(new StringReader(payload), 3);
+
+        assertThat(truncated.getTotal_commits_count(), is(500));
+        assertThat(truncated.getCommits().size(), is(6));
+        assertThat(truncated.getCommits().get(0).getId(), is(full.getCommits().get(0).getId()));
+        assertThat(truncated.getCommits().get(2).getId(), is(full.getCommits().get(2).getId()));
+        assertThat(truncated.getCommits().get(3).getId(), is(full.getCommits().get(497).getId()));
+        assertThat(truncated.getLastCommit().getId(), is(full.getLastCommit().getId()));
+
+        GitLabPushRequest reread = GitLabPushRequest.create(GitLabPayloadAdapters.toJson(truncated));
+        assertThat(reread.getCommits().size(), is(6));
+        assertThat(reread.getCheckout_sha(), is(full.getCheckout_sha()));
+        assertThat(reread.getRepository().getUrl(), is(full.getRepository().getUrl()));
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void shouldOnlyTruncatePushEvents() throws Exception {
+        GitLabPayloadAdapters.readTruncatedPush(new StringReader(GitLabRequestPayloads.mergeRequestPayload("open")), 3);
+    }
+
+    @Test
+    public void shouldParseBothDateFormats() throws Exception {
+        assertThat(GitLabPayloadAdapters.parseDate("2015-11-12 07:49:09 +1100"),
+                is(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss Z", Locale.US).parse("2015-11-12 07:49:09 +1100")));
+        assertThat(GitLabPayloadAdapters.parseDate("2015-11-11T20:49:09.000Z"),
+                is(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US).parse("2015-11-11T20:49:09.000Z")));
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void shouldRejectUnknownDateFormat() {
+        GitLabPayloadAdapters.parseDate("12/11/2015");
+    }
+
+    @Test
+    public void shouldReadTheObjectKindOnly() {
+        assertThat(GitLabPayloadAdapters.readObjectKind(GitLabRequestPayloads.mergeRequestPayload("open")), is("merge_request"));
+        assertThat(GitLabPayloadAdapters.readObjectKind("{\"before\":\"abc\",\"commits\":[{\"id\":1}],\"object_kind\":\"push\"}"), is("push"));
+        assertThat(GitLabPayloadAdapters.readObjectKind("{\"before\":\"abc\"}"), is(nullValue()));
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void shouldRejectAMalformedEvent() {
+        GitLabPayloadAdapters.readObjectKind("{\"object_kind\"");
+    }
+}
@@ -11,6 +11,7 @@ import static org.mockito.Mockito.when;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 import org.gitlab.api.GitlabAPI;
 import org.gitlab.api.models.GitlabBranch;
@@ -18,6 +19,8 @@ import org.gitlab.api.models.GitlabNamespace;
 import org.gitlab.api.models.GitlabProject;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import com.dabsquared.gitlabjenkins.GitLabProjectBranchesService.TimeUtility;
 
@@ -97,6 +100,60 @@ public class GitLabProjectBranchesServiceTest {
         verify(gitlabApi, times(2)).getProjects();
     }
 
+    @Test
+    public void shouldLoadTheBranchesAgainOnceFlushed() throws Exception {
+        // when
+        branchesService.getBranches(gitLab, "git@git.example.com:groupOne/B.git");
+        assertThat(branchesService.getBranchCacheSize(), is(1));
+        assertThat(branchesService.getProjectCacheSize(), is(2));
+        branchesService.flushBranches();
+        branchesService.flushProjects();
+        assertThat(branchesService.getBranchCacheSize(), is(0));
+        assertThat(branchesService.getBranchCacheBytes(), is(0L));
+        branchesService.getBranches(gitLab, "git@git.example.com:groupOne/B.git");
+
+        // then
+        verify(gitlabApi, times(2)).getProjects();
+        verify(gitlabApi, times(2)).getBranches(gitlabProjectB);
+    }
+
+    @Test(timeout = 10000)
+    public void shouldReadAndFlushTheCachesWhileALoadWaitsForGitLab() throws Exception {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch answer = new CountDownLatch(1);
+        when(gitlabApi.getProjects()).thenAnswer(new Answer<List<GitlabProject>>() {
+            public List<GitlabProject> answer(InvocationOnMock invocation) throws InterruptedException {
+                loading.countDown();
+                answer.await();
+                return asList(gitlabProjectA, gitlabProjectB);
+            }
+        });
+        Thread load = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    branchesService.getBranches(gitLab, "git@git.example.com:groupOne/B.git");
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        load.start();
+        loading.await();
+
+        // when
+        assertThat(branchesService.getBranchCacheSize(), is(0));
+        assertThat(branchesService.getProjectCacheBytes(), is(0L));
+        branchesService.flushBranches();
+        branchesService.flushProjects();
+        answer.countDown();
+        load.join();
+
+        // then
+        assertThat(branchesService.getBranchCacheSize(), is(1));
+        assertThat(branchesService.getProjectCacheSize(), is(2));
+    }
+
     @Test
     public void shoulNotCallGitlabApiGetBranchesWhenElementIsCached() throws Exception {
         // when
@@ -147,7 +204,7 @@ public class GitLabProjectBranchesServiceTest {
     }
 
     /**
-     * mocks calls to GitLab.instance() and GitlabAPI.getProjects and GitlabAPI.getBranches(gitlabProject)
+     * mocks calls to GitLab.instance(), GitLab.readInstance() and GitlabAPI.getProjects and GitlabAPI.getBranches(gitlabProject)
      *
      * projectList has to have the size as the branchNamesList list.
      *
@@ -168,6 +225,7 @@ public class GitLabProjectBranchesServiceTest {
         // mock the gitlab API factory
         GitLab gitLab = mock(GitLab.class);
         when(gitLab.instance()).thenReturn(gitlabApi);
+        when(gitLab.readInstance()).thenReturn(gitlabApi);
 
         when(gitlabApi.getProjects()).thenReturn(projectList);
 
@@ -0,0 +1,152 @@
+package com.dabsquared.gitlabjenkins;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static com.dabsquared.gitlabjenkins.testhelpers.GitLabMergeRequests.iids;
+import static com.dabsquared.gitlabjenkins.testhelpers.GitLabMergeRequests.mergeRequest;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+import hudson.model.Action;
+import hudson.model.Job;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.plugins.git.RevisionParameterAction;
+import hudson.util.RunList;
+
+import java.util.Arrays;
+
+import jenkins.triggers.SCMTriggerItem;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class GitLabResultReuseTest {
+
+    @Test
+    public void shouldAttachTheMergeRequestsWaitingForTheStartedBuild() {
+        GitLabResultReuse.waitFor("reuse-job", "a1", mergeRequest(1, "a1"));
+        GitLabResultReuse.waitFor("reuse-job", "a1", mergeRequest(2, "a1"));
+        GitLabResultReuse.waitFor("reuse-job", "b2", mergeRequest(3, "b2"));
+        Run<?, ?> build = build("reuse-job", "a1");
+
+        GitLabResultReuse.attach(build);
+
+        ArgumentCaptor<Action> action = ArgumentCaptor.forClass(Action.class);
+        verify(build).addAction(action.capture());
+        assertThat(iids(((GitLabResultReuse.Action) action.getValue()).getMergeRequests()), is(Arrays.asList(1, 2)));
+        assertThat(GitLabResultReuse.takeWaiting("reuse-job", "a1").isEmpty(), is(true));
+        assertThat(iids(GitLabResultReuse.takeWaiting("reuse-job", "b2")), is(Arrays.asList(3)));
+    }
+
+    @Test
+    public void shouldNotAttachTheMergeRequestsWaitingForAnotherJob() {
+        GitLabResultReuse.waitFor("other-job", "c3", mergeRequest(1, "c3"));
+        Run<?, ?> build = build("reuse-job", "c3");
+
+        GitLabResultReuse.attach(build);
+
+        verify(build, never()).addAction(any(Action.class));
+        assertThat(iids(GitLabResultReuse.takeWaiting("other-job", "c3")), is(Arrays.asList(1)));
+    }
+
+    @Test
+    public void shouldReportEachMergeRequestOnlyOnce() {
+        GitLabResultReuse.Action action = new GitLabResultReuse.Action();
+        action.add(mergeRequest(1, "a1"));
+        assertThat(iids(action.takeUnreported()), is(Arrays.asList(1)));
+        action.add(mergeRequest(2, "a1"));
+        assertThat(iids(action.takeUnreported()), is(Arrays.asList(2)));
+        assertThat(action.takeUnreported().isEmpty(), is(true));
+        assertThat(iids(action.getMergeRequests()), is(Arrays.asList(1, 2)));
+    }
+
+    @Test
+    public void shouldNotAcceptAMergeRequestReusingASuccessfulBuild() {
+        GitLabPushTrigger trigger = spy(new GitLabPushTrigger(true, true, "never", true, false, false, false, false, true, "",
+                null, null, null));
+        doNothing().when(trigger).acceptMergeRequest(any(GitLabMergeRequest.class));
+        Run<?, ?> build = build("reuse-job", "a1");
+        when(build.getResult()).thenReturn(Result.SUCCESS);
+        GitLabMergeRequest mergeRequest = mergeRequest(1, "a1");
+
+        trigger.onCompleteMergeRequest(build, mergeRequest, true);
+        verify(trigger, never()).acceptMergeRequest(mergeRequest);
+
+        trigger.onCompleteMergeRequest(build, mergeRequest, false);
+        verify(trigger).acceptMergeRequest(mergeRequest);
+    }
+
+    @Test
+    public void shouldReportToALinkedMergeRequestWhenTheRunningBuildCompletes() {
+        GitLabPushTrigger trigger = spy(new GitLabPushTrigger(true, true, "never", true, false, false, false, false, true, "",
+                null, null, null));
+        doNothing().when(trigger).onStartedMergeRequest(any(Run.class), any(GitLabMergeRequest.class));
+        doNothing().when(trigger).onCompleteMergeRequest(any(Run.class), any(GitLabMergeRequest.class), anyBoolean());
+        Run<?, ?> build = build("reuse-job", "a1");
+        GitLabResultReuse.Action action = new GitLabResultReuse.Action();
+        when(build.getAction(GitLabResultReuse.Action.class)).thenReturn(action);
+        when(build.isBuilding()).thenReturn(true);
+        Job<?, ?> job = jobWithBuilds(build);
+        GitLabMergeRequest mergeRequest = mergeRequest(1, "a1");
+
+        assertThat(GitLabResultReuse.link(trigger, job, mergeRequest), is(true));
+        verify(trigger).onStartedMergeRequest(build, mergeRequest);
+        verify(trigger, never()).onCompleteMergeRequest(any(Run.class), any(GitLabMergeRequest.class), anyBoolean());
+
+        when(build.isBuilding()).thenReturn(false);
+        when(build.getResult()).thenReturn(Result.SUCCESS);
+        trigger.onCompleted(build);
+        trigger.onCompleted(build);
+
+        verify(trigger, times(1)).onCompleteMergeRequest(build, mergeRequest, true);
+        assertThat(iids(action.getMergeRequests()), is(Arrays.asList(1)));
+    }
+
+    @Test
+    public void shouldNotLinkAMergeRequestWhoseCommitIsNotBuilding() {
+        GitLabPushTrigger trigger = mock(GitLabPushTrigger.class);
+        Run<?, ?> build = build("reuse-job", "a1");
+        when(build.isBuilding()).thenReturn(true);
+        Job<?, ?> job = jobWithBuilds(build);
+
+        assertThat(GitLabResultReuse.link(trigger, job, mergeRequest(1, "b2")), is(false));
+        verify(build, never()).addAction(any(Action.class));
+    }
+
+    @Test
+    public void shouldAddAMergeRequestOnlyOnce() {
+        GitLabResultReuse.Action action = new GitLabResultReuse.Action();
+        action.add(mergeRequest(1, "a1"));
+        action.add(mergeRequest(1, "a1"));
+        assertThat(iids(action.getMergeRequests()), is(Arrays.asList(1)));
+    }
+
+    /**
+     * @return a job whose git SCM does not merge before building, with the builds given, the newest first
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static Job<?, ?> jobWithBuilds(Run... builds) {
+        Job job = mock(Job.class, withSettings().extraInterfaces(SCMTriggerItem.class));
+        when(job.getFullName()).thenReturn("reuse-job");
+        when(job.getBuilds()).thenReturn(RunList.fromRuns(Arrays.asList(builds)));
+        return job;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static Run<?, ?> build(String jobName, String commitSHA1) {
+        Job job = mock(Job.class);
+        when(job.getFullName()).thenReturn(jobName);
+        Run build = mock(Run.class);
+        when(build.getParent()).thenReturn(job);
+        when(build.getAction(RevisionParameterAction.class)).thenReturn(new RevisionParameterAction(commitSHA1));
+        return build;
+    }
+}
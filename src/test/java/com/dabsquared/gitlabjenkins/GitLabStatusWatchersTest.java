@@ -0,0 +1,54 @@
+package com.dabsquared.gitlabjenkins;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import hudson.model.Job;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.Test;
+
+public class GitLabStatusWatchersTest {
+
+    @Test
+    public void shouldMatchTheETagsOfTheIfNoneMatchHeader() {
+        assertThat(GitLabStatusWatchers.matches("\"1a2b\"", "\"1a2b\""), is(true));
+        assertThat(GitLabStatusWatchers.matches("W/\"1a2b\"", "\"1a2b\""), is(true));
+        assertThat(GitLabStatusWatchers.matches("\"ffff\", W/\"1a2b\"", "\"1a2b\""), is(true));
+        assertThat(GitLabStatusWatchers.matches("*", "\"1a2b\""), is(true));
+        assertThat(GitLabStatusWatchers.matches("\"ffff\"", "\"1a2b\""), is(false));
+        assertThat(GitLabStatusWatchers.matches(null, "\"1a2b\""), is(false));
+    }
+
+    @Test
+    public void shouldCapTheWait() {
+        assertThat(GitLabStatusWatchers.waitMillis(request("30")), is(30000L));
+        assertThat(GitLabStatusWatchers.waitMillis(request("3600")), is(GitLabStatusWatchers.MAX_WAIT_SECONDS * 1000L));
+        assertThat(GitLabStatusWatchers.waitMillis(request("soon")), is(0L));
+        assertThat(GitLabStatusWatchers.waitMillis(request(null)), is(0L));
+    }
+
+    @Test
+    public void shouldNotHoldTheThreadWithoutAsynchronousRequests() {
+        HttpServletRequest req = request("30");
+        when(req.isAsyncSupported()).thenReturn(false);
+        Runnable completed = mock(Runnable.class);
+
+        boolean waiting = GitLabStatusWatchers.await(mock(Job.class), "abc", "\"1a2b\"", 30000, req, completed);
+
+        assertThat(waiting, is(false));
+        assertThat(GitLabStatusWatchers.getWaitingCount(), is(0));
+        verify(completed, never()).run();
+    }
+
+    private static HttpServletRequest request(String wait) {
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        when(req.getParameter("wait")).thenReturn(wait);
+        return req;
+    }
+}
@@ -0,0 +1,128 @@
+package com.dabsquared.gitlabjenkins;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class GitLabTest {
+
+    @Test
+    public void shouldLeaveTheTokenOutOfTheRecordedErrors() {
+        assertThat(GitLab.withoutQueries("java.io.IOException: Server returned HTTP response code: 401 for URL: "
+                + "https://gitlab.example.com/api/v3/projects?private_token=secret&page=2"),
+                is("java.io.IOException: Server returned HTTP response code: 401 for URL: https://gitlab.example.com/api/v3/projects"));
+        assertThat(GitLab.withoutQueries("java.net.ConnectException: Connection refused"), is("java.net.ConnectException: Connection refused"));
+    }
+
+    @Test
+    public void shouldSendTheReadOnlyCallsToTheReplica() throws IOException {
+        GitLab gitlab = new GitLab(new GitLabConnection("geo", "http://primary.example.com", "token", "http://replica.example.com",
+                false, 0));
+
+        assertThat(gitlab.instance().getAPIUrl("/projects").getHost(), is("primary.example.com"));
+        assertThat(gitlab.readInstance().getAPIUrl("/projects").getHost(), is("replica.example.com"));
+        assertThat(gitlab.readInstance(), is(not(sameInstance(gitlab.instance()))));
+    }
+
+    @Test
+    public void shouldSendTheReadOnlyCallsToTheServerWithoutReplica() throws IOException {
+        GitLab gitlab = new GitLab(new GitLabConnection("main", "http://primary.example.com", "token", "", false, 0));
+
+        assertThat(gitlab.readInstance(), is(sameInstance(gitlab.instance())));
+    }
+
+    @Test
+    public void shouldSpaceTheCallsEvenly() throws IOException {
+        GitLab gitlab = new GitLab(new GitLabConnection("limited", "http://primary.example.com", "token", null, false, 20));
+
+        long started = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            gitlab.instance();
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+        // the first call goes right away, the next ones 50ms apart
+        assertTrue("5 calls in " + elapsedMillis + "ms", elapsedMillis >= 180);
+    }
+
+    @Test
+    public void shouldFailRightAwayRatherThanWaitPastTheLimit() throws Exception {
+        final GitLab gitlab = new GitLab(new GitLabConnection("slow", "http://primary.example.com", "token", null, false, 1));
+        // each waiting call takes the next second
+        long waiting = TimeUnit.MILLISECONDS.toSeconds(GitLab.MAX_RATE_LIMIT_WAIT_MILLIS) + 1;
+        List<Thread> callers = new ArrayList<Thread>();
+        for (int i = 0; i < waiting; i++) {
+            Thread caller = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        gitlab.instance();
+                    } catch (IOException e) {
+                        // not past the limit
+                    }
+                }
+            };
+            caller.start();
+            callers.add(caller);
+        }
+        for (Thread caller : callers) {
+            while (caller.isAlive() && caller.getState() != Thread.State.TIMED_WAITING) {
+                Thread.sleep(10);
+            }
+        }
+
+        long started = System.nanoTime();
+        try {
+            gitlab.instance();
+            fail("waited for the rate limit past " + GitLab.MAX_RATE_LIMIT_WAIT_MILLIS + "ms");
+        } catch (IOException e) {
+            assertThat(GitLab.isTransient(e), is(true));
+            assertThat(e.getMessage(), containsString("rate limit"));
+        } finally {
+            for (Thread caller : callers) {
+                caller.interrupt();
+                caller.join();
+            }
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) < GitLab.MAX_RATE_LIMIT_WAIT_MILLIS);
+    }
+
+    @Test
+    public void shouldTellTheErrorsWorthRetrying() {
+        assertThat(GitLab.isTransient(new ConnectException("Connection refused")), is(true));
+        assertThat(GitLab.isTransient(httpError(502)), is(true));
+        assertThat(GitLab.isTransient(httpError(429)), is(true));
+        assertThat(GitLab.isTransient(httpError(408)), is(true));
+        assertThat(GitLab.isTransient(new IOException("{\"message\":\"internal error\"}", httpError(500))), is(true));
+
+        assertThat(GitLab.isTransient(httpError(403)), is(false));
+        assertThat(GitLab.isTransient(httpError(422)), is(false));
+        assertThat(GitLab.isTransient(new FileNotFoundException("http://gitlab.example.com/api/v3/projects/1")), is(false));
+    }
+
+    @Test
+    public void shouldTellTheErrorsOfMissingResources() {
+        assertThat(GitLab.isNotFound(new FileNotFoundException("http://gitlab.example.com/api/v3/projects/1")), is(true));
+        assertThat(GitLab.isNotFound(httpError(410)), is(true));
+        assertThat(GitLab.isNotFound(httpError(502)), is(false));
+        assertThat(GitLab.isNotFound(new ConnectException("Connection refused")), is(false));
+    }
+
+    private static IOException httpError(int code) {
+        return new IOException("Server returned HTTP response code: " + code
+                + " for URL: http://gitlab.example.com/api/v3/projects/1/statuses/abc?private_token=secret");
+    }
+}
@@ -0,0 +1,58 @@
+package com.dabsquared.gitlabjenkins;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+
+import org.gitlab.api.GitlabAPI;
+import org.gitlab.api.models.GitlabProject;
+import org.junit.Test;
+
+public class GitLabWarmUpTest {
+
+    @Test
+    public void shouldLoadTheProjectsOfEveryServer() throws IOException {
+        GitLab first = gitlab(project("first"));
+        GitLab second = gitlab(project("second"));
+
+        GitLabWarmUp.connect(asList(first, second));
+
+        assertThat(first.getBranchesService().getProjectCacheSize(), is(1));
+        assertThat(second.getBranchesService().getProjectCacheSize(), is(1));
+    }
+
+    @Test
+    public void shouldWarmUpTheOtherServersWhenOneIsDown() throws IOException {
+        GitLab down = gitlab();
+        when(down.readInstance().getProjects()).thenThrow(new IOException("Connection refused"));
+        GitLab broken = gitlab();
+        when(broken.instance()).thenThrow(new IllegalArgumentException("no URL"));
+        GitLab up = gitlab(project("up"));
+
+        GitLabWarmUp.connect(asList(down, broken, up));
+
+        assertThat(down.getBranchesService().getProjectCacheSize(), is(0));
+        assertThat(up.getBranchesService().getProjectCacheSize(), is(1));
+    }
+
+    private static GitLab gitlab(GitlabProject... projects) throws IOException {
+        GitlabAPI api = mock(GitlabAPI.class);
+        when(api.getProjects()).thenReturn(asList(projects));
+        GitLab gitlab = mock(GitLab.class);
+        when(gitlab.instance()).thenReturn(api);
+        when(gitlab.readInstance()).thenReturn(api);
+        when(gitlab.getBranchesService()).thenReturn(new GitLabProjectBranchesService(new GitLabProjectBranchesService.TimeUtility()));
+        return gitlab;
+    }
+
+    private static GitlabProject project(String name) {
+        GitlabProject project = new GitlabProject();
+        project.setSshUrl("git@git.example.com:group/" + name + ".git");
+        project.setHttpUrl("http://git.example.com/group/" + name + ".git");
+        return project;
+    }
+}
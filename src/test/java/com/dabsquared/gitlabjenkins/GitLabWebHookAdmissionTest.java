@@ -0,0 +1,157 @@
+package com.dabsquared.gitlabjenkins;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.Test;
+
+public class GitLabWebHookAdmissionTest {
+
+    /** the started events, run when the test completes them */
+    private final LinkedList<Runnable> started = new LinkedList<Runnable>();
+    private final List<String> processed = new ArrayList<String>();
+
+    private final Executor executor = new Executor() {
+        public void execute(Runnable command) {
+            started.add(command);
+        }
+    };
+
+    @Test
+    public void shouldShareTheThreadsBetweenProjects() {
+        GitLabWebHookAdmission admission = new GitLabWebHookAdmission(1, 2, 2, 100, Collections.<String, Integer> emptyMap(), executor);
+        for (int i = 0; i < 4; i++) {
+            submit(admission, "mirror", "mirror-job", "mirror-" + i);
+        }
+        submit(admission, "app", "app-job", "app-0");
+        submit(admission, "lib", "lib-job", "lib-0");
+
+        completeAll();
+
+        assertThat(processed.subList(0, 5), is(list("mirror-0", "mirror-1", "app-0", "lib-0", "mirror-2")));
+    }
+
+    @Test
+    public void shouldServeProjectsInProportionToTheirWeight() {
+        GitLabWebHookAdmission admission = new GitLabWebHookAdmission(1, 4, 4, 100,
+                GitLabWebHookAdmission.parseWeights("heavy=2, broken=x"), executor);
+        for (int i = 0; i < 4; i++) {
+            submit(admission, "light", "light-job", "light-" + i);
+            submit(admission, "heavy", "heavy-job", "heavy-" + i);
+        }
+
+        completeAll();
+
+        assertThat(processed.subList(0, 6), is(list("light-0", "heavy-0", "heavy-1", "light-1", "heavy-2", "heavy-3")));
+    }
+
+    @Test
+    public void shouldLimitTheConcurrencyOfJobsAndProjects() {
+        GitLabWebHookAdmission admission = new GitLabWebHookAdmission(10, 2, 1, 100, Collections.<String, Integer> emptyMap(), executor);
+        submit(admission, "project", "job-a", "a-0");
+        submit(admission, "project", "job-a", "a-1");
+        submit(admission, "project", "job-b", "b-0");
+        submit(admission, "project", "job-c", "c-0");
+
+        assertThat(admission.getRunningCount(), is(1));
+        complete();
+        assertThat(admission.getRunningCount(), is(2));
+
+        completeAll();
+        assertThat(processed, is(list("a-0", "a-1", "b-0", "c-0")));
+        assertThat(admission.getWaitingCount(), is(0));
+    }
+
+    @Test
+    public void shouldListTheEventsInProgressAndTheLatencyOfTheirJobs() {
+        GitLabWebHookAdmission admission = new GitLabWebHookAdmission(1, 1, 1, 100, Collections.<String, Integer> emptyMap(), executor);
+        submit(admission, "project", "job-a", "a-0");
+        submit(admission, "project", "job-b", "b-0");
+
+        List<GitLabWebHookAdmission.Ticket> tickets = admission.getTickets();
+        assertThat(tickets.size(), is(2));
+        assertThat(tickets.get(0).getJobName(), is("job-a"));
+        assertThat(tickets.get(0).isRunning(), is(true));
+        assertThat(tickets.get(1).isRunning(), is(false));
+
+        complete();
+        assertThat(admission.getTickets().size(), is(1));
+        assertThat(admission.getLastLatencies().containsKey("job-a"), is(true));
+        assertThat(admission.getLastLatencies().containsKey("job-b"), is(false));
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void shouldRefuseEventsAboveTheHighWaterMark() {
+        GitLabWebHookAdmission admission = new GitLabWebHookAdmission(1, 1, 1, 2, Collections.<String, Integer> emptyMap(), executor);
+        submit(admission, "project", "job", "running");
+        submit(admission, "project", "job", "waiting-0");
+        submit(admission, "project", "job", "waiting-1");
+
+        admission.admit("project", "job");
+    }
+
+    @Test
+    public void shouldLimitTheEventsWhoseRequestThreadWaits() {
+        GitLabWebHookAdmission admission = new GitLabWebHookAdmission(1, 1, 1, 100, 2, Collections.<String, Integer> emptyMap(), executor);
+        admission.admit("project", "job", true).start(record("blocking-0"));
+        admission.admit("project", "job", true).start(record("blocking-1"));
+
+        try {
+            admission.admit("project", "job", true);
+            fail("a third request thread must not wait");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        // asynchronous requests do not hold a thread
+        admission.admit("project", "job", false).start(record("async-0"));
+
+        complete();
+        admission.admit("project", "job", true).start(record("blocking-2"));
+        completeAll();
+        assertThat(processed, is(list("blocking-0", "blocking-1", "async-0", "blocking-2")));
+    }
+
+    @Test
+    public void shouldFindTheGitLabProjectOfTheEvent() {
+        assertThat(GitLabWebHookAdmission.projectKey("{\"object_kind\":\"push\",\"project_id\": 15}", "job"), is("15"));
+        assertThat(GitLabWebHookAdmission.projectKey(
+                "{\"object_attributes\":{\"source_project_id\":14,\"target_project_id\":15}}", "job"), is("15"));
+        assertThat(GitLabWebHookAdmission.projectKey("{}", "job"), is("job"));
+    }
+
+    private void submit(GitLabWebHookAdmission admission, String project, String job, String event) {
+        admission.admit(project, job).start(record(event));
+    }
+
+    private Runnable record(final String event) {
+        return new Runnable() {
+            public void run() {
+                processed.add(event);
+            }
+        };
+    }
+
+    private void complete() {
+        started.removeFirst().run();
+    }
+
+    private void completeAll() {
+        while (!started.isEmpty()) {
+            complete();
+        }
+    }
+
+    private static List<String> list(String... values) {
+        List<String> list = new ArrayList<String>();
+        Collections.addAll(list, values);
+        return list;
+    }
+}
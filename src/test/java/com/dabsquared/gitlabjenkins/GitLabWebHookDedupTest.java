@@ -0,0 +1,79 @@
+package com.dabsquared.gitlabjenkins;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.dabsquared.gitlabjenkins.testhelpers.GitLabRequestPayloads;
+
+public class GitLabWebHookDedupTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldDropRedeliveredEventsWithinTheWindow() {
+        GitLabWebHookDedup dedup = new GitLabWebHookDedup(60000, 100);
+        String key = GitLabWebHookDedup.pushKey("job", GitLabPushRequest.create(GitLabRequestPayloads.pushPayload("8.1.2", 1)));
+
+        assertThat(dedup.firstDelivery(key, 1000), is(true));
+        assertThat(dedup.firstDelivery(key, 2000), is(false));
+        assertThat(dedup.firstDelivery("other-job" + key, 2000), is(true));
+        assertThat(dedup.firstDelivery(key, 61000), is(true));
+    }
+
+    @Test
+    public void shouldKeepOnlyTheNewestEntries() {
+        GitLabWebHookDedup dedup = new GitLabWebHookDedup(60000, 3);
+        for (int i = 0; i < 5; i++) {
+            dedup.firstDelivery("event-" + i, 1000 + i);
+        }
+
+        assertThat(dedup.size(), is(3));
+        assertThat(dedup.firstDelivery("event-0", 2000), is(true));
+        assertThat(dedup.firstDelivery("event-4", 2000), is(false));
+    }
+
+    @Test
+    public void shouldIdentifyMergeRequestsByIidLastCommitAndAction() {
+        GitLabMergeRequest open = GitLabMergeRequest.create(GitLabRequestPayloads.mergeRequestPayload("open"));
+        GitLabMergeRequest openAgain = GitLabMergeRequest.create(GitLabRequestPayloads.mergeRequestPayload("open"));
+        GitLabMergeRequest reopen = GitLabMergeRequest.create(GitLabRequestPayloads.mergeRequestPayload("reopen"));
+
+        assertThat(GitLabWebHookDedup.mergeRequestKey("job", open), is(GitLabWebHookDedup.mergeRequestKey("job", openAgain)));
+        assertThat(GitLabWebHookDedup.mergeRequestKey("job", open), is(not(GitLabWebHookDedup.mergeRequestKey("job", reopen))));
+        assertThat(GitLabWebHookDedup.mergeRequestKey("job", open), is(not(GitLabWebHookDedup.mergeRequestKey("other", open))));
+    }
+
+    @Test
+    public void shouldAcceptAgainAnEventWhoseProcessingFailed() {
+        GitLabWebHookDedup dedup = new GitLabWebHookDedup(60000, 100);
+
+        assertThat(dedup.firstDelivery("event", 1000), is(true));
+        dedup.forget("event");
+        assertThat(dedup.firstDelivery("event", 2000), is(true));
+        assertThat(dedup.firstDelivery("event", 3000), is(false));
+    }
+
+    @Test
+    public void shouldReloadRecentEntries() throws Exception {
+        long now = System.currentTimeMillis();
+        GitLabWebHookDedup saved = new GitLabWebHookDedup(60000, 100);
+        saved.firstDelivery("old", now - 120000);
+        saved.firstDelivery("recent", now);
+        File file = folder.newFile();
+        saved.writeTo(file);
+
+        GitLabWebHookDedup loaded = new GitLabWebHookDedup(60000, 100);
+        loaded.readFrom(file);
+
+        assertThat(loaded.size(), is(1));
+        assertThat(loaded.firstDelivery("recent", now), is(false));
+    }
+}
@@ -0,0 +1,92 @@
+package com.dabsquared.gitlabjenkins;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+public class GitLabWebHookExecutorTest {
+
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(1));
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void shouldProcessInTheCallingThreadWhenSaturated() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable blocking = new Runnable() {
+            public void run() {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        GitLabWebHookExecutor.execute(executor, blocking);
+        GitLabWebHookExecutor.execute(executor, blocking);
+
+        final Thread[] processedBy = new Thread[1];
+        GitLabWebHookExecutor.execute(executor, new Runnable() {
+            public void run() {
+                processedBy[0] = Thread.currentThread();
+            }
+        });
+        release.countDown();
+
+        assertThat(processedBy[0], is(Thread.currentThread()));
+    }
+
+    @Test
+    public void shouldAnswerAndCompleteTheAsynchronousRequest() {
+        AsyncContext async = mock(AsyncContext.class);
+        HttpServletResponse rsp = mock(HttpServletResponse.class);
+        when(async.getResponse()).thenReturn(rsp);
+        Runnable process = mock(Runnable.class);
+        Runnable finished = mock(Runnable.class);
+
+        GitLabWebHookExecutor.completing(async, "job", process, finished).run();
+
+        InOrder order = inOrder(process, rsp, finished, async);
+        order.verify(process).run();
+        order.verify(rsp).setStatus(HttpServletResponse.SC_OK);
+        order.verify(finished).run();
+        order.verify(async).complete();
+    }
+
+    @Test
+    public void shouldAnswer500WhenTheProcessingFails() {
+        AsyncContext async = mock(AsyncContext.class);
+        HttpServletResponse rsp = mock(HttpServletResponse.class);
+        when(async.getResponse()).thenReturn(rsp);
+        Runnable finished = mock(Runnable.class);
+
+        GitLabWebHookExecutor.completing(async, "job", new Runnable() {
+            public void run() {
+                throw new IllegalStateException("GitLab is down");
+            }
+        }, finished).run();
+
+        InOrder order = inOrder(rsp, finished, async);
+        order.verify(rsp).setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        order.verify(finished).run();
+        order.verify(async).complete();
+    }
+}
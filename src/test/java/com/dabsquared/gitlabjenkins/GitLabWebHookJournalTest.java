@@ -0,0 +1,90 @@
+package com.dabsquared.gitlabjenkins;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class GitLabWebHookJournalTest {
+
+    @Rule
+    public JenkinsRule jenkins = new JenkinsRule();
+
+    @Test
+    public void shouldRedactTheTokensOfTheQuery() {
+        assertThat(GitLabWebHookJournal.redactQuery("token=secret"), is("token="));
+        assertThat(GitLabWebHookJournal.redactQuery("ref=master&private_token=secret&sha1=abc"), is("ref=master&private_token=&sha1=abc"));
+    }
+
+    @Test
+    public void shouldKeepTheOtherParameters() {
+        assertThat(GitLabWebHookJournal.redactQuery("ref=master&wait=30&token"), is("ref=master&wait=30&token"));
+    }
+
+    @Test
+    public void shouldReadBackTheJournaledRequests() throws Exception {
+        GitLabWebHookJournal journal = GitLabWebHookJournal.instance();
+        // a segment left open by another test is in the home of another Jenkins
+        journal.close();
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put("Content-Type", "application/json");
+        headers.put("X-Gitlab-Token", "secret");
+        journal.append(request("POST", "/project/test-job", null, headers), "{\"object_kind\":\"push\"}", 1447285749000L, 12000000L);
+        journal.append(request("GET", "/project/test-job/builds/status.png", "ref=master&token=secret",
+                Collections.<String, String>emptyMap()), null, 1447285750000L, 3000000L);
+        journal.close();
+
+        File[] segments = GitLabWebHookRecord.segments(GitLabWebHookJournal.getDirectory());
+        assertThat(segments.length, is(1));
+        DataInputStream in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(segments[0]))));
+        try {
+            GitLabWebHookRecord push = GitLabWebHookRecord.readFrom(in);
+            assertThat(push.getMethod(), is("POST"));
+            assertThat(push.getPath(), is("/project/test-job"));
+            assertThat(push.getHeaders().get("Content-Type"), is("application/json"));
+            assertThat(push.getHeaders().get("X-Gitlab-Token"), is(""));
+            assertThat(push.getArrivalTime(), is(1447285749000L));
+            assertThat(push.getProcessingNanos(), is(12000000L));
+            assertThat(push.getBody(), is("{\"object_kind\":\"push\"}"));
+
+            GitLabWebHookRecord status = GitLabWebHookRecord.readFrom(in);
+            assertThat(status.getMethod(), is("GET"));
+            assertThat(status.getPath(), is("/project/test-job/builds/status.png?ref=master&token="));
+            assertThat(status.getHeaders().isEmpty(), is(true));
+            assertThat(status.getBody(), is(nullValue()));
+
+            assertThat(GitLabWebHookRecord.readFrom(in), is(nullValue()));
+        } finally {
+            in.close();
+        }
+    }
+
+    private static HttpServletRequest request(String method, String path, String query, Map<String, String> headers) {
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        when(req.getMethod()).thenReturn(method);
+        when(req.getContextPath()).thenReturn("/jenkins");
+        when(req.getRequestURI()).thenReturn("/jenkins" + path);
+        when(req.getQueryString()).thenReturn(query);
+        when(req.getHeaderNames()).thenReturn(Collections.enumeration(headers.keySet()));
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            when(req.getHeader(header.getKey())).thenReturn(header.getValue());
+        }
+        return req;
+    }
+}
@@ -0,0 +1,210 @@
+package com.dabsquared.gitlabjenkins;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class GitLabWebHookQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> processed = new CopyOnWriteArrayList<String>();
+    /** counted down once the blocking processor has started an event */
+    private final CountDownLatch started = new CountDownLatch(1);
+    /** released by the tests that keep an event being processed */
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private final GitLabWebHookQueue.Processor processor = new GitLabWebHookQueue.Processor() {
+        public void process(String jobName, String body) {
+            processed.add(jobName + " " + body);
+        }
+    };
+
+    private final GitLabWebHookQueue.Processor blockingProcessor = new GitLabWebHookQueue.Processor() {
+        public void process(String jobName, String body) {
+            started.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            processed.add(jobName + " " + body);
+        }
+    };
+
+    private File file;
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), GitLabWebHookQueue.FILE_NAME);
+    }
+
+    @Test
+    public void shouldProcessAndAcknowledgeQueuedEvents() throws Exception {
+        GitLabWebHookQueue queue = new GitLabWebHookQueue(file, 1, 1024 * 1024, processor, null);
+        queue.enqueue("job", "{\"a\":1}", null);
+        queue.enqueue("job", "{\"a\":2}", null);
+        awaitProcessed(2);
+        queue.close();
+
+        assertThat(processed.toString(), is("[job {\"a\":1}, job {\"a\":2}]"));
+        assertThat(queue.getPendingCount(), is(0));
+
+        GitLabWebHookQueue restarted = new GitLabWebHookQueue(file, 1, 1024 * 1024, processor, null);
+        restarted.open();
+        assertThat(restarted.getPendingCount(), is(0));
+        restarted.close();
+    }
+
+    @Test
+    public void shouldProcessAgainTheEventsNotAcknowledged() throws Exception {
+        GitLabWebHookQueue crashed = new GitLabWebHookQueue(file, 1, 1024 * 1024, blockingProcessor, null);
+        crashed.enqueue("job", "{\"a\":1}", null);
+        started.await(10, TimeUnit.SECONDS);
+
+        GitLabWebHookQueue restarted = new GitLabWebHookQueue(file, 1, 1024 * 1024, processor, null);
+        restarted.open();
+        awaitProcessed(1);
+        restarted.close();
+
+        assertThat(processed.toString(), is("[job {\"a\":1}]"));
+        release.countDown();
+    }
+
+    @Test
+    public void shouldAcknowledgeTheEventsBeingProcessedBeforeClosing() throws Exception {
+        final GitLabWebHookQueue queue = new GitLabWebHookQueue(file, 1, 1024 * 1024, blockingProcessor, null);
+        queue.enqueue("job", "{\"a\":1}", null);
+        queue.enqueue("job", "{\"a\":2}", null);
+        started.await(10, TimeUnit.SECONDS);
+        Thread closing = new Thread() {
+            @Override
+            public void run() {
+                queue.close();
+            }
+        };
+        closing.start();
+        // lets the close start waiting for the event being processed
+        Thread.sleep(100);
+        release.countDown();
+        closing.join(10000);
+
+        // the first event is done with, the second never started and stays in the log
+        assertThat(processed.toString(), is("[job {\"a\":1}]"));
+        GitLabWebHookQueue restarted = new GitLabWebHookQueue(file, 1, 1024 * 1024, processor, null);
+        restarted.open();
+        awaitProcessed(2);
+        restarted.close();
+        assertThat(processed.toString(), is("[job {\"a\":1}, job {\"a\":2}]"));
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldRefuseEventsOnceClosed() throws Exception {
+        GitLabWebHookQueue queue = new GitLabWebHookQueue(file, 1, 1024 * 1024, processor, null);
+        queue.close();
+        queue.enqueue("job", "{}", null);
+    }
+
+    @Test
+    public void shouldCheckpointTheLogOnceItGrows() throws Exception {
+        GitLabWebHookQueue queue = new GitLabWebHookQueue(file, 1, 1, processor, null);
+        for (int i = 0; i < 5; i++) {
+            queue.enqueue("job", "{\"a\":" + i + "}", null);
+        }
+        awaitProcessed(5);
+        queue.close();
+
+        assertThat(file.length(), is(0L));
+    }
+
+    @Test
+    public void shouldProcessTheEventsInTheirTurnOfTheAdmission() throws Exception {
+        Executor inline = new Executor() {
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        GitLabWebHookAdmission admission = new GitLabWebHookAdmission(1, 1, 1, 10, Collections.<String, Integer> emptyMap(), inline);
+        GitLabWebHookQueue queue = new GitLabWebHookQueue(file, 1, 1024 * 1024, processor, admission);
+
+        queue.enqueue("job", "{\"project_id\":12}", admission.admit("12", "job"));
+
+        assertThat(processed.toString(), is("[job {\"project_id\":12}]"));
+        assertThat(queue.getPendingCount(), is(0));
+        assertThat(admission.getRunningCount(), is(0));
+        queue.close();
+    }
+
+    @Test
+    public void shouldProcessAgainAFailedEvent() throws Exception {
+        GitLabWebHookQueue queue = new GitLabWebHookQueue(file, 1, 1024 * 1024, new GitLabWebHookQueue.Processor() {
+            public void process(String jobName, String body) {
+                processed.add(jobName + " " + body);
+                if (processed.size() == 1) {
+                    throw new IllegalStateException("the job is not loaded yet");
+                }
+            }
+        }, null);
+        queue.retryDelayMillis = 0;
+        queue.enqueue("job", "{\"a\":1}", null);
+        awaitProcessed(2);
+        awaitPending(queue, 0);
+        queue.close();
+
+        assertThat(processed.toString(), is("[job {\"a\":1}, job {\"a\":1}]"));
+        assertThat(new File(folder.getRoot(), GitLabWebHookQueue.FAILED_FILE_NAME).exists(), is(false));
+    }
+
+    @Test
+    public void shouldSetAsideAnEventFailingEveryAttempt() throws Exception {
+        GitLabWebHookQueue queue = new GitLabWebHookQueue(file, 1, 1024 * 1024, new GitLabWebHookQueue.Processor() {
+            public void process(String jobName, String body) {
+                processed.add(jobName + " " + body);
+                throw new IllegalStateException("broken event");
+            }
+        }, null);
+        queue.retryDelayMillis = 0;
+        queue.enqueue("job", "{\"a\":1}", null);
+        awaitProcessed(GitLabWebHookQueue.MAX_ATTEMPTS);
+        awaitPending(queue, 0);
+        queue.close();
+
+        assertThat(processed.size(), is(GitLabWebHookQueue.MAX_ATTEMPTS));
+        assertThat(new File(folder.getRoot(), GitLabWebHookQueue.FAILED_FILE_NAME).length() > 0, is(true));
+        GitLabWebHookQueue restarted = new GitLabWebHookQueue(file, 1, 1024 * 1024, processor, null);
+        restarted.open();
+        assertThat(restarted.getPendingCount(), is(0));
+        restarted.close();
+    }
+
+    private static void awaitPending(GitLabWebHookQueue queue, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (queue.getPendingCount() != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(queue.getPendingCount(), is(count));
+    }
+
+    private void awaitProcessed(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (processed.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("processed " + processed, processed.size() >= count);
+    }
+}
@@ -0,0 +1,63 @@
+package com.dabsquared.gitlabjenkins;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+import com.dabsquared.gitlabjenkins.testhelpers.GitLabRequestPayloads;
+
+public class GitLabWebHookRecordTest {
+
+    @Test
+    public void shouldReadBackRecordsAppendedAsSeparateGzipMembers() throws Exception {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put("Content-Type", "application/json");
+        headers.put("X-Gitlab-Event", "Push Hook");
+        // larger than the 64k writeUTF could store
+        String push = GitLabRequestPayloads.pushPayload("8.1.2", 1000);
+        GitLabWebHookRecord first = new GitLabWebHookRecord("POST", "/project/test-job", headers, 1447285749000L, 12000000L, push);
+        GitLabWebHookRecord second = new GitLabWebHookRecord("GET", "/project/test-job/builds/status.png?ref=master",
+                new LinkedHashMap<String, String>(), 1447285750000L, 3000000L, null);
+
+        ByteArrayOutputStream journal = new ByteArrayOutputStream();
+        journal.write(member(first));
+        journal.write(member(second));
+
+        DataInputStream in = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(journal.toByteArray())));
+        GitLabWebHookRecord firstRead = GitLabWebHookRecord.readFrom(in);
+        GitLabWebHookRecord secondRead = GitLabWebHookRecord.readFrom(in);
+
+        assertThat(firstRead.getMethod(), is("POST"));
+        assertThat(firstRead.getPath(), is("/project/test-job"));
+        assertThat(firstRead.getHeaders(), is(headers));
+        assertThat(firstRead.getArrivalTime(), is(1447285749000L));
+        assertThat(firstRead.getProcessingNanos(), is(12000000L));
+        assertThat(firstRead.getBody(), is(push));
+
+        assertThat(secondRead.getPath(), is("/project/test-job/builds/status.png?ref=master"));
+        assertThat(secondRead.getHeaders().isEmpty(), is(true));
+        assertThat(secondRead.getBody(), is(nullValue()));
+
+        assertThat(GitLabWebHookRecord.readFrom(in), is(nullValue()));
+    }
+
+    private static byte[] member(GitLabWebHookRecord record) throws IOException {
+        ByteArrayOutputStream member = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(new GZIPOutputStream(member));
+        record.writeTo(out);
+        out.close();
+        return member.toByteArray();
+    }
+}
@@ -0,0 +1,110 @@
+package com.dabsquared.gitlabjenkins;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+public class GitLabWebHookTest {
+
+    /** the default limit of the body of a webhook request, in bytes */
+    private static final int MAX_BODY_SIZE = 10240 * 1024;
+
+    @Rule
+    public JenkinsRule jenkins = new JenkinsRule();
+
+    @Test
+    public void shouldRejectABodyAnnouncedLargerThanTheLimitWithoutReadingIt() throws Exception {
+        assertThat(GitLabPushTrigger.getDesc().getMaxWebHookBodySize(), is(10240));
+        jenkins.createFreeStyleProject("large-body");
+        StaplerRequest req = request(new byte[0]);
+        when(req.getContentLength()).thenReturn(MAX_BODY_SIZE + 1);
+
+        assertStatus(413, req);
+        verify(req, never()).getInputStream();
+    }
+
+    @Test
+    public void shouldRejectAStreamedBodyLargerThanTheLimit() throws Exception {
+        jenkins.createFreeStyleProject("large-body");
+        StaplerRequest req = request(new byte[MAX_BODY_SIZE + 1]);
+        when(req.getContentLength()).thenReturn(-1);
+
+        assertStatus(413, req);
+    }
+
+    @Test
+    public void shouldCompleteTheAsynchronousRequestOnceTheEventIsProcessed() throws Exception {
+        jenkins.createFreeStyleProject("async");
+        // a push without repository URL, skipped by the trigger
+        StaplerRequest req = request("{\"object_kind\":\"push\",\"ref\":\"refs/heads/master\",\"repository\":{\"name\":\"project\"}}"
+                .getBytes("UTF-8"));
+        AsyncContext async = mock(AsyncContext.class);
+        HttpServletResponse asyncRsp = mock(HttpServletResponse.class);
+        when(async.getResponse()).thenReturn(asyncRsp);
+        when(req.isAsyncSupported()).thenReturn(true);
+        when(req.startAsync()).thenReturn(async);
+
+        try {
+            new GitLabWebHook().getDynamic("async", req, mock(StaplerResponse.class));
+            fail("the request was answered by the request thread");
+        } catch (HttpResponses.HttpResponseException handled) {
+            // answered by the executor
+        }
+
+        verify(async, timeout(10000)).complete();
+        verify(asyncRsp).setStatus(HttpServletResponse.SC_OK);
+    }
+
+    private static void assertStatus(int status, StaplerRequest req) throws IOException, ServletException {
+        StaplerResponse rsp = mock(StaplerResponse.class);
+        when(rsp.getWriter()).thenReturn(new PrintWriter(new StringWriter()));
+        try {
+            new GitLabWebHook().getDynamic("large-body", req, rsp);
+            fail("the request was accepted");
+        } catch (HttpResponses.HttpResponseException e) {
+            e.generateResponse(req, rsp, null);
+        }
+        verify(rsp).setStatus(status);
+    }
+
+    private static StaplerRequest request(byte[] body) throws IOException {
+        final ByteArrayInputStream in = new ByteArrayInputStream(body);
+        StaplerRequest req = mock(StaplerRequest.class);
+        when(req.getRestOfPath()).thenReturn("");
+        when(req.getContentLength()).thenReturn(body.length);
+        when(req.getInputStream()).thenReturn(new ServletInputStream() {
+            @Override
+            public int read() {
+                return in.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                return in.read(b, off, len);
+            }
+        });
+        return req;
+    }
+}
@@ -0,0 +1,65 @@
+package com.dabsquared.gitlabjenkins;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.dabsquared.gitlabjenkins.GitLabWebHookTrace.Stage;
+
+public class GitLabWebHookTraceTest {
+
+    private static final String JOB = "trace-test-job";
+
+    @After
+    public void tearDown() {
+        GitLabWebHookTrace.forget(JOB);
+    }
+
+    @Test
+    public void shouldKeepOnlyTheSlowestEventsOfTheJob() {
+        int events = GitLabWebHookTrace.SLOWEST_EVENTS + 5;
+        for (int i = 1; i <= events; i++) {
+            GitLabWebHookTrace.begin(i, JOB).end(JOB, GitLabMetrics.Event.PUSH, GitLabMetrics.Outcome.OK, i * 1000000L);
+        }
+
+        List<GitLabWebHookTrace> slowest = GitLabWebHookTrace.getSlowest(JOB);
+
+        assertThat(slowest.size(), is(GitLabWebHookTrace.SLOWEST_EVENTS));
+        assertThat(slowest.get(0).getTotalMillis(), is((double) events));
+        assertThat(slowest.get(slowest.size() - 1).getTotalMillis(), is(6.0));
+    }
+
+    @Test
+    public void shouldNotKeepStatusRequests() {
+        GitLabWebHookTrace.begin(0, JOB).end(JOB, GitLabMetrics.Event.STATUS_JSON, GitLabMetrics.Outcome.OK, 60000000000L);
+        GitLabWebHookTrace.begin(0, JOB).end(JOB, GitLabMetrics.Event.STATUS_PNG, GitLabMetrics.Outcome.OK, 1000000L);
+        GitLabWebHookTrace.begin(0, JOB).end(JOB, GitLabMetrics.Event.PUSH, GitLabMetrics.Outcome.OK, 1000000L);
+
+        assertThat(GitLabWebHookTrace.getSlowest(JOB).size(), is(1));
+        assertThat(GitLabWebHookTrace.getSlowest(JOB).get(0).getEvent(), is(GitLabMetrics.Event.PUSH));
+    }
+
+    @Test
+    public void shouldAccumulateStagesOfTheCurrentThreadOnly() {
+        GitLabWebHookTrace trace = GitLabWebHookTrace.begin(0, JOB);
+        long started = System.nanoTime();
+        GitLabWebHookTrace.record(Stage.COMMIT_STATUS, started);
+        GitLabWebHookTrace.record(Stage.COMMIT_STATUS, started);
+        GitLabWebHookTrace.record(Stage.SCHEDULE_BUILD, started);
+        trace.end(JOB, GitLabMetrics.Event.MERGE_REQUEST, GitLabMetrics.Outcome.OK, 1000000L);
+
+        // not traced anymore, must be ignored
+        GitLabWebHookTrace.record(Stage.PARSE, started);
+
+        assertThat(trace.getStages().toString(), is("[COMMIT_STATUS, SCHEDULE_BUILD]"));
+        assertThat(trace.getStageCount(Stage.COMMIT_STATUS), is(2));
+        assertThat(trace.getStageCount(Stage.PARSE), is(0));
+        assertTrue(trace.getStageMillis(Stage.COMMIT_STATUS) >= 0);
+        assertThat(trace.toJSON().getJSONArray("stages").size(), is(2));
+    }
+}
@@ -0,0 +1,56 @@
+package com.dabsquared.gitlabjenkins.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.dabsquared.gitlabjenkins.BranchFilter;
+
+/**
+ * Measures the branch filter check done for every push and merge request hook, using spec lists
+ * as they are found in real job configurations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BranchFilterBenchmark {
+
+	private static final String[] BRANCHES = { "master", "develop", "release/2.3", "release/2.3.1-rc1",
+			"hotfix/login-timeout", "feature/JIRA-1234-new-dashboard", "feature/team-a/JIRA-42-cleanup",
+			"experimental/rewrite/parser", "users/jdoe/wip-spike", "renovate/gson-2.x" };
+
+	@Param({ "NameBasedFilter", "RegexBasedFilter" })
+	public String branchFilterName;
+
+	private BranchFilter filter;
+
+	@Setup
+	public void setUp() {
+		filter = new BranchFilter(branchFilterName,
+				"master, develop, release/**, hotfix/*, feature/**/JIRA-*, renovate/*",
+				"**/wip-*, experimental/**, users/**",
+				"(master|develop|release/.*|hotfix/.*|feature/(.*/)?JIRA-\\d+.*)");
+	}
+
+	@Benchmark
+	public void isBranchAllowed(Blackhole blackhole) {
+		for (String branch : BRANCHES) {
+			blackhole.consume(filter.isBranchAllowed(branch));
+		}
+	}
+
+}
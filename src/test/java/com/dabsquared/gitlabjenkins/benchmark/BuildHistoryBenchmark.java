@@ -0,0 +1,169 @@
+package com.dabsquared.gitlabjenkins.benchmark;
+
+import hudson.model.Action;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.StringParameterValue;
+import hudson.plugins.git.Branch;
+import hudson.plugins.git.Revision;
+import hudson.plugins.git.util.Build;
+import hudson.plugins.git.util.BuildData;
+import hudson.plugins.git.util.MergeRecord;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dabsquared.gitlabjenkins.GitLabBuildHistory;
+
+/**
+ * Measures the build history lookups behind status.json, status.png and the merge request
+ * deduplication on jobs with 100 to 50,000 builds.
+ *
+ * Every build carries {@link BuildData} and {@link ParametersAction}; one in ten is a merge build
+ * with a {@link MergeRecord} and one in five was triggered by a merge request. The looked up
+ * commit is either the one of the newest build, of the build in the middle of the history, or
+ * unknown, which scans the whole history. With {@code loaded=false} the builds are not in memory
+ * and their actions have to be deserialized on each lookup.
+ *
+ * The first lookups scan the history while its {@link com.dabsquared.gitlabjenkins.GitLabBuildIndex}
+ * is built in the background; the warmup iterations absorb that, so the measurements are those of
+ * indexed lookups. The <code>Scan</code> methods measure the scan of the history itself, which
+ * lookups still go through until the index is built.
+ *
+ * The sample time mode reports latency percentiles; compare them from release to release.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class BuildHistoryBenchmark {
+
+	private static final String BRANCH_PREFIX = "feature-";
+
+	@Param({ "100", "1000", "10000", "50000" })
+	public int builds;
+
+	@Param({ "newest", "middle", "missing" })
+	public String position;
+
+	@Param({ "true", "false" })
+	public boolean loaded;
+
+	private SyntheticJob job;
+	private String commitSHA1;
+	private String branch;
+
+	@Setup(Level.Trial)
+	public void createHistory() {
+		job = SyntheticJob.create();
+		for (int number = 1; number <= builds; number++) {
+			job.add(SyntheticRun.create(job, number, actions(number)));
+		}
+
+		int target;
+		if ("newest".equals(position)) {
+			target = builds;
+		} else if ("middle".equals(position)) {
+			target = builds / 2;
+		} else {
+			target = builds + 1;
+		}
+		commitSHA1 = sha(target);
+		branch = BRANCH_PREFIX + target;
+	}
+
+	@Setup(Level.Invocation)
+	public void resetHistory() {
+		for (SyntheticRun run : job.getBuilds()) {
+			if (loaded) {
+				run.load();
+			} else {
+				run.unload();
+			}
+		}
+	}
+
+	@Benchmark
+	public Run statusJson() {
+		return GitLabBuildHistory.getBuildBySHA1(job, commitSHA1, true);
+	}
+
+	@Benchmark
+	public Run statusPngBySha() {
+		return GitLabBuildHistory.getBuildBySHA1(job, commitSHA1, false);
+	}
+
+	@Benchmark
+	public Run statusPngByBranch() {
+		return GitLabBuildHistory.getBuildByBranch(job, branch);
+	}
+
+	@Benchmark
+	public Run statusJsonScan() {
+		return GitLabBuildHistory.scanBuildBySHA1(job, commitSHA1, true);
+	}
+
+	@Benchmark
+	public Run statusPngByShaScan() {
+		return GitLabBuildHistory.scanBuildBySHA1(job, commitSHA1, false);
+	}
+
+	@Benchmark
+	public Run statusPngByBranchScan() {
+		return GitLabBuildHistory.scanBuildByBranch(job, branch);
+	}
+
+	private static List<Action> actions(int number) {
+		ObjectId sha1 = ObjectId.fromString(sha(number));
+		String branchName = BRANCH_PREFIX + number;
+		Branch branch = new Branch("origin/" + branchName, sha1);
+		Revision revision = new Revision(sha1, Collections.singletonList(branch));
+
+		List<Action> actions = new ArrayList<Action>();
+		boolean mergeBuild = number % 10 == 0;
+		boolean mergeRequestBuild = number % 5 == 1;
+
+		BuildData buildData = new BuildData();
+		if (mergeBuild) {
+			ObjectId mergeSha1 = ObjectId.fromString(sha(number + 1000000));
+			Revision merged = new Revision(mergeSha1, Collections.singletonList(branch));
+			buildData.saveBuild(new Build(revision, merged, number, Result.SUCCESS));
+			actions.add(new MergeRecord("origin/master", sha(number + 2000000)));
+		} else {
+			buildData.saveBuild(new Build(revision, number, Result.SUCCESS));
+		}
+		actions.add(buildData);
+
+		List<ParameterValue> parameters = new ArrayList<ParameterValue>();
+		parameters.add(new StringParameterValue("gitlabSourceBranch", branchName));
+		parameters.add(new StringParameterValue("gitlabTargetBranch", mergeRequestBuild ? "master" : branchName));
+		parameters.add(new StringParameterValue("gitlabActionType", mergeRequestBuild ? "MERGE" : "PUSH"));
+		actions.add(new ParametersAction(parameters));
+		return actions;
+	}
+
+	private static String sha(int number) {
+		return String.format("%040x", number);
+	}
+
+}
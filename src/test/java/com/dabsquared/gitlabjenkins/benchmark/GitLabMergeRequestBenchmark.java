@@ -0,0 +1,46 @@
+package com.dabsquared.gitlabjenkins.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dabsquared.gitlabjenkins.GitLabMergeRequest;
+import com.dabsquared.gitlabjenkins.testhelpers.GitLabRequestPayloads;
+
+/**
+ * Measures parsing of merge request hooks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GitLabMergeRequestBenchmark {
+
+	@Param({ "open", "update", "merge" })
+	public String action;
+
+	private String payload;
+
+	@Setup
+	public void setUp() {
+		payload = GitLabRequestPayloads.mergeRequestPayload(action);
+	}
+
+	@Benchmark
+	public GitLabMergeRequest create() {
+		return GitLabMergeRequest.create(payload);
+	}
+
+}
@@ -0,0 +1,49 @@
+package com.dabsquared.gitlabjenkins.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dabsquared.gitlabjenkins.GitLabPushRequest;
+import com.dabsquared.gitlabjenkins.testhelpers.GitLabRequestPayloads;
+
+/**
+ * Measures parsing of push hooks of growing size for every supported GitLab payload version.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GitLabPushRequestBenchmark {
+
+	@Param({ "7.5.1", "7.10.5", "8.1.2" })
+	public String gitlabVersion;
+
+	@Param({ "1", "10", "100", "1000" })
+	public int commits;
+
+	private String payload;
+
+	@Setup
+	public void setUp() {
+		payload = GitLabRequestPayloads.pushPayload(gitlabVersion, commits);
+	}
+
+	@Benchmark
+	public GitLabPushRequest create() {
+		return GitLabPushRequest.create(payload);
+	}
+
+}
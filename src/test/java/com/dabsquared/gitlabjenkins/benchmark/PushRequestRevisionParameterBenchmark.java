@@ -0,0 +1,54 @@
+package com.dabsquared.gitlabjenkins.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dabsquared.gitlabjenkins.GitLabPushRequest;
+import com.dabsquared.gitlabjenkins.GitLabPushTrigger;
+import com.dabsquared.gitlabjenkins.testhelpers.GitLabRequestPayloads;
+
+import hudson.plugins.git.RevisionParameterAction;
+
+/**
+ * Measures the creation of the revision to build for pushes of growing size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PushRequestRevisionParameterBenchmark {
+
+	@Param({ "7.5.1", "7.10.5", "8.1.2" })
+	public String gitlabVersion;
+
+	@Param({ "1", "10", "100", "1000" })
+	public int commits;
+
+	private GitLabPushTrigger trigger;
+	private GitLabPushRequest pushRequest;
+
+	@Setup
+	public void setUp() {
+		trigger = new GitLabPushTrigger(true, true, "never", true, true, true, false, true, false, "", null, null, null);
+		pushRequest = GitLabPushRequest.create(GitLabRequestPayloads.pushPayload(gitlabVersion, commits));
+	}
+
+	@Benchmark
+	public RevisionParameterAction createPushRequestRevisionParameter() {
+		return trigger.createPushRequestRevisionParameter(null, pushRequest);
+	}
+
+}
@@ -0,0 +1,53 @@
+package com.dabsquared.gitlabjenkins.benchmark;
+
+import hudson.model.Job;
+
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.objenesis.ObjenesisStd;
+
+/**
+ * A job holding a synthetic build history, created without a running Jenkins.
+ */
+public class SyntheticJob extends Job<SyntheticJob, SyntheticRun> {
+
+	private SortedMap<Integer, SyntheticRun> runs;
+
+	private SyntheticJob() {
+		super(null, null);
+	}
+
+	public static SyntheticJob create() {
+		SyntheticJob job = (SyntheticJob) new ObjenesisStd().newInstance(SyntheticJob.class);
+		// newest build first, like RunMap
+		job.runs = new TreeMap<Integer, SyntheticRun>(Collections.reverseOrder());
+		return job;
+	}
+
+	public void add(SyntheticRun run) {
+		runs.put(run.getNumber(), run);
+	}
+
+	@Override
+	public String getFullName() {
+		return "synthetic";
+	}
+
+	@Override
+	public boolean isBuildable() {
+		return false;
+	}
+
+	@Override
+	protected SortedMap<Integer, ? extends SyntheticRun> _getRuns() {
+		return runs;
+	}
+
+	@Override
+	protected void removeRun(SyntheticRun run) {
+		runs.remove(run.getNumber());
+	}
+
+}
@@ -0,0 +1,83 @@
+package com.dabsquared.gitlabjenkins.benchmark;
+
+import hudson.model.Action;
+import hudson.model.Run;
+import hudson.util.XStream2;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.objenesis.ObjenesisStd;
+
+/**
+ * A build of a {@link SyntheticJob}, created without a running Jenkins.
+ *
+ * Its actions are kept serialized like in build.xml; until {@link #load()} is called every action
+ * lookup deserializes them again, which stands for a build that is not loaded in memory yet.
+ */
+public class SyntheticRun extends Run<SyntheticJob, SyntheticRun> {
+
+	private static final XStream2 XSTREAM = new XStream2();
+
+	private String serializedActions;
+	private volatile List<Action> loadedActions;
+
+	private SyntheticRun() throws IOException {
+		super(null);
+	}
+
+	public static SyntheticRun create(SyntheticJob job, int number, List<Action> actions) {
+		SyntheticRun run = (SyntheticRun) new ObjenesisStd().newInstance(SyntheticRun.class);
+		try {
+			Field numberField = Run.class.getDeclaredField("number");
+			numberField.setAccessible(true);
+			numberField.setInt(run, number);
+			Field projectField = Run.class.getDeclaredField("project");
+			projectField.setAccessible(true);
+			projectField.set(run, job);
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+		run.serializedActions = XSTREAM.toXML(new ArrayList<Action>(actions));
+		run.loadedActions = actions;
+		return run;
+	}
+
+	/**
+	 * Forgets the deserialized actions, as if the build had been evicted from memory.
+	 */
+	public void unload() {
+		loadedActions = null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<Action> actions() {
+		List<Action> actions = loadedActions;
+		if (actions == null) {
+			actions = (List<Action>) XSTREAM.fromXML(serializedActions);
+		}
+		return actions;
+	}
+
+	public void load() {
+		loadedActions = actions();
+	}
+
+	@Override
+	public boolean isBuilding() {
+		return false;
+	}
+
+	@Override
+	public <T extends Action> T getAction(Class<T> type) {
+		for (Action a : actions()) {
+			if (type.isInstance(a)) {
+				return type.cast(a);
+			}
+		}
+		return null;
+	}
+
+}
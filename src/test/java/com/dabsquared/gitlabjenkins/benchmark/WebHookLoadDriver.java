@@ -0,0 +1,234 @@
+package com.dabsquared.gitlabjenkins.benchmark;
+
+import static org.junit.Assert.assertTrue;
+
+import hudson.model.FreeStyleProject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.json.JSONObject;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import com.dabsquared.gitlabjenkins.GitLabPushTrigger;
+import com.dabsquared.gitlabjenkins.GitLabWebHook;
+import com.dabsquared.gitlabjenkins.testhelpers.GitLabRequestPayloads;
+import com.dabsquared.gitlabjenkins.testhelpers.GitLabStubServer;
+import com.dabsquared.gitlabjenkins.testhelpers.GitLabStubServer.Endpoint;
+
+/**
+ * End-to-end load test: fires versioned push and merge request payloads at {@link GitLabWebHook}
+ * in a Jenkins test instance connected to a {@link GitLabStubServer}, then reports throughput,
+ * latency percentiles and the GitLab API calls made per event.
+ *
+ * The class name does not match the surefire patterns, so it only runs on demand:
+ *
+ * <pre>
+ * mvn test -Dtest=WebHookLoadDriver -Dgitlab.load.events=5000 -Dgitlab.load.concurrency=16 \
+ *     -Dgitlab.load.apiLatencyMillis=20 -Dgitlab.load.apiErrorRate=0.01
+ * </pre>
+ */
+public class WebHookLoadDriver {
+
+	static {
+		// the driver sends the same events over and over, they must not be dropped as redeliveries
+		if (System.getProperty("com.dabsquared.gitlabjenkins.GitLabWebHookDedup.windowSeconds") == null) {
+			System.setProperty("com.dabsquared.gitlabjenkins.GitLabWebHookDedup.windowSeconds", "0");
+		}
+	}
+
+	private static final int PROJECT_ID = 345;
+	private static final String[] GITLAB_VERSIONS = { "7.5.1", "7.10.5", "8.1.2" };
+
+	private final int events = Integer.getInteger("gitlab.load.events", 2000);
+	private final int concurrency = Integer.getInteger("gitlab.load.concurrency", 8);
+	private final int commitsPerPush = Integer.getInteger("gitlab.load.commitsPerPush", 20);
+	private final int mergeRequestPercent = Integer.getInteger("gitlab.load.mergeRequestPercent", 30);
+	private final long apiLatencyMillis = Long.getLong("gitlab.load.apiLatencyMillis", 5);
+	private final long apiJitterMillis = Long.getLong("gitlab.load.apiJitterMillis", 5);
+	private final double apiErrorRate = Double.parseDouble(System.getProperty("gitlab.load.apiErrorRate", "0"));
+
+	@Rule
+	public JenkinsRule jenkins = new JenkinsRule();
+
+	private GitLabStubServer gitlab;
+
+	@Before
+	public void setUp() throws Exception {
+		gitlab = new GitLabStubServer().withLatency(apiLatencyMillis, apiJitterMillis).withErrorRate(apiErrorRate)
+				.start(concurrency * 2);
+		gitlab.addProject(PROJECT_ID, "test-group", "test-repo");
+		gitlab.addBranch(PROJECT_ID, "master", "e5a46665b80965724b45fe921788105258b3ec5c");
+		gitlab.addBranch(PROJECT_ID, "feature", "742d8d0b4b16792c38c6798b28ba1fa754da165e");
+		gitlab.addMergeRequest(PROJECT_ID, 99, 1, "feature", "master");
+
+		JSONObject globalConfig = new JSONObject();
+		globalConfig.put("gitlabHostUrl", gitlab.getUrl());
+		globalConfig.put("gitlabApiToken", "load-test-token");
+		globalConfig.put("ignoreCertificateErrors", false);
+		GitLabPushTrigger.getDesc().configure(null, globalConfig);
+	}
+
+	@After
+	public void tearDown() {
+		if (gitlab != null) {
+			gitlab.stop();
+		}
+	}
+
+	@Test
+	public void fireWebHooks() throws Exception {
+		FreeStyleProject project = jenkins.createFreeStyleProject("load-test");
+		// identical events coalesce in the queue, so the run measures the hook and not the builds
+		project.setQuietPeriod(5);
+		GitLabPushTrigger trigger = new GitLabPushTrigger(true, true, "both", false, true, true, true, true, false,
+				"", "", "", "");
+		project.addTrigger(trigger);
+		trigger.start(project, true);
+
+		final URL hookUrl = new URL(jenkins.getURL(), GitLabWebHook.WEBHOOK_URL + "/" + project.getName());
+		final String[] payloads = payloads();
+
+		// warm up the class loading and the caches of the plugin
+		for (String payload : payloads) {
+			post(hookUrl, payload);
+		}
+		jenkins.waitUntilNoActivity();
+		gitlab.resetCounters();
+
+		ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger failures = new AtomicInteger();
+		final long[] latencies = new long[events];
+		List<Future<?>> running = new ArrayList<Future<?>>();
+
+		long started = System.nanoTime();
+		for (int i = 0; i < concurrency; i++) {
+			running.add(clients.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					for (int event = next.getAndIncrement(); event < events; event = next.getAndIncrement()) {
+						long sent = System.nanoTime();
+						int status = post(hookUrl, payloads[event % payloads.length]);
+						latencies[event] = System.nanoTime() - sent;
+						if (status >= 400) {
+							failures.incrementAndGet();
+						}
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<?> client : running) {
+			client.get();
+		}
+		long elapsed = System.nanoTime() - started;
+		clients.shutdown();
+		clients.awaitTermination(1, TimeUnit.MINUTES);
+
+		long[] hookCalls = snapshot();
+		jenkins.waitUntilNoActivity();
+		long[] totalCalls = snapshot();
+
+		report(elapsed, latencies, failures.get(), hookCalls, totalCalls);
+		assertTrue("no webhook request succeeded", failures.get() < events);
+	}
+
+	/**
+	 * Push payloads of every supported GitLab version mixed with merge request events, in the
+	 * configured proportion.
+	 */
+	private String[] payloads() {
+		List<String> payloads = new ArrayList<String>();
+		for (String version : GITLAB_VERSIONS) {
+			payloads.add(GitLabRequestPayloads.pushPayload(version, commitsPerPush, PROJECT_ID));
+		}
+		int mergeRequests = Math.max(1, payloads.size() * mergeRequestPercent / Math.max(1, 100 - mergeRequestPercent));
+		String[] actions = { "open", "update", "reopen" };
+		for (int i = 0; i < mergeRequests; i++) {
+			payloads.add(GitLabRequestPayloads.mergeRequestPayload(actions[i % actions.length]));
+		}
+		return payloads.toArray(new String[payloads.size()]);
+	}
+
+	private static int post(URL url, String payload) throws Exception {
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setRequestProperty("Content-Type", "application/json");
+		OutputStream out = connection.getOutputStream();
+		out.write(payload.getBytes("UTF-8"));
+		out.close();
+		int status = connection.getResponseCode();
+		InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+		if (in != null) {
+			// drain the response so the connection can be kept alive
+			ByteArrayOutputStream ignored = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				ignored.write(buffer, 0, read);
+			}
+			in.close();
+		}
+		return status;
+	}
+
+	private long[] snapshot() {
+		long[] calls = new long[Endpoint.values().length];
+		for (Endpoint endpoint : Endpoint.values()) {
+			calls[endpoint.ordinal()] = gitlab.getCalls(endpoint);
+		}
+		return calls;
+	}
+
+	private void report(long elapsedNanos, long[] latencies, int failures, long[] hookCalls, long[] totalCalls) {
+		long[] sorted = latencies.clone();
+		Arrays.sort(sorted);
+		double seconds = elapsedNanos / 1e9;
+
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("%nWebhook load test: %d events, %d clients, GitLab latency %d+%dms, error rate %.3f%n",
+				events, concurrency, apiLatencyMillis, apiJitterMillis, apiErrorRate));
+		report.append(String.format("  throughput   %10.1f events/s (%d failed)%n", events / seconds, failures));
+		report.append(String.format("  latency p50  %10.2f ms%n", percentile(sorted, 0.50)));
+		report.append(String.format("  latency p90  %10.2f ms%n", percentile(sorted, 0.90)));
+		report.append(String.format("  latency p99  %10.2f ms%n", percentile(sorted, 0.99)));
+		report.append(String.format("  latency max  %10.2f ms%n", sorted[sorted.length - 1] / 1e6));
+		report.append(String.format("  GitLab API calls per event, %-24s %12s %12s%n", "", "in hook", "incl. builds"));
+		long hookTotal = 0;
+		long total = 0;
+		for (Endpoint endpoint : Endpoint.values()) {
+			hookTotal += hookCalls[endpoint.ordinal()];
+			total += totalCalls[endpoint.ordinal()];
+			if (totalCalls[endpoint.ordinal()] > 0) {
+				report.append(String.format("    %-48s %12.3f %12.3f%n", endpoint,
+						(double) hookCalls[endpoint.ordinal()] / events, (double) totalCalls[endpoint.ordinal()] / events));
+			}
+		}
+		report.append(String.format("    %-48s %12.3f %12.3f%n", "TOTAL", (double) hookTotal / events, (double) total / events));
+		report.append(String.format("  injected GitLab errors %d%n", gitlab.getInjectedErrors()));
+		System.out.println(report);
+	}
+
+	private static double percentile(long[] sorted, double percentile) {
+		int index = (int) Math.ceil(percentile * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+	}
+}
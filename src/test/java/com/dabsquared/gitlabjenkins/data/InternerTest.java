@@ -0,0 +1,40 @@
+package com.dabsquared.gitlabjenkins.data;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class InternerTest {
+
+    @Test
+    public void shouldShareEqualStrings() {
+        String first = Interner.intern(new String("refs/heads/master"));
+        String second = Interner.intern(new String("refs/heads/master"));
+
+        assertThat(second, is(sameInstance(first)));
+    }
+
+    @Test
+    public void shouldNotInternLongStrings() {
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i <= Interner.MAX_LENGTH; i++) {
+            message.append('x');
+        }
+        String value = new String(message);
+        Interner.intern(new String(message));
+
+        assertThat(Interner.intern(value), is(sameInstance(value)));
+    }
+
+    @Test
+    public void shouldShareTheValuesOfThePayload() {
+        User first = new User();
+        first.setEmail(new String("john@example.com"));
+        User second = new User();
+        second.setEmail(new String("john@example.com"));
+
+        assertThat(second.getEmail(), is(sameInstance(first.getEmail())));
+    }
+}
@@ -0,0 +1,50 @@
+package com.dabsquared.gitlabjenkins.data;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import hudson.util.XStream2;
+
+import org.junit.Test;
+
+public class Sha1Test {
+
+    private static final String ID = "8c8af7b8d3a0e4b4a2f1a9c6f1e7b7d5c9e0a1f2";
+
+    @Test
+    public void shouldGiveBackTheHexadecimalForm() {
+        assertThat(Sha1.of(ID).toString(), is(ID));
+        assertThat(Sha1.of("0000000000000000000000000000000000000001").toString(), is("0000000000000000000000000000000000000001"));
+        assertThat(Sha1.of("ffffffffffffffffffffffffffffffffffffffff").toString(), is("ffffffffffffffffffffffffffffffffffffffff"));
+    }
+
+    @Test
+    public void shouldKeepOtherValuesAsTheyAre() {
+        assertThat(Sha1.of("HEAD").toString(), is("HEAD"));
+        assertThat(Sha1.of(ID.toUpperCase()).toString(), is(ID.toUpperCase()));
+        assertThat(Sha1.toString(Sha1.of(null)), is(nullValue()));
+    }
+
+    @Test
+    public void shouldCompareByValue() {
+        assertThat(Sha1.of(ID), is(Sha1.of(ID)));
+        assertThat(Sha1.of(ID).hashCode(), is(Sha1.of(ID).hashCode()));
+        assertThat(Sha1.of(ID), is(not(Sha1.of("0000000000000000000000000000000000000000"))));
+        assertThat(Sha1.of("HEAD"), is(Sha1.of("HEAD")));
+    }
+
+    @Test
+    public void shouldStoreTheHexadecimalFormInBuildRecords() {
+        XStream2 xstream = new XStream2();
+        xstream.registerConverter(new Sha1.ConverterImpl());
+        Commit commit = new Commit();
+        commit.setId(ID);
+
+        String xml = xstream.toXML(commit);
+
+        assertThat(xml, containsString("<id>" + ID + "</id>"));
+        assertThat(((Commit) xstream.fromXML(xml)).getId(), is(ID));
+    }
+}
@@ -0,0 +1,58 @@
+package com.dabsquared.gitlabjenkins.testhelpers;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import com.dabsquared.gitlabjenkins.GitLabMergeRequest;
+import com.dabsquared.gitlabjenkins.data.LastCommit;
+import com.dabsquared.gitlabjenkins.data.ObjectAttributes;
+
+/**
+ * Builds the merge requests of the tests, with only the attributes they look at.
+ */
+public class GitLabMergeRequests {
+
+	/**
+	 * @return a merge request to master whose last commit is the one given
+	 */
+	public static GitLabMergeRequest mergeRequest(int iid, String commit) {
+		ObjectAttributes attributes = new ObjectAttributes();
+		attributes.setIid(iid);
+		attributes.setTargetBranch("master");
+		attributes.setLastCommit(new LastCommit());
+		attributes.getLastCommit().setId(commit);
+		GitLabMergeRequest mergeRequest = new GitLabMergeRequest();
+		mergeRequest.setObjectAttribute(attributes);
+		return mergeRequest;
+	}
+
+	/**
+	 * @return the attributes of a merge request as listed by the API or sent by its webhook
+	 */
+	public static ObjectAttributes attributes(int iid, String source, String target, String state, long updatedAt) {
+		ObjectAttributes attributes = new ObjectAttributes();
+		attributes.setIid(iid);
+		attributes.setSourceBranch(source);
+		attributes.setTargetBranch(target);
+		attributes.setState(state);
+		attributes.setUpdatedAt(new Date(updatedAt));
+		return attributes;
+	}
+
+	public static List<Integer> iids(List<GitLabMergeRequest> mergeRequests) {
+		List<ObjectAttributes> attributes = new ArrayList<ObjectAttributes>();
+		for (GitLabMergeRequest mergeRequest : mergeRequests) {
+			attributes.add(mergeRequest.getObjectAttribute());
+		}
+		return attributeIids(attributes);
+	}
+
+	public static List<Integer> attributeIids(List<ObjectAttributes> mergeRequests) {
+		List<Integer> iids = new ArrayList<Integer>();
+		for (ObjectAttributes mergeRequest : mergeRequests) {
+			iids.add(mergeRequest.getIid());
+		}
+		return iids;
+	}
+}
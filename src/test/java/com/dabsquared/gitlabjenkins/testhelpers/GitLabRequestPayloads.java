@@ -0,0 +1,141 @@
+package com.dabsquared.gitlabjenkins.testhelpers;
+
+import com.dabsquared.gitlabjenkins.GitLabPushRequest;
+import com.dabsquared.gitlabjenkins.data.Commit;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Generates raw webhook payloads, as GitLab would post them, from the versioned push request
+ * samples. The number of commits can be raised to simulate large pushes.
+ */
+public class GitLabRequestPayloads {
+
+	public static GitLabPushRequestSamples samples(String gitlabVersion) {
+		if ("7.5.1".equals(gitlabVersion)) {
+			return new GitLabPushRequestSamples_7_5_1_36679b5();
+		}
+		if ("7.10.5".equals(gitlabVersion)) {
+			return new GitLabPushRequestSamples_7_10_5_489b413();
+		}
+		if ("8.1.2".equals(gitlabVersion)) {
+			return new GitLabPushRequestSamples_8_1_2_8c8af7b();
+		}
+		throw new IllegalArgumentException("No samples for GitLab " + gitlabVersion);
+	}
+
+	/**
+	 * Builds the JSON of the sample's merge push with {@code commitCount} commits; the last
+	 * commit is the one of the sample so the push still points to the same revision.
+	 */
+	public static String pushPayload(String gitlabVersion, int commitCount) {
+		return pushPayload(gitlabVersion, commitCount, null);
+	}
+
+	/**
+	 * Same as {@link #pushPayload(String, int)}, for the GitLab project with the given id.
+	 */
+	public static String pushPayload(String gitlabVersion, int commitCount, Integer projectId) {
+		GitLabPushRequest sample = samples(gitlabVersion).mergePushRequest();
+		Commit lastCommit = sample.getLastCommit();
+
+		JSONObject json = new JSONObject();
+		if ("8.1.2".equals(gitlabVersion)) {
+			json.put("object_kind", "push");
+		}
+		json.put("before", sample.getBefore());
+		json.put("after", sample.getAfter());
+		json.put("ref", sample.getRef());
+		if (sample.getCheckout_sha() != null) {
+			json.put("checkout_sha", sample.getCheckout_sha());
+		}
+		json.put("user_id", sample.getUser_id());
+		json.put("user_name", sample.getUser_name());
+		json.put("project_id", projectId != null ? projectId : sample.getProject_id());
+
+		JSONObject repository = new JSONObject();
+		repository.put("name", sample.getRepository().getName());
+		repository.put("url", sample.getRepository().getUrl());
+		repository.put("description", sample.getRepository().getDescription());
+		repository.put("homepage", sample.getRepository().getHomepage());
+		json.put("repository", repository);
+
+		JSONArray commits = new JSONArray();
+		for (int i = 1; i < commitCount; i++) {
+			commits.add(commit(new CommitBuilder().withCommitSha(sha(i)).build(), i));
+		}
+		commits.add(commit(lastCommit, commitCount));
+		json.put("commits", commits);
+		json.put("total_commits_count", commitCount);
+		return json.toString();
+	}
+
+	/**
+	 * Builds the JSON of a merge request event as sent by GitLab 8.1.
+	 */
+	public static String mergeRequestPayload(String action) {
+		JSONObject author = new JSONObject();
+		author.put("id", 1);
+		author.put("name", "Administrator");
+		author.put("email", "admin@example.com");
+
+		JSONObject source = new JSONObject();
+		source.put("name", "test-repo");
+		source.put("ssh_url", "git@gitlabserver.example.com:test-group/test-repo.git");
+		source.put("http_url", "http://gitlabserver.example.com/test-group/test-repo.git");
+		source.put("namespace", "test-group");
+
+		JSONObject lastCommit = new JSONObject();
+		lastCommit.put("id", "e5a46665b80965724b45fe921788105258b3ec5c");
+		lastCommit.put("message", "Merge branch 'feature' into 'master'");
+		lastCommit.put("timestamp", "2015-11-12T07:49:09+11:00");
+		lastCommit.put("url", "http://gitlabserver.example.com/test-group/test-repo/commit/e5a46665b80965724b45fe921788105258b3ec5c");
+		lastCommit.put("author", author);
+
+		JSONObject attributes = new JSONObject();
+		attributes.put("id", 99);
+		attributes.put("iid", 1);
+		attributes.put("target_branch", "master");
+		attributes.put("source_branch", "feature");
+		attributes.put("source_project_id", 345);
+		attributes.put("author_id", 1);
+		attributes.put("assignee_id", 1);
+		attributes.put("title", "Feature");
+		attributes.put("created_at", "2015-11-12 07:49:09 +1100");
+		attributes.put("updated_at", "2015-11-12 07:50:11 +1100");
+		attributes.put("state", "opened");
+		attributes.put("merge_status", "unchecked");
+		attributes.put("target_project_id", 345);
+		attributes.put("description", "A merge request");
+		attributes.put("source", source);
+		attributes.put("target", source);
+		attributes.put("last_commit", lastCommit);
+		attributes.put("action", action);
+
+		JSONObject json = new JSONObject();
+		json.put("object_kind", "merge_request");
+		json.put("user", author);
+		json.put("object_attributes", attributes);
+		return json.toString();
+	}
+
+	private static JSONObject commit(Commit commit, int index) {
+		JSONObject author = new JSONObject();
+		author.put("name", commit.getAuthor().getName());
+		author.put("email", commit.getAuthor().getEmail());
+
+		JSONObject json = new JSONObject();
+		json.put("id", commit.getId());
+		json.put("message", "Commit number " + index + "\n\nwith a body explaining the change.");
+		json.put("timestamp", commit.getTimestamp());
+		json.put("url", commit.getUrl());
+		json.put("author", author);
+		return json;
+	}
+
+	private static String sha(int index) {
+		return String.format("%040x", index);
+	}
+
+}
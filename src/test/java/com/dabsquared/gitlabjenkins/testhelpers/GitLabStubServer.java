@@ -0,0 +1,458 @@
+package com.dabsquared.gitlabjenkins.testhelpers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded stand-in for the GitLab v3 API, implementing the calls the plugin makes: projects,
+ * branches, merge requests, notes, commit statuses and accepting a merge request.
+ *
+ * Every call can be slowed down by a fixed latency plus jitter and can fail with a 500 at a
+ * configurable rate, and the calls are counted per endpoint so tests can check how many API
+ * round trips an event costs.
+ *
+ * <pre>
+ * GitLabStubServer gitlab = new GitLabStubServer().start();
+ * gitlab.addProject(345, "test-group", "test-repo");
+ * gitlab.addBranch(345, "master", "e5a46665b80965724b45fe921788105258b3ec5c");
+ * // connect the plugin to gitlab.getUrl() with any token
+ * </pre>
+ */
+public class GitLabStubServer {
+
+	public enum Endpoint {
+		GET_PROJECTS, GET_PROJECT, GET_BRANCHES, GET_BRANCH, GET_MERGE_REQUESTS, GET_MERGE_REQUEST,
+		CREATE_NOTE, UPDATE_NOTE, CREATE_COMMIT_STATUS, ACCEPT_MERGE_REQUEST, UNKNOWN
+	}
+
+	private static final String API_PREFIX = "/api/v3";
+
+	private static final Pattern PROJECTS = Pattern.compile("/projects/?");
+	private static final Pattern PROJECT = Pattern.compile("/projects/([^/]+)");
+	private static final Pattern BRANCHES = Pattern.compile("/projects/([^/]+)/repository/branches/?");
+	private static final Pattern BRANCH = Pattern.compile("/projects/([^/]+)/repository/branches/(.+)");
+	private static final Pattern MERGE_REQUESTS = Pattern.compile("/projects/([^/]+)/merge_requests/?");
+	private static final Pattern MERGE_REQUEST = Pattern.compile("/projects/([^/]+)/merge_requests?/(\\d+)");
+	private static final Pattern NOTES = Pattern.compile("/projects/([^/]+)/merge_requests?/(\\d+)/notes");
+	private static final Pattern NOTE = Pattern.compile("/projects/([^/]+)/merge_requests?/(\\d+)/notes/(\\d+)");
+	private static final Pattern ACCEPT = Pattern.compile("/projects/([^/]+)/merge_requests?/(\\d+)/merge");
+	private static final Pattern STATUSES = Pattern.compile("/projects/([^/]+)/statuses/([0-9a-f]+)");
+
+	private final Map<Integer, JSONObject> projects = new LinkedHashMap<Integer, JSONObject>();
+	private final Map<Integer, Map<String, JSONObject>> branches = new HashMap<Integer, Map<String, JSONObject>>();
+	private final Map<Integer, Map<Integer, JSONObject>> mergeRequests = new HashMap<Integer, Map<Integer, JSONObject>>();
+
+	private final Map<Endpoint, AtomicLong> calls = new EnumMap<Endpoint, AtomicLong>(Endpoint.class);
+	private final AtomicLong injectedErrors = new AtomicLong();
+	private final AtomicLong nextId = new AtomicLong(1000);
+	private final Random random = new Random();
+
+	private volatile long latencyMillis;
+	private volatile long jitterMillis;
+	private volatile double errorRate;
+
+	private HttpServer server;
+	private ExecutorService executor;
+
+	public GitLabStubServer() {
+		for (Endpoint endpoint : Endpoint.values()) {
+			calls.put(endpoint, new AtomicLong());
+		}
+	}
+
+	/**
+	 * Starts the server on a free port of the loopback interface.
+	 */
+	public GitLabStubServer start() throws IOException {
+		return start(16);
+	}
+
+	public GitLabStubServer start(int threads) throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		executor = Executors.newFixedThreadPool(threads);
+		server.setExecutor(executor);
+		server.createContext(API_PREFIX, new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange);
+			}
+		});
+		server.start();
+		return this;
+	}
+
+	public void stop() {
+		if (server != null) {
+			server.stop(0);
+			executor.shutdownNow();
+			server = null;
+		}
+	}
+
+	/**
+	 * @return the URL to configure as GitLab host URL
+	 */
+	public String getUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	/**
+	 * Delays every response by {@code latencyMillis} plus a random jitter of up to
+	 * {@code jitterMillis}.
+	 */
+	public GitLabStubServer withLatency(long latencyMillis, long jitterMillis) {
+		this.latencyMillis = latencyMillis;
+		this.jitterMillis = jitterMillis;
+		return this;
+	}
+
+	/**
+	 * Answers the given fraction of the calls, between 0 and 1, with a 500.
+	 */
+	public GitLabStubServer withErrorRate(double errorRate) {
+		this.errorRate = errorRate;
+		return this;
+	}
+
+	public synchronized GitLabStubServer addProject(int projectId, String namespace, String name) {
+		JSONObject ns = new JSONObject();
+		ns.put("id", projectId);
+		ns.put("name", namespace);
+		ns.put("path", namespace);
+
+		JSONObject project = new JSONObject();
+		project.put("id", projectId);
+		project.put("name", name);
+		project.put("path", name);
+		project.put("path_with_namespace", namespace + "/" + name);
+		project.put("ssh_url_to_repo", "git@gitlabserver.example.com:" + namespace + "/" + name + ".git");
+		project.put("http_url_to_repo", "http://gitlabserver.example.com/" + namespace + "/" + name + ".git");
+		project.put("web_url", "http://gitlabserver.example.com/" + namespace + "/" + name);
+		project.put("default_branch", "master");
+		project.put("namespace", ns);
+		projects.put(projectId, project);
+		branches.put(projectId, new LinkedHashMap<String, JSONObject>());
+		mergeRequests.put(projectId, new LinkedHashMap<Integer, JSONObject>());
+		return this;
+	}
+
+	public synchronized GitLabStubServer addBranch(int projectId, String name, String sha) {
+		JSONObject commit = new JSONObject();
+		commit.put("id", sha);
+		commit.put("message", "Head of " + name);
+
+		JSONObject branch = new JSONObject();
+		branch.put("name", name);
+		branch.put("protected", false);
+		branch.put("commit", commit);
+		branches.get(projectId).put(name, branch);
+		return this;
+	}
+
+	public synchronized GitLabStubServer addMergeRequest(int projectId, int id, int iid, String sourceBranch, String targetBranch) {
+		JSONObject author = new JSONObject();
+		author.put("id", 1);
+		author.put("username", "root");
+		author.put("name", "Administrator");
+		author.put("email", "admin@example.com");
+
+		JSONObject mergeRequest = new JSONObject();
+		mergeRequest.put("id", id);
+		mergeRequest.put("iid", iid);
+		mergeRequest.put("project_id", projectId);
+		mergeRequest.put("source_project_id", projectId);
+		mergeRequest.put("target_project_id", projectId);
+		mergeRequest.put("source_branch", sourceBranch);
+		mergeRequest.put("target_branch", targetBranch);
+		mergeRequest.put("title", "Merge " + sourceBranch + " into " + targetBranch);
+		mergeRequest.put("description", "");
+		mergeRequest.put("state", "opened");
+		mergeRequest.put("author", author);
+		mergeRequest.put("assignee", author);
+		mergeRequests.get(projectId).put(id, mergeRequest);
+		return this;
+	}
+
+	public long getCalls(Endpoint endpoint) {
+		return calls.get(endpoint).get();
+	}
+
+	public long getTotalCalls() {
+		long total = 0;
+		for (AtomicLong count : calls.values()) {
+			total += count.get();
+		}
+		return total;
+	}
+
+	public long getInjectedErrors() {
+		return injectedErrors.get();
+	}
+
+	public void resetCounters() {
+		for (AtomicLong count : calls.values()) {
+			count.set(0);
+		}
+		injectedErrors.set(0);
+	}
+
+	private void serve(HttpExchange exchange) throws IOException {
+		try {
+			String method = exchange.getRequestMethod();
+			String path = exchange.getRequestURI().getRawPath().substring(API_PREFIX.length());
+			Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+			if (!"GET".equals(method)) {
+				params.putAll(parseQuery(readBody(exchange.getRequestBody())));
+			}
+
+			Endpoint endpoint = route(method, path);
+			calls.get(endpoint).incrementAndGet();
+			delay();
+
+			if (endpoint == Endpoint.UNKNOWN) {
+				send(exchange, 404, "{\"message\":\"404 Not Found\"}");
+			} else if (errorRate > 0 && random.nextDouble() < errorRate) {
+				injectedErrors.incrementAndGet();
+				send(exchange, 500, "{\"message\":\"500 Internal Server Error\"}");
+			} else {
+				Object body = answer(endpoint, path, params);
+				if (body == null) {
+					send(exchange, 404, "{\"message\":\"404 Not Found\"}");
+				} else {
+					send(exchange, "GET".equals(method) || "PUT".equals(method) ? 200 : 201, body.toString());
+				}
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private Endpoint route(String method, String path) {
+		if ("GET".equals(method)) {
+			if (PROJECTS.matcher(path).matches()) {
+				return Endpoint.GET_PROJECTS;
+			}
+			if (PROJECT.matcher(path).matches()) {
+				return Endpoint.GET_PROJECT;
+			}
+			if (BRANCHES.matcher(path).matches()) {
+				return Endpoint.GET_BRANCHES;
+			}
+			if (BRANCH.matcher(path).matches()) {
+				return Endpoint.GET_BRANCH;
+			}
+			if (MERGE_REQUESTS.matcher(path).matches()) {
+				return Endpoint.GET_MERGE_REQUESTS;
+			}
+			if (MERGE_REQUEST.matcher(path).matches()) {
+				return Endpoint.GET_MERGE_REQUEST;
+			}
+		} else if ("POST".equals(method)) {
+			if (NOTES.matcher(path).matches()) {
+				return Endpoint.CREATE_NOTE;
+			}
+			if (STATUSES.matcher(path).matches()) {
+				return Endpoint.CREATE_COMMIT_STATUS;
+			}
+		} else if ("PUT".equals(method)) {
+			if (ACCEPT.matcher(path).matches()) {
+				return Endpoint.ACCEPT_MERGE_REQUEST;
+			}
+			if (NOTE.matcher(path).matches()) {
+				return Endpoint.UPDATE_NOTE;
+			}
+		}
+		return Endpoint.UNKNOWN;
+	}
+
+	private synchronized Object answer(Endpoint endpoint, String path, Map<String, String> params) {
+		Matcher m;
+		switch (endpoint) {
+		case GET_PROJECTS:
+			return page(new ArrayList<JSONObject>(projects.values()), params);
+		case GET_PROJECT:
+			m = matched(PROJECT, path);
+			return projects.get(projectId(m.group(1)));
+		case GET_BRANCHES:
+			m = matched(BRANCHES, path);
+			Map<String, JSONObject> projectBranches = branches.get(projectId(m.group(1)));
+			return projectBranches == null ? null : page(new ArrayList<JSONObject>(projectBranches.values()), params);
+		case GET_BRANCH:
+			m = matched(BRANCH, path);
+			Map<String, JSONObject> branchesOfProject = branches.get(projectId(m.group(1)));
+			return branchesOfProject == null ? null : branchesOfProject.get(decode(m.group(2)));
+		case GET_MERGE_REQUESTS:
+			m = matched(MERGE_REQUESTS, path);
+			Map<Integer, JSONObject> projectMergeRequests = mergeRequests.get(projectId(m.group(1)));
+			if (projectMergeRequests == null) {
+				return null;
+			}
+			List<JSONObject> selected = new ArrayList<JSONObject>();
+			for (JSONObject mergeRequest : projectMergeRequests.values()) {
+				String state = params.get("state");
+				if (state == null || "all".equals(state) || state.equals(mergeRequest.getString("state"))) {
+					selected.add(mergeRequest);
+				}
+			}
+			return page(selected, params);
+		case GET_MERGE_REQUEST:
+			m = matched(MERGE_REQUEST, path);
+			return mergeRequest(m);
+		case CREATE_NOTE:
+			m = matched(NOTES, path);
+			if (mergeRequest(m) == null) {
+				return null;
+			}
+			JSONObject note = new JSONObject();
+			note.put("id", nextId.incrementAndGet());
+			note.put("body", params.get("body"));
+			return note;
+		case UPDATE_NOTE:
+			m = matched(NOTE, path);
+			if (mergeRequest(m) == null) {
+				return null;
+			}
+			JSONObject updated = new JSONObject();
+			updated.put("id", Integer.valueOf(m.group(3)));
+			updated.put("body", params.get("body"));
+			return updated;
+		case CREATE_COMMIT_STATUS:
+			m = matched(STATUSES, path);
+			if (!projects.containsKey(projectId(m.group(1)))) {
+				return null;
+			}
+			JSONObject status = new JSONObject();
+			status.put("id", nextId.incrementAndGet());
+			status.put("sha", m.group(2));
+			status.put("status", params.get("state"));
+			status.put("ref", params.get("ref"));
+			status.put("name", params.get("name"));
+			status.put("target_url", params.get("target_url"));
+			return status;
+		case ACCEPT_MERGE_REQUEST:
+			m = matched(ACCEPT, path);
+			JSONObject mergeRequest = mergeRequest(m);
+			if (mergeRequest != null) {
+				mergeRequest.put("state", "merged");
+			}
+			return mergeRequest;
+		default:
+			return null;
+		}
+	}
+
+	private JSONObject mergeRequest(Matcher m) {
+		Map<Integer, JSONObject> projectMergeRequests = mergeRequests.get(projectId(m.group(1)));
+		return projectMergeRequests == null ? null : projectMergeRequests.get(Integer.valueOf(m.group(2)));
+	}
+
+	/**
+	 * The client pages through lists until it gets an empty page, so everything is on the first.
+	 */
+	private static JSONArray page(List<JSONObject> items, Map<String, String> params) {
+		JSONArray array = new JSONArray();
+		String page = params.get("page");
+		if (page == null || Integer.parseInt(page) <= 1) {
+			array.addAll(items);
+		}
+		return array;
+	}
+
+	private Integer projectId(String idOrPath) {
+		String decoded = decode(idOrPath);
+		if (decoded.matches("\\d+")) {
+			return Integer.valueOf(decoded);
+		}
+		for (JSONObject project : projects.values()) {
+			if (decoded.equals(project.getString("path_with_namespace"))) {
+				return project.getInt("id");
+			}
+		}
+		return -1;
+	}
+
+	private static Matcher matched(Pattern pattern, String path) {
+		Matcher m = pattern.matcher(path);
+		m.matches();
+		return m;
+	}
+
+	private void delay() {
+		long millis = latencyMillis;
+		if (jitterMillis > 0) {
+			millis += (long) (random.nextDouble() * jitterMillis);
+		}
+		if (millis > 0) {
+			try {
+				Thread.sleep(millis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static void send(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	private static String readBody(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toString("UTF-8");
+	}
+
+	private static Map<String, String> parseQuery(String query) {
+		Map<String, String> params = new HashMap<String, String>();
+		if (query == null || query.isEmpty()) {
+			return params;
+		}
+		for (String pair : query.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq > 0) {
+				params.put(decode(pair.substring(0, eq)), decode(pair.substring(eq + 1)));
+			} else if (!pair.isEmpty()) {
+				params.put(decode(pair), "");
+			}
+		}
+		return params;
+	}
+
+	private static String decode(String value) {
+		try {
+			return URLDecoder.decode(value, "UTF-8");
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}